@@ -19,9 +19,11 @@ import com.esotericsoftware.kryo.serialize.BooleanSerializer;
 import com.esotericsoftware.kryo.serialize.ByteSerializer;
 import com.esotericsoftware.kryo.serialize.CharSerializer;
 import com.esotericsoftware.kryo.serialize.CollectionSerializer;
+import com.esotericsoftware.kryo.serialize.CompatibleFieldSerializer;
 import com.esotericsoftware.kryo.serialize.CustomSerializer;
 import com.esotericsoftware.kryo.serialize.DoubleSerializer;
 import com.esotericsoftware.kryo.serialize.EnumSerializer;
+import com.esotericsoftware.kryo.serialize.FieldAccessorFactory;
 import com.esotericsoftware.kryo.serialize.FieldSerializer;
 import com.esotericsoftware.kryo.serialize.FloatSerializer;
 import com.esotericsoftware.kryo.serialize.IntSerializer;
@@ -57,6 +59,7 @@ public class Kryo {
 	private Listener[] listeners = {};
 	private boolean registrationOptional;
 	private ClassLoader classLoader = getClass().getClassLoader();
+	private FieldAccessorFactory fieldAccessorFactory = FieldAccessorFactory.getDefault();
 	//
 	private final CustomSerializer customSerializer = new CustomSerializer(this);
 	private final ArraySerializer arraySerializer = new ArraySerializer(this);
@@ -95,6 +98,19 @@ public class Kryo {
 		this.registrationOptional = registrationOptional;
 	}
 
+	/**
+	 * Sets the factory for the accessors {@link FieldSerializer} and {@link CompatibleFieldSerializer} use for fields that are not
+	 * public. Default is {@link FieldAccessorFactory#getDefault()}. Only affects serializers created after this call.
+	 */
+	public void setFieldAccessorFactory (FieldAccessorFactory fieldAccessorFactory) {
+		if (fieldAccessorFactory == null) throw new IllegalArgumentException("fieldAccessorFactory cannot be null.");
+		this.fieldAccessorFactory = fieldAccessorFactory;
+	}
+
+	public FieldAccessorFactory getFieldAccessorFactory () {
+		return fieldAccessorFactory;
+	}
+
 	/**
 	 * ɶ͵ע
 	 * @param type					
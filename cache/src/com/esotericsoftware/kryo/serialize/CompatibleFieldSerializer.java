@@ -85,6 +85,7 @@ public class CompatibleFieldSerializer extends Serializer {
 
 			CachedField cachedField = new CachedField();
 			cachedField.field = field;
+			cachedField.accessor = kryo.getFieldAccessorFactory().newFieldAccessor(field);
 			if (fieldsCanBeNull)
 				cachedField.canBeNull = !field.isAnnotationPresent(NotNull.class);
 			else
@@ -329,6 +330,7 @@ public class CompatibleFieldSerializer extends Serializer {
 		Serializer serializer;
 		boolean canBeNull;
 		int accessIndex = -1;
+		FieldAccessor accessor;
 
 		/**
 		 * @param fieldClass The concrete class of the values for this field. This saves 1-2 bytes. The serializer registered for
@@ -359,14 +361,14 @@ public class CompatibleFieldSerializer extends Serializer {
 
 		Object get (Object object) throws IllegalAccessException {
 			if (accessIndex != -1) return ((FieldAccess)access).get(object, accessIndex);
-			return field.get(object);
+			return accessor.get(object);
 		}
 
 		void set (Object object, Object value) throws IllegalAccessException {
 			if (accessIndex != -1)
 				((FieldAccess)access).set(object, accessIndex, value);
 			else
-				field.set(object, value);
+				accessor.set(object, value);
 		}
 	}
 }
@@ -0,0 +1,179 @@
+package com.esotericsoftware.kryo.serialize;
+
+import java.lang.reflect.Field;
+
+/**
+ * Reads and writes the value of a single field. Implementations are created by a {@link FieldAccessorFactory}.
+ * <p>
+ * The typed methods (eg {@link #getInt(Object)}) are used by {@link FieldSerializer} for primitive fields, so that the values are
+ * not boxed. By default they box and unbox the value and use {@link #get(Object)} and {@link #set(Object, Object)}.
+ * @see FieldSerializer
+ * @see CompatibleFieldSerializer
+ */
+public abstract class FieldAccessor {
+	protected final Field field;
+
+	protected FieldAccessor (Field field) {
+		this.field = field;
+	}
+
+	public Field getField () {
+		return field;
+	}
+
+	/**
+	 * Returns the value of the field, primitives are boxed.
+	 */
+	public abstract Object get (Object object) throws IllegalAccessException;
+
+	/**
+	 * Sets the value of the field, primitives are unboxed.
+	 */
+	public abstract void set (Object object, Object value) throws IllegalAccessException;
+
+	public int getInt (Object object) throws IllegalAccessException {
+		return (Integer)get(object);
+	}
+
+	public void setInt (Object object, int value) throws IllegalAccessException {
+		set(object, value);
+	}
+
+	public long getLong (Object object) throws IllegalAccessException {
+		return (Long)get(object);
+	}
+
+	public void setLong (Object object, long value) throws IllegalAccessException {
+		set(object, value);
+	}
+
+	public boolean getBoolean (Object object) throws IllegalAccessException {
+		return (Boolean)get(object);
+	}
+
+	public void setBoolean (Object object, boolean value) throws IllegalAccessException {
+		set(object, value);
+	}
+
+	public double getDouble (Object object) throws IllegalAccessException {
+		return (Double)get(object);
+	}
+
+	public void setDouble (Object object, double value) throws IllegalAccessException {
+		set(object, value);
+	}
+
+	public float getFloat (Object object) throws IllegalAccessException {
+		return (Float)get(object);
+	}
+
+	public void setFloat (Object object, float value) throws IllegalAccessException {
+		set(object, value);
+	}
+
+	public short getShort (Object object) throws IllegalAccessException {
+		return (Short)get(object);
+	}
+
+	public void setShort (Object object, short value) throws IllegalAccessException {
+		set(object, value);
+	}
+
+	public byte getByte (Object object) throws IllegalAccessException {
+		return (Byte)get(object);
+	}
+
+	public void setByte (Object object, byte value) throws IllegalAccessException {
+		set(object, value);
+	}
+
+	public char getChar (Object object) throws IllegalAccessException {
+		return (Character)get(object);
+	}
+
+	public void setChar (Object object, char value) throws IllegalAccessException {
+		set(object, value);
+	}
+
+	/**
+	 * Uses {@link Field#get(Object)} and {@link Field#set(Object, Object)} and the typed methods of {@link Field}. The field must be
+	 * accessible.
+	 */
+	static public class ReflectionFieldAccessor extends FieldAccessor {
+		public ReflectionFieldAccessor (Field field) {
+			super(field);
+		}
+
+		public Object get (Object object) throws IllegalAccessException {
+			return field.get(object);
+		}
+
+		public void set (Object object, Object value) throws IllegalAccessException {
+			field.set(object, value);
+		}
+
+		public int getInt (Object object) throws IllegalAccessException {
+			return field.getInt(object);
+		}
+
+		public void setInt (Object object, int value) throws IllegalAccessException {
+			field.setInt(object, value);
+		}
+
+		public long getLong (Object object) throws IllegalAccessException {
+			return field.getLong(object);
+		}
+
+		public void setLong (Object object, long value) throws IllegalAccessException {
+			field.setLong(object, value);
+		}
+
+		public boolean getBoolean (Object object) throws IllegalAccessException {
+			return field.getBoolean(object);
+		}
+
+		public void setBoolean (Object object, boolean value) throws IllegalAccessException {
+			field.setBoolean(object, value);
+		}
+
+		public double getDouble (Object object) throws IllegalAccessException {
+			return field.getDouble(object);
+		}
+
+		public void setDouble (Object object, double value) throws IllegalAccessException {
+			field.setDouble(object, value);
+		}
+
+		public float getFloat (Object object) throws IllegalAccessException {
+			return field.getFloat(object);
+		}
+
+		public void setFloat (Object object, float value) throws IllegalAccessException {
+			field.setFloat(object, value);
+		}
+
+		public short getShort (Object object) throws IllegalAccessException {
+			return field.getShort(object);
+		}
+
+		public void setShort (Object object, short value) throws IllegalAccessException {
+			field.setShort(object, value);
+		}
+
+		public byte getByte (Object object) throws IllegalAccessException {
+			return field.getByte(object);
+		}
+
+		public void setByte (Object object, byte value) throws IllegalAccessException {
+			field.setByte(object, value);
+		}
+
+		public char getChar (Object object) throws IllegalAccessException {
+			return field.getChar(object);
+		}
+
+		public void setChar (Object object, char value) throws IllegalAccessException {
+			field.setChar(object, value);
+		}
+	}
+}
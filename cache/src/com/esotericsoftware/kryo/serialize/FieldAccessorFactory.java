@@ -0,0 +1,35 @@
+
+package com.esotericsoftware.kryo.serialize;
+
+import java.lang.reflect.Field;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.serialize.FieldAccessor.ReflectionFieldAccessor;
+
+/**
+ * Creates the {@link FieldAccessor} used by {@link FieldSerializer} and {@link CompatibleFieldSerializer} for fields that cannot
+ * be accessed with ReflectASM (which only supports public fields of public classes).
+ * @see Kryo#setFieldAccessorFactory(FieldAccessorFactory)
+ */
+public abstract class FieldAccessorFactory {
+	/**
+	 * Creates accessors that use reflection.
+	 */
+	static public final FieldAccessorFactory REFLECTION = new FieldAccessorFactory() {
+		public FieldAccessor newFieldAccessor (Field field) {
+			return new ReflectionFieldAccessor(field);
+		}
+	};
+
+	/**
+	 * Returns the {@link UnsafeFieldAccessorFactory} if sun.misc.Unsafe is available, else {@link #REFLECTION}.
+	 */
+	static public FieldAccessorFactory getDefault () {
+		return UnsafeFieldAccessorFactory.isAvailable() ? UnsafeFieldAccessorFactory.INSTANCE : REFLECTION;
+	}
+
+	/**
+	 * @param field A non-static field that has been {@link Field#setAccessible(boolean) set as accessible} if necessary.
+	 */
+	public abstract FieldAccessor newFieldAccessor (Field field);
+}
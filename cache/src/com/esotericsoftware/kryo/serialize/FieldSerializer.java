@@ -86,6 +86,7 @@ public class FieldSerializer extends Serializer {
 
 			CachedField cachedField = new CachedField();
 			cachedField.field = field;
+			cachedField.accessor = kryo.getFieldAccessorFactory().newFieldAccessor(field);
 			if (fieldsCanBeNull)
 				cachedField.canBeNull = !field.isAnnotationPresent(NotNull.class);
 			else
@@ -94,6 +95,7 @@ public class FieldSerializer extends Serializer {
 			// Always use the same serializer for this field if the field's class is final.
 			Class fieldClass = field.getType();
 			if (isFinal(fieldClass)) cachedField.fieldClass = fieldClass;
+			cachedField.primitive = fieldClass.isPrimitive();
 
 			cachedFields.add(cachedField);
 			if (Modifier.isPublic(modifiers) && Modifier.isPublic(fieldClass.getModifiers())) publicFields.add(cachedField);
@@ -153,9 +155,15 @@ public class FieldSerializer extends Serializer {
 			try {
 				if (TRACE) trace("kryo", "Writing field: " + cachedField + " (" + object.getClass().getName() + ")");
 
+				Serializer serializer = cachedField.serializer;
+				if (cachedField.primitive && cachedField.accessIndex == -1) {
+					if (serializer == null)
+						cachedField.serializer = serializer = kryo.getRegisteredClass(cachedField.fieldClass).getSerializer();
+					if (writePrimitive(buffer, object, cachedField, serializer)) continue;
+				}
+
 				Object value = cachedField.get(object);
 
-				Serializer serializer = cachedField.serializer;
 
 				if (cachedField.fieldClass == null) {
 					if (value == null) {
@@ -202,6 +210,11 @@ public class FieldSerializer extends Serializer {
 
 				Class concreteType = cachedField.fieldClass;
 				Serializer serializer = cachedField.serializer;
+				if (cachedField.primitive && cachedField.accessIndex == -1) {
+					if (serializer == null)
+						cachedField.serializer = serializer = kryo.getRegisteredClass(concreteType).getSerializer();
+					if (readPrimitive(buffer, object, cachedField, serializer)) continue;
+				}
 				if (concreteType == null) {
 					RegisteredClass registeredClass = kryo.readClass(buffer);
 					if (registeredClass == null)
@@ -236,6 +249,68 @@ public class FieldSerializer extends Serializer {
 		return object;
 	}
 
+	/**
+	 * Writes a primitive field with the typed methods of its {@link FieldAccessor}, so that the value is not boxed. The bytes are the
+	 * same as written by the serializer registered for the primitive type (which can't be null), only the serializers that Kryo
+	 * registers by default are known.
+	 * @return false if the field has to be written with the serializer.
+	 */
+	static boolean writePrimitive (ByteBuffer buffer, Object object, CachedField cachedField, Serializer serializer)
+		throws IllegalAccessException {
+		FieldAccessor accessor = cachedField.accessor;
+		Class type = cachedField.fieldClass;
+		Class serializerClass = serializer.getClass();
+		if (type == int.class && serializerClass == IntSerializer.class)
+			IntSerializer.put(buffer, accessor.getInt(object), ((IntSerializer)serializer).optimizePositive);
+		else if (type == long.class && serializerClass == LongSerializer.class)
+			LongSerializer.put(buffer, accessor.getLong(object), ((LongSerializer)serializer).optimizePositive);
+		else if (type == boolean.class && serializerClass == BooleanSerializer.class)
+			buffer.put(accessor.getBoolean(object) ? (byte)1 : (byte)0);
+		else if (type == double.class && serializerClass == DoubleSerializer.class)
+			buffer.putDouble(accessor.getDouble(object));
+		else if (type == float.class && serializerClass == FloatSerializer.class)
+			buffer.putFloat(accessor.getFloat(object));
+		else if (type == short.class && serializerClass == ShortSerializer.class)
+			ShortSerializer.put(buffer, accessor.getShort(object), ((ShortSerializer)serializer).optimizePositive);
+		else if (type == byte.class && serializerClass == ByteSerializer.class)
+			buffer.put(accessor.getByte(object));
+		else if (type == char.class && serializerClass == CharSerializer.class)
+			buffer.putChar(accessor.getChar(object));
+		else
+			return false;
+		return true;
+	}
+
+	/**
+	 * Reads a primitive field written by {@link #writePrimitive(ByteBuffer, Object, CachedField, Serializer)}.
+	 * @return false if the field has to be read with the serializer.
+	 */
+	static boolean readPrimitive (ByteBuffer buffer, Object object, CachedField cachedField, Serializer serializer)
+		throws IllegalAccessException {
+		FieldAccessor accessor = cachedField.accessor;
+		Class type = cachedField.fieldClass;
+		Class serializerClass = serializer.getClass();
+		if (type == int.class && serializerClass == IntSerializer.class)
+			accessor.setInt(object, IntSerializer.get(buffer, ((IntSerializer)serializer).optimizePositive));
+		else if (type == long.class && serializerClass == LongSerializer.class)
+			accessor.setLong(object, LongSerializer.get(buffer, ((LongSerializer)serializer).optimizePositive));
+		else if (type == boolean.class && serializerClass == BooleanSerializer.class)
+			accessor.setBoolean(object, buffer.get() == 1);
+		else if (type == double.class && serializerClass == DoubleSerializer.class)
+			accessor.setDouble(object, buffer.getDouble());
+		else if (type == float.class && serializerClass == FloatSerializer.class)
+			accessor.setFloat(object, buffer.getFloat());
+		else if (type == short.class && serializerClass == ShortSerializer.class)
+			accessor.setShort(object, ShortSerializer.get(buffer, ((ShortSerializer)serializer).optimizePositive));
+		else if (type == byte.class && serializerClass == ByteSerializer.class)
+			accessor.setByte(object, buffer.get());
+		else if (type == char.class && serializerClass == CharSerializer.class)
+			accessor.setChar(object, buffer.getChar());
+		else
+			return false;
+		return true;
+	}
+
 	/**
 	 * Allows specific fields to be optimized.
 	 */
@@ -271,6 +346,9 @@ public class FieldSerializer extends Serializer {
 		Serializer serializer;
 		boolean canBeNull;
 		int accessIndex = -1;
+		FieldAccessor accessor;
+		// Primitive field with the serializer registered for its type, read and written with the typed accessor methods.
+		boolean primitive;
 
 		/**
 		 * @param fieldClass The concrete class of the values for this field. This saves 1-2 bytes. The serializer registered for
@@ -280,6 +358,7 @@ public class FieldSerializer extends Serializer {
 		public void setClass (Class fieldClass) {
 			this.fieldClass = fieldClass;
 			this.serializer = null;
+			this.primitive = false;
 		}
 
 		/**
@@ -289,6 +368,7 @@ public class FieldSerializer extends Serializer {
 		public void setClass (Class fieldClass, Serializer serializer) {
 			this.fieldClass = fieldClass;
 			this.serializer = serializer;
+			this.primitive = false;
 		}
 
 		public void setCanBeNull (boolean canBeNull) {
@@ -301,14 +381,14 @@ public class FieldSerializer extends Serializer {
 
 		Object get (Object object) throws IllegalAccessException {
 			if (accessIndex != -1) return ((FieldAccess)access).get(object, accessIndex);
-			return field.get(object);
+			return accessor.get(object);
 		}
 
 		void set (Object object, Object value) throws IllegalAccessException {
 			if (accessIndex != -1)
 				((FieldAccess)access).set(object, accessIndex, value);
 			else
-				field.set(object, value);
+				accessor.set(object, value);
 		}
 	}
 }
@@ -13,7 +13,7 @@ import com.esotericsoftware.kryo.Serializer;
  * @author Nathan Sweet <misc@n4te.com>
  */
 public class IntSerializer extends Serializer {
-	private boolean optimizePositive = true;
+	boolean optimizePositive = true;
 
 	public IntSerializer () {
 	}
@@ -13,7 +13,7 @@ import com.esotericsoftware.kryo.Serializer;
  * @author Nathan Sweet <misc@n4te.com>
  */
 public class LongSerializer extends Serializer {
-	private boolean optimizePositive;
+	boolean optimizePositive;
 
 	public LongSerializer () {
 	}
@@ -4,12 +4,12 @@ package com.esotericsoftware.kryo.serialize;
 import static com.esotericsoftware.minlog.Log.*;
 
 import java.nio.ByteBuffer;
-import java.util.IdentityHashMap;
+import java.util.Arrays;
 
 import com.esotericsoftware.kryo.Context;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.SerializationException;
-import com.esotericsoftware.kryo.util.IntHashMap;
+import com.esotericsoftware.kryo.util.IdentityObjectIntMap;
 
 /**
  * Serializes objects using direct field assignment, handling object references and cyclic graphs. Each object serialized requires
@@ -27,47 +27,26 @@ public class ReferenceFieldSerializer extends FieldSerializer {
 	}
 
 	public void writeObjectData (ByteBuffer buffer, Object object) {
-		Context context = Kryo.getContext();
-		References references = (References)context.getTemp("references");
-		if (references == null) {
-			// Use non-temporary storage to avoid repeated allocation.
-			references = (References)context.get("references");
-			if (references == null)
-				context.put("references", references = new References());
-			else
-				references.reset();
-			context.putTemp("references", references);
-		}
-		Integer reference = references.objectToReference.get(object);
-		if (reference != null) {
+		References references = References.get(Kryo.getContext());
+		int reference = references.getReference(object);
+		if (reference != References.NONE) {
 			IntSerializer.put(buffer, reference, true);
 			if (TRACE) trace("kryo", "Wrote object reference " + reference + ": " + object);
 			return;
 		}
 
 		buffer.put((byte)0);
-		references.referenceCount++;
-		references.objectToReference.put(object, references.referenceCount);
+		references.addWritten(object);
 
 		super.writeObjectData(buffer, object);
 	}
 
 	public <T> T readObjectData (ByteBuffer buffer, Class<T> type) {
-		Context context = Kryo.getContext();
-		References references = (References)context.getTemp("references");
-		if (references == null) {
-			// Use non-temporary storage to avoid repeated allocation.
-			references = (References)context.get("references");
-			if (references == null)
-				context.put("references", references = new References());
-			else
-				references.reset();
-			context.putTemp("references", references);
-		}
+		References references = References.get(Kryo.getContext());
 
 		int reference = IntSerializer.get(buffer, true);
 		if (reference != 0) {
-			T object = (T)references.referenceToObject.get(reference);
+			T object = (T)references.getObject(reference);
 			if (object == null) throw new SerializationException("Invalid object reference: " + reference);
 			if (TRACE) trace("kryo", "Read object reference " + reference + ": " + object);
 			return object;
@@ -75,20 +54,89 @@ public class ReferenceFieldSerializer extends FieldSerializer {
 
 		T object = newInstance(kryo, type);
 
-		references.referenceCount++;
-		references.referenceToObject.put(references.referenceCount, object);
+		references.addRead(object);
 
 		return super.readObjectData(object, buffer, type);
 	}
 
-	static class References {
-		public IdentityHashMap<Object, Integer> objectToReference = new IdentityHashMap();
-		public IntHashMap referenceToObject = new IntHashMap();
-		public int referenceCount = 1;
+	/**
+	 * The objects of the object graph currently written or read, mapped to the reference ordinals. Written objects are tracked by
+	 * identity in an {@link IdentityObjectIntMap}, read objects in an array indexed by reference, so that no objects are allocated
+	 * per tracked object. One instance per thread is stored in the {@link Context} and reused for all object graphs. Other
+	 * serializers that need to track object identity can use it via {@link #get(Context)}.
+	 */
+	static public class References {
+		/**
+		 * Returned by {@link #getReference(Object)} if the object was not written yet.
+		 */
+		static public final int NONE = 0;
+
+		static private final int MAXIMUM_CAPACITY = 16384;
+
+		private final IdentityObjectIntMap objectToReference = new IdentityObjectIntMap();
+		private Object[] referenceToObject = new Object[32];
+		private int referenceCount = 1;
+
+		/**
+		 * Returns the references for the object graph currently serialized or deserialized. The instance is reused by the context,
+		 * the first call per object graph resets it.
+		 */
+		static public References get (Context context) {
+			References references = (References)context.getTemp("references");
+			if (references == null) {
+				// Use non-temporary storage to avoid repeated allocation.
+				references = (References)context.get("references");
+				if (references == null)
+					context.put("references", references = new References());
+				else
+					references.reset();
+				context.putTemp("references", references);
+			}
+			return references;
+		}
+
+		/**
+		 * Returns the reference of an object that was written before, or {@link #NONE}.
+		 */
+		public int getReference (Object object) {
+			return objectToReference.get(object, NONE);
+		}
+
+		/**
+		 * Tracks the written object and returns its reference.
+		 */
+		public int addWritten (Object object) {
+			objectToReference.put(object, ++referenceCount);
+			return referenceCount;
+		}
+
+		/**
+		 * Returns the object read for the reference, or null.
+		 */
+		public Object getObject (int reference) {
+			return reference > 0 && reference < referenceToObject.length ? referenceToObject[reference] : null;
+		}
+
+		/**
+		 * Tracks the read object and returns its reference.
+		 */
+		public int addRead (Object object) {
+			int reference = ++referenceCount;
+			if (reference >= referenceToObject.length) {
+				Object[] newArray = new Object[referenceToObject.length << 1];
+				System.arraycopy(referenceToObject, 0, newArray, 0, referenceToObject.length);
+				referenceToObject = newArray;
+			}
+			referenceToObject[reference] = object;
+			return reference;
+		}
 
 		public void reset () {
-			objectToReference.clear();
-			referenceToObject.clear();
+			objectToReference.clear(MAXIMUM_CAPACITY);
+			if (referenceToObject.length > MAXIMUM_CAPACITY)
+				referenceToObject = new Object[MAXIMUM_CAPACITY];
+			else
+				Arrays.fill(referenceToObject, 0, Math.min(referenceCount + 1, referenceToObject.length), null);
 			referenceCount = 1;
 		}
 	}
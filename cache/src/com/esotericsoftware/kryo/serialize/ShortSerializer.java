@@ -12,7 +12,7 @@ import com.esotericsoftware.kryo.Serializer;
  * @author Nathan Sweet <misc@n4te.com>
  */
 public class ShortSerializer extends Serializer {
-	private boolean optimizePositive = true;
+	boolean optimizePositive = true;
 
 	public ShortSerializer () {
 	}
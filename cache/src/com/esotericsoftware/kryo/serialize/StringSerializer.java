@@ -4,23 +4,70 @@ package com.esotericsoftware.kryo.serialize;
 import static com.esotericsoftware.minlog.Log.*;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+import com.esotericsoftware.kryo.Context;
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.SerializationException;
 import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.util.ObjectIntMap;
 
 /**
- * Writes a String as UTF-8 bytes.
+ * Writes a String as UTF-8 bytes. ASCII characters are copied directly from and to the backing array of heap buffers.
+ * <p>
+ * If references are enabled, each distinct string of an object graph is written once and repeated strings (eg map keys or class
+ * names stored as strings) are written as a reference to the first occurrence. This changes the serialized bytes, so both sides
+ * must use the same setting.
  * @author Nathan Sweet <misc@n4te.com>
  */
 public class StringSerializer extends Serializer {
+	static private final int NEW = 0;
+
+	private final boolean references;
+
+	public StringSerializer () {
+		this(false);
+	}
+
+	/**
+	 * @param references If true, strings that are equal to a string written before for the same object graph are written as a
+	 *           reference.
+	 */
+	public StringSerializer (boolean references) {
+		this.references = references;
+	}
+
 	public String readObjectData (ByteBuffer buffer, Class type) {
-		String s = get(buffer);
+		String s;
+		if (references) {
+			Strings strings = Strings.get(Kryo.getContext());
+			int reference = IntSerializer.get(buffer, true);
+			if (reference != NEW) {
+				s = strings.getString(reference);
+				if (TRACE) trace("kryo", "Read string reference " + reference + ": " + s);
+				return s;
+			}
+			s = get(buffer);
+			strings.addRead(s);
+		} else
+			s = get(buffer);
 		if (TRACE) trace("kryo", "Read string: " + s);
 		return s;
 	}
 
 	public void writeObjectData (ByteBuffer buffer, Object object) {
 		String s = (String)object;
+		if (references) {
+			Strings strings = Strings.get(Kryo.getContext());
+			int reference = strings.getReference(s);
+			if (reference != NEW) {
+				IntSerializer.put(buffer, reference, true);
+				if (TRACE) trace("kryo", "Wrote string reference " + reference + ": " + s);
+				return;
+			}
+			IntSerializer.put(buffer, NEW, true);
+			strings.addWritten(s);
+		}
 		put(buffer, s);
 		if (TRACE) trace("kryo", "Wrote string: " + object);
 	}
@@ -28,26 +75,78 @@ public class StringSerializer extends Serializer {
 	static public void put (ByteBuffer buffer, String value) {
 		int charCount = value.length();
 		IntSerializer.put(buffer, charCount, true);
-		int c;
-		for (int i = 0; i < charCount; i++) {
+		if (charCount == 0) return;
+		// A char needs at most 3 bytes, if they fit the backing array is written without bounds checks.
+		if (buffer.hasArray() && buffer.remaining() / 3 >= charCount) {
+			int position = buffer.position();
+			int offset = buffer.arrayOffset() + position;
+			int end = encode(value, 0, charCount, buffer.array(), offset);
+			buffer.position(position + end - offset);
+			return;
+		}
+		// Encode chunks into a temporary array and write them with a single put each.
+		byte[] bytes = Kryo.getContext().getByteArray(Math.min(charCount, 1024) * 3);
+		int chunkSize = bytes.length / 3;
+		for (int start = 0; start < charCount; start += chunkSize) {
+			int count = encode(value, start, Math.min(start + chunkSize, charCount), bytes, 0);
+			buffer.put(bytes, 0, count);
+		}
+	}
+
+	/**
+	 * Encodes the chars from start (inclusive) to end (exclusive) into the array, which must have room for 3 bytes per char.
+	 * @return The index after the last byte written.
+	 */
+	static private int encode (String value, int start, int end, byte[] bytes, int index) {
+		int i = start, c;
+		// Copy the ASCII prefix without branching on the char size.
+		for (; i < end; i++) {
+			c = value.charAt(i);
+			if (c > 0x007F) break;
+			bytes[index++] = (byte)c;
+		}
+		for (; i < end; i++) {
 			c = value.charAt(i);
 			if (c <= 0x007F) {
-				buffer.put((byte)c);
+				bytes[index++] = (byte)c;
 			} else if (c > 0x07FF) {
-				buffer.put((byte)(0xE0 | c >> 12 & 0x0F));
-				buffer.put((byte)(0x80 | c >> 6 & 0x3F));
-				buffer.put((byte)(0x80 | c >> 0 & 0x3F));
+				bytes[index++] = (byte)(0xE0 | c >> 12 & 0x0F);
+				bytes[index++] = (byte)(0x80 | c >> 6 & 0x3F);
+				bytes[index++] = (byte)(0x80 | c >> 0 & 0x3F);
 			} else {
-				buffer.put((byte)(0xC0 | c >> 6 & 0x1F));
-				buffer.put((byte)(0x80 | c >> 0 & 0x3F));
+				bytes[index++] = (byte)(0xC0 | c >> 6 & 0x1F);
+				bytes[index++] = (byte)(0x80 | c >> 0 & 0x3F);
 			}
 		}
+		return index;
 	}
 
 	static public String get (ByteBuffer buffer) {
 		int charCount = IntSerializer.get(buffer, true);
-		char[] chars = Kryo.getContext().getCharArray(charCount);
-		int c, charIndex = 0;
+		if (charCount == 0) return "";
+		char[] chars;
+		int charIndex = 0;
+		if (buffer.hasArray()) {
+			byte[] bytes = buffer.array();
+			int position = buffer.position();
+			int offset = buffer.arrayOffset() + position;
+			int end = offset + Math.min(charCount, buffer.remaining());
+			int index = offset;
+			while (index < end && bytes[index] >= 0)
+				index++;
+			int asciiCount = index - offset;
+			if (asciiCount == charCount) {
+				// All ASCII, the String is created directly from the bytes without a char[] in between.
+				buffer.position(position + charCount);
+				return newAsciiString(bytes, offset, charCount);
+			}
+			chars = Kryo.getContext().getCharArray(charCount);
+			for (; charIndex < asciiCount; charIndex++)
+				chars[charIndex] = (char)bytes[offset + charIndex];
+			buffer.position(position + asciiCount);
+		} else
+			chars = Kryo.getContext().getCharArray(charCount);
+		int c;
 		while (charIndex < charCount) {
 			c = buffer.get() & 0xff;
 			switch (c >> 4) {
@@ -72,4 +171,76 @@ public class StringSerializer extends Serializer {
 		}
 		return new String(chars, 0, charCount);
 	}
+
+	/**
+	 * Uses the String(byte[], int hibyte, int, int) constructor, which is deprecated because it cannot decode characters but is
+	 * exactly right for ASCII, and copies the bytes without a charset lookup.
+	 */
+	@SuppressWarnings("deprecation")
+	static private String newAsciiString (byte[] bytes, int offset, int count) {
+		return new String(bytes, 0, offset, count);
+	}
+
+	/**
+	 * The strings of the object graph currently written or read, mapped to the reference ordinals. One instance per thread is
+	 * stored in the {@link Context} and reused for all object graphs.
+	 */
+	static class Strings {
+		static private final int MAXIMUM_CAPACITY = 16384;
+
+		private final ObjectIntMap stringToReference = new ObjectIntMap();
+		private String[] referenceToString = new String[32];
+		private int referenceCount;
+
+		/**
+		 * Returns the strings for the object graph currently serialized or deserialized. The instance is reused by the context, the
+		 * first call per object graph resets it.
+		 */
+		static Strings get (Context context) {
+			Strings strings = (Strings)context.getTemp("strings");
+			if (strings == null) {
+				// Use non-temporary storage to avoid repeated allocation.
+				strings = (Strings)context.get("strings");
+				if (strings == null)
+					context.put("strings", strings = new Strings());
+				else
+					strings.reset();
+				context.putTemp("strings", strings);
+			}
+			return strings;
+		}
+
+		int getReference (String s) {
+			return stringToReference.get(s, NEW);
+		}
+
+		void addWritten (String s) {
+			stringToReference.put(s, ++referenceCount);
+		}
+
+		String getString (int reference) {
+			if (reference < 1 || reference > referenceCount)
+				throw new SerializationException("Invalid string reference: " + reference);
+			return referenceToString[reference];
+		}
+
+		void addRead (String s) {
+			int reference = ++referenceCount;
+			if (reference >= referenceToString.length) {
+				String[] newArray = new String[referenceToString.length << 1];
+				System.arraycopy(referenceToString, 0, newArray, 0, referenceToString.length);
+				referenceToString = newArray;
+			}
+			referenceToString[reference] = s;
+		}
+
+		void reset () {
+			stringToReference.clear(MAXIMUM_CAPACITY);
+			if (referenceToString.length > MAXIMUM_CAPACITY)
+				referenceToString = new String[MAXIMUM_CAPACITY];
+			else
+				Arrays.fill(referenceToString, 0, Math.min(referenceCount + 1, referenceToString.length), null);
+			referenceCount = 0;
+		}
+	}
 }
@@ -0,0 +1,263 @@
+
+package com.esotericsoftware.kryo.serialize;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import sun.misc.Unsafe;
+
+import com.esotericsoftware.kryo.util.Util;
+
+/**
+ * Creates accessors that read and write fields with sun.misc.Unsafe at the field offset, with one accessor class per primitive
+ * type. Unlike ReflectASM this works for private fields and fields of non-public classes, and unlike reflection there are no access
+ * checks per call.
+ */
+public class UnsafeFieldAccessorFactory extends FieldAccessorFactory {
+	static public final UnsafeFieldAccessorFactory INSTANCE = new UnsafeFieldAccessorFactory();
+
+	static private final Unsafe unsafe;
+	static {
+		Unsafe instance = null;
+		if (!Util.isAndroid) {
+			try {
+				Field field = Unsafe.class.getDeclaredField("theUnsafe");
+				field.setAccessible(true);
+				instance = (Unsafe)field.get(null);
+			} catch (Throwable ex) {
+				if (DEBUG) debug("kryo", "sun.misc.Unsafe is not available, using reflection for field access.");
+			}
+		}
+		unsafe = instance;
+	}
+
+	private UnsafeFieldAccessorFactory () {
+	}
+
+	static public boolean isAvailable () {
+		return unsafe != null;
+	}
+
+	public FieldAccessor newFieldAccessor (Field field) {
+		if (unsafe == null || Modifier.isStatic(field.getModifiers())) return REFLECTION.newFieldAccessor(field);
+		long offset = unsafe.objectFieldOffset(field);
+		Class type = field.getType();
+		if (!type.isPrimitive()) return new ObjectFieldAccessor(field, offset);
+		if (type == int.class) return new IntFieldAccessor(field, offset);
+		if (type == long.class) return new LongFieldAccessor(field, offset);
+		if (type == boolean.class) return new BooleanFieldAccessor(field, offset);
+		if (type == double.class) return new DoubleFieldAccessor(field, offset);
+		if (type == float.class) return new FloatFieldAccessor(field, offset);
+		if (type == short.class) return new ShortFieldAccessor(field, offset);
+		if (type == byte.class) return new ByteFieldAccessor(field, offset);
+		return new CharFieldAccessor(field, offset);
+	}
+
+	static abstract class UnsafeFieldAccessor extends FieldAccessor {
+		final long offset;
+
+		UnsafeFieldAccessor (Field field, long offset) {
+			super(field);
+			this.offset = offset;
+		}
+	}
+
+	static final class ObjectFieldAccessor extends UnsafeFieldAccessor {
+		private final Class type;
+
+		ObjectFieldAccessor (Field field, long offset) {
+			super(field, offset);
+			type = field.getType();
+		}
+
+		public Object get (Object object) {
+			return unsafe.getObject(object, offset);
+		}
+
+		public void set (Object object, Object value) {
+			// Same check as Field#set, a wrong value would corrupt the object.
+			if (value != null && !type.isInstance(value))
+				throw new IllegalArgumentException("Can not set " + type.getName() + " field " + field + " to "
+					+ value.getClass().getName());
+			unsafe.putObject(object, offset, value);
+		}
+	}
+
+	static final class IntFieldAccessor extends UnsafeFieldAccessor {
+		IntFieldAccessor (Field field, long offset) {
+			super(field, offset);
+		}
+
+		public Object get (Object object) {
+			return unsafe.getInt(object, offset);
+		}
+
+		public void set (Object object, Object value) {
+			unsafe.putInt(object, offset, (Integer)value);
+		}
+
+		public int getInt (Object object) {
+			return unsafe.getInt(object, offset);
+		}
+
+		public void setInt (Object object, int value) {
+			unsafe.putInt(object, offset, value);
+		}
+	}
+
+	static final class LongFieldAccessor extends UnsafeFieldAccessor {
+		LongFieldAccessor (Field field, long offset) {
+			super(field, offset);
+		}
+
+		public Object get (Object object) {
+			return unsafe.getLong(object, offset);
+		}
+
+		public void set (Object object, Object value) {
+			unsafe.putLong(object, offset, (Long)value);
+		}
+
+		public long getLong (Object object) {
+			return unsafe.getLong(object, offset);
+		}
+
+		public void setLong (Object object, long value) {
+			unsafe.putLong(object, offset, value);
+		}
+	}
+
+	static final class BooleanFieldAccessor extends UnsafeFieldAccessor {
+		BooleanFieldAccessor (Field field, long offset) {
+			super(field, offset);
+		}
+
+		public Object get (Object object) {
+			return unsafe.getBoolean(object, offset);
+		}
+
+		public void set (Object object, Object value) {
+			unsafe.putBoolean(object, offset, (Boolean)value);
+		}
+
+		public boolean getBoolean (Object object) {
+			return unsafe.getBoolean(object, offset);
+		}
+
+		public void setBoolean (Object object, boolean value) {
+			unsafe.putBoolean(object, offset, value);
+		}
+	}
+
+	static final class DoubleFieldAccessor extends UnsafeFieldAccessor {
+		DoubleFieldAccessor (Field field, long offset) {
+			super(field, offset);
+		}
+
+		public Object get (Object object) {
+			return unsafe.getDouble(object, offset);
+		}
+
+		public void set (Object object, Object value) {
+			unsafe.putDouble(object, offset, (Double)value);
+		}
+
+		public double getDouble (Object object) {
+			return unsafe.getDouble(object, offset);
+		}
+
+		public void setDouble (Object object, double value) {
+			unsafe.putDouble(object, offset, value);
+		}
+	}
+
+	static final class FloatFieldAccessor extends UnsafeFieldAccessor {
+		FloatFieldAccessor (Field field, long offset) {
+			super(field, offset);
+		}
+
+		public Object get (Object object) {
+			return unsafe.getFloat(object, offset);
+		}
+
+		public void set (Object object, Object value) {
+			unsafe.putFloat(object, offset, (Float)value);
+		}
+
+		public float getFloat (Object object) {
+			return unsafe.getFloat(object, offset);
+		}
+
+		public void setFloat (Object object, float value) {
+			unsafe.putFloat(object, offset, value);
+		}
+	}
+
+	static final class ShortFieldAccessor extends UnsafeFieldAccessor {
+		ShortFieldAccessor (Field field, long offset) {
+			super(field, offset);
+		}
+
+		public Object get (Object object) {
+			return unsafe.getShort(object, offset);
+		}
+
+		public void set (Object object, Object value) {
+			unsafe.putShort(object, offset, (Short)value);
+		}
+
+		public short getShort (Object object) {
+			return unsafe.getShort(object, offset);
+		}
+
+		public void setShort (Object object, short value) {
+			unsafe.putShort(object, offset, value);
+		}
+	}
+
+	static final class ByteFieldAccessor extends UnsafeFieldAccessor {
+		ByteFieldAccessor (Field field, long offset) {
+			super(field, offset);
+		}
+
+		public Object get (Object object) {
+			return unsafe.getByte(object, offset);
+		}
+
+		public void set (Object object, Object value) {
+			unsafe.putByte(object, offset, (Byte)value);
+		}
+
+		public byte getByte (Object object) {
+			return unsafe.getByte(object, offset);
+		}
+
+		public void setByte (Object object, byte value) {
+			unsafe.putByte(object, offset, value);
+		}
+	}
+
+	static final class CharFieldAccessor extends UnsafeFieldAccessor {
+		CharFieldAccessor (Field field, long offset) {
+			super(field, offset);
+		}
+
+		public Object get (Object object) {
+			return unsafe.getChar(object, offset);
+		}
+
+		public void set (Object object, Object value) {
+			unsafe.putChar(object, offset, (Character)value);
+		}
+
+		public char getChar (Object object) {
+			return unsafe.getChar(object, offset);
+		}
+
+		public void setChar (Object object, char value) {
+			unsafe.putChar(object, offset, value);
+		}
+	}
+}
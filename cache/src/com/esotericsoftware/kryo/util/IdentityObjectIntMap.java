@@ -0,0 +1,26 @@
+
+package com.esotericsoftware.kryo.util;
+
+/**
+ * An unordered map from object identity to int, see {@link ObjectIntMap}. Keys are compared with <code>==</code> and hashed with
+ * {@link System#identityHashCode(Object)}.
+ */
+public class IdentityObjectIntMap extends ObjectIntMap {
+	public IdentityObjectIntMap () {
+		super();
+	}
+
+	public IdentityObjectIntMap (int initialCapacity, float loadFactor) {
+		super(initialCapacity, loadFactor);
+	}
+
+	@Override
+	protected int keyHashCode (Object key) {
+		return System.identityHashCode(key);
+	}
+
+	@Override
+	protected boolean keysEqual (Object key, Object other) {
+		return false;
+	}
+}
@@ -0,0 +1,142 @@
+
+package com.esotericsoftware.kryo.util;
+
+/**
+ * An unordered map from object to int that uses open addressing with linear probing. Keys are compared with
+ * {@link Object#equals(Object)}, subclasses may change this by overriding {@link #keyHashCode(Object)} and
+ * {@link #keysEqual(Object, Object)}, see {@link IdentityObjectIntMap} for a map that compares keys by identity. Keys and values
+ * are stored in arrays, so no objects are allocated per entry and int values are not boxed. The arrays are kept when the map is
+ * cleared, so the map can be reused without allocation.
+ */
+public class ObjectIntMap {
+	private Object[] keys;
+	private int[] values;
+	private int size, mask, threshold;
+	private final float loadFactor;
+
+	public ObjectIntMap () {
+		this(32, 0.5f);
+	}
+
+	public ObjectIntMap (int initialCapacity, float loadFactor) {
+		if (initialCapacity > 1 << 30) throw new IllegalArgumentException("initialCapacity is too large.");
+		if (initialCapacity < 0) throw new IllegalArgumentException("initialCapacity must be greater than zero.");
+		if (loadFactor <= 0 || loadFactor >= 1) throw new IllegalArgumentException("loadFactor must be > 0 and < 1.");
+		int capacity = 1;
+		while (capacity < initialCapacity)
+			capacity <<= 1;
+		this.loadFactor = loadFactor;
+		allocate(capacity);
+	}
+
+	private void allocate (int capacity) {
+		keys = new Object[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+		threshold = (int)(capacity * loadFactor);
+	}
+
+	/**
+	 * Returns the hash code of the specified key, {@link Object#hashCode()} by default.
+	 */
+	protected int keyHashCode (Object key) {
+		return key.hashCode();
+	}
+
+	/**
+	 * Returns true if the specified keys are equal, {@link Object#equals(Object)} by default. Only invoked for keys that are not the
+	 * same instance.
+	 */
+	protected boolean keysEqual (Object key, Object other) {
+		return key.equals(other);
+	}
+
+	private int index (Object key) {
+		int h = keyHashCode(key);
+		// Spread the bits, neither identity hash codes nor hash codes like String#hashCode are well distributed in the low bits.
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return h & mask;
+	}
+
+	/**
+	 * Returns the value for the specified key, or the default value if the key is not in the map.
+	 */
+	public int get (Object key, int defaultValue) {
+		if (key == null) return defaultValue;
+		Object[] keys = this.keys;
+		for (int i = index(key);; i = (i + 1) & mask) {
+			Object other = keys[i];
+			if (other == null) return defaultValue;
+			if (other == key || keysEqual(other, key)) return values[i];
+		}
+	}
+
+	/**
+	 * @param key May not be null.
+	 */
+	public void put (Object key, int value) {
+		if (key == null) throw new IllegalArgumentException("key cannot be null.");
+		Object[] keys = this.keys;
+		int i = index(key);
+		for (;; i = (i + 1) & mask) {
+			Object other = keys[i];
+			if (other == null) break;
+			if (other == key || keysEqual(other, key)) {
+				values[i] = value;
+				return;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > threshold) resize(keys.length << 1);
+	}
+
+	private void resize (int newCapacity) {
+		Object[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(newCapacity);
+		Object[] keys = this.keys;
+		for (int j = 0; j < oldKeys.length; j++) {
+			Object key = oldKeys[j];
+			if (key == null) continue;
+			int i = index(key);
+			while (keys[i] != null)
+				i = (i + 1) & mask;
+			keys[i] = key;
+			values[i] = oldValues[j];
+		}
+	}
+
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * Removes all entries, the arrays are kept.
+	 */
+	public void clear () {
+		if (size == 0) return;
+		Object[] keys = this.keys;
+		for (int i = keys.length; i-- > 0;)
+			keys[i] = null;
+		size = 0;
+	}
+
+	/**
+	 * Removes all entries and shrinks the arrays if they are larger than the specified capacity, so that a single very large object
+	 * graph does not retain memory forever.
+	 */
+	public void clear (int maximumCapacity) {
+		if (keys.length <= maximumCapacity) {
+			clear();
+			return;
+		}
+		size = 0;
+		int capacity = 1;
+		while (capacity < maximumCapacity)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+}
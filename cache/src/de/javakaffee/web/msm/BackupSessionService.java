@@ -19,6 +19,7 @@ package de.javakaffee.web.msm;
 import static de.javakaffee.web.msm.Statistics.StatsType.EFFECTIVE_BACKUP;
 import static de.javakaffee.web.msm.Statistics.StatsType.RELEASE_LOCK;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -33,7 +34,7 @@ import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
 
-import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
 
 import org.apache.catalina.Session;
 import org.apache.juli.logging.Log;
@@ -45,7 +46,7 @@ import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
  * ߸memcache sessionҵ
  * This service is responsible for storing sessions memcached. This includes
  * serialization (which is delegated to the {@link TranscoderService}) and
- * the communication with memcached (using a provided {@link MemcachedClient}).
+ * the communication with memcached (using a provided {@link MemcachedClientIF}).
  *
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
@@ -53,12 +54,22 @@ public class BackupSessionService {
 
     private static final Log _log = LogFactory.getLog( BackupSessionService.class );
 
+    /**
+     * Backup thread type: a fixed pool of <code>backupThreadCount</code> platform threads.
+     */
+    public static final String THREAD_TYPE_PLATFORM = "platform";
+
+    /**
+     * Backup thread type: a new virtual thread for each backup (java 21+).
+     */
+    public static final String THREAD_TYPE_VIRTUAL = "virtual";
+
     private final SessionIdFormat _sessionIdFormat = new SessionIdFormat();
 
     private final TranscoderService _transcoderService;
     private final boolean _sessionBackupAsync;
     private final int _sessionBackupTimeout;
-    private final MemcachedClient _memcached;
+    private final MemcachedClientIF _memcached;
     private final NodeIdService _nodeIdService;
     private final Statistics _statistics;
 
@@ -78,7 +89,23 @@ public class BackupSessionService {
             final boolean sessionBackupAsync,
             final int sessionBackupTimeout,
             final int backupThreadCount,
-            final MemcachedClient memcached,
+            final MemcachedClientIF memcached,
+            final NodeIdService nodeIdService,
+            final Statistics statistics ) {
+        this( transcoderService, sessionBackupAsync, sessionBackupTimeout,
+                createExecutorService( sessionBackupAsync, backupThreadCount, THREAD_TYPE_PLATFORM ),
+                memcached, nodeIdService, statistics );
+    }
+
+    /**
+     * @param executorService the executor running the backup tasks, see
+     *  {@link #createExecutorService(boolean, int, String)}. It's shut down by {@link #shutdown()}.
+     */
+    public BackupSessionService( final TranscoderService transcoderService,
+            final boolean sessionBackupAsync,
+            final int sessionBackupTimeout,
+            @Nonnull final ExecutorService executorService,
+            final MemcachedClientIF memcached,
             final NodeIdService nodeIdService,
             final Statistics statistics ) {
         _transcoderService = transcoderService;
@@ -88,10 +115,37 @@ public class BackupSessionService {
         _nodeIdService = nodeIdService;
         _statistics = statistics;
 
-        _executorService = sessionBackupAsync
-            ? Executors.newFixedThreadPool( backupThreadCount )
-            : new SynchronousExecutorService();
+        _executorService = executorService;
+
+    }
 
+    /**
+     * Creates the executor for session backup tasks. Synchronous backups run in the
+     * request thread, asynchronous ones either on a fixed pool of <code>backupThreadCount</code>
+     * platform threads or, with {@link #THREAD_TYPE_VIRTUAL}, on a new virtual thread each.
+     * Virtual threads don't bound the number of concurrent backups by the number of threads,
+     * which is what you want if backups mostly wait for memcached. If the jvm doesn't support
+     * virtual threads (before java 21) platform threads are used.
+     *
+     * @param sessionBackupAsync if backups shall be done asynchronously.
+     * @param backupThreadCount the number of platform threads.
+     * @param backupThreadType {@link #THREAD_TYPE_PLATFORM} or {@link #THREAD_TYPE_VIRTUAL}.
+     */
+    @Nonnull
+    public static ExecutorService createExecutorService( final boolean sessionBackupAsync,
+            final int backupThreadCount, final String backupThreadType ) {
+        if ( !sessionBackupAsync ) {
+            return new SynchronousExecutorService();
+        }
+        if ( THREAD_TYPE_VIRTUAL.equals( backupThreadType ) ) {
+            try {
+                return (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+            } catch ( final Exception e ) {
+                _log.warn( "Virtual threads are not supported by this jvm (" + System.getProperty( "java.version" )
+                        + "), using " + backupThreadCount + " platform threads for session backup." );
+            }
+        }
+        return Executors.newFixedThreadPool( backupThreadCount );
     }
 
     /**
@@ -102,6 +156,15 @@ public class BackupSessionService {
         _executorService.shutdown();
     }
 
+    /**
+     * Waits until the backups submitted before {@link #shutdown()} are finished.
+     *
+     * @return <code>true</code> if they finished, <code>false</code> if the timeout elapsed before.
+     */
+    public boolean awaitTermination( final long timeout, final TimeUnit unit ) throws InterruptedException {
+        return _executorService.awaitTermination( timeout, unit );
+    }
+
     /**
      * ̶̨߳ʱڴеsessionʱʱͬʱҲøòmemcacheеsession
      * ػʱ
@@ -136,8 +199,9 @@ public class BackupSessionService {
         session.setLastBackupTime( System.currentTimeMillis() );
         try {
             final Map<String, Object> attributes = session.getAttributesInternal();
-            final byte[] attributesData = _transcoderService.serializeAttributes( session, attributes );
-            final byte[] data = _transcoderService.serialize( session, attributesData );
+            final byte[] principalData = TranscoderService.serializePrincipal( session );
+            final ByteBuffer attributesData = _transcoderService.serializeAttributesToBuffer( session, attributes, principalData );
+            final byte[] data = _transcoderService.serialize( session, principalData, attributesData );
             createBackupSessionTask( session, true ).doBackupSession( session, data, attributesData );
         } finally {
             session.setExpirationUpdateRunning( false );
@@ -192,6 +256,9 @@ public class BackupSessionService {
                 return new SimpleFuture<BackupResult>( BackupResult.FAILURE );
             }
 
+            final int immutableAttributeReads = session.resetImmutableAttributeReads();
+            _statistics.immutableAttributeReads( immutableAttributeReads );
+
             /* Check if the session was accessed at all since the last backup/check.
              * If this is not the case, we even don't have to check if attributes
              * have changed (and can skip serialization and hash calucation)
@@ -214,6 +281,9 @@ public class BackupSessionService {
                     && !session.isNewInternal() ) {
                 _log.debug( "Session attributes were not accessed since last backup/check, therefore we can skip this" );
                 _statistics.requestWithoutAttributesAccess();
+                if ( immutableAttributeReads > 0 ) {
+                    _statistics.requestWithOnlyImmutableAttributesAccess();
+                }
                 releaseLock( session );
                 return new SimpleFuture<BackupResult>( BackupResult.SKIPPED );
             }
@@ -22,7 +22,7 @@ import static de.javakaffee.web.msm.Statistics.StatsType.BACKUP;
 import static de.javakaffee.web.msm.Statistics.StatsType.MEMCACHED_UPDATE;
 import static de.javakaffee.web.msm.Statistics.StatsType.RELEASE_LOCK;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
@@ -31,7 +31,7 @@ import java.util.concurrent.TimeUnit;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
-import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
@@ -62,7 +62,7 @@ public class BackupSessionTask implements Callable<BackupResult> {
     private final TranscoderService _transcoderService;
     private final boolean _sessionBackupAsync;
     private final int _sessionBackupTimeout;
-    private final MemcachedClient _memcached;
+    private final MemcachedClientIF _memcached;
     private final NodeIdService _nodeIdService;
     private final Statistics _statistics;
     
@@ -89,7 +89,7 @@ public class BackupSessionTask implements Callable<BackupResult> {
             final TranscoderService transcoderService,
             final boolean sessionBackupAsync,
             final int sessionBackupTimeout,
-            final MemcachedClient memcached,
+            final MemcachedClientIF memcached,
             final NodeIdService nodeIdService,
             final Statistics statistics ) {
         _session = session;
@@ -120,8 +120,9 @@ public class BackupSessionTask implements Callable<BackupResult> {
 
             final Map<String, Object> attributes = _session.getAttributesInternal();
 
-            final byte[] attributesData = serializeAttributes( _session, attributes );
-            final int hashCode = Arrays.hashCode( attributesData );
+            final byte[] principalData = TranscoderService.serializePrincipal( _session );
+            final ByteBuffer attributesData = serializeAttributes( _session, attributes, principalData );
+            final int hashCode = TranscoderService.hashCode( attributesData );
             final BackupResult result;
             //sessionattributes仯 _force Ϊtrue ȨϢ仯ʱ
             //memcachedsessionĸ²
@@ -130,7 +131,7 @@ public class BackupSessionTask implements Callable<BackupResult> {
                     || _session.authenticationChanged() ) {
 
                 _session.setLastBackupTime( System.currentTimeMillis() );
-                final byte[] data = _transcoderService.serialize( _session, attributesData );
+                final byte[] data = _transcoderService.serialize( _session, principalData, attributesData );
 
                 result = doBackupSession( _session, data, attributesData );
                 if ( result.isSuccess() ) {
@@ -195,9 +196,10 @@ public class BackupSessionTask implements Callable<BackupResult> {
      * @param attributes
      * @return
      */
-    private byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+    private ByteBuffer serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final byte[] principalData ) {
         final long start = System.currentTimeMillis();
-        final byte[] attributesData = _transcoderService.serializeAttributes( session, attributes );
+        final ByteBuffer attributesData = _transcoderService.serializeAttributesToBuffer( session, attributes, principalData );
         _statistics.registerSince( ATTRIBUTES_SERIALIZATION, start );
         return attributesData;
     }
@@ -207,11 +209,11 @@ public class BackupSessionTask implements Callable<BackupResult> {
      * Store the provided session in memcached.
      * @param session the session to backup
      * @param data the serialized session data (session fields and session attributes).
-     * @param attributesData just the serialized session attributes.
+     * @param attributesData just the serialized session attributes (between position and limit).
      *
      * @return the {@link SessionTrackerValve.SessionBackupService.BackupResultStatus}
      */
-    BackupResult doBackupSession( final MemcachedBackupSession session, final byte[] data, final byte[] attributesData ) {
+    BackupResult doBackupSession( final MemcachedBackupSession session, final byte[] data, final ByteBuffer attributesData ) {
         if ( _log.isDebugEnabled() ) {
             _log.debug( "Trying to store session in memcached: " + session.getId() );
         }
@@ -287,13 +289,13 @@ public class BackupSessionTask implements Callable<BackupResult> {
 
         private final BackupResultStatus _status;
         private final byte[] _data;
-        private final byte[] _attributesData;
+        private final ByteBuffer _attributesData;
         public BackupResult( @Nonnull final BackupResultStatus status ) {
             _status = status;
             _data = null;
             _attributesData = null;
         }
-        public BackupResult( @Nonnull final BackupResultStatus status, @Nonnull final byte[] data, @Nonnull final byte[] attributesData ) {
+        public BackupResult( @Nonnull final BackupResultStatus status, @Nonnull final byte[] data, @Nonnull final ByteBuffer attributesData ) {
             _status = status;
             _data = data;
             _attributesData = attributesData;
@@ -321,10 +323,10 @@ public class BackupSessionTask implements Callable<BackupResult> {
          * full serialized session data. This can be <code>null</code>, e.g. if
          * {@link #getStatus()} is {@link BackupResultStatus#FAILURE} or {@link BackupResultStatus#SKIPPED}.
          *
-         * @return the attributesData
+         * @return the attributesData, the bytes between position and limit
          */
         @CheckForNull
-        byte[] getAttributesData() {
+        ByteBuffer getAttributesData() {
             return _attributesData;
         }
         /**
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} that reads the bytes between position and limit of a
+ * {@link ByteBuffer} (heap or direct), without modifying the provided buffer.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer _buffer;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param buffer the buffer to read.
+     */
+    public ByteBufferInputStream( final ByteBuffer buffer ) {
+        _buffer = buffer.duplicate();
+    }
+
+    /**
+     * Creates a stream for the given buffer, for heap buffers this is a {@link ByteArrayInputStream}
+     * over the backing array.
+     *
+     * @param buffer the buffer to read.
+     * @return an input stream that does not copy the bytes of the buffer.
+     */
+    public static InputStream create( final ByteBuffer buffer ) {
+        if ( buffer.hasArray() ) {
+            return new ByteArrayInputStream( buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining() );
+        }
+        return new ByteBufferInputStream( buffer );
+    }
+
+    @Override
+    public int read() {
+        return _buffer.hasRemaining() ? _buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read( final byte[] b, final int off, final int len ) {
+        if ( len == 0 ) {
+            return 0;
+        }
+        if ( !_buffer.hasRemaining() ) {
+            return -1;
+        }
+        final int n = Math.min( len, _buffer.remaining() );
+        _buffer.get( b, off, n );
+        return n;
+    }
+
+    @Override
+    public long skip( final long n ) {
+        final int skipped = (int) Math.max( 0, Math.min( n, _buffer.remaining() ) );
+        _buffer.position( _buffer.position() + skipped );
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return _buffer.remaining();
+    }
+
+}
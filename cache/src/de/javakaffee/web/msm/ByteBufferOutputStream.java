@@ -0,0 +1,81 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ByteArrayOutputStream} that reserves a number of bytes at the beginning
+ * of its buffer and that provides the written bytes as {@link ByteBuffer} view
+ * of its buffer, without copying them.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ByteBufferOutputStream extends ByteArrayOutputStream {
+
+    private final int _headroom;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param headroom the number of bytes reserved at the beginning of the buffer.
+     * @param size the initial size for the written bytes.
+     */
+    public ByteBufferOutputStream( final int headroom, final int size ) {
+        super( headroom + size );
+        _headroom = headroom;
+        count = headroom;
+    }
+
+    /**
+     * The number of bytes written to this stream.
+     */
+    @Override
+    public synchronized int size() {
+        return count - _headroom;
+    }
+
+    /**
+     * Discards the written bytes, the headroom is kept.
+     */
+    @Override
+    public synchronized void reset() {
+        count = _headroom;
+    }
+
+    /**
+     * Returns the written bytes (without the headroom), this is a copy.
+     */
+    @Override
+    public synchronized byte[] toByteArray() {
+        final byte[] result = new byte[count - _headroom];
+        System.arraycopy( buf, _headroom, result, 0, result.length );
+        return result;
+    }
+
+    /**
+     * Returns a view of the buffer: the position is set to the headroom, the limit
+     * to the end of the written bytes. The view is only valid until more bytes are written.
+     *
+     * @return a buffer backed by the buffer of this stream.
+     */
+    public synchronized ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap( buf, _headroom, count - _headroom );
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * A {@link SessionAttributesTranscoder} that can serialize to and deserialize from
+ * {@link ByteBuffer}s, so that the {@link TranscoderService} does not need to copy the
+ * serialized attributes to combine them with the session fields (and vice versa).
+ * <p>
+ * Both methods must produce/accept the same format as the <code>byte[]</code> based methods.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface ByteBufferSessionAttributesTranscoder extends SessionAttributesTranscoder {
+
+    /**
+     * Serialize the given attributes to a heap buffer, leaving <code>headroom</code> bytes
+     * at the beginning of the backing array unwritten.
+     *
+     * @param session the session that owns the given attributes.
+     * @param attributes the attributes to serialize.
+     * @param headroom the number of bytes to reserve at the beginning of the backing array.
+     * @return a buffer with a backing array, array offset 0 and the position set to <code>headroom</code>.
+     *  The serialized attributes are the bytes between position and limit.
+     */
+    ByteBuffer serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes, final int headroom );
+
+    /**
+     * Deserialize the bytes between position and limit of the given buffer, which
+     * may be a heap or a direct buffer. The position of the buffer is not changed.
+     *
+     * @param data the serialized attributes
+     * @return the deserialized attributes
+     */
+    Map<String, Object> deserializeAttributes( final ByteBuffer data );
+
+}
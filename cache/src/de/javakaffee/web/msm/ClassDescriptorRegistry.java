@@ -0,0 +1,343 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Maps java serialization class descriptors ({@link ObjectStreamClass}) to ids, so that
+ * a serialized object graph can contain the id of a class descriptor instead of the
+ * descriptor itself.
+ * <p>
+ * The id is computed from the serialized descriptor (class name, serialVersionUID,
+ * flags and fields), so it's the same on all tomcats without any coordination and
+ * changes if the class changes. Descriptors are published to the {@link Store}, which is
+ * shared by all tomcats (e.g. memcached), so that a tomcat can read sessions containing
+ * descriptors it has not seen before.
+ * </p>
+ * <p>
+ * A descriptor is published synchronously before its id is written the first time, as long
+ * as this did not succeed the descriptor is written inline. As the store might evict
+ * descriptors, the class name is written with the id: a reader that doesn't find the id
+ * in the store uses the descriptor of its local class if that has the same id (i.e. the
+ * class didn't change). Descriptors are published again by the writing tomcat every
+ * {@value #REPUBLISH_INTERVAL_MINUTES} minutes, so that after an eviction readers with a
+ * different version of the class find them again.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ClassDescriptorRegistry {
+
+    static final int REPUBLISH_INTERVAL_MINUTES = 10;
+
+    /**
+     * If a descriptor could not be published, it's tried again after this time.
+     */
+    static final int PUBLISH_RETRY_SECONDS = 10;
+
+    /**
+     * Tag of a descriptor written as id and class name, it's available in the store.
+     */
+    static final int TAG_ID = 0;
+
+    /**
+     * Tag of a descriptor written inline, it could not be published to the store.
+     */
+    static final int TAG_INLINE = 1;
+
+    private static final Log LOG = LogFactory.getLog( ClassDescriptorRegistry.class );
+
+    /**
+     * The storage that shares class descriptors between tomcats.
+     */
+    public static interface Store {
+
+        /**
+         * Stores the serialized descriptor and waits until it's stored.
+         *
+         * @param id the id of the descriptor.
+         * @param descriptor the serialized descriptor.
+         * @return <code>true</code> if the descriptor was stored.
+         */
+        boolean put( long id, @Nonnull byte[] descriptor );
+
+        /**
+         * Loads a serialized descriptor.
+         *
+         * @param id the id of the descriptor.
+         * @return the serialized descriptor, or <code>null</code> if it's not found.
+         */
+        @CheckForNull
+        byte[] get( long id );
+
+    }
+
+    private final Store _store;
+    /* weak keys, so that classes of undeployed webapps can be collected
+     */
+    private final Map<Class<?>, Registration> _registrations = Collections.synchronizedMap( new WeakHashMap<Class<?>, Registration>() );
+    private final ConcurrentMap<Long, ObjectStreamClass> _descriptors = new ConcurrentHashMap<Long, ObjectStreamClass>();
+
+    /**
+     * Creates a new registry.
+     *
+     * @param store the shared store, or <code>null</code> if descriptors shall only be
+     *  known in this jvm (serialized data then can only be read by this jvm).
+     */
+    public ClassDescriptorRegistry( @CheckForNull final Store store ) {
+        _store = store;
+    }
+
+    /**
+     * Writes the given descriptor of a local class: its id and class name if it's available in
+     * the store, otherwise the descriptor itself. The descriptor is registered and published
+     * to the store if necessary.
+     *
+     * @param out the stream to write to.
+     * @param desc the class descriptor to write.
+     * @throws IOException if the descriptor could not be serialized or written.
+     */
+    public void writeDescriptor( @Nonnull final DataOutput out, @Nonnull final ObjectStreamClass desc ) throws IOException {
+        final Registration registration = getRegistration( desc );
+        if ( _store == null || registration.publishIfDue( _store ) ) {
+            out.writeByte( TAG_ID );
+            out.writeLong( registration.id );
+            out.writeUTF( desc.getName() );
+        }
+        else {
+            out.writeByte( TAG_INLINE );
+            out.writeLong( registration.id );
+            out.writeInt( registration.bytes.length );
+            out.write( registration.bytes );
+        }
+    }
+
+    /**
+     * Reads a descriptor written by {@link #writeDescriptor(DataOutput, ObjectStreamClass)}, as it
+     * was read by {@link ObjectInputStream} (the class is not resolved).
+     *
+     * @param in the stream to read from.
+     * @param classLoader the class loader to load the class if the descriptor is neither
+     *  known nor in the store, may be <code>null</code>.
+     * @return the descriptor.
+     * @throws InvalidClassException if the descriptor is not known.
+     * @throws IOException if the descriptor could not be read.
+     */
+    @Nonnull
+    public ObjectStreamClass readDescriptor( @Nonnull final DataInput in, @CheckForNull final ClassLoader classLoader ) throws IOException {
+        final int tag = in.readByte();
+        final long id = in.readLong();
+        if ( tag == TAG_INLINE ) {
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully( bytes );
+            final ObjectStreamClass result = _descriptors.get( id );
+            return result != null ? result : register( id, bytes );
+        }
+        if ( tag != TAG_ID ) {
+            throw new InvalidClassException( "Unknown class descriptor tag " + tag );
+        }
+        return getDescriptor( id, in.readUTF(), classLoader );
+    }
+
+    private Registration getRegistration( final ObjectStreamClass desc ) throws IOException {
+        final Class<?> clazz = desc.forClass();
+        Registration registration = _registrations.get( clazz );
+        if ( registration == null ) {
+            final byte[] bytes = serialize( desc );
+            registration = new Registration( id( bytes ), bytes );
+            /* decode once, so that this jvm can read its own data without the store
+             */
+            _descriptors.putIfAbsent( registration.id, deserialize( bytes ) );
+            _registrations.put( clazz, registration );
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug( "Registered class descriptor of " + desc.getName() + " with id " + Long.toHexString( registration.id ) );
+            }
+        }
+        return registration;
+    }
+
+    @Nonnull
+    private ObjectStreamClass getDescriptor( final long id, final String className, final ClassLoader classLoader ) throws IOException {
+        final ObjectStreamClass result = _descriptors.get( id );
+        if ( result != null ) {
+            return result;
+        }
+        final byte[] bytes = _store != null ? _store.get( id ) : null;
+        if ( bytes != null ) {
+            return register( id, bytes );
+        }
+        /* evicted from the store (or never stored by a tomcat without store), the descriptor
+         * of the local class is the same if it has the same id
+         */
+        final ObjectStreamClass local = lookupLocal( className, classLoader );
+        if ( local != null && getRegistration( local ).id == id ) {
+            return _descriptors.get( id );
+        }
+        throw new InvalidClassException( className, "Unknown class descriptor id " + Long.toHexString( id ) );
+    }
+
+    @CheckForNull
+    private static ObjectStreamClass lookupLocal( final String className, final ClassLoader classLoader ) {
+        try {
+            final Class<?> clazz = Class.forName( className, false,
+                    classLoader != null ? classLoader : ClassDescriptorRegistry.class.getClassLoader() );
+            return ObjectStreamClass.lookup( clazz );
+        } catch ( final ClassNotFoundException e ) {
+            return null;
+        }
+    }
+
+    private ObjectStreamClass register( final long id, final byte[] bytes ) throws IOException {
+        if ( id( bytes ) != id ) {
+            throw new InvalidClassException( "Corrupt class descriptor for id " + Long.toHexString( id ) );
+        }
+        final ObjectStreamClass result = deserialize( bytes );
+        final ObjectStreamClass existing = _descriptors.putIfAbsent( id, result );
+        return existing != null ? existing : result;
+    }
+
+    private static long id( final byte[] bytes ) {
+        try {
+            final byte[] digest = MessageDigest.getInstance( "MD5" ).digest( bytes );
+            long result = 0;
+            for ( int i = 0; i < 8; i++ ) {
+                result = ( result << 8 ) | ( digest[i] & 0xff );
+            }
+            return result;
+        } catch ( final NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( "MD5 is not available.", e );
+        }
+    }
+
+    private static byte[] serialize( final ObjectStreamClass desc ) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream( 128 );
+        final DescriptorOutputStream out = new DescriptorOutputStream( bos );
+        out.writeDescriptor( desc );
+        out.close();
+        return bos.toByteArray();
+    }
+
+    private static ObjectStreamClass deserialize( final byte[] bytes ) throws IOException {
+        final DescriptorInputStream in = new DescriptorInputStream( new ByteArrayInputStream( bytes ) );
+        try {
+            return in.readDescriptor();
+        } catch ( final ClassNotFoundException e ) {
+            /* not thrown, the class is not resolved
+             */
+            throw new InvalidClassException( e.getMessage() );
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The id and serialized descriptor of a local class.
+     */
+    private static final class Registration {
+
+        private final long id;
+        private final byte[] bytes;
+        private volatile boolean _published;
+        private volatile long _nextPublication;
+
+        Registration( final long id, final byte[] bytes ) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Publishes the descriptor if it was not yet published successfully or if it's time to
+         * publish it again.
+         *
+         * @return <code>true</code> if the descriptor was published successfully (now or before).
+         */
+        boolean publishIfDue( final Store store ) {
+            final long now = System.currentTimeMillis();
+            if ( now >= _nextPublication ) {
+                /* a concurrent second publication does not harm
+                 */
+                if ( store.put( id, bytes ) ) {
+                    _published = true;
+                    _nextPublication = now + TimeUnit.MINUTES.toMillis( REPUBLISH_INTERVAL_MINUTES );
+                }
+                else {
+                    _nextPublication = now + TimeUnit.SECONDS.toMillis( PUBLISH_RETRY_SECONDS );
+                    LOG.warn( "Could not publish class descriptor " + Long.toHexString( id )
+                            + ( _published ? "" : ", it's written inline until it's published" ) );
+                }
+            }
+            return _published;
+        }
+
+    }
+
+    /**
+     * Provides access to {@link ObjectOutputStream#writeClassDescriptor(ObjectStreamClass)}.
+     */
+    private static final class DescriptorOutputStream extends ObjectOutputStream {
+
+        DescriptorOutputStream( final OutputStream out ) throws IOException {
+            super( out );
+        }
+
+        void writeDescriptor( final ObjectStreamClass desc ) throws IOException {
+            writeClassDescriptor( desc );
+        }
+
+    }
+
+    /**
+     * Provides access to {@link ObjectInputStream#readClassDescriptor()}.
+     */
+    private static final class DescriptorInputStream extends ObjectInputStream {
+
+        DescriptorInputStream( final InputStream in ) throws IOException {
+            super( in );
+        }
+
+        ObjectStreamClass readDescriptor() throws IOException, ClassNotFoundException {
+            return readClassDescriptor();
+        }
+
+    }
+
+}
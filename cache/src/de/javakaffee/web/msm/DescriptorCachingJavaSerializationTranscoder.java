@@ -0,0 +1,280 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.apache.catalina.Manager;
+
+/**
+ * A {@link JavaSerializationTranscoder} that writes the ids of a {@link ClassDescriptorRegistry}
+ * instead of class descriptors, so that each class in the object graph costs its id and name
+ * instead of the class name, serialVersionUID and all field names and types. Apart from
+ * that the data is standard java serialization, so the semantics of {@link java.io.Serializable}
+ * (writeObject/readObject, writeReplace/readResolve, serialVersionUID checks, added or
+ * removed fields) are retained.
+ * <p>
+ * The {@link ObjectOutputStream} and its buffer are reused per thread, between two
+ * serializations the stream is {@link ObjectOutputStream#reset() reset}.
+ * </p>
+ * <p>
+ * Data written by the {@link JavaSerializationTranscoder} can still be read.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class DescriptorCachingJavaSerializationTranscoder extends JavaSerializationTranscoder {
+
+    /**
+     * The first byte of data written by this transcoder, data of the {@link JavaSerializationTranscoder}
+     * starts with the java serialization stream magic (0xACED).
+     */
+    static final byte FORMAT = 1;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /**
+     * Buffers that have grown larger than this are not kept for the next serialization.
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+
+    private final ClassDescriptorRegistry _registry;
+    private final ThreadLocal<PooledOutput> _outputs = new ThreadLocal<PooledOutput>();
+
+    /**
+     * Constructor.
+     *
+     * @param manager
+     *            the manager
+     * @param registry
+     *            the registry that provides the ids of class descriptors
+     */
+    public DescriptorCachingJavaSerializationTranscoder( final Manager manager, @Nonnull final ClassDescriptorRegistry registry ) {
+        super( manager );
+        _registry = registry;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+        /* without headroom the backing array has exactly the size of the data
+         */
+        return serializeAttributes( session, attributes, 0 ).array();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes, final int headroom ) {
+        if ( attributes == null ) {
+            throw new NullPointerException( "Can't serialize null" );
+        }
+
+        PooledOutput output = _outputs.get();
+        boolean reuse = false;
+        try {
+            if ( output == null ) {
+                output = new PooledOutput( _registry );
+            }
+
+            writeAttributes( session, attributes, output.oos );
+
+            output.oos.flush();
+            final ByteBuffer result = output.toByteBuffer( headroom );
+            reuse = output.reset();
+            return result;
+        } catch ( final IOException e ) {
+            throw new IllegalArgumentException( "Non-serializable object", e );
+        } finally {
+            /* after a failure the state of the stream is unknown, so it's not reused
+             */
+            if ( reuse ) {
+                _outputs.set( output );
+            } else {
+                _outputs.remove();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected ObjectInputStream createObjectInputStream( final InputStream bis ) throws IOException {
+        final int format = bis.read();
+        if ( format == FORMAT ) {
+            return new RegistryObjectInputStream( bis, getClassLoader(), _registry );
+        }
+        final PushbackInputStream in = new PushbackInputStream( bis );
+        if ( format >= 0 ) {
+            in.unread( format );
+        }
+        return super.createObjectInputStream( in );
+    }
+
+    /**
+     * The {@link ObjectOutputStream} and buffer of a thread. The buffer starts with
+     * the {@link DescriptorCachingJavaSerializationTranscoder#FORMAT} and the stream header,
+     * which are kept when the buffer is reset.
+     */
+    private static final class PooledOutput {
+
+        final ResettableByteArrayOutputStream bos = new ResettableByteArrayOutputStream( INITIAL_BUFFER_SIZE );
+        final ObjectOutputStream oos;
+        private final int _headerLength;
+
+        PooledOutput( final ClassDescriptorRegistry registry ) throws IOException {
+            bos.write( FORMAT );
+            oos = new RegistryObjectOutputStream( bos, registry );
+            oos.flush();
+            _headerLength = bos.size();
+        }
+
+        ByteBuffer toByteBuffer( final int headroom ) {
+            final byte[] result = new byte[headroom + bos.size()];
+            System.arraycopy( bos.buffer(), 0, result, headroom, bos.size() );
+            return ByteBuffer.wrap( result, headroom, bos.size() );
+        }
+
+        /**
+         * Prepares the stream for the next serialization.
+         *
+         * @return <code>false</code> if the buffer has grown too large to be kept.
+         */
+        boolean reset() throws IOException {
+            if ( bos.size() > MAX_POOLED_BUFFER_SIZE ) {
+                return false;
+            }
+            /* clears the handle table, the reset marker written to the stream is dropped
+             */
+            oos.reset();
+            oos.flush();
+            bos.truncate( _headerLength );
+            return true;
+        }
+
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} that can be truncated and provides its buffer.
+     */
+    private static final class ResettableByteArrayOutputStream extends ByteArrayOutputStream {
+
+        ResettableByteArrayOutputStream( final int size ) {
+            super( size );
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        void truncate( final int size ) {
+            count = size;
+        }
+
+    }
+
+    /**
+     * Writes the id of the class descriptor instead of the descriptor.
+     */
+    private static final class RegistryObjectOutputStream extends ObjectOutputStream {
+
+        private final ClassDescriptorRegistry _registry;
+
+        RegistryObjectOutputStream( final OutputStream out, final ClassDescriptorRegistry registry ) throws IOException {
+            super( out );
+            _registry = registry;
+        }
+
+        @Override
+        protected void writeClassDescriptor( final ObjectStreamClass desc ) throws IOException {
+            _registry.writeDescriptor( this, desc );
+        }
+
+    }
+
+    /**
+     * Reads class descriptor ids, classes are resolved like {@link org.apache.catalina.util.CustomObjectInputStream}
+     * does it if a class loader is given.
+     */
+    private static final class RegistryObjectInputStream extends ObjectInputStream {
+
+        private final ClassLoader _classLoader;
+        private final ClassDescriptorRegistry _registry;
+
+        RegistryObjectInputStream( final InputStream in, final ClassLoader classLoader, final ClassDescriptorRegistry registry ) throws IOException {
+            super( in );
+            _classLoader = classLoader;
+            _registry = registry;
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            return _registry.readDescriptor( this, _classLoader );
+        }
+
+        @Override
+        protected Class<?> resolveClass( final ObjectStreamClass desc ) throws IOException, ClassNotFoundException {
+            if ( _classLoader == null ) {
+                return super.resolveClass( desc );
+            }
+            try {
+                return Class.forName( desc.getName(), false, _classLoader );
+            } catch ( final ClassNotFoundException e ) {
+                try {
+                    // Try also the superclass because of primitive types
+                    return super.resolveClass( desc );
+                } catch ( final ClassNotFoundException e2 ) {
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass( final String[] interfaces ) throws IOException, ClassNotFoundException {
+            if ( _classLoader == null ) {
+                return super.resolveProxyClass( interfaces );
+            }
+            final Class<?>[] classes = new Class<?>[interfaces.length];
+            for ( int i = 0; i < interfaces.length; i++ ) {
+                classes[i] = _classLoader.loadClass( interfaces[i] );
+            }
+            try {
+                return Proxy.getProxyClass( _classLoader, classes );
+            } catch ( final IllegalArgumentException e ) {
+                throw new ClassNotFoundException( null, e );
+            }
+        }
+
+    }
+
+}
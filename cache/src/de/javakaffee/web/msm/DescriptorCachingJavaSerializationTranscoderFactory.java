@@ -0,0 +1,49 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import org.apache.catalina.Manager;
+
+/**
+ * A {@link TranscoderFactory} that creates {@link DescriptorCachingJavaSerializationTranscoder}
+ * instances, class descriptors are shared between the tomcats via memcached.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class DescriptorCachingJavaSerializationTranscoderFactory extends JavaSerializationTranscoderFactory {
+
+    private ClassDescriptorRegistry _registry;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SessionAttributesTranscoder createTranscoder( final Manager manager ) {
+        return new DescriptorCachingJavaSerializationTranscoder( manager, getRegistry( manager ) );
+    }
+
+    private synchronized ClassDescriptorRegistry getRegistry( final Manager manager ) {
+        if ( _registry == null ) {
+            final ClassDescriptorRegistry.Store store = manager instanceof MemcachedBackupSessionManager
+                ? ( (MemcachedBackupSessionManager) manager ).createClassDescriptorStore()
+                : null;
+            _registry = new ClassDescriptorRegistry( store );
+        }
+        return _registry;
+    }
+
+}
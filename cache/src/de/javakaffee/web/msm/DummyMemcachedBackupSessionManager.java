@@ -31,7 +31,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
-import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
 
 import org.apache.catalina.Session;
 
@@ -64,7 +64,7 @@ public class DummyMemcachedBackupSessionManager extends MemcachedBackupSessionMa
     private final ExecutorService _executorService = Executors.newSingleThreadExecutor();
 
     @Override
-    protected MemcachedClient createMemcachedClient( final NodeIdList nodeIds, final List<InetSocketAddress> addresses, final Map<InetSocketAddress, String> address2Ids,
+    protected MemcachedClientIF createMemcachedClient( final NodeIdList nodeIds, final List<InetSocketAddress> addresses, final Map<InetSocketAddress, String> address2Ids,
             final Statistics statistics ) {
         return null;
     }
@@ -73,7 +73,7 @@ public class DummyMemcachedBackupSessionManager extends MemcachedBackupSessionMa
      * {@inheritDoc}
      */
     @Override
-    protected NodeAvailabilityCache<String> createNodeAvailabilityCache( final int size, final long ttlInMillis, final MemcachedClient memcachedClient ) {
+    protected NodeAvailabilityCache<String> createNodeAvailabilityCache( final int size, final long ttlInMillis, final MemcachedClientIF memcachedClient ) {
         return new NodeAvailabilityCache<String>( size, ttlInMillis, new CacheLoader<String>() {
             @Override
             public boolean isNodeAvailable( final String key ) {
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Determines if session attribute values are immutable, so that reading them cannot
+ * modify the session.
+ * <p>
+ * Immutable are
+ * <ul>
+ * <li><code>String</code>, the primitive wrappers, <code>BigInteger</code>, <code>BigDecimal</code>,
+ * <code>Locale</code>, <code>Currency</code>, <code>UUID</code> and <code>Class</code></li>
+ * <li>enums</li>
+ * <li>the value types of <code>java.time</code> and joda time, e.g. <code>LocalDate</code> or
+ * <code>Instant</code> (see {@link #TIME_TYPES}), but not their builders, formatters or
+ * the joda <code>Mutable*</code> classes</li>
+ * <li>the configured classes (see {@link MemcachedBackupSessionManager#setImmutableAttributeClasses(String)})</li>
+ * <li>classes annotated with {@link ImmutableSessionAttribute}</li>
+ * </ul>
+ * The check is done for the exact class of a value, subclasses of the listed
+ * classes are not considered immutable (unless annotated).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class ImmutableAttributeTypes {
+
+    private static final Set<Class<?>> DEFAULT_TYPES = new HashSet<Class<?>>( Arrays.<Class<?>>asList(
+            String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class,
+            Float.class, Double.class, BigInteger.class, BigDecimal.class, Locale.class, Currency.class,
+            UUID.class, Class.class ) );
+
+    /**
+     * The immutable value types of <code>java.time</code> and joda time, by name as they're
+     * not available on every classpath. Enums like <code>DayOfWeek</code> are covered by the
+     * enum rule.
+     */
+    static final Set<String> TIME_TYPES = new HashSet<String>( Arrays.asList(
+            "java.time.Duration", "java.time.Instant", "java.time.LocalDate", "java.time.LocalDateTime",
+            "java.time.LocalTime", "java.time.MonthDay", "java.time.OffsetDateTime", "java.time.OffsetTime",
+            "java.time.Period", "java.time.Year", "java.time.YearMonth", "java.time.ZonedDateTime",
+            "java.time.ZoneOffset", "java.time.ZoneRegion",
+            "org.joda.time.DateMidnight", "org.joda.time.DateTime", "org.joda.time.Days", "org.joda.time.Duration",
+            "org.joda.time.Hours", "org.joda.time.Instant", "org.joda.time.Interval", "org.joda.time.LocalDate",
+            "org.joda.time.LocalDateTime", "org.joda.time.LocalTime", "org.joda.time.Minutes",
+            "org.joda.time.MonthDay", "org.joda.time.Months", "org.joda.time.Period", "org.joda.time.Seconds",
+            "org.joda.time.Weeks", "org.joda.time.YearMonth", "org.joda.time.Years",
+            "org.joda.time.tz.CachedDateTimeZone", "org.joda.time.tz.FixedDateTimeZone" ) );
+
+    private final Set<String> _classNames;
+    private final ConcurrentMap<Class<?>, Boolean> _cache = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param classNames additional immutable classes, separated by comma (with optional whitespace),
+     * may be <code>null</code>.
+     */
+    ImmutableAttributeTypes( @Nullable final String classNames ) {
+        _classNames = parseClassNames( classNames );
+    }
+
+    @Nonnull
+    private static Set<String> parseClassNames( @CheckForNull final String classNames ) {
+        if ( classNames == null || classNames.trim().length() == 0 ) {
+            return Collections.emptySet();
+        }
+        final Set<String> result = new HashSet<String>();
+        for ( final String className : classNames.split( "," ) ) {
+            if ( className.trim().length() > 0 ) {
+                result.add( className.trim() );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Determines if the given attribute value is immutable. <code>null</code> is
+     * considered to be immutable.
+     *
+     * @param value the attribute value.
+     * @return <code>true</code> if the value cannot be modified.
+     */
+    boolean isImmutable( @Nullable final Object value ) {
+        if ( value == null ) {
+            return true;
+        }
+        final Class<?> clazz = value.getClass();
+        Boolean result = _cache.get( clazz );
+        if ( result == null ) {
+            result = Boolean.valueOf( isImmutableType( clazz ) );
+            _cache.put( clazz, result );
+        }
+        return result.booleanValue();
+    }
+
+    private boolean isImmutableType( @Nonnull final Class<?> clazz ) {
+        if ( DEFAULT_TYPES.contains( clazz ) || TIME_TYPES.contains( clazz.getName() )
+                || _classNames.contains( clazz.getName() ) ) {
+            return true;
+        }
+        /* enum constants with a body are anonymous subclasses of the enum
+         */
+        if ( clazz.isEnum() || clazz.getSuperclass() != null && clazz.getSuperclass().isEnum() ) {
+            return true;
+        }
+        return clazz.isAnnotationPresent( ImmutableSessionAttribute.class );
+    }
+
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpSessionActivationListener;
+
+/**
+ * A {@link SessionAttributesTranscoder} that stores each attribute separately (serialized
+ * by the wrapped transcoder), preceded by an index with name, offset and length of each
+ * attribute. Deserialization returns a {@link LazyAttributeMap} that deserializes an attribute
+ * on first access, so that a request that reads two attributes of a session with 60 attributes
+ * only deserializes these two. If all attributes are needed (e.g. iteration over the values)
+ * they're deserialized in parallel using the provided executor.
+ * <p>
+ * Attributes that were not deserialized are written back without re-serialization.
+ * </p>
+ * <p>
+ * Data that was not written by this transcoder (without the index header) is passed to the
+ * wrapped transcoder, so existing sessions can still be read. Writing the indexed format
+ * can be turned off, in this case the wrapped transcoder is used for serialization.
+ * </p>
+ * <p>
+ * <strong>Note:</strong> as attributes are serialized separately, objects that are referenced
+ * by several attributes are deserialized as separate instances.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class IndexedSessionAttributesTranscoder implements ByteBufferSessionAttributesTranscoder {
+
+    /**
+     * The default minimum number of attributes that are deserialized in parallel.
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 16;
+
+    private static final byte[] MAGIC = { 'M', 'S', 'M', 'I' };
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 4;
+
+    static final byte FLAG_ACTIVATION_LISTENER = 0x01;
+
+    private final SessionAttributesTranscoder _delegate;
+    private final boolean _writeIndexed;
+    private final ExecutorService _executor;
+    private final int _parallelThreshold;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param delegate the transcoder used to serialize the single attributes.
+     * @param writeIndexed specifies if the indexed format shall be written, otherwise the delegate is used.
+     * @param executor the executor used to deserialize attributes in parallel, or <code>null</code>.
+     * @param parallelThreshold the minimum number of attributes that are deserialized in parallel.
+     */
+    public IndexedSessionAttributesTranscoder( @Nonnull final SessionAttributesTranscoder delegate, final boolean writeIndexed,
+            @Nullable final ExecutorService executor, final int parallelThreshold ) {
+        _delegate = delegate;
+        _writeIndexed = writeIndexed;
+        _executor = executor;
+        _parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+        if ( !_writeIndexed ) {
+            return _delegate.serializeAttributes( session, attributes );
+        }
+        return writeIndexed( session, attributes, 0 ).toByteArray();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes, final int headroom ) {
+        if ( !_writeIndexed ) {
+            if ( _delegate instanceof ByteBufferSessionAttributesTranscoder ) {
+                return ( (ByteBufferSessionAttributesTranscoder) _delegate ).serializeAttributes( session, attributes, headroom );
+            }
+            final byte[] data = _delegate.serializeAttributes( session, attributes );
+            final byte[] result = new byte[headroom + data.length];
+            System.arraycopy( data, 0, result, headroom, data.length );
+            return ByteBuffer.wrap( result, headroom, data.length );
+        }
+        return writeIndexed( session, attributes, headroom ).toByteBuffer();
+    }
+
+    private ByteBufferOutputStream writeIndexed( final MemcachedBackupSession session, final Map<String, Object> attributes, final int headroom ) {
+        /* sorted to get the same bytes (hash code) for the same attributes
+         */
+        final Map<String, Object> values = new TreeMap<String, Object>();
+        final Map<String, SerializedAttribute> serialized = new HashMap<String, SerializedAttribute>();
+        if ( attributes instanceof LazyAttributeMap ) {
+            ( (LazyAttributeMap) attributes ).snapshot( values, serialized );
+        }
+        else {
+            values.putAll( attributes );
+        }
+        for ( final String name : serialized.keySet() ) {
+            values.put( name, null );
+        }
+
+        final List<String> names = new ArrayList<String>( values.size() );
+        final List<SerializedAttribute> data = new ArrayList<SerializedAttribute>( values.size() );
+        int size = 0;
+        for ( final Map.Entry<String, Object> entry : values.entrySet() ) {
+            SerializedAttribute attribute = serialized.get( entry.getKey() );
+            if ( attribute == null && entry.getValue() != null ) {
+                attribute = serialize( session, entry.getKey(), entry.getValue() );
+            }
+            if ( attribute != null ) {
+                names.add( entry.getKey() );
+                data.add( attribute );
+                size += entry.getKey().length() + 11 + attribute.length;
+            }
+        }
+
+        try {
+            final ByteBufferOutputStream bos = new ByteBufferOutputStream( headroom, HEADER_LENGTH + size );
+            final DataOutputStream out = new DataOutputStream( bos );
+            out.write( MAGIC );
+            out.writeByte( VERSION );
+            out.writeInt( names.size() );
+            int offset = 0;
+            for ( int i = 0; i < names.size(); i++ ) {
+                final SerializedAttribute attribute = data.get( i );
+                out.writeUTF( names.get( i ) );
+                out.writeByte( attribute.flags );
+                out.writeInt( offset );
+                out.writeInt( attribute.length );
+                offset += attribute.length;
+            }
+            for ( final SerializedAttribute attribute : data ) {
+                out.write( attribute.data, attribute.offset, attribute.length );
+            }
+            out.flush();
+            return bos;
+        } catch ( final IOException e ) {
+            throw new IllegalStateException( "Could not write attributes index", e );
+        }
+    }
+
+    private SerializedAttribute serialize( final MemcachedBackupSession session, final String name, final Object value ) {
+        final Map<String, Object> attribute = Collections.singletonMap( name, value );
+        final byte flags = value instanceof HttpSessionActivationListener ? FLAG_ACTIVATION_LISTENER : 0;
+        if ( _delegate instanceof ByteBufferSessionAttributesTranscoder ) {
+            final ByteBuffer bytes = ( (ByteBufferSessionAttributesTranscoder) _delegate ).serializeAttributes( session, attribute, 0 );
+            return new SerializedAttribute( bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), flags );
+        }
+        final byte[] bytes = _delegate.serializeAttributes( session, attribute );
+        return new SerializedAttribute( bytes, 0, bytes.length, flags );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> deserializeAttributes( final byte[] data ) {
+        if ( !isIndexed( ByteBuffer.wrap( data ) ) ) {
+            return _delegate.deserializeAttributes( data );
+        }
+        return readIndexed( data, 0, data.length );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> deserializeAttributes( final ByteBuffer data ) {
+        if ( !isIndexed( data ) ) {
+            if ( _delegate instanceof ByteBufferSessionAttributesTranscoder ) {
+                return ( (ByteBufferSessionAttributesTranscoder) _delegate ).deserializeAttributes( data );
+            }
+            return _delegate.deserializeAttributes( toByteArray( data ) );
+        }
+        if ( data.hasArray() ) {
+            return readIndexed( data.array(), data.arrayOffset() + data.position(), data.remaining() );
+        }
+        /* the attributes reference the array, so a direct buffer is copied once
+         */
+        final byte[] bytes = toByteArray( data );
+        return readIndexed( bytes, 0, bytes.length );
+    }
+
+    private LazyAttributeMap readIndexed( final byte[] data, final int offset, final int length ) {
+        try {
+            final DataInputStream in = new DataInputStream( new ByteArrayInputStream( data, offset + HEADER_LENGTH,
+                    length - HEADER_LENGTH ) );
+            final int count = readInt( data, offset + MAGIC.length + 1 );
+            final Map<String, SerializedAttribute> attributes = new LinkedHashMap<String, SerializedAttribute>( count * 2 );
+            final String[] names = new String[count];
+            final int[] offsets = new int[count];
+            final int[] lengths = new int[count];
+            final byte[] flags = new byte[count];
+            for ( int i = 0; i < count; i++ ) {
+                names[i] = in.readUTF();
+                flags[i] = in.readByte();
+                offsets[i] = in.readInt();
+                lengths[i] = in.readInt();
+            }
+            final int dataStart = offset + length - in.available();
+            for ( int i = 0; i < count; i++ ) {
+                attributes.put( names[i], new SerializedAttribute( data, dataStart + offsets[i], lengths[i], flags[i] ) );
+            }
+            return new LazyAttributeMap( this, attributes );
+        } catch ( final IOException e ) {
+            throw new IllegalArgumentException( "Could not read attributes index", e );
+        }
+    }
+
+    private static boolean isIndexed( @CheckForNull final ByteBuffer data ) {
+        if ( data == null || data.remaining() < HEADER_LENGTH ) {
+            return false;
+        }
+        final int position = data.position();
+        for ( int i = 0; i < MAGIC.length; i++ ) {
+            if ( data.get( position + i ) != MAGIC[i] ) {
+                return false;
+            }
+        }
+        return data.get( position + MAGIC.length ) == VERSION;
+    }
+
+    private static int readInt( final byte[] data, final int offset ) {
+        return ( data[offset] & 0xff ) << 24 | ( data[offset + 1] & 0xff ) << 16
+            | ( data[offset + 2] & 0xff ) << 8 | data[offset + 3] & 0xff;
+    }
+
+    private static byte[] toByteArray( final ByteBuffer data ) {
+        final byte[] result = new byte[data.remaining()];
+        data.duplicate().get( result );
+        return result;
+    }
+
+    /**
+     * Deserializes a single attribute.
+     *
+     * @param name the attribute name.
+     * @param attribute the serialized attribute.
+     * @return the attribute value, or <code>null</code> if the value was not serializable.
+     */
+    @CheckForNull
+    Object deserialize( @Nonnull final String name, @Nonnull final SerializedAttribute attribute ) {
+        if ( _delegate instanceof ByteBufferSessionAttributesTranscoder ) {
+            final ByteBuffer bytes = ByteBuffer.wrap( attribute.data, attribute.offset, attribute.length );
+            return ( (ByteBufferSessionAttributesTranscoder) _delegate ).deserializeAttributes( bytes ).get( name );
+        }
+        final byte[] bytes = Arrays.copyOfRange( attribute.data, attribute.offset, attribute.offset + attribute.length );
+        return _delegate.deserializeAttributes( bytes ).get( name );
+    }
+
+    /**
+     * Deserializes the given attributes, in parallel if an executor is set and the number of attributes
+     * reaches the parallel threshold.
+     *
+     * @param attributes the serialized attributes.
+     * @return the attribute values, attributes that could not be deserialized are missing.
+     */
+    @Nonnull
+    Map<String, Object> deserializeAll( @Nonnull final Map<String, SerializedAttribute> attributes ) {
+        if ( _executor == null || attributes.size() < _parallelThreshold ) {
+            return deserialize( attributes.entrySet().iterator(), attributes.size() );
+        }
+
+        final int numChunks = Math.min( attributes.size(), Runtime.getRuntime().availableProcessors() );
+        final int chunkSize = ( attributes.size() + numChunks - 1 ) / numChunks;
+        final List<Map.Entry<String, SerializedAttribute>> entries =
+            new ArrayList<Map.Entry<String, SerializedAttribute>>( attributes.entrySet() );
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+
+        final List<Future<Map<String, Object>>> futures = new ArrayList<Future<Map<String, Object>>>( numChunks );
+        for ( int start = chunkSize; start < entries.size(); start += chunkSize ) {
+            final List<Map.Entry<String, SerializedAttribute>> chunk = entries.subList( start, Math.min( start + chunkSize, entries.size() ) );
+            futures.add( _executor.submit( new Callable<Map<String, Object>>() {
+                @Override
+                public Map<String, Object> call() throws Exception {
+                    final Thread thread = Thread.currentThread();
+                    final ClassLoader classLoader = thread.getContextClassLoader();
+                    thread.setContextClassLoader( contextClassLoader );
+                    try {
+                        return deserialize( chunk.iterator(), chunk.size() );
+                    } finally {
+                        thread.setContextClassLoader( classLoader );
+                    }
+                }
+            } ) );
+        }
+
+        /* the first chunk is deserialized by the current thread
+         */
+        final List<Map.Entry<String, SerializedAttribute>> first = entries.subList( 0, Math.min( chunkSize, entries.size() ) );
+        final Map<String, Object> result = deserialize( first.iterator(), attributes.size() );
+        for ( final Future<Map<String, Object>> future : futures ) {
+            try {
+                result.putAll( future.get() );
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException( "Interrupted while deserializing attributes", e );
+            } catch ( final ExecutionException e ) {
+                final Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause
+                    : new RuntimeException( "Could not deserialize attributes", cause );
+            }
+        }
+        return result;
+    }
+
+    private Map<String, Object> deserialize( final Iterator<Map.Entry<String, SerializedAttribute>> iter, final int size ) {
+        final Map<String, Object> result = new HashMap<String, Object>( size * 2 );
+        while ( iter.hasNext() ) {
+            final Map.Entry<String, SerializedAttribute> entry = iter.next();
+            final Object value = deserialize( entry.getKey(), entry.getValue() );
+            if ( value != null ) {
+                result.put( entry.getKey(), value );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The serialized form of a single attribute, a range of a (shared) byte array.
+     */
+    static final class SerializedAttribute {
+
+        final byte[] data;
+        final int offset;
+        final int length;
+        final byte flags;
+
+        SerializedAttribute( final byte[] data, final int offset, final int length, final byte flags ) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.flags = flags;
+        }
+
+        boolean isActivationListener() {
+            return ( flags & FLAG_ACTIVATION_LISTENER ) != 0;
+        }
+
+    }
+
+}
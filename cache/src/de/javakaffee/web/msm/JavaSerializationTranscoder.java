@@ -25,6 +25,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -43,7 +44,7 @@ import org.apache.juli.logging.LogFactory;
  * session attribute л 
  * @author wangx
  */
-public class JavaSerializationTranscoder implements SessionAttributesTranscoder {
+public class JavaSerializationTranscoder implements ByteBufferSessionAttributesTranscoder {
 	
     private static final Log LOG = LogFactory.getLog( JavaSerializationTranscoder.class );
 
@@ -110,6 +111,33 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
 
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes, final int headroom ) {
+        if ( attributes == null ) {
+            throw new NullPointerException( "Can't serialize null" );
+        }
+
+        ByteBufferOutputStream bos = null;
+        ObjectOutputStream oos = null;
+        try {
+            bos = new ByteBufferOutputStream( headroom, 512 );
+            oos = new ObjectOutputStream( bos );
+
+            writeAttributes( session, attributes, oos );
+
+            oos.flush();
+            return bos.toByteBuffer();
+        } catch ( final IOException e ) {
+            throw new IllegalArgumentException( "Non-serializable object", e );
+        } finally {
+            closeSilently( bos );
+            closeSilently( oos );
+        }
+    }
+
     /**
      * ҳԱлĶȻл
      * һΪ ԱлϵĴСֵ
@@ -119,7 +147,7 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
      * @see de.javakaffee.web.msm.JavaSerializationTranscoder.NOT_SERIALIZED
      * @author wangx
      */
-    private void writeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+    protected void writeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
             final ObjectOutputStream oos ) throws IOException {
 
         // Accumulate the names of serializable and non-serializable attributes
@@ -172,10 +200,28 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
      */
     @Override
     public Map<String, Object> deserializeAttributes( final byte[] in ) {
-        ByteArrayInputStream bis = null;
+        return deserializeAttributes( new ByteArrayInputStream( in ), in.length );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> deserializeAttributes( final ByteBuffer in ) {
+        return deserializeAttributes( ByteBufferInputStream.create( in ), in.remaining() );
+    }
+
+    /**
+     * Reads the attributes as written by {@link #writeAttributes(MemcachedBackupSession, Map, ObjectOutputStream)}
+     * from the stream created by {@link #createObjectInputStream(InputStream)}.
+     *
+     * @param bis the serialized attributes.
+     * @param length the number of bytes, used for logging.
+     * @return the attributes.
+     */
+    protected Map<String, Object> deserializeAttributes( final InputStream bis, final int length ) {
         ObjectInputStream ois = null;
         try {
-            bis = new ByteArrayInputStream( in );
             ois = createObjectInputStream( bis );
 
             final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
@@ -194,10 +240,10 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
 
             return attributes;
         } catch ( final ClassNotFoundException e ) {
-            LOG.warn( "Caught CNFE decoding "+ in.length +" bytes of data", e );
+            LOG.warn( "Caught CNFE decoding "+ length +" bytes of data", e );
             throw new RuntimeException( "Caught CNFE decoding data", e );
         } catch ( final IOException e ) {
-            LOG.warn( "Caught IOException decoding "+ in.length +" bytes of data", e );
+            LOG.warn( "Caught IOException decoding "+ length +" bytes of data", e );
             throw new RuntimeException( "Caught IOException decoding data", e );
         } finally {
             closeSilently( bis );
@@ -210,16 +256,9 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
      * 
      * @author wangx
      */
-    private ObjectInputStream createObjectInputStream( final ByteArrayInputStream bis ) throws IOException {
+    protected ObjectInputStream createObjectInputStream( final InputStream bis ) throws IOException {
         final ObjectInputStream ois;
-        Loader loader = null;
-        ClassLoader classLoader = null;
-        if ( _manager != null && _manager.getContainer() != null ) {
-            loader = _manager.getContainer().getLoader();
-        }
-        if ( loader != null ) {
-            classLoader = loader.getClassLoader();
-        }
+        final ClassLoader classLoader = getClassLoader();
         if ( classLoader != null ) {
             ois = new CustomObjectInputStream( bis, classLoader );
         } else {
@@ -228,6 +267,17 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
         return ois;
     }
 
+    /**
+     * The class loader of the webapp, or <code>null</code> if there's no manager / loader.
+     */
+    protected ClassLoader getClassLoader() {
+        Loader loader = null;
+        if ( _manager != null && _manager.getContainer() != null ) {
+            loader = _manager.getContainer().getLoader();
+        }
+        return loader != null ? loader.getClassLoader() : null;
+    }
+
     /**
      * رճ
      * @author wangx
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpSessionActivationListener;
+
+import de.javakaffee.web.msm.IndexedSessionAttributesTranscoder.SerializedAttribute;
+
+/**
+ * The session attributes map created by the {@link IndexedSessionAttributesTranscoder}:
+ * attributes are deserialized when they're accessed the first time, all remaining
+ * attributes are deserialized (in parallel) when the map is iterated.
+ * <p>
+ * Decoded values are stored in a {@link ConcurrentHashMap}, reads of decoded values
+ * are not synchronized. Decoding and modifications are synchronized on this map
+ * as long as there are attributes left to decode.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class LazyAttributeMap extends AbstractMap<String, Object> implements ConcurrentMap<String, Object> {
+
+    private final IndexedSessionAttributesTranscoder _transcoder;
+    private final ConcurrentMap<String, Object> _values = new ConcurrentHashMap<String, Object>();
+
+    /*
+     * the attributes not yet deserialized, guarded by this
+     */
+    private final Map<String, SerializedAttribute> _serialized;
+    private volatile boolean _pending;
+
+    LazyAttributeMap( @Nonnull final IndexedSessionAttributesTranscoder transcoder,
+            @Nonnull final Map<String, SerializedAttribute> serialized ) {
+        _transcoder = transcoder;
+        _serialized = new HashMap<String, SerializedAttribute>( serialized );
+        _pending = !_serialized.isEmpty();
+    }
+
+    /**
+     * Deserializes the given attribute if it's not yet deserialized. Must be invoked
+     * while holding the lock on this map.
+     */
+    private void decode( final Object name ) {
+        final SerializedAttribute attribute = _serialized.remove( name );
+        if ( attribute != null ) {
+            final Object value = _transcoder.deserialize( (String) name, attribute );
+            if ( value != null ) {
+                _values.put( (String) name, value );
+            }
+            _pending = !_serialized.isEmpty();
+        }
+    }
+
+    private void decodeAll() {
+        if ( !_pending ) {
+            return;
+        }
+        synchronized ( this ) {
+            if ( _pending ) {
+                _values.putAll( _transcoder.deserializeAll( _serialized ) );
+                _serialized.clear();
+                _pending = false;
+            }
+        }
+    }
+
+    /**
+     * Determines if there are attributes that have not been deserialized.
+     */
+    boolean hasPendingAttributes() {
+        return _pending;
+    }
+
+    /**
+     * Copies the deserialized values and the serialized form of the attributes
+     * not yet deserialized to the given maps.
+     */
+    synchronized void snapshot( @Nonnull final Map<String, Object> values, @Nonnull final Map<String, SerializedAttribute> serialized ) {
+        values.putAll( _values );
+        serialized.putAll( _serialized );
+    }
+
+    /**
+     * Returns the values that implement {@link HttpSessionActivationListener}, only attributes
+     * that are activation listeners are deserialized.
+     */
+    @Nonnull
+    synchronized List<Object> getActivationListeners() {
+        final List<String> names = new ArrayList<String>();
+        for ( final Map.Entry<String, SerializedAttribute> entry : _serialized.entrySet() ) {
+            if ( entry.getValue().isActivationListener() ) {
+                names.add( entry.getKey() );
+            }
+        }
+        for ( final String name : names ) {
+            decode( name );
+        }
+        final List<Object> result = new ArrayList<Object>();
+        for ( final Object value : _values.values() ) {
+            if ( value instanceof HttpSessionActivationListener ) {
+                result.add( value );
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Object get( final Object key ) {
+        final Object result = _values.get( key );
+        if ( result != null || !_pending ) {
+            return result;
+        }
+        synchronized ( this ) {
+            decode( key );
+            return _values.get( key );
+        }
+    }
+
+    @Override
+    public boolean containsKey( final Object key ) {
+        if ( _values.containsKey( key ) ) {
+            return true;
+        }
+        if ( !_pending ) {
+            return false;
+        }
+        synchronized ( this ) {
+            return _serialized.containsKey( key ) || _values.containsKey( key );
+        }
+    }
+
+    @Override
+    public Object put( final String key, final Object value ) {
+        if ( !_pending ) {
+            return _values.put( key, value );
+        }
+        synchronized ( this ) {
+            decode( key );
+            return _values.put( key, value );
+        }
+    }
+
+    @Override
+    public Object remove( final Object key ) {
+        if ( !_pending ) {
+            return _values.remove( key );
+        }
+        synchronized ( this ) {
+            decode( key );
+            return _values.remove( key );
+        }
+    }
+
+    @Override
+    public Object putIfAbsent( final String key, final Object value ) {
+        if ( !_pending ) {
+            return _values.putIfAbsent( key, value );
+        }
+        synchronized ( this ) {
+            decode( key );
+            return _values.putIfAbsent( key, value );
+        }
+    }
+
+    @Override
+    public boolean remove( final Object key, final Object value ) {
+        if ( !_pending ) {
+            return _values.remove( key, value );
+        }
+        synchronized ( this ) {
+            decode( key );
+            return _values.remove( key, value );
+        }
+    }
+
+    @Override
+    public boolean replace( final String key, final Object oldValue, final Object newValue ) {
+        if ( !_pending ) {
+            return _values.replace( key, oldValue, newValue );
+        }
+        synchronized ( this ) {
+            decode( key );
+            return _values.replace( key, oldValue, newValue );
+        }
+    }
+
+    @Override
+    public Object replace( final String key, final Object value ) {
+        if ( !_pending ) {
+            return _values.replace( key, value );
+        }
+        synchronized ( this ) {
+            decode( key );
+            return _values.replace( key, value );
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        _serialized.clear();
+        _pending = false;
+        _values.clear();
+    }
+
+    @Override
+    public int size() {
+        if ( !_pending ) {
+            return _values.size();
+        }
+        synchronized ( this ) {
+            return _values.size() + _serialized.size();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the attribute names without deserializing attributes. As long as there are
+     * attributes not yet deserialized this is an unmodifiable snapshot.
+     */
+    @Override
+    public Set<String> keySet() {
+        if ( !_pending ) {
+            return _values.keySet();
+        }
+        synchronized ( this ) {
+            final Set<String> result = new HashSet<String>( _values.keySet() );
+            result.addAll( _serialized.keySet() );
+            return Collections.unmodifiableSet( result );
+        }
+    }
+
+    @Override
+    public Collection<Object> values() {
+        decodeAll();
+        return _values.values();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        decodeAll();
+        return _values.entrySet();
+    }
+
+    @Override
+    public boolean containsValue( final Object value ) {
+        decodeAll();
+        return _values.containsValue( value );
+    }
+
+    @Override
+    public String toString() {
+        if ( !_pending ) {
+            return _values.toString();
+        }
+        final Iterator<String> iter = keySet().iterator();
+        final StringBuilder sb = new StringBuilder( "{" );
+        while ( iter.hasNext() ) {
+            sb.append( iter.next() ).append( iter.hasNext() ? ", " : "" );
+        }
+        return sb.append( "} (not deserialized)" ).toString();
+    }
+
+}
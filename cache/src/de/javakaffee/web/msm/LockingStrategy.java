@@ -36,7 +36,7 @@ import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
-import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
 
 import org.apache.catalina.connector.Request;
 import org.apache.juli.logging.Log;
@@ -77,7 +77,7 @@ public abstract class LockingStrategy {
     protected final Log _log = LogFactory.getLog( getClass() );
 
     protected MemcachedBackupSessionManager _manager;
-    protected final MemcachedClient _memcached;
+    protected final MemcachedClientIF _memcached;
     protected LRUCache<String, Boolean> _missingSessionsCache;
     protected final SessionIdFormat _sessionIdFormat;
     protected final InheritableThreadLocal<Request> _requestsThreadLocal;
@@ -87,7 +87,7 @@ public abstract class LockingStrategy {
     protected final Statistics _stats;
 
     protected LockingStrategy( @Nonnull final MemcachedBackupSessionManager manager,
-            @Nonnull final MemcachedClient memcached,
+            @Nonnull final MemcachedClientIF memcached,
             @Nonnull final LRUCache<String, Boolean> missingSessionsCache, final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats ) {
         _manager = manager;
@@ -105,7 +105,7 @@ public abstract class LockingStrategy {
      */
     @CheckForNull
     public static LockingStrategy create( @Nullable final LockingMode lockingMode, @Nullable final Pattern uriPattern,
-            @Nonnull final MemcachedClient memcached, @Nonnull final MemcachedBackupSessionManager manager,
+            @Nonnull final MemcachedClientIF memcached, @Nonnull final MemcachedBackupSessionManager manager,
             @Nonnull final LRUCache<String, Boolean> missingSessionsCache, final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats ) {
         if ( lockingMode == null ) {
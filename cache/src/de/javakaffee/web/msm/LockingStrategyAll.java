@@ -20,7 +20,7 @@ import java.util.concurrent.ExecutionException;
 
 import javax.annotation.Nonnull;
 
-import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
 import de.javakaffee.web.msm.MemcachedBackupSessionManager.LockStatus;
 
 /**
@@ -31,7 +31,7 @@ import de.javakaffee.web.msm.MemcachedBackupSessionManager.LockStatus;
 public class LockingStrategyAll extends LockingStrategy {
 
     public LockingStrategyAll( @Nonnull final MemcachedBackupSessionManager manager,
-            @Nonnull final MemcachedClient memcached,
+            @Nonnull final MemcachedClientIF memcached,
             @Nonnull final LRUCache<String, Boolean> missingSessionsCache,
             final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats ) {
@@ -24,7 +24,7 @@ import java.util.concurrent.Future;
 
 import javax.annotation.Nonnull;
 
-import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
 
 import org.apache.catalina.connector.Request;
 
@@ -45,7 +45,7 @@ public class LockingStrategyAuto extends LockingStrategy {
     private final ReadOnlyRequestsCache _readOnlyRequestCache;
 
     public LockingStrategyAuto( @Nonnull final MemcachedBackupSessionManager manager,
-            @Nonnull final MemcachedClient memcached,
+            @Nonnull final MemcachedClientIF memcached,
             @Nonnull final LRUCache<String, Boolean> missingSessionsCache,
             final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats ) {
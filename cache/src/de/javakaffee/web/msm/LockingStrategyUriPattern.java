@@ -21,7 +21,7 @@ import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
 
-import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
 
 import org.apache.catalina.connector.Request;
 
@@ -38,7 +38,7 @@ public class LockingStrategyUriPattern extends LockingStrategy {
 
     public LockingStrategyUriPattern( @Nonnull final MemcachedBackupSessionManager manager,
             @Nonnull final Pattern uriPattern,
-            @Nonnull final MemcachedClient memcached,
+            @Nonnull final MemcachedClientIF memcached,
             @Nonnull final LRUCache<String, Boolean> missingSessionsCache,
             final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats ) {
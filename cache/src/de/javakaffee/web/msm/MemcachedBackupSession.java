@@ -20,8 +20,14 @@ import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
 
 import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
 import org.apache.catalina.session.StandardSession;
 
 import de.javakaffee.web.msm.MemcachedBackupSessionManager.LockStatus;
@@ -101,6 +107,16 @@ public final class MemcachedBackupSession extends StandardSession {
 
     //session attribute ֻҪʣget set ͷtrue
     private transient boolean _attributesAccessed;
+
+    /*
+     * The number of reads of immutable attribute values that did not mark
+     * the attributes as accessed. Requests for the same session may run
+     * in parallel, so this is counted atomically (with a field updater, as
+     * a deserialized session doesn't run field initializers).
+     */
+    private transient volatile int _immutableAttributeReads;
+    private static final AtomicIntegerFieldUpdater<MemcachedBackupSession> IMMUTABLE_ATTRIBUTE_READS =
+        AtomicIntegerFieldUpdater.newUpdater( MemcachedBackupSession.class, "_immutableAttributeReads" );
     
     // sessionid Ƿ
     private transient boolean _sessionIdChanged;
@@ -133,8 +149,56 @@ public final class MemcachedBackupSession extends StandardSession {
      */
     @Override
     public Object getAttribute( final String name ) {
-        _attributesAccessed = true;
-        return super.getAttribute( name );
+        final Object result = super.getAttribute( name );
+        if ( !_attributesAccessed ) {
+            /* reading an immutable value cannot modify the session
+             */
+            if ( isImmutable( result ) ) {
+                IMMUTABLE_ATTRIBUTE_READS.incrementAndGet( this );
+            }
+            else {
+                _attributesAccessed = true;
+            }
+        }
+        return result;
+    }
+
+    private boolean isImmutable( final Object value ) {
+        return manager instanceof MemcachedBackupSessionManager
+            && ( (MemcachedBackupSessionManager) manager ).getImmutableAttributeTypes().isImmutable( value );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the attributes are deserialized lazily only attributes that are
+     * {@link HttpSessionActivationListener}s are deserialized.
+     * </p>
+     */
+    @Override
+    public void activate() {
+        if ( !( attributes instanceof LazyAttributeMap ) ) {
+            super.activate();
+            return;
+        }
+
+        if ( ACTIVITY_CHECK ) {
+            accessCount = new AtomicInteger();
+        }
+
+        fireSessionEvent( Session.SESSION_ACTIVATED_EVENT, null );
+
+        HttpSessionEvent event = null;
+        for ( final Object attribute : ( (LazyAttributeMap) attributes ).getActivationListeners() ) {
+            if ( event == null ) {
+                event = new HttpSessionEvent( getSession() );
+            }
+            try {
+                ( (HttpSessionActivationListener) attribute ).sessionDidActivate( event );
+            } catch ( final Throwable t ) {
+                manager.getContainer().getLogger().error( sm.getString( "standardSession.attributeEvent" ), t );
+            }
+        }
     }
 
     /**
@@ -321,6 +385,17 @@ public final class MemcachedBackupSession extends StandardSession {
         return _attributesAccessed;
     }
 
+    /**
+     * Returns the number of attribute reads that did not mark the attributes as accessed,
+     * as the values are immutable (see {@link ImmutableAttributeTypes}), and resets
+     * this counter.
+     *
+     * @return the number of immutable attribute reads since the last invocation.
+     */
+    int resetImmutableAttributeReads() {
+        return IMMUTABLE_ATTRIBUTE_READS.getAndSet( this, 0 );
+    }
+
     /**
      * Determines, if the sessions expiration is just being updated in memcached.
      *
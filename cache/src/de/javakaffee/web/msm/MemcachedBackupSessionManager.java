@@ -27,6 +27,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
@@ -38,7 +40,9 @@ import javax.annotation.Nullable;
 
 import net.spy.memcached.ConnectionFactory;
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
 import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
 
 import org.apache.catalina.Container;
 import org.apache.catalina.Context;
@@ -182,12 +186,43 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
     //߳
     private int _backupThreadCount = Runtime.getRuntime().availableProcessors();
 
+    private String _backupThreadType = BackupSessionService.THREAD_TYPE_PLATFORM;
+
     //memcache Э
     private String _memcachedProtocol = PROTOCOL_TEXT;
 
     // memcacheClient ܿأǷ
     private final AtomicBoolean _enabled = new AtomicBoolean( true );
 
+    /**
+     * Specifies if the memcached client is shared with other contexts (with the same
+     * memcached configuration) in this tomcat.
+     */
+    private boolean _shareMemcachedClient = false;
+
+    /**
+     * The number of connections (memcached clients, each with its own io thread) per memcached node.
+     */
+    private int _connectionsPerNode = 1;
+
+    /**
+     * The namespace that is prefixed to all keys stored in memcached, if <code>null</code> and
+     * the memcached client is shared a namespace is derived from the host and context name.
+     */
+    private String _memcachedKeyNamespace;
+
+    /**
+     * Additional classes (besides the jdk/joda value types) whose instances are immutable,
+     * separated by comma.
+     */
+    private String _immutableAttributeClassNames;
+
+    /**
+     * Specifies if session attributes are stored separately so that they can be
+     * deserialized on first access.
+     */
+    private boolean _lazyAttributeDeserialization = false;
+
     // -------------------- END configuration properties --------------------
     
     // Statistics
@@ -196,7 +231,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
     /*
      * the memcached client
      */
-    private MemcachedClient _memcached;
+    private MemcachedClientIF _memcached;
 
     /*
      *  ûбеsessionʶ
@@ -247,6 +282,10 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
     //ʱʼ
     private SessionTrackerValve _sessionTrackerValve;
 
+    private volatile ImmutableAttributeTypes _immutableAttributeTypes = new ImmutableAttributeTypes( null );
+
+    private ExecutorService _attributesDeserializationExecutor;
+
 	static enum LockStatus {
         /**
          * For sticky sessions or readonly requests with non-sticky sessions there's no lock required.
@@ -294,7 +333,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
      *
      * @param memcachedClient the memcached client to use, for normal operations this should be <code>null</code>.
      */
-    void startInternal( final MemcachedClient memcachedClient ) throws LifecycleException {
+    void startInternal( final MemcachedClientIF memcachedClient ) throws LifecycleException {
         _log.info( getClass().getSimpleName() + " starts initialization... (configured" +
                 " nodes definition " + _memcachedNodes + ", failover nodes " + _failoverNodes + ")" );
 
@@ -324,7 +363,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         _upgradeSupportTranscoder = getTranscoderFactory().createSessionTranscoder( this );
         //ʱʼ	_backupSessionService;
         _backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                _backupThreadCount, _memcached, _nodeIdService, _statistics );
+                createBackupExecutorService(), _memcached, _nodeIdService, _statistics );
 
         _log.info( getClass().getSimpleName() + " finished initialization, have node ids " + config.getNodeIds() + " and failover node ids " + config.getFailoverNodeIds() );
 
@@ -367,7 +406,32 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
      * @return
      */
     private TranscoderService createTranscoderService( final Statistics statistics ) {
-        return new TranscoderService( getTranscoderFactory().createTranscoder( this ) );
+        /* the indexed transcoder is always used so that sessions stored with lazy
+         * attribute deserialization can be read after this was turned off
+         */
+        if ( _attributesDeserializationExecutor != null ) {
+            _attributesDeserializationExecutor.shutdown();
+            _attributesDeserializationExecutor = null;
+        }
+        if ( _lazyAttributeDeserialization ) {
+            _attributesDeserializationExecutor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(),
+                    new NamedThreadFactory( "msm-attributes-deserialization" ) );
+        }
+        final SessionAttributesTranscoder transcoder = new IndexedSessionAttributesTranscoder(
+                getTranscoderFactory().createTranscoder( this ), _lazyAttributeDeserialization,
+                _attributesDeserializationExecutor, IndexedSessionAttributesTranscoder.DEFAULT_PARALLEL_THRESHOLD );
+        return new TranscoderService( transcoder );
+    }
+
+    /**
+     * Creates the store that shares the class descriptors of the
+     * {@link DescriptorCachingJavaSerializationTranscoder} between the tomcats.
+     * Must not be called before the memcached client is created.
+     *
+     * @return a store using memcached.
+     */
+    ClassDescriptorRegistry.Store createClassDescriptorStore() {
+        return new MemcachedClassDescriptorStore( _memcached, _sessionIdFormat, _nodeIdService, _sessionBackupTimeout );
     }
 
     /**
@@ -388,7 +452,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
     /**
      *  MemcachedClient
      */
-    protected MemcachedClient createMemcachedClient( final NodeIdList nodeIds, final List<InetSocketAddress> addresses,
+    protected MemcachedClientIF createMemcachedClient( final NodeIdList nodeIds, final List<InetSocketAddress> addresses,
             final Map<InetSocketAddress, String> address2Ids,
             final Statistics statistics ) {
     	//Ƿ
@@ -396,13 +460,54 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
             return null;
         }
         try {
-            final ConnectionFactory connectionFactory = createConnectionFactory( nodeIds, address2Ids, statistics );
-            return new MemcachedClient( connectionFactory, addresses );
+            final String namespace = getMemcachedKeyNamespaceInternal();
+            if ( !_shareMemcachedClient && _connectionsPerNode <= 1 && namespace == null ) {
+                final ConnectionFactory connectionFactory = createConnectionFactory( nodeIds, address2Ids, statistics );
+                return new MemcachedClient( connectionFactory, addresses );
+            }
+
+            /* the connection factory of a pool is not bound to this context, statistics
+             * are gathered by the transcoder of the NamespacedMemcachedClient
+             */
+            final ConnectionFactory connectionFactory = createConnectionFactory( nodeIds, address2Ids, Statistics.create( false ) );
+            final String configKey = _shareMemcachedClient
+                ? _memcachedProtocol + "|" + _memcachedNodes + "|" + _failoverNodes + "|" + _connectionsPerNode
+                : null;
+            return MemcachedClientPool.acquire( configKey, _connectionsPerNode, new MemcachedClientPool.ClientFactory() {
+                @Override
+                public MemcachedClient createClient() throws IOException {
+                    return new MemcachedClient( connectionFactory, addresses );
+                }
+            }, namespace, createDefaultTranscoder( statistics ) );
         } catch ( final Exception e ) {
             throw new RuntimeException( "Could not create memcached client", e );
         }
     }
 
+    private Transcoder<Object> createDefaultTranscoder( final Statistics statistics ) {
+        final SerializingTranscoder transcoder = new SerializingTranscoder();
+        transcoder.setCompressionThreshold( SerializingTranscoder.DEFAULT_COMPRESSION_THRESHOLD );
+        return new TranscoderWrapperStatisticsSupport( statistics, transcoder );
+    }
+
+    /**
+     * Determines the key namespace: the configured one or, if the memcached client is shared,
+     * one derived from the host and context name (e.g. <code>localhost_foo</code>).
+     */
+    @CheckForNull
+    private String getMemcachedKeyNamespaceInternal() {
+        String namespace = _memcachedKeyNamespace;
+        if ( namespace == null && _shareMemcachedClient ) {
+            final Container container = getContainer();
+            final String hostName = container.getParent() != null ? container.getParent().getName() : null;
+            final String contextName = container.getName() == null || container.getName().length() == 0
+                ? "ROOT"
+                : container.getName();
+            namespace = hostName != null ? hostName + "_" + contextName : contextName;
+        }
+        return namespace == null || namespace.length() == 0 ? null : namespace.replaceAll( "[^A-Za-z0-9_]", "_" );
+    }
+
     /**
      *  MemcachedClient ConnectionFactory
      */
@@ -455,7 +560,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
      * @return
      */
     protected NodeAvailabilityCache<String> createNodeAvailabilityCache( final int size, final long ttlInMillis,
-            final MemcachedClient memcachedClient ) {
+            final MemcachedClientIF memcachedClient ) {
         return new NodeAvailabilityCache<String>( size, ttlInMillis, new CacheLoader<String>() {
 
             public boolean isNodeAvailable( final String  key) {
@@ -1292,13 +1397,13 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         /* first create all dependent services
          */
         final MemcachedConfig config = createMemcachedConfig( memcachedNodes, failoverNodes );
-        final MemcachedClient memcachedClient = createMemcachedClient( config.getNodeIds(), config.getAddresses(),
+        final MemcachedClientIF memcachedClient = createMemcachedClient( config.getNodeIds(), config.getAddresses(),
                 config.getAddress2Ids(), _statistics );
         final NodeIdService nodeIdService = new NodeIdService(
                 createNodeAvailabilityCache( config.getCountNodes(), NODE_AVAILABILITY_CACHE_TTL, memcachedClient ),
                 config.getNodeIds(), config.getFailoverNodeIds() );
         final BackupSessionService backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync,
-                _sessionBackupTimeout, _backupThreadCount, memcachedClient, nodeIdService, _statistics );
+                _sessionBackupTimeout, createBackupExecutorService(), memcachedClient, nodeIdService, _statistics );
 
         /* then assign new services
          */
@@ -1441,6 +1546,77 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         _customConverterClassNames = customConverterClassNames;
     }
 
+    /**
+     * Specifies additional classes whose instances are immutable, multiple classes are separated
+     * by comma (with optional space following the comma).
+     * <p>
+     * Reading a session attribute with an immutable value does not mark the session attributes as
+     * accessed, so if a request only reads immutable attributes the session is not serialized
+     * at the end of the request. Strings, primitive wrappers, enums, <code>java.time</code> and joda
+     * time values and classes annotated with {@link ImmutableSessionAttribute} are always
+     * treated as immutable.
+     * </p>
+     * <p>
+     * <strong>Note:</strong> only list classes whose instances really cannot be modified,
+     * otherwise modifications of read attributes might not be stored in memcached.
+     * </p>
+     *
+     * @param immutableAttributeClassNames a list of class names separated by comma
+     */
+    public void setImmutableAttributeClasses( final String immutableAttributeClassNames ) {
+        _immutableAttributeClassNames = immutableAttributeClassNames;
+        _immutableAttributeTypes = new ImmutableAttributeTypes( immutableAttributeClassNames );
+    }
+
+    /**
+     * The additional immutable classes.
+     *
+     * @return the class names separated by comma, or <code>null</code>.
+     */
+    public String getImmutableAttributeClasses() {
+        return _immutableAttributeClassNames;
+    }
+
+    /**
+     * The types whose instances are treated as immutable.
+     */
+    @Nonnull
+    ImmutableAttributeTypes getImmutableAttributeTypes() {
+        return _immutableAttributeTypes;
+    }
+
+    /**
+     * Specifies if session attributes shall be deserialized lazily, default is <code>false</code>.
+     * <p>
+     * If set to <code>true</code>, each attribute is serialized separately and stored
+     * together with an index, so that a session loaded from memcached only deserializes the attributes
+     * that are accessed by the request. Attributes that were not accessed are stored again
+     * without being serialized. If all attributes are needed (e.g. when iterating over the
+     * attribute values) they're deserialized in parallel.
+     * </p>
+     * <p>
+     * <strong>Note:</strong> objects referenced by several attributes are deserialized as
+     * separate instances, and each attribute has the serialization overhead of the chosen
+     * serialization strategy. Sessions stored in the indexed format can be read after this
+     * was turned off.
+     * </p>
+     *
+     * @param lazyAttributeDeserialization <code>true</code> if attributes shall be deserialized on first access.
+     */
+    public void setLazyAttributeDeserialization( final boolean lazyAttributeDeserialization ) {
+        _lazyAttributeDeserialization = lazyAttributeDeserialization;
+    }
+
+    /**
+     * Specifies if session attributes are deserialized on first access.
+     *
+     * @return <code>true</code> if lazy attribute deserialization is enabled.
+     * @see #setLazyAttributeDeserialization(boolean)
+     */
+    public boolean isLazyAttributeDeserialization() {
+        return _lazyAttributeDeserialization;
+    }
+
     /**
      * Specifies if statistics (like number of requests with/without session) shall be
      * gathered. Default value of this property is <code>true</code>.
@@ -1489,6 +1665,42 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _backupThreadCount;
     }
 
+    /**
+     * Specifies the threads that are used if {@link #setSessionBackupAsync(boolean)}
+     * is set to <code>true</code>: "platform" (default) for a pool of
+     * {@link #setBackupThreadCount(int)} threads, or "virtual" for a new virtual
+     * thread per backup (requires java 21, platform threads are used otherwise).
+     *
+     * @param backupThreadType one of "platform" or "virtual".
+     */
+    public void setBackupThreadType( final String backupThreadType ) {
+        if ( !BackupSessionService.THREAD_TYPE_PLATFORM.equals( backupThreadType )
+                && !BackupSessionService.THREAD_TYPE_VIRTUAL.equals( backupThreadType ) ) {
+            _log.warn( "Illegal backupThreadType " + backupThreadType + ", using " + _backupThreadType + "." );
+            return;
+        }
+        final String oldBackupThreadType = _backupThreadType;
+        _backupThreadType = backupThreadType;
+        if ( initialized && !oldBackupThreadType.equals( backupThreadType ) ) {
+            _log.info( "Changed backupThreadType from " + oldBackupThreadType + " to " + _backupThreadType + "." +
+                    " Reloading configuration..." );
+            reloadMemcachedConfig( _memcachedNodes, _failoverNodes );
+            _log.info( "Finished reloading configuration." );
+        }
+    }
+
+    /**
+     * The type of threads used for session backup, "platform" or "virtual".
+     * @return the backup thread type.
+     */
+    public String getBackupThreadType() {
+        return _backupThreadType;
+    }
+
+    private ExecutorService createBackupExecutorService() {
+        return BackupSessionService.createExecutorService( _sessionBackupAsync, _backupThreadCount, _backupThreadType );
+    }
+
     /**
      * Specifies the memcached protocol to use, either "text" (default) or "binary".
      *
@@ -1503,6 +1715,97 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         _memcachedProtocol = memcachedProtocol;
     }
 
+    /**
+     * Specifies if the memcached client shall be shared with other contexts of this tomcat
+     * that have the same memcached configuration (<code>memcachedNodes</code>, <code>failoverNodes</code>,
+     * <code>memcachedProtocol</code> and <code>connectionsPerNode</code>). Default is <code>false</code>.
+     * <p>
+     * Shared clients are reference counted and shut down when the last context using them is stopped.
+     * To keep the keys of different contexts apart they are prefixed with a namespace, see
+     * {@link #setMemcachedKeyNamespace(String)}.
+     * </p>
+     * <p>
+     * <strong>Note:</strong> this must be set on the manager of each context. Clients are only shared
+     * between contexts if msm is loaded from tomcat's lib (and not from the webapp).
+     * </p>
+     *
+     * @param shareMemcachedClient <code>true</code> if the memcached client shall be shared.
+     */
+    public void setShareMemcachedClient( final boolean shareMemcachedClient ) {
+        final boolean oldShareMemcachedClient = _shareMemcachedClient;
+        _shareMemcachedClient = shareMemcachedClient;
+        if ( oldShareMemcachedClient != shareMemcachedClient && initialized ) {
+            _log.info( "Changed shareMemcachedClient to " + shareMemcachedClient + ". Reloading configuration..." );
+            reloadMemcachedConfig( _memcachedNodes, _failoverNodes );
+            _log.info( "Finished reloading configuration." );
+        }
+    }
+
+    /**
+     * Specifies if the memcached client is shared with other contexts.
+     *
+     * @return <code>true</code> if the memcached client is shared.
+     */
+    public boolean isShareMemcachedClient() {
+        return _shareMemcachedClient;
+    }
+
+    /**
+     * Specifies the number of connections that are opened to each memcached node
+     * (default <code>1</code>). Each connection is served by its own io thread, all
+     * keys of a session are always sent via the same connection.
+     *
+     * @param connectionsPerNode the number of connections per memcached node, at least 1.
+     */
+    public void setConnectionsPerNode( final int connectionsPerNode ) {
+        if ( connectionsPerNode < 1 ) {
+            _log.warn( "Illegal connectionsPerNode " + connectionsPerNode + ", using " + _connectionsPerNode + "." );
+            return;
+        }
+        final int oldConnectionsPerNode = _connectionsPerNode;
+        _connectionsPerNode = connectionsPerNode;
+        if ( oldConnectionsPerNode != connectionsPerNode && initialized ) {
+            _log.info( "Changed connectionsPerNode from " + oldConnectionsPerNode + " to " + connectionsPerNode + "." +
+                    " Reloading configuration..." );
+            reloadMemcachedConfig( _memcachedNodes, _failoverNodes );
+            _log.info( "Finished reloading configuration." );
+        }
+    }
+
+    /**
+     * The number of connections per memcached node.
+     *
+     * @return the number of connections per memcached node.
+     */
+    public int getConnectionsPerNode() {
+        return _connectionsPerNode;
+    }
+
+    /**
+     * Sets the namespace that is prefixed to all keys stored in memcached (e.g. <code>shop</code>
+     * results in keys like <code>shop/ABCD-n1</code>). Characters other than letters, digits and
+     * <code>_</code> are replaced by <code>_</code>.
+     * <p>
+     * If not set and the memcached client is shared (see {@link #setShareMemcachedClient(boolean)}),
+     * the namespace is derived from the host and context name, otherwise no namespace is used.
+     * In non-sticky mode all tomcats must use the same namespace for a context.
+     * </p>
+     *
+     * @param memcachedKeyNamespace the namespace.
+     */
+    public void setMemcachedKeyNamespace( final String memcachedKeyNamespace ) {
+        _memcachedKeyNamespace = memcachedKeyNamespace;
+    }
+
+    /**
+     * The configured key namespace.
+     *
+     * @return the namespace or <code>null</code> if not configured.
+     */
+    public String getMemcachedKeyNamespace() {
+        return _memcachedKeyNamespace;
+    }
+
     /**
      * Enable/disable memcached-session-manager (default <code>true</code> / enabled).
      * If disabled, sessions are neither looked up in memcached nor stored in memcached.
@@ -1695,6 +1998,10 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
             if ( _memcached != null ) {
                 _memcached.shutdown();
             }
+            if ( _attributesDeserializationExecutor != null ) {
+                _attributesDeserializationExecutor.shutdown();
+                _attributesDeserializationExecutor = null;
+            }
 
             destroy();
         }
@@ -1802,7 +2109,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         if ( ( oldSessionBackupAsync != sessionBackupAsync ) && initialized ) {
             _log.info( "SessionBackupAsync was changed to " + sessionBackupAsync + ", creating new BackupSessionService with new configuration." );
             _backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                    _backupThreadCount, _memcached, _nodeIdService, _statistics );
+                    createBackupExecutorService(), _memcached, _nodeIdService, _statistics );
         }
     }
 
@@ -1833,7 +2140,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
     void setTranscoderService( final TranscoderService transcoderService ) {
         _transcoderService = transcoderService;
         _backupSessionService = new BackupSessionService( transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                _backupThreadCount, _memcached, _nodeIdService, _statistics );
+                createBackupExecutorService(), _memcached, _nodeIdService, _statistics );
     }
 
     /**
@@ -1861,10 +2168,17 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
     /**
      * The memcached client.
      */
-    MemcachedClient getMemcached() {
+    MemcachedClientIF getMemcached() {
         return _memcached;
     }
 
+    /**
+     * The service performing session backups - just for testing.
+     */
+    BackupSessionService getBackupSessionService() {
+        return _backupSessionService;
+    }
+
     /**
      * The currently set locking strategy.
      */
@@ -1923,6 +2237,22 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _statistics.getRequestsWithoutAttributesAccess();
     }
 
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getRequestsWithOnlyImmutableAttributesAccess()
+     */
+    public long getMsmStatNumOnlyImmutableAttributesAccess() {
+        return _statistics.getRequestsWithOnlyImmutableAttributesAccess();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getImmutableAttributeReads()
+     */
+    public long getMsmStatNumImmutableAttributeReads() {
+        return _statistics.getImmutableAttributeReads();
+    }
+
     /**
      * @return
      * @see de.javakaffee.web.msm.Statistics#getRequestsWithoutSessionModification()
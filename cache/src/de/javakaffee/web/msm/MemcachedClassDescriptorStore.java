@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.MemcachedClientIF;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * A {@link ClassDescriptorRegistry.Store} that stores class descriptors in memcached.
+ * Each descriptor is stored on every available memcached node (without expiration),
+ * so that it's still available if a node fails. Storing waits for memcached, a descriptor
+ * counts as stored if at least one node confirmed it.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class MemcachedClassDescriptorStore implements ClassDescriptorRegistry.Store {
+
+    private static final Log LOG = LogFactory.getLog( MemcachedClassDescriptorStore.class );
+
+    /* must not contain a dash, the node id is taken from the first dash on
+     */
+    private static final String KEY_PREFIX = "msm_classdesc_";
+
+    private final MemcachedClientIF _memcached;
+    private final SessionIdFormat _sessionIdFormat;
+    private final NodeIdService _nodeIdService;
+    private final long _timeoutMillis;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param memcached the memcached client.
+     * @param sessionIdFormat used to create the keys, which must contain the node id.
+     * @param nodeIdService provides the (available) memcached nodes.
+     * @param timeoutMillis how long to wait for memcached when a descriptor is stored.
+     */
+    public MemcachedClassDescriptorStore( @Nonnull final MemcachedClientIF memcached, @Nonnull final SessionIdFormat sessionIdFormat,
+            @Nonnull final NodeIdService nodeIdService, final long timeoutMillis ) {
+        _memcached = memcached;
+        _sessionIdFormat = sessionIdFormat;
+        _nodeIdService = nodeIdService;
+        _timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean put( final long id, final byte[] descriptor ) {
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for ( final String nodeId : _nodeIdService.getAllNodeIds() ) {
+            if ( _nodeIdService.isNodeAvailable( nodeId ) ) {
+                try {
+                    futures.add( _memcached.set( createKey( id, nodeId ), 0, descriptor ) );
+                } catch ( final RuntimeException e ) {
+                    LOG.warn( "Could not store class descriptor " + Long.toHexString( id ) + " on node " + nodeId, e );
+                }
+            }
+        }
+        /* the nodes are written in parallel, so the timeout is for all of them
+         */
+        final long end = System.currentTimeMillis() + _timeoutMillis;
+        boolean result = false;
+        for ( final Future<Boolean> future : futures ) {
+            try {
+                if ( Boolean.TRUE.equals( future.get( Math.max( 0, end - System.currentTimeMillis() ), TimeUnit.MILLISECONDS ) ) ) {
+                    result = true;
+                }
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return result;
+            } catch ( final Exception e ) {
+                LOG.warn( "Could not store class descriptor " + Long.toHexString( id ), e );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @CheckForNull
+    public byte[] get( final long id ) {
+        for ( final String nodeId : _nodeIdService.getAllNodeIds() ) {
+            if ( _nodeIdService.isNodeAvailable( nodeId ) ) {
+                try {
+                    final Object result = _memcached.get( createKey( id, nodeId ) );
+                    if ( result instanceof byte[] ) {
+                        return (byte[]) result;
+                    }
+                } catch ( final RuntimeException e ) {
+                    LOG.warn( "Could not load class descriptor " + Long.toHexString( id ) + " from node " + nodeId, e );
+                }
+            }
+        }
+        return null;
+    }
+
+    private String createKey( final long id, final String nodeId ) {
+        return _sessionIdFormat.createSessionId( KEY_PREFIX + Long.toHexString( id ), nodeId );
+    }
+
+}
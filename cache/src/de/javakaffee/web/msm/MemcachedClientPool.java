@@ -0,0 +1,178 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * A set of {@link MemcachedClient}s connected to the same memcached nodes. Each
+ * client has its own connection to each node and its own io thread, so with
+ * several clients (<code>connectionsPerNode</code>) a single io thread is no longer
+ * the throughput limit.
+ * <p>
+ * Pools are reference counted. Shared pools are registered host-wide (per classloader
+ * that loaded msm, i.e. tomcat's lib) by their configuration key, so that all contexts
+ * with the same memcached configuration use the same connections. A pool is shut down
+ * when the last {@link NamespacedMemcachedClient} obtained from it is shut down.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class MemcachedClientPool {
+
+    private static final Log LOG = LogFactory.getLog( MemcachedClientPool.class );
+
+    /*
+     * the shared pools by config key, guarded by the class lock
+     */
+    private static final Map<String, MemcachedClientPool> SHARED_POOLS = new HashMap<String, MemcachedClientPool>();
+
+    private final String _configKey;
+    private final MemcachedClient[] _clients;
+    private final SessionIdFormat _sessionIdFormat;
+    private int _refCount;
+
+    private MemcachedClientPool( @Nullable final String configKey, @Nonnull final MemcachedClient[] clients,
+            @Nonnull final SessionIdFormat sessionIdFormat ) {
+        _configKey = configKey;
+        _clients = clients;
+        _sessionIdFormat = sessionIdFormat;
+    }
+
+    /**
+     * Creates the {@link MemcachedClient}s of a pool.
+     */
+    static interface ClientFactory {
+        @Nonnull
+        MemcachedClient createClient() throws IOException;
+    }
+
+    /**
+     * Returns a client for the given configuration. If <code>configKey</code> is not <code>null</code>
+     * and there's already a pool registered for this key, the existing pool is used, otherwise a
+     * new pool is created with <code>connectionsPerNode</code> clients.
+     *
+     * @param configKey the key identifying the memcached configuration (nodes, failover nodes, protocol etc.),
+     *  or <code>null</code> if the pool shall not be shared.
+     * @param connectionsPerNode the number of clients (connections per memcached node) to create for a new pool.
+     * @param clientFactory used to create the clients of a new pool.
+     * @param namespace the key namespace of the requesting context, or <code>null</code>.
+     * @param defaultTranscoder the transcoder for operations without an explicit transcoder.
+     * @return a client view that releases the pool on shutdown.
+     * @throws IOException if a memcached client could not be created.
+     */
+    @Nonnull
+    static synchronized NamespacedMemcachedClient acquire( @Nullable final String configKey, final int connectionsPerNode,
+            @Nonnull final ClientFactory clientFactory, @Nullable final String namespace,
+            @Nonnull final Transcoder<Object> defaultTranscoder ) throws IOException {
+        MemcachedClientPool pool = configKey != null ? SHARED_POOLS.get( configKey ) : null;
+        if ( pool == null ) {
+            pool = create( configKey, connectionsPerNode, clientFactory );
+            if ( configKey != null ) {
+                SHARED_POOLS.put( configKey, pool );
+            }
+        }
+        else if ( LOG.isInfoEnabled() ) {
+            LOG.info( "Using shared memcached client pool for " + configKey + " (" + pool._refCount + " references)." );
+        }
+        pool._refCount++;
+        return new NamespacedMemcachedClient( pool, namespace, defaultTranscoder );
+    }
+
+    private static MemcachedClientPool create( final String configKey, final int connectionsPerNode,
+            final ClientFactory clientFactory ) throws IOException {
+        final MemcachedClient[] clients = new MemcachedClient[Math.max( 1, connectionsPerNode )];
+        try {
+            for ( int i = 0; i < clients.length; i++ ) {
+                clients[i] = clientFactory.createClient();
+            }
+        } catch ( final IOException e ) {
+            shutdown( clients );
+            throw e;
+        } catch ( final RuntimeException e ) {
+            shutdown( clients );
+            throw e;
+        }
+        LOG.info( "Created memcached client pool with " + clients.length + " connection(s) per node"
+                + ( configKey != null ? " for " + configKey : "" ) );
+        return new MemcachedClientPool( configKey, clients, new SessionIdFormat() );
+    }
+
+    /**
+     * Decrements the reference count of this pool and shuts down the clients
+     * if this pool is no longer referenced.
+     */
+    void release() {
+        synchronized ( MemcachedClientPool.class ) {
+            if ( --_refCount > 0 ) {
+                return;
+            }
+            if ( _configKey != null ) {
+                SHARED_POOLS.remove( _configKey );
+            }
+        }
+        LOG.info( "Shutting down memcached client pool" + ( _configKey != null ? " for " + _configKey : "" ) );
+        shutdown( _clients );
+    }
+
+    private static void shutdown( final MemcachedClient[] clients ) {
+        for ( final MemcachedClient client : clients ) {
+            if ( client != null ) {
+                client.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Returns the client for the given key. All keys belonging to the same session
+     * (session, lock, validity info and their backups) are mapped to the same client,
+     * so that operations for a session are performed in order on one connection.
+     *
+     * @param key the (possibly namespaced) key.
+     * @return the client to use for this key.
+     */
+    @Nonnull
+    MemcachedClient getClient( @CheckForNull final String key ) {
+        if ( _clients.length == 1 || key == null ) {
+            return _clients[0];
+        }
+        final String plainKey = _sessionIdFormat.stripNamespace( key );
+        final String sessionId = plainKey.substring( plainKey.lastIndexOf( ':' ) + 1 );
+        return _clients[( sessionId.hashCode() & 0x7fffffff ) % _clients.length];
+    }
+
+    /**
+     * All clients of this pool, e.g. for operations that are broadcast to all connections.
+     */
+    @Nonnull
+    MemcachedClient[] getClients() {
+        return _clients;
+    }
+
+}
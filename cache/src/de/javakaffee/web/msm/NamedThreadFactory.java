@@ -0,0 +1,54 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Creates daemon threads named <code>&lt;prefix&gt;-&lt;n&gt;</code>, so that the threads
+ * of msm executors can be identified in thread dumps and don't prevent the jvm from exiting.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class NamedThreadFactory implements ThreadFactory {
+
+    private final String _prefix;
+    private final AtomicInteger _threadNumber = new AtomicInteger( 1 );
+
+    /**
+     * @param prefix the prefix of the thread names, e.g. "msm-attributes-deserialization".
+     */
+    NamedThreadFactory( @Nonnull final String prefix ) {
+        _prefix = prefix;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Thread newThread( final Runnable r ) {
+        final Thread result = new Thread( r, _prefix + "-" + _threadNumber.getAndIncrement() );
+        result.setDaemon( true );
+        if ( result.getPriority() != Thread.NORM_PRIORITY ) {
+            result.setPriority( Thread.NORM_PRIORITY );
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.ConnectionObserver;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * The view of a single context onto a {@link MemcachedClientPool}: keys are prefixed
+ * with the namespace of the context (if any), operations without explicit transcoder
+ * use the transcoder of the context (so that statistics are gathered per context) and
+ * {@link #shutdown()} releases the pool instead of shutting down the shared connections.
+ * <p>
+ * Note that {@link #flush()} flushes the memcached nodes, so it also affects other
+ * contexts sharing the same nodes.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class NamespacedMemcachedClient implements MemcachedClientIF {
+
+    private final MemcachedClientPool _pool;
+    private final String _namespace;
+    private final Transcoder<Object> _transcoder;
+    private final SessionIdFormat _sessionIdFormat = new SessionIdFormat();
+    private final AtomicBoolean _released = new AtomicBoolean();
+
+    NamespacedMemcachedClient( @Nonnull final MemcachedClientPool pool, @Nullable final String namespace,
+            @Nonnull final Transcoder<Object> transcoder ) {
+        _pool = pool;
+        _namespace = namespace;
+        _transcoder = transcoder;
+    }
+
+    /**
+     * The namespace used to prefix keys, or <code>null</code> if keys are used as is.
+     */
+    @Nullable
+    String getNamespace() {
+        return _namespace;
+    }
+
+    private String ns( final String key ) {
+        return _namespace == null ? key : _sessionIdFormat.createNamespacedKey( _namespace, key );
+    }
+
+    private MemcachedClient client( final String namespacedKey ) {
+        return _pool.getClient( namespacedKey );
+    }
+
+    public Collection<SocketAddress> getAvailableServers() {
+        return _pool.getClient( null ).getAvailableServers();
+    }
+
+    public Collection<SocketAddress> getUnavailableServers() {
+        return _pool.getClient( null ).getUnavailableServers();
+    }
+
+    public Transcoder<Object> getTranscoder() {
+        return _transcoder;
+    }
+
+    public NodeLocator getNodeLocator() {
+        return _pool.getClient( null ).getNodeLocator();
+    }
+
+    public Future<Boolean> append( final long cas, final String key, final Object val ) {
+        return append( cas, key, val, _transcoder );
+    }
+
+    public <T> Future<Boolean> append( final long cas, final String key, final T val, final Transcoder<T> tc ) {
+        final String k = ns( key );
+        return client( k ).append( cas, k, val, tc );
+    }
+
+    public Future<Boolean> prepend( final long cas, final String key, final Object val ) {
+        return prepend( cas, key, val, _transcoder );
+    }
+
+    public <T> Future<Boolean> prepend( final long cas, final String key, final T val, final Transcoder<T> tc ) {
+        final String k = ns( key );
+        return client( k ).prepend( cas, k, val, tc );
+    }
+
+    public <T> Future<CASResponse> asyncCAS( final String key, final long casId, final T value, final Transcoder<T> tc ) {
+        final String k = ns( key );
+        return client( k ).asyncCAS( k, casId, value, tc );
+    }
+
+    public Future<CASResponse> asyncCAS( final String key, final long casId, final Object value ) {
+        return asyncCAS( key, casId, value, _transcoder );
+    }
+
+    public <T> CASResponse cas( final String key, final long casId, final T value, final Transcoder<T> tc ) throws OperationTimeoutException {
+        final String k = ns( key );
+        return client( k ).cas( k, casId, value, tc );
+    }
+
+    public CASResponse cas( final String key, final long casId, final Object value ) throws OperationTimeoutException {
+        return cas( key, casId, value, _transcoder );
+    }
+
+    public <T> Future<Boolean> add( final String key, final int exp, final T o, final Transcoder<T> tc ) {
+        final String k = ns( key );
+        return client( k ).add( k, exp, o, tc );
+    }
+
+    public Future<Boolean> add( final String key, final int exp, final Object o ) {
+        return add( key, exp, o, _transcoder );
+    }
+
+    public <T> Future<Boolean> set( final String key, final int exp, final T o, final Transcoder<T> tc ) {
+        final String k = ns( key );
+        return client( k ).set( k, exp, o, tc );
+    }
+
+    public Future<Boolean> set( final String key, final int exp, final Object o ) {
+        return set( key, exp, o, _transcoder );
+    }
+
+    public <T> Future<Boolean> replace( final String key, final int exp, final T o, final Transcoder<T> tc ) {
+        final String k = ns( key );
+        return client( k ).replace( k, exp, o, tc );
+    }
+
+    public Future<Boolean> replace( final String key, final int exp, final Object o ) {
+        return replace( key, exp, o, _transcoder );
+    }
+
+    public <T> Future<T> asyncGet( final String key, final Transcoder<T> tc ) {
+        final String k = ns( key );
+        return client( k ).asyncGet( k, tc );
+    }
+
+    public Future<Object> asyncGet( final String key ) {
+        return asyncGet( key, _transcoder );
+    }
+
+    public <T> Future<CASValue<T>> asyncGets( final String key, final Transcoder<T> tc ) {
+        final String k = ns( key );
+        return client( k ).asyncGets( k, tc );
+    }
+
+    public Future<CASValue<Object>> asyncGets( final String key ) {
+        return asyncGets( key, _transcoder );
+    }
+
+    public <T> CASValue<T> gets( final String key, final Transcoder<T> tc ) throws OperationTimeoutException {
+        final String k = ns( key );
+        return client( k ).gets( k, tc );
+    }
+
+    public CASValue<Object> gets( final String key ) throws OperationTimeoutException {
+        return gets( key, _transcoder );
+    }
+
+    public <T> T get( final String key, final Transcoder<T> tc ) throws OperationTimeoutException {
+        final String k = ns( key );
+        return client( k ).get( k, tc );
+    }
+
+    public Object get( final String key ) throws OperationTimeoutException {
+        return get( key, _transcoder );
+    }
+
+    public <T> Future<Map<String, T>> asyncGetBulk( final Collection<String> keys, final Transcoder<T> tc ) {
+        final Map<MemcachedClient, List<String>> keysByClient = new HashMap<MemcachedClient, List<String>>();
+        for ( final String key : keys ) {
+            final String k = ns( key );
+            final MemcachedClient client = client( k );
+            List<String> clientKeys = keysByClient.get( client );
+            if ( clientKeys == null ) {
+                clientKeys = new ArrayList<String>();
+                keysByClient.put( client, clientKeys );
+            }
+            clientKeys.add( k );
+        }
+        final List<Future<Map<String, T>>> futures = new ArrayList<Future<Map<String, T>>>( keysByClient.size() );
+        for ( final Map.Entry<MemcachedClient, List<String>> entry : keysByClient.entrySet() ) {
+            futures.add( entry.getKey().asyncGetBulk( entry.getValue(), tc ) );
+        }
+        return new BulkFuture<T>( futures );
+    }
+
+    public Future<Map<String, Object>> asyncGetBulk( final Collection<String> keys ) {
+        return asyncGetBulk( keys, _transcoder );
+    }
+
+    public <T> Future<Map<String, T>> asyncGetBulk( final Transcoder<T> tc, final String... keys ) {
+        return asyncGetBulk( Arrays.asList( keys ), tc );
+    }
+
+    public Future<Map<String, Object>> asyncGetBulk( final String... keys ) {
+        return asyncGetBulk( Arrays.asList( keys ), _transcoder );
+    }
+
+    public <T> Map<String, T> getBulk( final Collection<String> keys, final Transcoder<T> tc ) throws OperationTimeoutException {
+        try {
+            return asyncGetBulk( keys, tc ).get();
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted getting bulk values", e );
+        } catch ( final ExecutionException e ) {
+            throw new RuntimeException( "Failed getting bulk values", e );
+        }
+    }
+
+    public Map<String, Object> getBulk( final Collection<String> keys ) throws OperationTimeoutException {
+        return getBulk( keys, _transcoder );
+    }
+
+    public <T> Map<String, T> getBulk( final Transcoder<T> tc, final String... keys ) throws OperationTimeoutException {
+        return getBulk( Arrays.asList( keys ), tc );
+    }
+
+    public Map<String, Object> getBulk( final String... keys ) throws OperationTimeoutException {
+        return getBulk( Arrays.asList( keys ), _transcoder );
+    }
+
+    public Map<SocketAddress, String> getVersions() {
+        return _pool.getClient( null ).getVersions();
+    }
+
+    public Map<SocketAddress, Map<String, String>> getStats() {
+        return _pool.getClient( null ).getStats();
+    }
+
+    public Map<SocketAddress, Map<String, String>> getStats( final String prefix ) {
+        return _pool.getClient( null ).getStats( prefix );
+    }
+
+    public long incr( final String key, final int by ) throws OperationTimeoutException {
+        final String k = ns( key );
+        return client( k ).incr( k, by );
+    }
+
+    public long decr( final String key, final int by ) throws OperationTimeoutException {
+        final String k = ns( key );
+        return client( k ).decr( k, by );
+    }
+
+    public long incr( final String key, final int by, final long def, final int exp ) throws OperationTimeoutException {
+        final String k = ns( key );
+        return client( k ).incr( k, by, def, exp );
+    }
+
+    public long decr( final String key, final int by, final long def, final int exp ) throws OperationTimeoutException {
+        final String k = ns( key );
+        return client( k ).decr( k, by, def, exp );
+    }
+
+    public Future<Long> asyncIncr( final String key, final int by ) {
+        final String k = ns( key );
+        return client( k ).asyncIncr( k, by );
+    }
+
+    public Future<Long> asyncDecr( final String key, final int by ) {
+        final String k = ns( key );
+        return client( k ).asyncDecr( k, by );
+    }
+
+    public long incr( final String key, final int by, final long def ) throws OperationTimeoutException {
+        final String k = ns( key );
+        return client( k ).incr( k, by, def );
+    }
+
+    public long decr( final String key, final int by, final long def ) throws OperationTimeoutException {
+        final String k = ns( key );
+        return client( k ).decr( k, by, def );
+    }
+
+    public Future<Boolean> delete( final String key ) {
+        final String k = ns( key );
+        return client( k ).delete( k );
+    }
+
+    public Future<Boolean> flush( final int delay ) {
+        return _pool.getClient( null ).flush( delay );
+    }
+
+    public Future<Boolean> flush() {
+        return _pool.getClient( null ).flush();
+    }
+
+    /**
+     * Releases the underlying pool, the connections are only closed if the pool
+     * is not used by another context.
+     */
+    public void shutdown() {
+        if ( _released.compareAndSet( false, true ) ) {
+            _pool.release();
+        }
+    }
+
+    /**
+     * Same as {@link #shutdown()}, the pool is shut down immediately if it's not referenced anymore.
+     */
+    public boolean shutdown( final long timeout, final TimeUnit unit ) {
+        shutdown();
+        return true;
+    }
+
+    public boolean waitForQueues( final long timeout, final TimeUnit unit ) {
+        boolean result = true;
+        for ( final MemcachedClient client : _pool.getClients() ) {
+            result &= client.waitForQueues( timeout, unit );
+        }
+        return result;
+    }
+
+    public boolean addObserver( final ConnectionObserver obs ) {
+        boolean result = true;
+        for ( final MemcachedClient client : _pool.getClients() ) {
+            result &= client.addObserver( obs );
+        }
+        return result;
+    }
+
+    public boolean removeObserver( final ConnectionObserver obs ) {
+        boolean result = true;
+        for ( final MemcachedClient client : _pool.getClients() ) {
+            result &= client.removeObserver( obs );
+        }
+        return result;
+    }
+
+    /**
+     * Combines the bulk get results of the pool clients and strips the namespace from the keys.
+     */
+    private final class BulkFuture<T> implements Future<Map<String, T>> {
+
+        private final List<Future<Map<String, T>>> _futures;
+
+        private BulkFuture( final List<Future<Map<String, T>>> futures ) {
+            _futures = futures;
+        }
+
+        public boolean cancel( final boolean mayInterruptIfRunning ) {
+            boolean result = true;
+            for ( final Future<Map<String, T>> future : _futures ) {
+                result &= future.cancel( mayInterruptIfRunning );
+            }
+            return result;
+        }
+
+        public boolean isCancelled() {
+            for ( final Future<Map<String, T>> future : _futures ) {
+                if ( future.isCancelled() ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean isDone() {
+            for ( final Future<Map<String, T>> future : _futures ) {
+                if ( !future.isDone() ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Map<String, T> get() throws InterruptedException, ExecutionException {
+            final Map<String, T> result = new HashMap<String, T>();
+            for ( final Future<Map<String, T>> future : _futures ) {
+                putAll( result, future.get() );
+            }
+            return result;
+        }
+
+        public Map<String, T> get( final long timeout, final TimeUnit unit ) throws InterruptedException, ExecutionException,
+            TimeoutException {
+            final long end = System.nanoTime() + unit.toNanos( timeout );
+            final Map<String, T> result = new HashMap<String, T>();
+            for ( final Future<Map<String, T>> future : _futures ) {
+                putAll( result, future.get( Math.max( 0, end - System.nanoTime() ), TimeUnit.NANOSECONDS ) );
+            }
+            return result;
+        }
+
+        private void putAll( final Map<String, T> result, final Map<String, T> values ) {
+            for ( final Map.Entry<String, T> entry : values.entrySet() ) {
+                final String key = _namespace == null ? entry.getKey() : _sessionIdFormat.stripNamespace( entry.getKey() );
+                result.put( key, entry.getValue() );
+            }
+        }
+
+    }
+
+}
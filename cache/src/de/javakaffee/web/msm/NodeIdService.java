@@ -184,6 +184,19 @@ public class NodeIdService {
         return null;
     }
 
+    /**
+     * Returns the ids of all nodes, the failover nodes included.
+     *
+     * @return a new list of node ids.
+     */
+    @Nonnull
+    public List<String> getAllNodeIds() {
+        final List<String> result = new ArrayList<String>( _nodeIds.size() + _failoverNodeIds.size() );
+        result.addAll( _nodeIds );
+        result.addAll( _failoverNodeIds );
+        return result;
+    }
+
     /**
      * ȡһЧĽڵ
      * Get the next random, available node id. If no node is available, <code>null</code>
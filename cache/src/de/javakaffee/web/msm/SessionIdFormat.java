@@ -45,6 +45,8 @@ public class SessionIdFormat {
 
     private static final String BACKUP_PREFIX = "bak:";
 
+    private static final char NAMESPACE_SEPARATOR = '/';
+
     private static final Log LOG = LogFactory.getLog( SessionIdFormat.class );
 
     /**
@@ -215,4 +217,39 @@ public class SessionIdFormat {
         return key.startsWith( BACKUP_PREFIX );
     }
 
+    /**
+     * Creates the key that is actually sent to memcached for the given key (session id,
+     * lock name, validity info key etc.) if a key namespace is used, e.g. when the memcached
+     * client is shared by several contexts.
+     *
+     * @param namespace the namespace, must not contain any of <code>-.:/</code>.
+     * @param key the key to prefix.
+     * @return the namespaced key, e.g. <code>localhost_foo/lock:ABCD-n1</code>.
+     * @see #stripNamespace(String)
+     */
+    @Nonnull
+    public String createNamespacedKey( @Nonnull final String namespace, @Nonnull final String key ) {
+        return namespace + NAMESPACE_SEPARATOR + key;
+    }
+
+    /**
+     * Removes the namespace (if any) from the given key, so that the memcached id can be
+     * extracted from the result.
+     *
+     * @param key the key, possibly namespaced.
+     * @return the key without namespace.
+     * @see #createNamespacedKey(String, String)
+     */
+    @Nonnull
+    public String stripNamespace( @Nonnull final String key ) {
+        final int idx = key.indexOf( NAMESPACE_SEPARATOR );
+        if ( idx < 0 ) {
+            return key;
+        }
+        /* a '/' after the dash is part of the memcached id or jvmRoute and no namespace separator
+         */
+        final int idxDash = key.indexOf( '-' );
+        return idxDash >= 0 && idxDash < idx ? key : key.substring( idx + 1 );
+    }
+
 }
\ No newline at end of file
@@ -36,6 +36,8 @@ public class Statistics {
     private final AtomicLong _numRequestsWithBackupFailure = new AtomicLong();
     private final AtomicLong _numRequestsWithoutSessionAccess = new AtomicLong();
     private final AtomicLong _numRequestsWithoutAttributesAccess = new AtomicLong();
+    private final AtomicLong _numRequestsWithOnlyImmutableAttributesAccess = new AtomicLong();
+    private final AtomicLong _numImmutableAttributeReads = new AtomicLong();
     private final AtomicLong _numRequestsWithoutSessionModification = new AtomicLong();
     private final AtomicLong _numNonStickySessionsPingFailed = new AtomicLong();
     private final AtomicLong _numNonStickySessionsReadOnlyRequest = new AtomicLong();
@@ -135,6 +137,28 @@ public class Statistics {
     public long getRequestsWithoutAttributesAccess() {
         return _numRequestsWithoutAttributesAccess.get();
     }
+    /**
+     * Requests that only read immutable attribute values, so that session backup was skipped
+     * (these are also counted as {@link #requestWithoutAttributesAccess()}).
+     */
+    public void requestWithOnlyImmutableAttributesAccess() {
+        _numRequestsWithOnlyImmutableAttributesAccess.incrementAndGet();
+    }
+    public long getRequestsWithOnlyImmutableAttributesAccess() {
+        return _numRequestsWithOnlyImmutableAttributesAccess.get();
+    }
+    /**
+     * Attribute reads that did not mark the session attributes as accessed as the
+     * values are immutable.
+     */
+    public void immutableAttributeReads( final int count ) {
+        if ( count > 0 ) {
+            _numImmutableAttributeReads.addAndGet( count );
+        }
+    }
+    public long getImmutableAttributeReads() {
+        return _numImmutableAttributeReads.get();
+    }
     public void requestWithoutSessionModification() {
         _numRequestsWithoutSessionModification.incrementAndGet();
     }
@@ -378,6 +402,14 @@ public class Statistics {
         public void requestWithoutAttributesAccess() {
         }
 
+        @Override
+        public void requestWithOnlyImmutableAttributesAccess() {
+        }
+
+        @Override
+        public void immutableAttributeReads( final int count ) {
+        }
+
     };
 
 }
@@ -104,7 +104,8 @@ class SuffixBasedNodeLocator implements NodeLocator {
      * key
      * @return
      */
-    private String getNodeId( final String key ) {
+    private String getNodeId( final String namespacedKey ) {
+        final String key = _sessionIdFormat.stripNamespace( namespacedKey );
         final String nodeId = _sessionIdFormat.extractMemcachedId( key );
         if ( !_sessionIdFormat.isBackupKey( key ) ) {
             return nodeId;
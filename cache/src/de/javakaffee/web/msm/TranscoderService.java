@@ -24,6 +24,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.Principal;
 import java.util.Arrays;
 import java.util.Map;
@@ -76,8 +77,9 @@ public class TranscoderService {
     * @return
     */
     public byte[] serialize( final MemcachedBackupSession session ) {
-        final byte[] attributesData = serializeAttributes( session, session.getAttributesInternal() );
-        return serialize( session, attributesData );
+        final byte[] principalData = serializePrincipal( session );
+        final ByteBuffer attributesData = serializeAttributesToBuffer( session, session.getAttributesInternal(), principalData );
+        return serialize( session, principalData, attributesData );
     }
 
     /**
@@ -98,16 +100,35 @@ public class TranscoderService {
      *  or <code>null</code> if the provided <code>byte[] data</code> was <code>null</code>.
      */
     public MemcachedBackupSession deserialize( final byte[] data, final Realm realm, final Manager manager ) {
+        if ( data == null ) {
+            return null;
+        }
+        return deserialize( ByteBuffer.wrap( data ), realm, manager );
+    }
+
+    /**
+     * Deserialize session data from the bytes between position and limit of the given buffer
+     * (heap or direct), see {@link #deserialize(byte[], Realm, Manager)}. The attributes are
+     * deserialized from a view of the buffer, for a heap buffer the data is not copied.
+     *
+     * @param data the buffer of the serialized session and its session attributes. Can be <code>null</code>.
+     * @param realm the realm that is used to reconstruct the principal if there was any stored in the session.
+     * @param manager the manager to set on the deserialized session.
+     *
+     * @return the deserialized {@link MemcachedBackupSession}
+     *  or <code>null</code> if the provided buffer was <code>null</code>.
+     */
+    public MemcachedBackupSession deserialize( final ByteBuffer data, final Realm realm, final Manager manager ) {
         if ( data == null ) {
             return null;
         }
         try {
             final DeserializationResult deserializationResult = TranscoderService.deserializeSessionFields( data, realm );
-            final byte[] attributesData = deserializationResult.getAttributesData();
+            final ByteBuffer attributesData = deserializationResult.getAttributesData();
             final Map<String, Object> attributes = deserializeAttributes( attributesData );
             final MemcachedBackupSession session = deserializationResult.getSession();
             session.setAttributesInternal( attributes );
-            session.setDataHashCode( Arrays.hashCode( attributesData ) );
+            session.setDataHashCode( hashCode( attributesData ) );
             session.setManager( manager );
             session.doAfterDeserialization();
             return session;
@@ -129,6 +150,41 @@ public class TranscoderService {
         return _attributesTranscoder.serializeAttributes( session, attributes );
     }
 
+    /**
+     * Serialize the given attributes to a buffer that reserves the space for the session fields
+     * at the beginning of its backing array, so that {@link #serialize(MemcachedBackupSession, ByteBuffer)}
+     * can write the session fields without copying the attributes.
+     * If the {@link SessionAttributesTranscoder} does not support this, the serialized attributes
+     * are wrapped.
+     *
+     * @param session the session that owns the given attributes.
+     * @param attributes the attributes to serialize.
+     * @return a heap buffer, the serialized attributes are the bytes between position and limit.
+     */
+    public ByteBuffer serializeAttributesToBuffer( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+        return serializeAttributesToBuffer( session, attributes, serializePrincipal( session ) );
+    }
+
+    /**
+     * Like {@link #serializeAttributesToBuffer(MemcachedBackupSession, Map)}, with the principal
+     * already serialized by {@link #serializePrincipal(MemcachedBackupSession)}. The same
+     * principal data must be passed to {@link #serialize(MemcachedBackupSession, byte[], ByteBuffer)},
+     * so that the principal is serialized only once.
+     *
+     * @param session the session that owns the given attributes.
+     * @param attributes the attributes to serialize.
+     * @param principalData the serialized principal of the session, may be <code>null</code>.
+     * @return a heap buffer, the serialized attributes are the bytes between position and limit.
+     */
+    public ByteBuffer serializeAttributesToBuffer( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final byte[] principalData ) {
+        if ( _attributesTranscoder instanceof ByteBufferSessionAttributesTranscoder ) {
+            return ( (ByteBufferSessionAttributesTranscoder) _attributesTranscoder )
+                .serializeAttributes( session, attributes, getSessionFieldsLength( session, principalData ) );
+        }
+        return ByteBuffer.wrap( _attributesTranscoder.serializeAttributes( session, attributes ) );
+    }
+
 
 
     /**
@@ -145,6 +201,50 @@ public class TranscoderService {
         return _attributesTranscoder.deserializeAttributes( data );
     }
 
+    /**
+     * Deserialize the bytes between position and limit of the given buffer to session attributes.
+     * If the {@link SessionAttributesTranscoder} does not support buffers, the bytes are copied
+     * unless they're exactly the backing array.
+     *
+     * @param data the serialized attributes
+     * @return the deserialized attributes
+     */
+    public Map<String, Object> deserializeAttributes( final ByteBuffer data ) {
+        if ( _attributesTranscoder instanceof ByteBufferSessionAttributesTranscoder ) {
+            return ( (ByteBufferSessionAttributesTranscoder) _attributesTranscoder ).deserializeAttributes( data );
+        }
+        if ( data.hasArray() && data.arrayOffset() == 0 && data.position() == 0 && data.limit() == data.array().length ) {
+            return _attributesTranscoder.deserializeAttributes( data.array() );
+        }
+        final byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get( bytes );
+        return _attributesTranscoder.deserializeAttributes( bytes );
+    }
+
+    /**
+     * Computes the hash code of the bytes between position and limit of the given buffer,
+     * the result is the same as {@link Arrays#hashCode(byte[])} for these bytes.
+     *
+     * @param data the buffer
+     * @return the hash code
+     */
+    public static int hashCode( final ByteBuffer data ) {
+        int result = 1;
+        if ( data.hasArray() ) {
+            final byte[] array = data.array();
+            final int end = data.arrayOffset() + data.limit();
+            for ( int i = data.arrayOffset() + data.position(); i < end; i++ ) {
+                result = 31 * result + array[i];
+            }
+        }
+        else {
+            for ( int i = data.position(); i < data.limit(); i++ ) {
+                result = 31 * result + data.get( i );
+            }
+        }
+        return result;
+    }
+
     /**
      * л session Ϣ  лattributesData ֮ϲغϲ
      * @return
@@ -157,27 +257,60 @@ public class TranscoderService {
         return result;
     }
 
+    /**
+     * Serialize the session fields and combine them with the given attributes, that were
+     * serialized using {@link #serializeAttributesToBuffer(MemcachedBackupSession, Map)}: the session
+     * fields are written to the space reserved before the attributes. The backing array is returned
+     * if it has the exact size, otherwise it's copied once, as memcached requires a <code>byte[]</code>.
+     *
+     * @param session the session to serialize.
+     * @param attributesData the serialized attributes (between position and limit).
+     * @return the serialized session data.
+     */
+    public byte[] serialize( final MemcachedBackupSession session, final ByteBuffer attributesData ) {
+        return serialize( session, serializePrincipal( session ), attributesData );
+    }
+
+    /**
+     * Like {@link #serialize(MemcachedBackupSession, ByteBuffer)}, with the principal already
+     * serialized by {@link #serializePrincipal(MemcachedBackupSession)}.
+     *
+     * @param session the session to serialize.
+     * @param principalData the serialized principal, as passed to
+     *  {@link #serializeAttributesToBuffer(MemcachedBackupSession, Map, byte[])}, may be <code>null</code>.
+     * @param attributesData the serialized attributes (between position and limit).
+     * @return the serialized session data.
+     */
+    public byte[] serialize( final MemcachedBackupSession session, final byte[] principalData, final ByteBuffer attributesData ) {
+        final byte[] sessionData = serializeSessionFields( session, principalData );
+        final int length = sessionData.length + attributesData.remaining();
+        if ( attributesData.hasArray() && attributesData.arrayOffset() == 0 && attributesData.position() == sessionData.length ) {
+            final byte[] array = attributesData.array();
+            System.arraycopy( sessionData, 0, array, 0, sessionData.length );
+            return array.length == length ? array : Arrays.copyOf( array, length );
+        }
+        final byte[] result = new byte[ length ];
+        System.arraycopy( sessionData, 0, result, 0, sessionData.length );
+        attributesData.duplicate().get( result, sessionData.length, attributesData.remaining() );
+        return result;
+    }
+
     // ---------------------  private/protected helper methods  -------------------
 
     /**
      *  汾ϢȨϢsession Ϣsession id ϢתΪbyte[]
      */
     static byte[] serializeSessionFields( final MemcachedBackupSession session ) {
+        return serializeSessionFields( session, serializePrincipal( session ) );
+    }
+
+    private static byte[] serializeSessionFields( final MemcachedBackupSession session, final byte[] principalData ) {
     	//sessionid л
         final byte[] idData = serializeId( session.getIdInternal() );
 
-        final byte[] principalData = session.getPrincipal() != null ? serializePrincipal( session.getPrincipal() ) : null;
         final int principalDataLength = principalData != null ? principalData.length : 0;
 
-        final int sessionFieldsDataLength = 2 // short value for the version
-        // the following might change with other versions, refactoring needed then
-                + 2 // short value that stores the dataLength
-                + NUM_BYTES // bytes that store all session attributes but the id
-                + 2 // short value that stores the idData length
-                + idData.length // the number of bytes for the id
-                + 2 // short value for the authType
-                + 2 // short value that stores the principalData length
-                + principalDataLength; // the number of bytes for the principal
+        final int sessionFieldsDataLength = getSessionFieldsLength( idData.length, principalDataLength );
         final byte[] data = new byte[sessionFieldsDataLength];
 
         int idx = 0;
@@ -202,49 +335,94 @@ public class TranscoderService {
         return data;
     }
 
+    /**
+     * Serializes the principal of the given session.
+     *
+     * @return the serialized principal or <code>null</code> if the session has no principal.
+     */
+    public static byte[] serializePrincipal( final MemcachedBackupSession session ) {
+        return session.getPrincipal() != null ? serializePrincipal( session.getPrincipal() ) : null;
+    }
+
+    /**
+     * The number of bytes {@link #serializeSessionFields(MemcachedBackupSession)} produces for the given session
+     * with the given serialized principal.
+     */
+    static int getSessionFieldsLength( final MemcachedBackupSession session, final byte[] principalData ) {
+        final int idDataLength = serializeId( session.getIdInternal() ).length;
+        return getSessionFieldsLength( idDataLength, principalData != null ? principalData.length : 0 );
+    }
+
+    private static int getSessionFieldsLength( final int idDataLength, final int principalDataLength ) {
+        return 2 // short value for the version
+        // the following might change with other versions, refactoring needed then
+                + 2 // short value that stores the dataLength
+                + NUM_BYTES // bytes that store all session attributes but the id
+                + 2 // short value that stores the idData length
+                + idDataLength // the number of bytes for the id
+                + 2 // short value for the authType
+                + 2 // short value that stores the principalData length
+                + principalDataLength; // the number of bytes for the principal
+    }
+
     static DeserializationResult deserializeSessionFields( final byte[] data, final Realm realm ) throws InvalidVersionException {
+        return deserializeSessionFields( ByteBuffer.wrap( data ), realm );
+    }
+
+    /**
+     * Reads the session fields from the given buffer (starting at its position), the attributes data
+     * of the result is a view of the given buffer.
+     */
+    static DeserializationResult deserializeSessionFields( final ByteBuffer data, final Realm realm ) throws InvalidVersionException {
         final MemcachedBackupSession result = new MemcachedBackupSession();
 
-        final short version = (short) decodeNum( data, 0, 2 );
+        final int base = data.position();
+        final short version = data.getShort( base );
 
         if ( version != CURRENT_VERSION ) {
             throw new InvalidVersionException( "The version " + version + " does not match the current version " + CURRENT_VERSION, version );
         }
 
-        final short sessionFieldsDataLength = (short) decodeNum( data, 2, 2 );
+        final short sessionFieldsDataLength = data.getShort( base + 2 );
 
-        result.setCreationTimeInternal( decodeNum( data, 4, 8 ) );
-        result.setLastAccessedTimeInternal( decodeNum( data, 12, 8 ) );
-        result.setMaxInactiveInterval( (int) decodeNum( data, 20, 4 ) );
-        result.setIsNewInternal( decodeBoolean( data, 24 ) );
-        result.setIsValidInternal( decodeBoolean( data, 25 ) );
-        result.setThisAccessedTimeInternal( decodeNum( data, 26, 8 ) );
-        result.setLastBackupTime( decodeNum( data, 34, 8 ) );
+        result.setCreationTimeInternal( data.getLong( base + 4 ) );
+        result.setLastAccessedTimeInternal( data.getLong( base + 12 ) );
+        result.setMaxInactiveInterval( data.getInt( base + 20 ) );
+        result.setIsNewInternal( decodeBoolean( data, base + 24 ) );
+        result.setIsValidInternal( decodeBoolean( data, base + 25 ) );
+        result.setThisAccessedTimeInternal( data.getLong( base + 26 ) );
+        result.setLastBackupTime( data.getLong( base + 34 ) );
 
-        final short idLength = (short) decodeNum( data, 42, 2 );
-        result.setIdInternal( decodeString( data, 44, idLength ) );
+        final short idLength = data.getShort( base + 42 );
+        result.setIdInternal( decodeString( data, base + 44, idLength ) );
 
-        final short authTypeId = (short)decodeNum( data, 44 + idLength, 2 );
+        final short authTypeId = data.getShort( base + 44 + idLength );
         result.setAuthType( AuthType.valueOfId( authTypeId ).getValue() );
 
-        final int currentIdx = 44 + idLength + 2;
-        final short principalDataLength = (short) decodeNum( data, currentIdx, 2 );
+        final int currentIdx = base + 44 + idLength + 2;
+        final short principalDataLength = data.getShort( currentIdx );
         if ( principalDataLength > 0 ) {
-            final byte[] principalData = new byte[principalDataLength];
-            System.arraycopy( data, currentIdx + 2, principalData, 0, principalDataLength );
-            result.setPrincipal( deserializePrincipal( principalData, realm ) );
+            result.setPrincipal( deserializePrincipal( copy( data, currentIdx + 2, principalDataLength ), realm ) );
         }
 
-        final byte[] attributesData = new byte[ data.length - sessionFieldsDataLength ];
-        System.arraycopy( data, sessionFieldsDataLength, attributesData, 0, data.length - sessionFieldsDataLength );
+        final ByteBuffer attributesData = data.duplicate();
+        attributesData.position( base + sessionFieldsDataLength );
 
         return new DeserializationResult( result, attributesData );
     }
 
+    private static byte[] copy( final ByteBuffer data, final int index, final int length ) {
+        final byte[] result = new byte[length];
+        final ByteBuffer view = data.duplicate();
+        view.position( index );
+        view.get( result );
+        return result;
+    }
+
     static class DeserializationResult {
         private final MemcachedBackupSession _session;
-        private final byte[] _attributesData;
-        DeserializationResult( final MemcachedBackupSession session, final byte[] attributesData ) {
+        private final ByteBuffer _attributesData;
+        DeserializationResult( final MemcachedBackupSession session, final ByteBuffer attributesData ) {
             _session = session;
             _attributesData = attributesData;
         }
@@ -256,9 +434,9 @@ public class TranscoderService {
         }
         /**
          * The serialized session attributes.
-         * @return the byte array representing the serialized session attributes.
+         * @return the buffer representing the serialized session attributes (between position and limit).
          */
-        byte[] getAttributesData() {
+        ByteBuffer getAttributesData() {
             return _attributesData;
         }
     }
@@ -351,7 +529,7 @@ public class TranscoderService {
     }
 
     /**
-     * Encode a boolean that can be decoded with {@link #decodeBoolean(byte[], int)}.
+     * Encode a boolean that can be decoded with {@link #decodeBoolean(ByteBuffer, int)}.
      * @param b the boolean value
      * @param data the byte array where to write the encoded byte(s) to
      * @param index the start index in the byte array for writing.
@@ -364,15 +542,16 @@ public class TranscoderService {
         return index + 1;
     }
 
-    private static boolean decodeBoolean( final byte[] in, final int index ) {
-        return in[index] == '1';
+    private static boolean decodeBoolean( final ByteBuffer in, final int index ) {
+        return in.get( index ) == '1';
     }
 
-    private static String decodeString( final byte[] data, final int beginIndex, final int length ) {
+    private static String decodeString( final ByteBuffer data, final int beginIndex, final int length ) {
         try {
-            final byte[] idData = new byte[length];
-            System.arraycopy( data, beginIndex, idData, 0, length );
-            return new String( idData, "UTF-8" );
+            if ( data.hasArray() ) {
+                return new String( data.array(), data.arrayOffset() + beginIndex, length, "UTF-8" );
+            }
+            return new String( copy( data, beginIndex, length ), "UTF-8" );
         } catch ( final UnsupportedEncodingException e ) {
             throw new RuntimeException( e );
         }
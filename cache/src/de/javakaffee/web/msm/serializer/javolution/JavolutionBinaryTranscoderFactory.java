@@ -0,0 +1,35 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.javolution;
+
+/**
+ * Creates {@link JavolutionTranscoder}s that write the xml deflated (binary mode),
+ * to be configured as <code>transcoderFactoryClass</code> of the manager. Sessions
+ * stored as plain xml can still be read.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class JavolutionBinaryTranscoderFactory extends JavolutionTranscoderFactory {
+
+    /**
+     * Creates a factory for transcoders that write the xml deflated.
+     */
+    public JavolutionBinaryTranscoderFactory() {
+        super( true );
+    }
+
+}
@@ -17,10 +17,16 @@
 package de.javakaffee.web.msm.serializer.javolution;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javolution.xml.XMLObjectReader;
 import javolution.xml.XMLObjectWriter;
@@ -32,6 +38,7 @@ import org.apache.catalina.Manager;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
+import de.javakaffee.web.msm.ByteBufferOutputStream;
 import de.javakaffee.web.msm.MemcachedBackupSession;
 import de.javakaffee.web.msm.SessionAttributesTranscoder;
 import de.javakaffee.web.msm.SessionTranscoder;
@@ -49,6 +56,15 @@ import de.javakaffee.web.msm.SessionTranscoder;
  * <p>
  * Additionally it's worth to note that cyclic dependencies are supported.
  * </p>
+ * <p>
+ * The xml readers and writers (and their buffers) are reused, they're kept in a small pool
+ * of this transcoder (not in thread locals, so that nothing of the webapp is kept by the
+ * container threads when the transcoder is gone). In binary mode
+ * the xml is written deflated, which keeps the tolerance of the xml format regarding
+ * class changes while the size is a fraction of the xml. Deserialization detects the
+ * binary format, so that data written before binary mode was switched on (or off) can
+ * still be read.
+ * </p>
  *
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
@@ -57,10 +73,31 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
     static final String REFERENCE_ATTRIBUTE_ID = "__id";
     static final String REFERENCE_ATTRIBUTE_REF_ID = "__ref";
 
+    /**
+     * The first byte of data written in binary mode, xml always starts with '&lt;'.
+     */
+    static final byte BINARY_FORMAT = 0;
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /**
+     * Buffers that have grown larger than this are not kept for the next serialization.
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The number of readers and writers kept for reuse, more may be in use concurrently.
+     */
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
     private static final Log LOG = LogFactory.getLog( JavolutionTranscoder.class );
 
     private final Manager _manager;
     private final ReflectionBinding _xmlBinding;
+    private final boolean _binary;
+
+    private final BlockingQueue<PooledWriter> _writers = new ArrayBlockingQueue<PooledWriter>( POOL_SIZE );
+    private final BlockingQueue<PooledReader> _readers = new ArrayBlockingQueue<PooledReader>( POOL_SIZE );
 
     /**
      * Constructor.
@@ -84,9 +121,27 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
      */
     public JavolutionTranscoder( final Manager manager, final boolean copyCollectionsForSerialization,
             final CustomXMLFormat<?> ... customFormats ) {
+        this( manager, copyCollectionsForSerialization, false, customFormats );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param manager
+     *            the manager
+     * @param copyCollectionsForSerialization
+     *            specifies, if iterating over collection elements shall be done
+     *            on a copy of the collection or on the collection itself
+     * @param binary
+     *            specifies, if the xml shall be written deflated
+     * @param customFormats a list of {@link CustomXMLFormat}s or <code>null</code>.
+     */
+    public JavolutionTranscoder( final Manager manager, final boolean copyCollectionsForSerialization,
+            final boolean binary, final CustomXMLFormat<?> ... customFormats ) {
         _manager = manager;
         final Loader loader = _manager.getContainer().getLoader();
         _xmlBinding = new ReflectionBinding( loader.getClassLoader(), copyCollectionsForSerialization, customFormats );
+        _binary = binary;
     }
 
     /**
@@ -101,8 +156,26 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
      */
     public JavolutionTranscoder( final ClassLoader classLoader, final boolean copyCollectionsForSerialization,
             final CustomXMLFormat<?> ... customFormats ) {
+        this( classLoader, copyCollectionsForSerialization, false, customFormats );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param classLoader
+     *            the classLoader
+     * @param copyCollectionsForSerialization
+     *            specifies, if iterating over collection elements shall be done
+     *            on a copy of the collection or on the collection itself
+     * @param binary
+     *            specifies, if the xml shall be written deflated
+     * @param customFormats a list of {@link CustomXMLFormat}s or <code>null</code>.
+     */
+    public JavolutionTranscoder( final ClassLoader classLoader, final boolean copyCollectionsForSerialization,
+            final boolean binary, final CustomXMLFormat<?> ... customFormats ) {
         _manager = null;
         _xmlBinding = new ReflectionBinding( classLoader, copyCollectionsForSerialization, customFormats );
+        _binary = binary;
     }
 
     /**
@@ -129,14 +202,15 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
             throw new NullPointerException( "Can't serialize null" );
         }
 
-        XMLObjectWriter writer = null;
+        final PooledWriter pooledWriter = borrowWriter();
+        final XMLObjectWriter writer = pooledWriter.writer;
+        final ByteBufferOutputStream bos = pooledWriter.out;
         try {
-            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            writer = XMLObjectWriter.newInstance( bos );
-            final XMLReferenceResolver xmlReferenceResolver = new XMLReferenceResolver();
-            xmlReferenceResolver.setIdentifierAttribute( REFERENCE_ATTRIBUTE_ID );
-            xmlReferenceResolver.setReferenceAttribute( REFERENCE_ATTRIBUTE_REF_ID );
-            writer.setReferenceResolver( xmlReferenceResolver );
+            /* reset() of the writer also clears binding and reference resolver,
+             * so they are set for each serialization
+             */
+            writer.setOutput( bos );
+            writer.setReferenceResolver( pooledWriter.referenceResolver );
             writer.setBinding( _xmlBinding );
             writer.write( object, name );
             writer.flush();
@@ -151,12 +225,40 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
             }
             // getLogger().info( "Returning deserialized:\n" + new String( bos.toByteArray() ) );
 
-            return bos.toByteArray();
+            return _binary ? pooledWriter.deflate() : bos.toByteArray();
         } catch ( final Exception e ) {
             LOG.error( "caught exception", e );
             throw new IllegalArgumentException( "Could not serialize object", e );
         } finally {
-            closeSilently( writer );
+            releaseWriter( pooledWriter );
+        }
+    }
+
+    private PooledWriter borrowWriter() {
+        final PooledWriter result = _writers.poll();
+        return result != null ? result : new PooledWriter();
+    }
+
+    /**
+     * Resets the given writer and returns it to the pool, if the pool is full it's discarded.
+     */
+    private void releaseWriter( final PooledWriter pooledWriter ) {
+        if ( !pooledWriter.reset() || !_writers.offer( pooledWriter ) ) {
+            pooledWriter.end();
+        }
+    }
+
+    private PooledReader borrowReader() {
+        final PooledReader result = _readers.poll();
+        return result != null ? result : new PooledReader();
+    }
+
+    /**
+     * Resets the given reader and returns it to the pool, if the pool is full it's discarded.
+     */
+    private void releaseReader( final PooledReader pooledReader ) {
+        if ( !pooledReader.reset() || !_readers.offer( pooledReader ) ) {
+            pooledReader.end();
         }
     }
 
@@ -170,7 +272,7 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
     @Override
     public Map<String, Object> deserializeAttributes( final byte[] in ) {
 
-        if ( LOG.isDebugEnabled() ) {
+        if ( LOG.isDebugEnabled() && !isBinary( in ) ) {
             LOG.debug( "Reading serialized data:\n" + new String( in ) );
         }
 
@@ -193,14 +295,11 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
 
     private <T> T doDeserialize( final byte[] in, final String name ) {
         // getLogger().info( "Loading serialized:\n" + new String( in ) );
-        XMLObjectReader reader = null;
+        final PooledReader pooledReader = borrowReader();
+        final XMLObjectReader reader = pooledReader.reader;
         try {
-            final ByteArrayInputStream bis = new ByteArrayInputStream( in );
-            reader = XMLObjectReader.newInstance( bis );
-            final XMLReferenceResolver xmlReferenceResolver = new XMLReferenceResolver();
-            xmlReferenceResolver.setIdentifierAttribute( REFERENCE_ATTRIBUTE_ID );
-            xmlReferenceResolver.setReferenceAttribute( REFERENCE_ATTRIBUTE_REF_ID );
-            reader.setReferenceResolver( xmlReferenceResolver );
+            reader.setInput( pooledReader.input( in ) );
+            reader.setReferenceResolver( pooledReader.referenceResolver );
             reader.setBinding( _xmlBinding );
             if ( !reader.hasNext() ) {
                 throw new IllegalStateException( "reader has no input" );
@@ -213,28 +312,143 @@ public class JavolutionTranscoder extends SessionTranscoder implements SessionAt
             LOG.warn( "Caught Exception decoding "+ in.length +" bytes of data", e );
             throw new RuntimeException( e );
         } finally {
-            closeSilently( reader );
+            releaseReader( pooledReader );
         }
     }
 
-    private void closeSilently( final XMLObjectWriter stream ) {
-        if ( stream != null ) {
-            try {
-                stream.close();
-            } catch ( final XMLStreamException e ) {
-                // fail silently
+    private static boolean isBinary( final byte[] in ) {
+        return in.length > 0 && in[0] == BINARY_FORMAT;
+    }
+
+    private static XMLReferenceResolver newReferenceResolver() {
+        final XMLReferenceResolver xmlReferenceResolver = new XMLReferenceResolver();
+        setReferenceAttributes( xmlReferenceResolver );
+        return xmlReferenceResolver;
+    }
+
+    /**
+     * Resets the given resolver, {@link XMLReferenceResolver#reset()} also resets the attribute names.
+     */
+    private static void resetReferenceResolver( final XMLReferenceResolver xmlReferenceResolver ) {
+        xmlReferenceResolver.reset();
+        setReferenceAttributes( xmlReferenceResolver );
+    }
+
+    private static void setReferenceAttributes( final XMLReferenceResolver xmlReferenceResolver ) {
+        xmlReferenceResolver.setIdentifierAttribute( REFERENCE_ATTRIBUTE_ID );
+        xmlReferenceResolver.setReferenceAttribute( REFERENCE_ATTRIBUTE_REF_ID );
+    }
+
+    /**
+     * The {@link XMLObjectWriter} and buffers of a serialization, reset afterwards for reuse.
+     */
+    private static final class PooledWriter {
+
+        final XMLObjectWriter writer = new XMLObjectWriter();
+        final XMLReferenceResolver referenceResolver = newReferenceResolver();
+        ByteBufferOutputStream out = new ByteBufferOutputStream( 0, INITIAL_BUFFER_SIZE );
+        private Deflater _deflater;
+        private ByteBufferOutputStream _deflated;
+        private byte[] _chunk;
+
+        /**
+         * Returns the written xml deflated, prefixed with {@link JavolutionTranscoder#BINARY_FORMAT}.
+         */
+        byte[] deflate() {
+            if ( _deflater == null ) {
+                _deflater = new Deflater( Deflater.BEST_SPEED );
+                _deflated = new ByteBufferOutputStream( 0, INITIAL_BUFFER_SIZE );
+                _chunk = new byte[INITIAL_BUFFER_SIZE];
             }
+            final ByteBuffer xml = out.toByteBuffer();
+            _deflated.write( BINARY_FORMAT );
+            _deflater.setInput( xml.array(), xml.position(), xml.remaining() );
+            _deflater.finish();
+            while ( !_deflater.finished() ) {
+                final int count = _deflater.deflate( _chunk );
+                _deflated.write( _chunk, 0, count );
+            }
+            return _deflated.toByteArray();
         }
+
+        /**
+         * Resets this writer for reuse.
+         *
+         * @return <code>false</code> if the buffers have grown larger than {@link JavolutionTranscoder#MAX_POOLED_BUFFER_SIZE},
+         *  so that this writer should not be kept.
+         */
+        boolean reset() {
+            writer.reset();
+            resetReferenceResolver( referenceResolver );
+            if ( out.size() > MAX_POOLED_BUFFER_SIZE
+                    || _deflater != null && _deflated.size() > MAX_POOLED_BUFFER_SIZE ) {
+                return false;
+            }
+            out.reset();
+            if ( _deflater != null ) {
+                _deflater.reset();
+                _deflated.reset();
+            }
+            return true;
+        }
+
+        /**
+         * Releases the native memory of the {@link Deflater}, this writer must not be used afterwards.
+         */
+        void end() {
+            if ( _deflater != null ) {
+                _deflater.end();
+            }
+        }
+
     }
 
-    private void closeSilently( final XMLObjectReader stream ) {
-        if ( stream != null ) {
-            try {
-                stream.close();
-            } catch ( final XMLStreamException e ) {
-                // fail silently
+    /**
+     * The {@link XMLObjectReader} and {@link Inflater} of a deserialization, reset afterwards for reuse.
+     */
+    private static final class PooledReader {
+
+        final XMLObjectReader reader = new XMLObjectReader();
+        final XMLReferenceResolver referenceResolver = newReferenceResolver();
+        private Inflater _inflater;
+
+        /**
+         * Returns the stream to read the xml from, the given data is inflated if it was
+         * written in binary mode.
+         */
+        InputStream input( final byte[] in ) {
+            if ( !isBinary( in ) ) {
+                return new ByteArrayInputStream( in );
+            }
+            if ( _inflater == null ) {
+                _inflater = new Inflater();
+            }
+            return new InflaterInputStream( new ByteArrayInputStream( in, 1, in.length - 1 ), _inflater, INITIAL_BUFFER_SIZE );
+        }
+
+        /**
+         * Resets this reader for reuse.
+         *
+         * @return always <code>true</code>, the reader keeps no buffers.
+         */
+        boolean reset() {
+            reader.reset();
+            resetReferenceResolver( referenceResolver );
+            if ( _inflater != null ) {
+                _inflater.reset();
             }
+            return true;
         }
+
+        /**
+         * Releases the native memory of the {@link Inflater}, this reader must not be used afterwards.
+         */
+        void end() {
+            if ( _inflater != null ) {
+                _inflater.end();
+            }
+        }
+
     }
 
 }
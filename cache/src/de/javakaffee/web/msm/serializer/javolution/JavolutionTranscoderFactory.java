@@ -32,10 +32,28 @@ import de.javakaffee.web.msm.TranscoderFactory;
  */
 public class JavolutionTranscoderFactory implements TranscoderFactory {
 
+    private final boolean _binary;
     private boolean _copyCollectionsForSerialization;
     private String[] _customConverterClassNames;
     private JavolutionTranscoder _transcoder;
 
+    /**
+     * Creates a factory for transcoders that write xml.
+     */
+    public JavolutionTranscoderFactory() {
+        this( false );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param binary specifies, if the created transcoder writes the xml deflated.
+     * @see JavolutionBinaryTranscoderFactory
+     */
+    protected JavolutionTranscoderFactory( final boolean binary ) {
+        _binary = binary;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -53,7 +71,7 @@ public class JavolutionTranscoderFactory implements TranscoderFactory {
     private JavolutionTranscoder getTranscoder( final Manager manager ) {
         if ( _transcoder == null ) {
             final CustomXMLFormat<?>[] customFormats = loadCustomFormats( manager );
-            _transcoder = new JavolutionTranscoder( manager, _copyCollectionsForSerialization, customFormats );
+            _transcoder = new JavolutionTranscoder( manager, _copyCollectionsForSerialization, _binary, customFormats );
         }
         return _transcoder;
     }
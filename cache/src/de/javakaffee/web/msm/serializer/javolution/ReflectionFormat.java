@@ -51,6 +51,12 @@ import sun.reflect.ReflectionFactory;
  * are checked for contained xml elements and in this case the values are
  * written to the object.
  * </p>
+ * <p>
+ * Attributes are bound by index: as they are written in the order of the
+ * {@link AttributeHandler}s, an attribute is matched against the handlers
+ * following the previously matched one, the attribute name is only looked up
+ * by name (e.g. if the class has changed) if this fails.
+ * </p>
  * 
  * @param <T> the type that is read/written by this {@link XMLFormat}.
  * 
@@ -67,7 +73,7 @@ public class ReflectionFormat<T> extends XMLFormat<T> {
     private final Constructor<T> _constructor;
     private final AttributeHandler[] _attributes;
     private final Field[] _elements;
-    private final Map<String, Field> _attributesMap;
+    private final Map<String, AttributeHandler> _attributesMap;
 
     /**
      * Creates a new instance for the provided class.
@@ -96,9 +102,10 @@ public class ReflectionFormat<T> extends XMLFormat<T> {
         _elements = fields.elements.toArray( new Field[fields.elements.size()] );
 
         // no concurrency support required here, as we'll only read from the map
-        _attributesMap = new HashMap<String, Field>( _attributes.length + 1 );
-        for ( final AttributeHandler attribute : _attributes ) {
-            _attributesMap.put( attribute._field.getName(), attribute._field );
+        _attributesMap = new HashMap<String, AttributeHandler>( _attributes.length + 1 );
+        for ( int i = 0; i < _attributes.length; i++ ) {
+            _attributes[i]._index = i;
+            _attributesMap.put( _attributes[i]._name, _attributes[i] );
         }
     }
 
@@ -211,17 +218,37 @@ public class ReflectionFormat<T> extends XMLFormat<T> {
 
     private void readAttributes( final javolution.xml.XMLFormat.InputElement input, final T obj ) throws XMLStreamException {
         final Attributes attributes = input.getAttributes();
+        int next = 0;
         for ( int i = 0; i < attributes.getLength(); i++ ) {
             final CharArray name = attributes.getLocalName( i );
-            if ( !name.equals( "class" ) && !name.equals( JavolutionTranscoder.REFERENCE_ATTRIBUTE_ID ) ) {
-                final Field field = _attributesMap.get( name.toString() );
-                if ( field != null ) {
-                    setFieldFromAttribute( obj, field, input );
-                } else {
-                    LOG.warn( "Did not find field " + name + ", attribute value is " + attributes.getValue( i ) );
+            AttributeHandler handler = findAttributeHandler( name, next );
+            if ( handler == null ) {
+                if ( name.equals( "class" ) || name.equals( JavolutionTranscoder.REFERENCE_ATTRIBUTE_ID ) ) {
+                    continue;
                 }
+                handler = _attributesMap.get( name.toString() );
+            }
+            if ( handler != null ) {
+                next = handler._index + 1;
+                setFieldFromAttribute( obj, handler, attributes.getValue( i ) );
+            } else {
+                LOG.warn( "Did not find field " + name + ", attribute value is " + attributes.getValue( i ) );
+            }
+        }
+    }
+
+    /**
+     * Searches the attribute handler for the given name, starting at the given index.
+     * Attributes of null values are not written, so this skips the handlers of such
+     * attributes without allocating a string for the name.
+     */
+    private AttributeHandler findAttributeHandler( final CharArray name, final int start ) {
+        for ( int i = start; i < _attributes.length; i++ ) {
+            if ( name.equals( _attributes[i]._name ) ) {
+                return _attributes[i];
             }
         }
+        return null;
     }
 
     private void readElements( final javolution.xml.XMLFormat.InputElement input, final T obj ) {
@@ -269,9 +296,12 @@ public class ReflectionFormat<T> extends XMLFormat<T> {
 
     static abstract class AttributeHandler {
         protected final Field _field;
+        protected final String _name;
+        protected int _index;
 
         public AttributeHandler( final Field field ) {
             _field = field;
+            _name = field.getName();
         }
 
         abstract void writeAttribute( final Object obj, final XMLFormat.OutputElement output ) throws IllegalArgumentException,
@@ -413,132 +443,80 @@ public class ReflectionFormat<T> extends XMLFormat<T> {
         }
     }
 
-    private void setFieldFromAttribute( final T obj, final Field field, final javolution.xml.XMLFormat.InputElement input ) {
+    /**
+     * Sets the field of the given handler from the attribute value, the value is
+     * read directly instead of looking up the attribute by name again.
+     */
+    private void setFieldFromAttribute( final T obj, final AttributeHandler handler, final CharArray value ) {
 
+        final Field field = handler._field;
         try {
 
-            final String fieldName = field.getName();
             final Class<?> fieldType = field.getType();
             if ( fieldType.isPrimitive() ) {
 
                 if ( fieldType == boolean.class ) {
-                    field.setBoolean( obj, input.getAttribute( fieldName, false ) );
+                    field.setBoolean( obj, value.toBoolean() );
                 } else if ( fieldType == int.class ) {
-                    field.setInt( obj, input.getAttribute( fieldName, 0 ) );
+                    field.setInt( obj, value.toInt() );
                 } else if ( fieldType == long.class ) {
-                    field.setLong( obj, input.getAttribute( fieldName, (long) 0 ) );
+                    field.setLong( obj, value.toLong() );
                 } else if ( fieldType == float.class ) {
-                    field.setFloat( obj, input.getAttribute( fieldName, (float) 0 ) );
+                    field.setFloat( obj, value.toFloat() );
                 } else if ( fieldType == double.class ) {
-                    field.setDouble( obj, input.getAttribute( fieldName, (double) 0 ) );
+                    field.setDouble( obj, value.toDouble() );
                 } else if ( fieldType == byte.class ) {
-                    field.setByte( obj, input.getAttribute( fieldName, (byte) 0 ) );
+                    field.setByte( obj, TypeFormat.parseByte( value ) );
                 } else if ( fieldType == char.class ) {
-                    field.setChar( obj, input.getAttribute( fieldName, (char) 0 ) );
+                    field.setChar( obj, toChar( handler._name, value ) );
                 } else if ( fieldType == short.class ) {
-                    field.setShort( obj, input.getAttribute( fieldName, (short) 0 ) );
+                    field.setShort( obj, TypeFormat.parseShort( value ) );
                 }
             } else if ( fieldType.isEnum() ) {
-                final String value = input.getAttribute( fieldName, (String) null );
-                if ( value != null ) {
-                    @SuppressWarnings( "unchecked" )
-                    final Enum enumValue = Enum.valueOf( fieldType.asSubclass( Enum.class ), value );
-                    field.set( obj, enumValue );
-                }
+                @SuppressWarnings( "unchecked" )
+                final Enum enumValue = Enum.valueOf( fieldType.asSubclass( Enum.class ), value.toString() );
+                field.set( obj, enumValue );
             } else {
 
-                final CharArray object = input.getAttribute( fieldName );
-
-                if ( object != null ) {
-                    if ( fieldType == String.class ) {
-                        field.set( obj, getAttribute( input, fieldName, (String) null ) );
-                    } else if ( fieldType.isAssignableFrom( Boolean.class ) ) {
-                        field.set( obj, getAttribute( input, fieldName, (Boolean) null ) );
-                        field.set( obj, getAttribute( input, fieldName, (Boolean) null ) );
-                    } else if ( fieldType.isAssignableFrom( Integer.class ) ) {
-                        field.set( obj, getAttribute( input, fieldName, (Integer) null ) );
-                    } else if ( fieldType.isAssignableFrom( Long.class ) ) {
-                        field.set( obj, getAttribute( input, fieldName, (Long) null ) );
-                    } else if ( fieldType.isAssignableFrom( Short.class ) ) {
-                        field.set( obj, getAttribute( input, fieldName, (Short) null ) );
-                    } else if ( fieldType.isAssignableFrom( Double.class ) ) {
-                        field.set( obj, getAttribute( input, fieldName, (Double) null ) );
-                    } else if ( fieldType.isAssignableFrom( Float.class ) ) {
-                        field.set( obj, getAttribute( input, fieldName, (Float) null ) );
-                    } else if ( fieldType.isAssignableFrom( Byte.class ) ) {
-                        field.set( obj, getAttribute( input, fieldName, (Byte) null ) );
-                    } else if ( fieldType.isAssignableFrom( Character.class ) ) {
-                        field.set( obj, getAttribute( input, fieldName, (Character) null ) );
-                    } else if ( Number.class.isAssignableFrom( fieldType ) ) {
-                        @SuppressWarnings( "unchecked" )
-                        final XMLNumberFormat<?> format = getNumberFormat( (Class<? extends Number>) fieldType );
-                        field.set( obj, format.newInstanceFromAttribute( input, fieldName ) );
-                    } else if ( fieldType == Currency.class ) {
-                        field.set( obj, Currency.getInstance( object.toString() ) );
-                    } else {
-                        throw new IllegalArgumentException( "Not yet supported as attribute: " + fieldType );
-                    }
+                if ( fieldType == String.class ) {
+                    field.set( obj, value.toString() );
+                } else if ( fieldType.isAssignableFrom( Boolean.class ) ) {
+                    field.set( obj, Boolean.valueOf( value.toBoolean() ) );
+                } else if ( fieldType.isAssignableFrom( Integer.class ) ) {
+                    field.set( obj, Integer.valueOf( value.toInt() ) );
+                } else if ( fieldType.isAssignableFrom( Long.class ) ) {
+                    field.set( obj, Long.valueOf( value.toLong() ) );
+                } else if ( fieldType.isAssignableFrom( Short.class ) ) {
+                    field.set( obj, Short.valueOf( TypeFormat.parseShort( value ) ) );
+                } else if ( fieldType.isAssignableFrom( Double.class ) ) {
+                    field.set( obj, Double.valueOf( value.toDouble() ) );
+                } else if ( fieldType.isAssignableFrom( Float.class ) ) {
+                    field.set( obj, Float.valueOf( value.toFloat() ) );
+                } else if ( fieldType.isAssignableFrom( Byte.class ) ) {
+                    field.set( obj, Byte.valueOf( TypeFormat.parseByte( value ) ) );
+                } else if ( fieldType.isAssignableFrom( Character.class ) ) {
+                    field.set( obj, Character.valueOf( toChar( handler._name, value ) ) );
+                } else if ( Number.class.isAssignableFrom( fieldType ) ) {
+                    @SuppressWarnings( "unchecked" )
+                    final XMLNumberFormat<?> format = getNumberFormat( (Class<? extends Number>) fieldType );
+                    field.set( obj, format.newInstanceFromValue( value ) );
+                } else if ( fieldType == Currency.class ) {
+                    field.set( obj, Currency.getInstance( value.toString() ) );
+                } else {
+                    throw new IllegalArgumentException( "Not yet supported as attribute: " + fieldType );
                 }
             }
 
         } catch ( final Exception e ) {
-            try {
-                LOG.error( "Caught exception when trying to set field ("+ field +") from attribute ("+ input.getAttribute( field.getName() )+").", e );
-            } catch ( final XMLStreamException e1 ) {
-                // fail silently
-            }
+            LOG.error( "Caught exception when trying to set field ("+ field +") from attribute ("+ value +").", e );
         }
     }
-    
-    private String getAttribute( final InputElement input, final String name, final String defaultValue ) throws XMLStreamException {
-        final CharArray value = input.getAttribute( name );
-        return value != null ? value.toString() : defaultValue;
-    }
-    
-    private Boolean getAttribute( final InputElement input, final String name, final Boolean defaultValue ) throws XMLStreamException {
-        final CharArray value = input.getAttribute( name );
-        return value != null ? Boolean.valueOf( value.toBoolean() ) : defaultValue;
-    }
-    
-    private Integer getAttribute( final InputElement input, final String name, final Integer defaultValue ) throws XMLStreamException {
-        final CharArray value = input.getAttribute( name );
-        return value != null ? Integer.valueOf( value.toInt() ) : defaultValue;
-    }
-    
-    private Long getAttribute( final InputElement input, final String name, final Long defaultValue ) throws XMLStreamException {
-        final CharArray value = input.getAttribute( name );
-        return value != null ? Long.valueOf( value.toLong() ) : defaultValue;
-    }
-    
-    private Short getAttribute( final InputElement input, final String name, final Short defaultValue ) throws XMLStreamException {
-        final CharArray value = input.getAttribute( name );
-        return value != null ? Short.valueOf( TypeFormat.parseShort( value ) ) : defaultValue;
-    }
-    
-    private Float getAttribute( final InputElement input, final String name, final Float defaultValue ) throws XMLStreamException {
-        final CharArray value = input.getAttribute( name );
-        return value != null ? Float.valueOf( value.toFloat() ) : defaultValue;
-    }
-    
-    private Double getAttribute( final InputElement input, final String name, final Double defaultValue ) throws XMLStreamException {
-        final CharArray value = input.getAttribute( name );
-        return value != null ? Double.valueOf( value.toDouble() ) : defaultValue;
-    }
-    
-    private Byte getAttribute( final InputElement input, final String name, final Byte defaultValue ) throws XMLStreamException {
-        final CharArray value = input.getAttribute( name );
-        return value != null ? Byte.valueOf( TypeFormat.parseByte( value ) ) : defaultValue;
-    }
-    
-    private Character getAttribute( final InputElement input, final String name, final Character defaultValue ) throws XMLStreamException {
-        final CharArray value = input.getAttribute( name );
-        if ( value != null ) {
-            if ( value.length() > 1 ) {
-                throw new XMLStreamException( "The attribute '" + name + "' of type Character has illegal value (length > 1): " + value );
-            }
-            return Character.valueOf( value.charAt( 0 ) );
+
+    private static char toChar( final String name, final CharArray value ) throws XMLStreamException {
+        if ( value.length() != 1 ) {
+            throw new XMLStreamException( "The attribute '" + name + "' of type char/Character has illegal value (length != 1): " + value );
         }
-        return defaultValue;
+        return value.charAt( 0 );
     }
 
     /**
@@ -628,7 +606,22 @@ public class ReflectionFormat<T> extends XMLFormat<T> {
          */
         public T newInstanceFromAttribute( final javolution.xml.XMLFormat.InputElement xml, final String name )
             throws XMLStreamException {
-            final Object value = getAttribute( name, xml );
+            return newNumber( getAttribute( name, xml ) );
+        }
+
+        /**
+         * Creates a new instance from the given attribute value, which is parsed
+         * as the parameter of the associated constructor.
+         *
+         * @param value
+         *            the attribute value.
+         * @return a new number instance.
+         */
+        public T newInstanceFromValue( final CharArray value ) throws XMLStreamException {
+            return newNumber( parse( value ) );
+        }
+
+        private T newNumber( final Object value ) throws XMLStreamException {
             try {
                 return _constructor.newInstance( value );
             } catch ( final Exception e ) {
@@ -638,6 +631,8 @@ public class ReflectionFormat<T> extends XMLFormat<T> {
 
         protected abstract Object getAttribute( String name, InputElement xml ) throws XMLStreamException;
 
+        protected abstract Object parse( CharArray value );
+
         /**
          * Does not perform anything, as the number is already created in
          * {@link #newInstance(Class, javolution.xml.XMLFormat.InputElement)}.
@@ -676,6 +671,14 @@ public class ReflectionFormat<T> extends XMLFormat<T> {
             return xml.getAttribute( name, 0 );
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected Object parse( final CharArray value ) {
+            return value.toInt();
+        }
+
     }
 
     static class XMLNumberLongFormat<T extends Number> extends XMLNumberFormat<T> {
@@ -692,6 +695,14 @@ public class ReflectionFormat<T> extends XMLFormat<T> {
             return xml.getAttribute( name, 0L );
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected Object parse( final CharArray value ) {
+            return value.toLong();
+        }
+
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2010 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer.kryo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.catalina.ha.ClusterManager;
+import org.apache.catalina.ha.session.ClusterManagerBase;
+import org.apache.catalina.ha.session.ReplicationValueCodec;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.ObjectBuffer;
+import com.esotericsoftware.kryo.SerializationException;
+
+/**
+ * A {@link ReplicationValueCodec} for the tomcat cluster that uses {@link Kryo} with
+ * the serializers of the {@link KryoTranscoder}. Each value is written with its class,
+ * the classes are resolved with the class loader of the web application.
+ * <p>
+ * To use it, set the <code>valueCodecClassName</code> of the
+ * {@link org.apache.catalina.ha.session.DeltaManager} to this class on all members.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class KryoReplicationValueCodec implements ReplicationValueCodec {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /**
+     * Buffers that have grown larger than this are not kept for the next value.
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+
+    private Kryo _kryo;
+    private final ThreadLocal<ObjectBuffer> _buffers = new ThreadLocal<ObjectBuffer>();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init( final ClusterManager manager ) {
+        final ClassLoader[] loaders = ClusterManagerBase.getClassLoaders( manager.getContainer() );
+        final ClassLoader classLoader = loaders != null && loaders.length > 0 ? loaders[0] : null;
+        _kryo = new KryoTranscoder( classLoader, getCustomConverterClassNames(), false,
+                INITIAL_BUFFER_SIZE, KryoTranscoder.DEFAULT_MAX_BUFFER_SIZE ).getKryo();
+    }
+
+    /**
+     * The class names of {@link KryoCustomization}s, {@link SerializerFactory}s and
+     * {@link UnregisteredClassHandler}s to use, subclasses may override this.
+     *
+     * @return <code>null</code>
+     */
+    protected String[] getCustomConverterClassNames() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] encode( final Object value ) throws IOException {
+        ObjectBuffer buffer = _buffers.get();
+        if ( buffer == null ) {
+            buffer = new ObjectBuffer( _kryo, INITIAL_BUFFER_SIZE, KryoTranscoder.DEFAULT_MAX_BUFFER_SIZE );
+            _buffers.set( buffer );
+        }
+        try {
+            final byte[] result = buffer.writeClassAndObject( value );
+            if ( result.length > MAX_POOLED_BUFFER_SIZE ) {
+                _buffers.remove();
+            }
+            return result;
+        } catch ( final SerializationException e ) {
+            _buffers.remove();
+            throw toIOException( "Could not serialize " + value.getClass().getName(), e );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object decode( final byte[] data, final int offset, final int length ) throws IOException {
+        try {
+            return _kryo.readClassAndObject( ByteBuffer.wrap( data, offset, length ) );
+        } catch ( final SerializationException e ) {
+            throw toIOException( "Could not deserialize value", e );
+        }
+    }
+
+    private static IOException toIOException( final String message, final Exception e ) {
+        final IOException result = new IOException( message );
+        result.initCause( e );
+        return result;
+    }
+
+}
@@ -268,6 +268,13 @@ public class KryoTranscoder extends SessionTranscoder implements SessionAttribut
         return new ObjectBuffer( _kryo, _initialBufferSize, _maxBufferSize  ).writeObject( attributes );
     }
 
+    /**
+     * The {@link Kryo} with all serializers and customizations registered.
+     */
+    Kryo getKryo() {
+        return _kryo;
+    }
+
     /**
      * {@inheritDoc}
      */
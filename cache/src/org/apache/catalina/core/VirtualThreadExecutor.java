@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.Executor;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.util.LifecycleSupport;
+
+/**
+ * An executor that runs every task on a new virtual thread, for connectors
+ * whose requests spend most of their time blocked on remote calls (session
+ * stores, JDBC). Configure it like the standard executor:
+ * <pre>
+ * &lt;Executor name="virtual" className="org.apache.catalina.core.VirtualThreadExecutor"/&gt;
+ * &lt;Connector executor="virtual" .../&gt;
+ * </pre>
+ * Virtual threads need a Java 21 or later runtime; they are looked up by
+ * reflection, so this class still compiles and loads on older runtimes but
+ * fails to start there.
+ * <p>
+ * There is no pool and no queue: <code>maxThreads</code> limits the number of
+ * tasks running at once, further tasks are rejected. The default of -1 means
+ * no limit.
+ */
+public class VirtualThreadExecutor implements Executor {
+
+    // ---------------------------------------------- Properties
+    protected String namePrefix = "tomcat-virt-";
+
+    protected int maxThreads = -1;
+
+    protected String name;
+
+    protected ThreadFactory threadFactory = null;
+
+    /**
+     * Number of tasks running.
+     */
+    protected AtomicInteger activeCount = new AtomicInteger();
+
+    protected AtomicInteger largestActiveCount = new AtomicInteger();
+
+    protected AtomicLong completedTaskCount = new AtomicLong();
+
+    private LifecycleSupport lifecycle = new LifecycleSupport(this);
+    // ---------------------------------------------- Constructors
+    public VirtualThreadExecutor() {
+        //empty constructor for the digester
+    }
+
+
+
+    // ---------------------------------------------- Public Methods
+    public void start() throws LifecycleException {
+        lifecycle.fireLifecycleEvent(BEFORE_START_EVENT, null);
+        lifecycle.fireLifecycleEvent(START_EVENT, null);
+        threadFactory = createThreadFactory(namePrefix);
+        if (threadFactory == null) {
+            throw new LifecycleException("Executor " + name + ": virtual threads are not supported by this JVM ("
+                    + System.getProperty("java.version") + "), use Java 21 or later or the StandardThreadExecutor");
+        }
+        lifecycle.fireLifecycleEvent(AFTER_START_EVENT, null);
+    }
+
+    public void stop() throws LifecycleException{
+        lifecycle.fireLifecycleEvent(BEFORE_STOP_EVENT, null);
+        lifecycle.fireLifecycleEvent(STOP_EVENT, null);
+        threadFactory = null;
+        lifecycle.fireLifecycleEvent(AFTER_STOP_EVENT, null);
+    }
+
+    public void execute(final Runnable command) {
+        ThreadFactory factory = threadFactory;
+        if (factory == null) throw new IllegalStateException("VirtualThreadExecutor not started.");
+        int active = activeCount.incrementAndGet();
+        if (maxThreads > 0 && active > maxThreads) {
+            activeCount.decrementAndGet();
+            throw new RejectedExecutionException("Executor " + name + " is running " + maxThreads + " tasks");
+        }
+        int largest = largestActiveCount.get();
+        while (active > largest && !largestActiveCount.compareAndSet(largest, active)) {
+            largest = largestActiveCount.get();
+        }
+        try {
+            factory.newThread(new Runnable() {
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        activeCount.decrementAndGet();
+                        completedTaskCount.incrementAndGet();
+                    }
+                }
+            }).start();
+        } catch (RuntimeException x) {
+            activeCount.decrementAndGet();
+            throw x;
+        } catch (Error x) {
+            activeCount.decrementAndGet();
+            throw x;
+        }
+    }
+
+    /**
+     * Create a factory of virtual threads named with the given prefix and a
+     * sequence number, using <code>Thread.ofVirtual()</code>.
+     *
+     * @return the factory, or <code>null</code> if this JVM has no virtual threads
+     */
+    public static ThreadFactory createThreadFactory(String namePrefix) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, Long.TYPE).invoke(builder, namePrefix, Long.valueOf(1));
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception x) {
+            // NoSuchMethodException before Java 21, or virtual threads disabled
+            return null;
+        }
+    }
+
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Add a LifecycleEvent listener to this component.
+     *
+     * @param listener The listener to add
+     */
+    public void addLifecycleListener(LifecycleListener listener) {
+        lifecycle.addLifecycleListener(listener);
+    }
+
+
+    /**
+     * Get the lifecycle listeners associated with this lifecycle. If this
+     * Lifecycle has no listeners registered, a zero-length array is returned.
+     */
+    public LifecycleListener[] findLifecycleListeners() {
+        return lifecycle.findLifecycleListeners();
+    }
+
+
+    /**
+     * Remove a LifecycleEvent listener from this component.
+     *
+     * @param listener The listener to remove
+     */
+    public void removeLifecycleListener(LifecycleListener listener) {
+        lifecycle.removeLifecycleListener(listener);
+    }
+
+    // Statistics, named like those of the StandardThreadExecutor
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    public long getCompletedTaskCount() {
+        return completedTaskCount.get();
+    }
+
+    public int getLargestPoolSize() {
+        return largestActiveCount.get();
+    }
+
+    public int getPoolSize() {
+        return activeCount.get();
+    }
+
+    public int getQueueSize() {
+        return 0;
+    }
+
+}
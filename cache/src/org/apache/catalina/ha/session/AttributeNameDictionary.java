@@ -0,0 +1,347 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.ha.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.util.Arrays;
+
+/**
+ * The attribute names of the compact {@link DeltaRequest} format. A node
+ * assigns an index to each attribute name it replicates, and sends the name
+ * along with its index until every member acknowledged it, later deltas
+ * refer to the index only. Each receiving node keeps the names of every
+ * sender, and acknowledges the names it received with an
+ * <code>EVT_ATTRIBUTE_NAMES_ACK</code> message to the sender. So a delta
+ * never refers to a name the receiver didn't process yet, whatever the
+ * order the messages are delivered in.
+ * <p>
+ * The indexes belong to a generation. A sender starts a new generation when
+ * the members change, since a new member doesn't know the names sent before,
+ * and when {@link #reset()} is called by the background thread, which lets
+ * the names of a generation that is full be replaced. The receiver keeps
+ * the names of the current and the previous generation of each sender.
+ *
+ * @version $Id$
+ */
+public class AttributeNameDictionary {
+
+    /**
+     * The name code of a name that is sent without index.
+     */
+    public static final int LITERAL = 0;
+
+    private final int maxNames;
+    private final AtomicInteger nextGeneration = new AtomicInteger(new Random().nextInt());
+    private volatile Generation generation = null;
+
+    /**
+     * The names received, by the unique id of the sender.
+     */
+    private final Map<String, SenderNames> senders = new ConcurrentHashMap<String, SenderNames>();
+
+    /**
+     * @param maxNames the maximum number of names of a generation, further
+     *  names are sent without index
+     */
+    public AttributeNameDictionary(int maxNames) {
+        this.maxNames = maxNames;
+    }
+
+    // ----------------------------------------------------------------- sending
+
+    /**
+     * Return the generation to encode a delta with, a new one if the members
+     * are not the ones of the current generation.
+     * @param members the current members of the cluster
+     */
+    public Generation getGeneration(Member[] members) {
+        Generation current = generation;
+        if (current == null || !current.knows(members)) {
+            synchronized (this) {
+                current = generation;
+                if (current == null || !current.knows(members)) {
+                    current = new Generation(nextGeneration.getAndIncrement(), members, maxNames);
+                    generation = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Start a new generation with the next delta.
+     */
+    public void reset() {
+        generation = null;
+    }
+
+    /**
+     * Read the acknowledgements of a member, created by
+     * {@link #takeAcknowledgements(String)}.
+     * @param sender the unique id of the acknowledging member
+     * @param data the acknowledgements
+     */
+    public void acknowledged(String sender, byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int count = in.readInt();
+        Generation current = generation;
+        for (int i = 0; i < count; i++) {
+            int id = in.readInt();
+            int index = in.readInt();
+            if (current != null && current.id == id) current.acknowledged(sender, index);
+        }
+    }
+
+    /**
+     * The names a node sends in one generation.
+     */
+    public static class Generation {
+        private final int id;
+        private final int maxNames;
+        private final Map<Member, Member> members = new IdentityHashMap<Member, Member>();
+        private final Set<String> memberIds = new HashSet<String>();
+        private final ConcurrentHashMap<String, Entry> names = new ConcurrentHashMap<String, Entry>();
+        private final AtomicReferenceArray<Entry> indexes;
+        private final AtomicInteger size = new AtomicInteger();
+
+        Generation(int id, Member[] members, int maxNames) {
+            this.id = id;
+            this.maxNames = maxNames;
+            this.indexes = new AtomicReferenceArray<Entry>(Math.max(0, maxNames));
+            for (int i = 0; i < members.length; i++) {
+                this.members.put(members[i], members[i]);
+                this.memberIds.add(getSenderId(members[i]));
+            }
+        }
+
+        /**
+         * @return the id of the generation
+         */
+        public int getId() {
+            return id;
+        }
+
+        boolean knows(Member[] current) {
+            if (current.length != members.size()) return false;
+            for (int i = 0; i < current.length; i++) {
+                if (!members.containsKey(current[i])) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Return the code that is written for a name. It is
+         * {@link AttributeNameDictionary#LITERAL}, or <code>(index + 1) * 2</code>
+         * if the name must be written along with its index, or
+         * <code>(index + 1) * 2 + 1</code> if all members acknowledged the
+         * index.
+         * @param name the attribute name
+         */
+        public int encode(String name) {
+            Entry entry = names.get(name);
+            if (entry == null) {
+                if (size.get() >= maxNames) return LITERAL;
+                int index = size.getAndIncrement();
+                if (index >= maxNames) return LITERAL;
+                Entry created = new Entry(index, memberIds.isEmpty());
+                // if another thread was faster, the index of created stays unused
+                entry = names.putIfAbsent(name, created);
+                if (entry == null) {
+                    entry = created;
+                    indexes.set(index, created);
+                }
+            }
+            int code = (entry.index + 1) << 1;
+            return entry.acknowledged ? code | 1 : code;
+        }
+
+        void acknowledged(String member, int index) {
+            if (index < 0 || index >= indexes.length() || !memberIds.contains(member)) return;
+            Entry entry = indexes.get(index);
+            if (entry == null || entry.acknowledged) return;
+            synchronized (entry) {
+                entry.members.add(member);
+                if (entry.members.size() == memberIds.size()) entry.acknowledged = true;
+            }
+        }
+    }
+
+    private static class Entry {
+        final int index;
+        final Set<String> members = new HashSet<String>();
+        volatile boolean acknowledged;
+
+        Entry(int index, boolean acknowledged) {
+            this.index = index;
+            this.acknowledged = acknowledged;
+        }
+    }
+
+    // --------------------------------------------------------------- receiving
+
+    /**
+     * Remember a name sent along with its index, and queue its
+     * acknowledgement.
+     * @param sender the unique id of the sender
+     */
+    public void define(String sender, int generation, int index, String name) {
+        SenderNames names = getSenderNames(sender);
+        synchronized (names) {
+            String[] table = names.table(generation, true);
+            if (table == null) return;
+            if (index >= table.length) {
+                String[] grown = new String[Math.max(index + 1, table.length * 2)];
+                System.arraycopy(table, 0, grown, 0, table.length);
+                table = grown;
+                names.replace(generation, table);
+            }
+            table[index] = name;
+            names.acks.add(new int[] {generation, index});
+        }
+    }
+
+    /**
+     * @param sender the unique id of the sender
+     * @return the name of the index, or <code>null</code> if it is unknown
+     */
+    public String resolve(String sender, int generation, int index) {
+        SenderNames names = senders.get(sender);
+        if (names == null) return null;
+        synchronized (names) {
+            String[] table = names.table(generation, false);
+            return table != null && index < table.length ? table[index] : null;
+        }
+    }
+
+    /**
+     * Return the acknowledgements of the names defined by a sender since
+     * the last call, to be sent to the sender.
+     * @param sender the unique id of the sender
+     * @return the acknowledgements, or <code>null</code> if there are none
+     */
+    public byte[] takeAcknowledgements(String sender) throws IOException {
+        SenderNames names = senders.get(sender);
+        if (names == null) return null;
+        List<int[]> acks;
+        synchronized (names) {
+            if (names.acks.isEmpty()) return null;
+            acks = names.acks;
+            names.acks = new ArrayList<int[]>();
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(4 + acks.size() * 8);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(acks.size());
+        for (int i = 0; i < acks.size(); i++) {
+            out.writeInt(acks.get(i)[0]);
+            out.writeInt(acks.get(i)[1]);
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private SenderNames getSenderNames(String sender) {
+        SenderNames names = senders.get(sender);
+        if (names == null) {
+            synchronized (senders) {
+                names = senders.get(sender);
+                if (names == null) {
+                    names = new SenderNames();
+                    senders.put(sender, names);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Forget the names of senders that are no longer members.
+     * @param members the current members of the cluster
+     */
+    public void retainSenders(Member[] members) {
+        Map<String, Member> current = new HashMap<String, Member>();
+        for (int i = 0; i < members.length; i++) {
+            current.put(getSenderId(members[i]), members[i]);
+        }
+        for (Iterator<String> i = senders.keySet().iterator(); i.hasNext();) {
+            if (!current.containsKey(i.next())) i.remove();
+        }
+    }
+
+    /**
+     * @return the number of senders whose names are known
+     */
+    public int getSenderCount() {
+        return senders.size();
+    }
+
+    /**
+     * @return the key of the names received from a member
+     */
+    public static String getSenderId(Member member) {
+        return Arrays.toString(member.getUniqueId());
+    }
+
+    /**
+     * The names of the current and the previous generation of a sender, and
+     * the definitions not acknowledged yet.
+     */
+    private static class SenderNames {
+        int current;
+        String[] currentNames = null;
+        int previous;
+        String[] previousNames = null;
+        List<int[]> acks = new ArrayList<int[]>();
+
+        String[] table(int generation, boolean create) {
+            if (currentNames != null && generation == current) return currentNames;
+            if (previousNames != null && generation == previous) return previousNames;
+            // generations of a sender are increasing
+            if (create && (currentNames == null || generation - current > 0)) {
+                previous = current;
+                previousNames = currentNames;
+                current = generation;
+                currentNames = new String[16];
+                return currentNames;
+            }
+            return null;
+        }
+
+        void replace(int generation, String[] names) {
+            if (generation == current) currentNames = names;
+            else previousNames = names;
+        }
+    }
+
+}
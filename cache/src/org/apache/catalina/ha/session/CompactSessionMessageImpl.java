@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.ha.session;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.apache.catalina.ha.ClusterMessageBase;
+
+/**
+ * A {@link SessionMessage} that is <code>Externalizable</code>, so that its
+ * serialized form holds no field descriptors. It doesn't extend
+ * {@link SessionMessageImpl}, whose field descriptors would be written
+ * along with the class. The fields of {@link ClusterMessageBase} are not
+ * written, the message has its own unique id and timestamp.
+ * <p>
+ * The {@link DeltaManager} sends its request messages in this form only with
+ * <code>compactDeltaRequest</code>, since members without this class can't
+ * read it.
+ *
+ * @version $Id$
+ */
+public class CompactSessionMessageImpl extends ClusterMessageBase implements SessionMessage, java.io.Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The version of the externalized form.
+     */
+    private static final byte VERSION = 1;
+
+    private int mEvtType = -1;
+    private byte[] mSession;
+    private String mSessionID;
+    private String mContextName;
+    private long serializationTimestamp;
+    private boolean timestampSet = false ;
+    private String uniqueId;
+
+    public CompactSessionMessageImpl() {
+    }
+
+    /**
+     * @see SessionMessageImpl#SessionMessageImpl(String, int, byte[], String, String)
+     */
+    public CompactSessionMessageImpl(String contextName,
+                                     int eventtype,
+                                     byte[] session,
+                                     String sessionID,
+                                     String uniqueID) {
+        mEvtType = eventtype;
+        mSession = session;
+        mSessionID = sessionID;
+        mContextName = contextName;
+        uniqueId = uniqueID;
+    }
+
+    public int getEventType() { return mEvtType; }
+
+    public byte[] getSession() { return mSession;}
+
+    public String getSessionID(){ return mSessionID; }
+
+    public Object getMessageKey() { return mSessionID; }
+
+    /**
+     * set message send time but only the first setting works (one shot)
+     */
+    public void setTimestamp(long time) {
+        synchronized(this) {
+            if(!timestampSet) {
+                serializationTimestamp=time;
+                timestampSet = true ;
+            }
+        }
+    }
+
+    public long getTimestamp() { return serializationTimestamp;}
+
+    public String getEventTypeString() {
+        return SessionMessageImpl.getEventTypeString(mEvtType);
+    }
+
+    public String getContextName() {
+       return mContextName;
+    }
+
+    public String getUniqueId() {
+        return uniqueId;
+    }
+
+    public void setUniqueId(String uniqueId) {
+        this.uniqueId = uniqueId;
+    }
+
+    public String toString() {
+        return getEventTypeString() + "#" + getContextName() + "#" + getSessionID() ;
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(VERSION);
+        out.writeInt(mEvtType);
+        writeString(out, mContextName);
+        writeString(out, mSessionID);
+        // the unique id is mostly the session id with a timestamp
+        if (uniqueId != null && mSessionID != null && uniqueId.startsWith(mSessionID)) {
+            out.writeBoolean(true);
+            writeString(out, uniqueId.substring(mSessionID.length()));
+        } else {
+            out.writeBoolean(false);
+            writeString(out, uniqueId);
+        }
+        out.writeLong(serializationTimestamp);
+        out.writeBoolean(timestampSet);
+        if (mSession == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(mSession.length);
+            out.write(mSession);
+        }
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown CompactSessionMessageImpl version " + version);
+        }
+        mEvtType = in.readInt();
+        mContextName = readString(in);
+        mSessionID = readString(in);
+        boolean prefixed = in.readBoolean();
+        uniqueId = readString(in);
+        if (prefixed) uniqueId = mSessionID + uniqueId;
+        serializationTimestamp = in.readLong();
+        timestampSet = in.readBoolean();
+        int length = in.readInt();
+        if (length >= 0) {
+            mSession = new byte[length];
+            in.readFully(mSession);
+        } else {
+            mSession = null;
+        }
+    }
+
+    private static void writeString(ObjectOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readString(ObjectInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -41,6 +41,8 @@ import org.apache.catalina.ha.CatalinaCluster;
 import org.apache.catalina.ha.ClusterMessage;
 import org.apache.catalina.ha.tcp.ReplicationValve;
 import org.apache.catalina.session.ManagerBase;
+import org.apache.catalina.tribes.Channel;
+import org.apache.catalina.tribes.ChannelException;
 import org.apache.catalina.tribes.Member;
 import org.apache.catalina.tribes.io.ReplicationStream;
 import org.apache.catalina.util.LifecycleSupport;
@@ -127,6 +129,24 @@ public class DeltaManager extends ClusterManagerBase{
     private boolean receiverQueue = false ;
     private boolean stateTimestampDrop = true ;
     private long stateTransferCreateSendTime; 
+
+    /**
+     * ask for a streamed state transfer, see {@link StreamedStateTransfer}
+     */
+    private boolean streamStateTransfer = true ;
+    private int stateTransferThreads = Runtime.getRuntime().availableProcessors() ;
+    private int stateTransferChunkSize = 256 * 1024 ;
+    private volatile StreamedStateTransfer stateTransfer = null ;
+    private final Object stateTransferLock = new Object() ;
+
+    /**
+     * send delta requests in the compact format, see {@link DeltaRequest#serialize(ReplicationValueCodec, AttributeNameDictionary.Generation)}
+     */
+    private boolean compactDeltaRequest = false ;
+    private String valueCodecClassName = JavaReplicationValueCodec.class.getName() ;
+    private int maxAttributeNames = 1024 ;
+    private ReplicationValueCodec valueCodec = null ;
+    private AttributeNameDictionary attributeNames = null ;
     
     // ------------------------------------------------------------------ stats attributes
     
@@ -141,6 +161,7 @@ public class DeltaManager extends ClusterManagerBase{
     private long counterReceive_EVT_SESSION_DELTA = 0;
     private int counterReceive_EVT_ALL_SESSION_TRANSFERCOMPLETE = 0 ;
     private long counterReceive_EVT_CHANGE_SESSION_ID = 0 ;
+    private long counterReceive_EVT_ATTRIBUTE_NAMES_ACK = 0 ;
     private long counterSend_EVT_GET_ALL_SESSIONS = 0 ;
     private long counterSend_EVT_ALL_SESSION_DATA = 0 ;
     private long counterSend_EVT_SESSION_CREATED = 0;
@@ -149,6 +170,7 @@ public class DeltaManager extends ClusterManagerBase{
     private long counterSend_EVT_SESSION_EXPIRED = 0;
     private int counterSend_EVT_ALL_SESSION_TRANSFERCOMPLETE = 0 ;
     private long counterSend_EVT_CHANGE_SESSION_ID = 0;
+    private long counterSend_EVT_ATTRIBUTE_NAMES_ACK = 0;
     private int counterNoStateTransfered = 0 ;
 
     // ------------------------------------------------------------- Constructor
@@ -234,6 +256,13 @@ public class DeltaManager extends ClusterManagerBase{
         return counterSend_EVT_CHANGE_SESSION_ID;
     }
 
+    /**
+     * @return Returns the counterSend_EVT_ATTRIBUTE_NAMES_ACK.
+     */
+    public long getCounterSend_EVT_ATTRIBUTE_NAMES_ACK() {
+        return counterSend_EVT_ATTRIBUTE_NAMES_ACK;
+    }
+
     /**
      * @return Returns the counterReceive_EVT_ALL_SESSION_DATA.
      */
@@ -290,6 +319,13 @@ public class DeltaManager extends ClusterManagerBase{
     public long getCounterReceive_EVT_CHANGE_SESSION_ID() {
         return counterReceive_EVT_CHANGE_SESSION_ID;
     }
+
+    /**
+     * @return Returns the counterReceive_EVT_ATTRIBUTE_NAMES_ACK.
+     */
+    public long getCounterReceive_EVT_ATTRIBUTE_NAMES_ACK() {
+        return counterReceive_EVT_ATTRIBUTE_NAMES_ACK;
+    }
     
     /**
      * @return Returns the processingTime.
@@ -329,6 +365,144 @@ public class DeltaManager extends ClusterManagerBase{
         return receivedMessageQueue.size() ;
     }
     
+    /**
+     * @return Returns the streamStateTransfer.
+     */
+    public boolean isStreamStateTransfer() {
+        return streamStateTransfer;
+    }
+
+    /**
+     * @param streamStateTransfer ask for a streamed state transfer at start
+     */
+    public void setStreamStateTransfer(boolean streamStateTransfer) {
+        this.streamStateTransfer = streamStateTransfer;
+    }
+
+    /**
+     * @return Returns the number of threads that deserialize a streamed state transfer.
+     */
+    public int getStateTransferThreads() {
+        return stateTransferThreads;
+    }
+
+    /**
+     * @param stateTransferThreads The number of threads that deserialize a
+     *  streamed state transfer, 0 to deserialize at the receiving thread
+     */
+    public void setStateTransferThreads(int stateTransferThreads) {
+        this.stateTransferThreads = stateTransferThreads;
+    }
+
+    /**
+     * @return Returns the chunk size in bytes of a streamed state transfer.
+     */
+    public int getStateTransferChunkSize() {
+        return stateTransferChunkSize;
+    }
+
+    /**
+     * @param stateTransferChunkSize The chunk size in bytes of a streamed state transfer.
+     */
+    public void setStateTransferChunkSize(int stateTransferChunkSize) {
+        this.stateTransferChunkSize = stateTransferChunkSize;
+    }
+
+    /**
+     * @return Returns whether delta requests are sent in the compact format.
+     */
+    public boolean isCompactDeltaRequest() {
+        return compactDeltaRequest;
+    }
+
+    /**
+     * @param compactDeltaRequest send delta requests in the compact format,
+     *  all members must know it. Received delta requests are read in either format.
+     */
+    public void setCompactDeltaRequest(boolean compactDeltaRequest) {
+        this.compactDeltaRequest = compactDeltaRequest;
+    }
+
+    /**
+     * @return Returns the class name of the codec of attribute values in compact delta requests.
+     */
+    public String getValueCodecClassName() {
+        return valueCodecClassName;
+    }
+
+    /**
+     * @param valueCodecClassName The class name of the {@link ReplicationValueCodec}
+     *  of attribute values in compact delta requests, must be the same on all members.
+     */
+    public void setValueCodecClassName(String valueCodecClassName) {
+        this.valueCodecClassName = valueCodecClassName;
+    }
+
+    /**
+     * @return Returns the maximum number of attribute names that are sent as index.
+     */
+    public int getMaxAttributeNames() {
+        return maxAttributeNames;
+    }
+
+    /**
+     * @param maxAttributeNames The maximum number of attribute names that are
+     *  sent as index, other names are always sent in full.
+     */
+    public void setMaxAttributeNames(int maxAttributeNames) {
+        this.maxAttributeNames = maxAttributeNames;
+    }
+
+    /**
+     * @return Returns the number of members whose attribute names are known.
+     */
+    public int getAttributeNameSenders() {
+        AttributeNameDictionary names = attributeNames;
+        return names != null ? names.getSenderCount() : 0;
+    }
+
+    /**
+     * @return Returns the number of sessions received by the last streamed state transfer.
+     */
+    public long getStateTransferSessions() {
+        StreamedStateTransfer transfer = stateTransfer;
+        return transfer != null ? transfer.getSessions() : 0;
+    }
+
+    /**
+     * @return Returns the number of sessions the sender of the last streamed
+     *  state transfer announced, -1 if unknown.
+     */
+    public int getStateTransferTotalSessions() {
+        StreamedStateTransfer transfer = stateTransfer;
+        return transfer != null ? transfer.getTotalSessions() : -1;
+    }
+
+    /**
+     * @return Returns the number of bytes received by the last streamed state transfer.
+     */
+    public long getStateTransferBytes() {
+        StreamedStateTransfer transfer = stateTransfer;
+        return transfer != null ? transfer.getBytes() : 0;
+    }
+
+    /**
+     * @return Returns the duration in msec of the last streamed state transfer,
+     *  up to now if it is not complete.
+     */
+    public long getStateTransferTime() {
+        StreamedStateTransfer transfer = stateTransfer;
+        return transfer != null ? transfer.getTime() : 0;
+    }
+
+    /**
+     * @return Returns the sessions per second of the last streamed state transfer.
+     */
+    public long getStateTransferSessionsPerSecond() {
+        StreamedStateTransfer transfer = stateTransfer;
+        return transfer != null ? transfer.getSessionsPerSecond() : 0;
+    }
+
     /**
      * @return Returns the stateTransferTimeout.
      */
@@ -691,11 +865,32 @@ public class DeltaManager extends ClusterManagerBase{
      * @throws IOException
      */
     protected DeltaRequest deserializeDeltaRequest(DeltaSession session, byte[] data) throws ClassNotFoundException, IOException {
+        return deserializeDeltaRequest(session, data, null);
+    }
+
+    /**
+     * Load Deltarequest from external node, in the serialized or the compact format
+     * @see DeltaRequest#readCompact(byte[], ReplicationValueCodec, AttributeNameDictionary, String)
+     * @param session
+     * @param data message data
+     * @param sender the sender, attribute names sent as index are resolved with it
+     * @return The request
+     * @throws ClassNotFoundException
+     * @throws IOException
+     */
+    protected DeltaRequest deserializeDeltaRequest(DeltaSession session, byte[] data, Member sender) throws ClassNotFoundException, IOException {
         try {
             session.lock();
-            ReplicationStream ois = getReplicationStream(data);
-            session.getDeltaRequest().readExternal(ois);
-            ois.close();
+            if (data.length > 0 && data[0] == DeltaRequest.COMPACT_FORMAT) {
+                if (valueCodec == null)
+                    throw new IOException(sm.getString("deltaManager.compactDeltaRequest.notStarted", getName()));
+                String senderId = sender != null ? AttributeNameDictionary.getSenderId(sender) : "";
+                session.getDeltaRequest().readCompact(data, valueCodec, attributeNames, senderId);
+            } else {
+                ReplicationStream ois = getReplicationStream(data);
+                session.getDeltaRequest().readExternal(ois);
+                ois.close();
+            }
             return session.getDeltaRequest();
         }finally {
             session.unlock();
@@ -713,6 +908,10 @@ public class DeltaManager extends ClusterManagerBase{
     protected byte[] serializeDeltaRequest(DeltaSession session, DeltaRequest deltaRequest) throws IOException {
         try {
             session.lock();
+            if (compactDeltaRequest && valueCodec != null) {
+                Member[] members = cluster != null ? cluster.getMembers() : new Member[0];
+                return deltaRequest.serialize(valueCodec, attributeNames.getGeneration(members));
+            }
             return deltaRequest.serialize();
         }finally {
             session.unlock();
@@ -743,31 +942,7 @@ public class DeltaManager extends ClusterManagerBase{
             for (int i = 0; i < n; i++) {
                 DeltaSession session = (DeltaSession) createEmptySession();
                 session.readObjectData(ois);
-                session.setManager(this);
-                session.setValid(true);
-                session.setPrimarySession(false);
-                //in case the nodes in the cluster are out of
-                //time synch, this will make sure that we have the
-                //correct timestamp, isValid returns true, cause
-                // accessCount=1
-                session.access();
-                //make sure that the session gets ready to expire if
-                // needed
-                session.setAccessCount(0);
-                session.resetDeltaRequest();
-                // FIXME How inform other session id cache like SingleSignOn
-                // increment sessionCounter to correct stats report
-                if (findSession(session.getIdInternal()) == null ) {
-                    sessionCounter++;
-                } else {
-                    sessionReplaceCounter++;
-                    // FIXME better is to grap this sessions again !
-                    if (log.isWarnEnabled()) log.warn(sm.getString("deltaManager.loading.existing.session",session.getIdInternal()));
-                }
-                add(session);
-                if (notifySessionListenersOnReplication) {
-                    session.tellNew();
-                }
+                addTransferredSession(session);
             }
         } catch (ClassNotFoundException e) {
             log.error(sm.getString("deltaManager.loading.cnfe", e), e);
@@ -790,6 +965,42 @@ public class DeltaManager extends ClusterManagerBase{
 
     
 
+    /**
+     * Add a session received by a state transfer, may be called by several
+     * threads of a streamed state transfer.
+     * @param session the deserialized session
+     * @throws IOException
+     */
+    protected void addTransferredSession(DeltaSession session) throws IOException {
+        session.setManager(this);
+        session.setValid(true);
+        session.setPrimarySession(false);
+        //in case the nodes in the cluster are out of
+        //time synch, this will make sure that we have the
+        //correct timestamp, isValid returns true, cause
+        // accessCount=1
+        session.access();
+        //make sure that the session gets ready to expire if
+        // needed
+        session.setAccessCount(0);
+        session.resetDeltaRequest();
+        // FIXME How inform other session id cache like SingleSignOn
+        // increment sessionCounter to correct stats report
+        synchronized (stateTransferLock) {
+            if (findSession(session.getIdInternal()) == null ) {
+                sessionCounter++;
+            } else {
+                sessionReplaceCounter++;
+                // FIXME better is to grap this sessions again !
+                if (log.isWarnEnabled()) log.warn(sm.getString("deltaManager.loading.existing.session",session.getIdInternal()));
+            }
+            add(session);
+        }
+        if (notifySessionListenersOnReplication) {
+            session.tellNew();
+        }
+    }
+
     /**
      * Save any currently active sessions in the appropriate persistence
      * mechanism, if any. If persistence is not supported, this method returns
@@ -876,6 +1087,8 @@ public class DeltaManager extends ClusterManagerBase{
         if (started) {
             return;
         }
+        attributeNames = new AttributeNameDictionary(maxAttributeNames);
+        valueCodec = createValueCodec();
         started = true;
         lifecycle.fireLifecycleEvent(START_EVENT, null);
 
@@ -947,7 +1160,13 @@ public class DeltaManager extends ClusterManagerBase{
             if(mbr == null) { // No domain member found
                  return;
             }
-            SessionMessage msg = new SessionMessageImpl(this.getName(),SessionMessage.EVT_GET_ALL_SESSIONS, null, "GET-ALL","GET-ALL-" + getName());
+            byte[] request = null;
+            if (isStreamStateTransfer()) {
+                // a sender without streamed transfer ignores the request data
+                request = new byte[] { StreamedStateTransfer.STREAM_FORMAT };
+                stateTransfer = new StreamedStateTransfer(this, getStateTransferThreads());
+            }
+            SessionMessage msg = new SessionMessageImpl(this.getName(),SessionMessage.EVT_GET_ALL_SESSIONS, request, "GET-ALL","GET-ALL-" + getName());
             // set reference time
             stateTransferCreateSendTime = beforeSendTime ;
             // request session state
@@ -963,6 +1182,8 @@ public class DeltaManager extends ClusterManagerBase{
                 // FIXME At sender ack mode this method check only the state transfer and resend is a problem!
                 waitForSendAllSessions(beforeSendTime);
             } finally {
+                StreamedStateTransfer transfer = stateTransfer;
+                if (transfer != null) transfer.shutdown();
                 synchronized(receivedMessageQueue) {
                     for (Iterator iter = receivedMessageQueue.iterator(); iter.hasNext();) {
                         SessionMessage smsg = (SessionMessage) iter.next();
@@ -1046,7 +1267,7 @@ public class DeltaManager extends ClusterManagerBase{
                 }
                 reqNow = System.currentTimeMillis();
                 isTimeout = ((reqNow - reqStart) > (1000 * getStateTransferTimeout()));
-            } while ((!getStateTransfered()) && (!isTimeout));
+            } while ((!isStateTransferComplete()) && (!isTimeout));
         } else {
             if(getStateTransferTimeout() == -1) {
                 // wait that state is transfered
@@ -1055,7 +1276,7 @@ public class DeltaManager extends ClusterManagerBase{
                         Thread.sleep(100);
                     } catch (Exception sleep) {
                     }
-                } while ((!getStateTransfered()));
+                } while ((!isStateTransferComplete()));
                 reqNow = System.currentTimeMillis();
             }
         }
@@ -1222,22 +1443,14 @@ public class DeltaManager extends ClusterManagerBase{
                 if (isDeltaRequest) {    
                     counterSend_EVT_SESSION_DELTA++;
                     byte[] data = serializeDeltaRequest(session,deltaRequest);
-                    msg = new SessionMessageImpl(getName(),
-                                                 SessionMessage.EVT_SESSION_DELTA, 
-                                                 data, 
-                                                 sessionId,
-                                                 sessionId + "-" + System.currentTimeMillis());
+                    msg = createRequestMessage(SessionMessage.EVT_SESSION_DELTA, data, sessionId);
                     session.resetDeltaRequest();
                 }  
             }
             if(!isDeltaRequest) {
                 if(!expires && !session.isPrimarySession()) {
                     counterSend_EVT_SESSION_ACCESSED++;
-                    msg = new SessionMessageImpl(getName(),
-                                                 SessionMessage.EVT_SESSION_ACCESSED, 
-                                                 null, 
-                                                 sessionId,
-                                                 sessionId + "-" + System.currentTimeMillis());
+                    msg = createRequestMessage(SessionMessage.EVT_SESSION_ACCESSED, null, sessionId);
                     if (log.isDebugEnabled()) {
                         log.debug(sm.getString("deltaManager.createMessage.accessChangePrimary",getName(), sessionId));
                     }
@@ -1255,11 +1468,7 @@ public class DeltaManager extends ClusterManagerBase{
                 if (session.getMaxInactiveInterval() >=0 && 
                         replDelta > (session.getMaxInactiveInterval() * 1000)) {
                     counterSend_EVT_SESSION_ACCESSED++;
-                    msg = new SessionMessageImpl(getName(),
-                                                 SessionMessage.EVT_SESSION_ACCESSED, 
-                                                 null,
-                                                 sessionId, 
-                                                 sessionId + "-" + System.currentTimeMillis());
+                    msg = createRequestMessage(SessionMessage.EVT_SESSION_ACCESSED, null, sessionId);
                     if (log.isDebugEnabled()) {
                         log.debug(sm.getString("deltaManager.createMessage.access", getName(),sessionId));
                     }
@@ -1314,6 +1523,7 @@ public class DeltaManager extends ClusterManagerBase{
         counterReceive_EVT_SESSION_EXPIRED = 0 ;
         counterReceive_EVT_ALL_SESSION_TRANSFERCOMPLETE = 0;
         counterReceive_EVT_CHANGE_SESSION_ID = 0;
+        counterReceive_EVT_ATTRIBUTE_NAMES_ACK = 0;
         counterSend_EVT_ALL_SESSION_DATA = 0;
         counterSend_EVT_GET_ALL_SESSIONS = 0;
         counterSend_EVT_SESSION_ACCESSED = 0 ;
@@ -1322,6 +1532,7 @@ public class DeltaManager extends ClusterManagerBase{
         counterSend_EVT_SESSION_EXPIRED = 0 ;
         counterSend_EVT_ALL_SESSION_TRANSFERCOMPLETE = 0;
         counterSend_EVT_CHANGE_SESSION_ID = 0;
+        counterSend_EVT_ATTRIBUTE_NAMES_ACK = 0;
         
     }
    
@@ -1464,6 +1675,10 @@ public class DeltaManager extends ClusterManagerBase{
                     handleCHANGE_SESSION_ID(msg,sender);
                     break;
                  }
+                case SessionMessage.EVT_ATTRIBUTE_NAMES_ACK: {
+                    handleATTRIBUTE_NAMES_ACK(msg,sender);
+                    break;
+                }
                 default: {
                     //we didn't recognize the message type, do nothing
                     break;
@@ -1488,7 +1703,29 @@ public class DeltaManager extends ClusterManagerBase{
         counterReceive_EVT_ALL_SESSION_TRANSFERCOMPLETE++ ;
         if (log.isDebugEnabled()) log.debug(sm.getString("deltaManager.receiveMessage.transfercomplete",getName(), sender.getHost(), new Integer(sender.getPort())));
         stateTransferCreateSendTime = msg.getTimestamp() ;
-        stateTransfered = true ;
+        StreamedStateTransfer transfer = stateTransfer;
+        if (transfer != null && transfer.getTotalSessions() >= 0) {
+            // the sessions of the last chunks may still be deserialized,
+            // getAllClusterSessions waits for them, not the receiver thread
+            transfer.sent();
+        } else {
+            stateTransfered = true ;
+        }
+    }
+
+    /**
+     * Is the state transfer complete? A streamed transfer is complete when
+     * the sender completed it and all received sessions are added.
+     */
+    protected boolean isStateTransferComplete() {
+        if (!stateTransfered) {
+            StreamedStateTransfer transfer = stateTransfer;
+            if (transfer != null && transfer.isComplete()) {
+                if (log.isInfoEnabled()) log.info(sm.getString("deltaManager.stateTransfer.streamed",new Object[] {getName(), new Long(transfer.getSessions()), new Long(transfer.getBytes()), new Long(transfer.getTime()), new Long(transfer.getSessionsPerSecond())}));
+                stateTransfered = true ;
+            }
+        }
+        return stateTransfered;
     }
 
     /**
@@ -1506,15 +1743,31 @@ public class DeltaManager extends ClusterManagerBase{
             if (log.isDebugEnabled()) log.debug(sm.getString("deltaManager.receiveMessage.delta",getName(), msg.getSessionID()));
             try {
                 session.lock();
-                DeltaRequest dreq = deserializeDeltaRequest(session, delta);
+                DeltaRequest dreq = deserializeDeltaRequest(session, delta, sender);
                 dreq.execute(session, notifyListenersOnReplication);
                 session.setPrimarySession(false);
             }finally {
                 session.unlock();
+                sendAttributeNamesAck(sender);
             }
         }
     }
 
+    /**
+     * handle receive the acknowledgement of the attribute names sent with
+     * compact delta requests
+     * @param msg
+     * @param sender
+     * @throws IOException
+     */
+    protected void handleATTRIBUTE_NAMES_ACK(SessionMessage msg, Member sender) throws IOException {
+        counterReceive_EVT_ATTRIBUTE_NAMES_ACK++;
+        AttributeNameDictionary names = attributeNames;
+        if (names != null && sender != null && msg.getSession() != null) {
+            names.acknowledged(AttributeNameDictionary.getSenderId(sender), msg.getSession());
+        }
+    }
+
     /**
      * handle receive session is access at other node ( primary session is now false)
      * @param msg
@@ -1585,7 +1838,15 @@ public class DeltaManager extends ClusterManagerBase{
         counterReceive_EVT_ALL_SESSION_DATA++;
         if (log.isDebugEnabled()) log.debug(sm.getString("deltaManager.receiveMessage.allSessionDataBegin",getName()));
         byte[] data = msg.getSession();
-        deserializeSessions(data);
+        if (StreamedStateTransfer.isStreamed(data)) {
+            StreamedStateTransfer transfer = stateTransfer;
+            if (transfer == null) {
+                transfer = new StreamedStateTransfer(this, 0);
+            }
+            transfer.receive(data);
+        } else {
+            deserializeSessions(data);
+        }
         if (log.isDebugEnabled()) log.debug(sm.getString("deltaManager.receiveMessage.allSessionDataAfter",getName()));
         //stateTransferred = true;
     }
@@ -1607,7 +1868,9 @@ public class DeltaManager extends ClusterManagerBase{
         // get all sessions and serialize without sync
         Session[] currentSessions = findSessions();
         long findSessionTimestamp = System.currentTimeMillis() ;
-        if (isSendAllSessions()) {
+        if (StreamedStateTransfer.isStreamed(msg.getSession())) {
+            sendSessionStream(sender, currentSessions, findSessionTimestamp);
+        } else if (isSendAllSessions()) {
             sendSessions(sender, currentSessions, findSessionTimestamp);
         } else {
             // send session at blocks
@@ -1670,6 +1933,98 @@ public class DeltaManager extends ClusterManagerBase{
         cluster.send(newmsg, sender);
     }
 
+    /**
+     * send all sessions as streamed state transfer, each chunk waits for the
+     * ack of the receiver instead of a fixed wait time
+     * @param sender
+     * @param currentSessions
+     * @param sendTimestamp
+     * @throws IOException
+     */
+    protected void sendSessionStream(final Member sender, Session[] currentSessions, final long sendTimestamp) throws IOException {
+        long start = System.currentTimeMillis();
+        int chunks = StreamedStateTransfer.writeChunks(currentSessions, getStateTransferChunkSize(), new StreamedStateTransfer.ChunkSender() {
+            public void send(byte[] chunk) throws IOException {
+                SessionMessage newmsg = new SessionMessageImpl(name,SessionMessage.EVT_ALL_SESSION_DATA, chunk,"SESSION-STATE", "SESSION-STATE-" + getName());
+                newmsg.setTimestamp(sendTimestamp);
+                counterSend_EVT_ALL_SESSION_DATA++;
+                Channel channel = cluster.getChannel();
+                if (channel == null) {
+                    cluster.send(newmsg, sender);
+                    return;
+                }
+                newmsg.setAddress(cluster.getLocalMember());
+                try {
+                    channel.send(new Member[] {sender}, newmsg, Channel.SEND_OPTIONS_USE_ACK | Channel.SEND_OPTIONS_SYNCHRONIZED_ACK);
+                } catch (ChannelException x) {
+                    IOException iox = new IOException(sm.getString("deltaManager.stateTransfer.sendError", getName(), sender));
+                    iox.initCause(x);
+                    throw iox;
+                }
+            }
+        });
+        if (log.isDebugEnabled()) log.debug(sm.getString("deltaManager.stateTransfer.sent",getName(), new Integer(currentSessions.length), new Integer(chunks), new Long(System.currentTimeMillis() - start)));
+    }
+
+    /**
+     * Create the codec of attribute values in compact delta requests.
+     * @throws LifecycleException if valueCodecClassName can't be instantiated,
+     *  members with different codecs could not read each others deltas
+     */
+    protected ReplicationValueCodec createValueCodec() throws LifecycleException {
+        try {
+            Class clazz = Class.forName(valueCodecClassName, true, DeltaManager.class.getClassLoader());
+            ReplicationValueCodec codec = (ReplicationValueCodec) clazz.newInstance();
+            codec.init(this);
+            return codec;
+        } catch (Exception x) {
+            throw new LifecycleException(sm.getString("deltaManager.compactDeltaRequest.codecError", getName(), valueCodecClassName), x);
+        } catch (LinkageError x) {
+            throw new LifecycleException(sm.getString("deltaManager.compactDeltaRequest.codecError", getName(), valueCodecClassName), x);
+        }
+    }
+
+    /**
+     * Send the acknowledgements of the attribute names received from a
+     * member, if any.
+     * @param sender the sender of compact delta requests
+     */
+    protected void sendAttributeNamesAck(Member sender) throws IOException {
+        AttributeNameDictionary names = attributeNames;
+        if (names == null || sender == null || cluster == null) return;
+        byte[] data = names.takeAcknowledgements(AttributeNameDictionary.getSenderId(sender));
+        if (data != null) {
+            SessionMessage msg = new CompactSessionMessageImpl(getName(),SessionMessage.EVT_ATTRIBUTE_NAMES_ACK, data, "ATTRIBUTE-NAMES-ACK", "ATTRIBUTE-NAMES-ACK-" + getName());
+            msg.setTimestamp(System.currentTimeMillis());
+            counterSend_EVT_ATTRIBUTE_NAMES_ACK++;
+            cluster.send(msg, sender);
+        }
+    }
+
+    /**
+     * Create a message of a request, the compact form with compactDeltaRequest.
+     */
+    protected SessionMessage createRequestMessage(int eventtype, byte[] data, String sessionId) {
+        String uniqueId = sessionId + "-" + System.currentTimeMillis();
+        if (compactDeltaRequest) {
+            return new CompactSessionMessageImpl(getName(), eventtype, data, sessionId, uniqueId);
+        }
+        return new SessionMessageImpl(getName(), eventtype, data, sessionId, uniqueId);
+    }
+
+    /**
+     * Start a new generation of attribute names, so that a member that missed
+     * a name gets it again, and forget the names of former members.
+     */
+    public void processExpires() {
+        super.processExpires();
+        AttributeNameDictionary names = attributeNames;
+        if (names != null) {
+            names.reset();
+            if (cluster != null) names.retainSenders(cluster.getMembers());
+        }
+    }
+
     public ClusterManager cloneFromTemplate() {
         DeltaManager result = new DeltaManager();
         result.name = "Clone-from-"+name;
@@ -1687,6 +2042,12 @@ public class DeltaManager extends ClusterManagerBase{
         result.receiverQueue = receiverQueue ;
         result.stateTimestampDrop = stateTimestampDrop ;
         result.stateTransferCreateSendTime = stateTransferCreateSendTime; 
+        result.streamStateTransfer = streamStateTransfer ;
+        result.stateTransferThreads = stateTransferThreads ;
+        result.stateTransferChunkSize = stateTransferChunkSize ;
+        result.compactDeltaRequest = compactDeltaRequest ;
+        result.valueCodecClassName = valueCodecClassName ;
+        result.maxAttributeNames = maxAttributeNames ;
         return result;
     }
 }
@@ -33,7 +33,10 @@ import java.util.LinkedList;
 
 import org.apache.catalina.realm.GenericPrincipal;
 import org.apache.catalina.util.StringManager;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 
@@ -61,6 +64,12 @@ public class DeltaRequest implements Externalizable {
     public static final String NAME_MAXINTERVAL = "__SET__MAXINTERVAL__";
     public static final String NAME_ISNEW = "__SET__ISNEW__";
 
+    /**
+     * The first byte of a delta request in the compact format, the
+     * serialized form starts with the stream magic.
+     */
+    public static final byte COMPACT_FORMAT = 1;
+
     private String sessionId;
     private LinkedList actions = new LinkedList();
     private LinkedList actionPool = new LinkedList();
@@ -289,6 +298,166 @@ public class DeltaRequest implements Externalizable {
         oos.close();
         return bos.toByteArray();
     }
+
+    /**
+     * serialize DeltaRequest in the compact format
+     * <pre>
+     * format      - byte, COMPACT_FORMAT
+     * recordAll   - boolean
+     * generation  - int, of the attribute names
+     * size        - varint
+     * actions     - type &lt;&lt; 1 | action - byte
+     *               name - varint code, UTF if no reference (attributes only)
+     *               value - varint length, encoded value (set only)
+     * </pre>
+     * The session id is not written, it is the one of the session message.
+     * @param codec encodes the values
+     * @param names the attribute names of the sender
+     * @return serialized delta request
+     * @throws IOException
+     */
+    protected byte[] serialize(ReplicationValueCodec codec, AttributeNameDictionary.Generation names) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 * getSize() + 16);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(COMPACT_FORMAT);
+        out.writeBoolean(recordAllActions);
+        out.writeInt(names.getId());
+        writeVarInt(out, getSize());
+        for ( int i=0; i<getSize(); i++ ) {
+            AttributeInfo info = (AttributeInfo)actions.get(i);
+            out.writeByte((info.getType() << 1) | info.getAction());
+            switch ( info.getType() ) {
+                case TYPE_ATTRIBUTE: {
+                    int code = names.encode(info.getName());
+                    writeVarInt(out, code);
+                    if ((code & 1) == 0) out.writeUTF(info.getName());
+                    if ( info.getAction() == ACTION_SET ) writeValue(out, codec, info.getValue());
+                    break;
+                }
+                case TYPE_ISNEW: {
+                    out.writeBoolean(((Boolean)info.getValue()).booleanValue());
+                    break;
+                }
+                case TYPE_MAXINTERVAL: {
+                    out.writeInt(((Integer)info.getValue()).intValue());
+                    break;
+                }
+                case TYPE_PRINCIPAL: {
+                    if ( info.getAction() == ACTION_SET ) {
+                        out.writeBoolean(info.getValue() != null);
+                        if (info.getValue() != null) writeValue(out, codec, info.getValue());
+                    }
+                    break;
+                }
+                default : throw new java.lang.IllegalArgumentException("Invalid attribute info type="+info);
+            }
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Load a DeltaRequest in the compact format
+     * @see #serialize(ReplicationValueCodec, AttributeNameDictionary.Generation)
+     * @param data the serialized request
+     * @param codec decodes the values
+     * @param dictionary the attribute names received
+     * @param sender the unique id of the sender
+     * @throws IOException if an attribute name is not known
+     */
+    public void readCompact(byte[] data, ReplicationValueCodec codec, AttributeNameDictionary dictionary, String sender)
+        throws IOException, ClassNotFoundException {
+        reset();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readByte() != COMPACT_FORMAT)
+            throw new IOException(sm.getString("deltaRequest.invalidFormat", getSessionId()));
+        recordAllActions = in.readBoolean();
+        int generation = in.readInt();
+        int cnt = readVarInt(in);
+        for (int i = 0; i < cnt; i++) {
+            int flags = in.readUnsignedByte();
+            int type = flags >> 1;
+            int action = flags & 1;
+            String name = null;
+            Object value = null;
+            switch ( type ) {
+                case TYPE_ATTRIBUTE: {
+                    int code = readVarInt(in);
+                    if ((code & 1) == 0) {
+                        name = in.readUTF();
+                        if (code != AttributeNameDictionary.LITERAL)
+                            dictionary.define(sender, generation, (code >> 1) - 1, name);
+                    } else {
+                        name = dictionary.resolve(sender, generation, (code >> 1) - 1);
+                        if (name == null)
+                            throw new IOException(sm.getString("deltaRequest.unknownName", getSessionId(), new Integer(code >> 1), new Integer(generation)));
+                    }
+                    if ( action == ACTION_SET ) value = readValue(in, data, codec);
+                    break;
+                }
+                case TYPE_ISNEW: {
+                    name = NAME_ISNEW;
+                    value = Boolean.valueOf(in.readBoolean());
+                    break;
+                }
+                case TYPE_MAXINTERVAL: {
+                    name = NAME_MAXINTERVAL;
+                    value = new Integer(in.readInt());
+                    break;
+                }
+                case TYPE_PRINCIPAL: {
+                    name = NAME_PRINCIPAL;
+                    if ( action == ACTION_SET && in.readBoolean() ) value = readValue(in, data, codec);
+                    break;
+                }
+                default : throw new IOException(sm.getString("deltaRequest.invalidFormat", getSessionId()));
+            }
+            // the actions are already unique, don't go through addAction
+            AttributeInfo info = null;
+            if (this.actionPool.size() > 0) {
+                info = (AttributeInfo) actionPool.removeFirst();
+                info.init(type, action, name, value);
+            } else {
+                info = new AttributeInfo(type, action, name, value);
+            }
+            actions.addLast(info);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, ReplicationValueCodec codec, Object value) throws IOException {
+        byte[] encoded = codec.encode(value);
+        writeVarInt(out, encoded.length);
+        out.write(encoded);
+    }
+
+    private static Object readValue(DataInputStream in, byte[] data, ReplicationValueCodec codec) throws IOException, ClassNotFoundException {
+        int length = readVarInt(in);
+        // the stream reads from data, so the value is decoded in place
+        int offset = data.length - in.available();
+        if (length < 0 || length > in.available())
+            throw new IOException(sm.getString("deltaRequest.invalidFormat", ""));
+        Object value = codec.decode(data, offset, length);
+        in.skipBytes(length);
+        return value;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException(sm.getString("deltaRequest.invalidFormat", ""));
+    }
     
     private static class AttributeInfo implements java.io.Externalizable {
         private String name = null;
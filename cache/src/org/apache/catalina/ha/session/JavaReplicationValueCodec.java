@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.ha.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.apache.catalina.ha.ClusterManager;
+
+/**
+ * The default {@link ReplicationValueCodec}, uses java serialization and
+ * resolves the classes with the class loaders of the manager.
+ *
+ * @version $Id$
+ */
+public class JavaReplicationValueCodec implements ReplicationValueCodec {
+
+    private ClusterManager manager;
+
+    public void init(ClusterManager manager) {
+        this.manager = manager;
+    }
+
+    public byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(value);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    public Object decode(byte[] data, int offset, int length)
+        throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = manager.getReplicationStream(data, offset, length);
+        try {
+            return ois.readObject();
+        } finally {
+            ois.close();
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.ha.session;
+
+import java.io.IOException;
+
+import org.apache.catalina.ha.ClusterManager;
+
+/**
+ * Encodes the attribute values of a {@link DeltaRequest} that is replicated
+ * in the compact format. An implementation must be thread safe, it is used
+ * by all threads that complete requests and by the receiving threads of the
+ * cluster.
+ *
+ * @see DeltaManager#setValueCodecClassName(String)
+ * @version $Id$
+ */
+public interface ReplicationValueCodec {
+
+    /**
+     * Called once before the codec is used.
+     * @param manager the manager that replicates the values, provides the
+     *  class loaders of the web application
+     */
+    public void init(ClusterManager manager);
+
+    /**
+     * @param value the value, never <code>null</code>
+     * @return the encoded value
+     * @throws IOException if the value can't be encoded
+     */
+    public byte[] encode(Object value) throws IOException;
+
+    /**
+     * @param data the buffer holding the encoded value
+     * @param offset the offset of the value
+     * @param length the length of the value
+     * @return the value
+     */
+    public Object decode(byte[] data, int offset, int length)
+        throws IOException, ClassNotFoundException;
+
+}
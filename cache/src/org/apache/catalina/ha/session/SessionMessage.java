@@ -16,6 +16,7 @@
  */
 package org.apache.catalina.ha.session;
 import org.apache.catalina.ha.ClusterMessage;
+import org.apache.catalina.tribes.KeyedMessage;
 
 /**
  *
@@ -33,11 +34,12 @@ import org.apache.catalina.ha.ClusterMessage;
  *   <li><pre>public static final int EVT_ALL_SESSION_DATA</pre><li>
  *   <li><pre>public static final int EVT_ALL_SESSION_TRANSFERCOMPLETE</pre><li>
  *   <li><pre>public static final int EVT_CHANGE_SESSION_ID</pre><li>
+ *   <li><pre>public static final int EVT_ATTRIBUTE_NAMES_ACK</pre><li>
  * </ul>
  *
  */
 
-public interface SessionMessage extends ClusterMessage, java.io.Serializable
+public interface SessionMessage extends ClusterMessage, KeyedMessage
 {
 
     /**
@@ -82,6 +84,12 @@ public interface SessionMessage extends ClusterMessage, java.io.Serializable
      */
     public static final int EVT_CHANGE_SESSION_ID = 15;
 
+    /**
+     * Event type used to acknowledge the attribute names of compact delta
+     * requests to their sender, see {@link AttributeNameDictionary}.
+     */
+    public static final int EVT_ATTRIBUTE_NAMES_ACK = 16;
+
     
     public String getContextName();
     
@@ -28,6 +28,12 @@ import org.apache.catalina.ha.ClusterMessageBase;
  * @version $Id: SessionMessageImpl.java 956838 2010-06-22 10:09:14Z kfujino $
  */
 public class SessionMessageImpl extends ClusterMessageBase implements SessionMessage, java.io.Serializable {
+
+    /**
+     * The default serialVersionUID of the class as it was before it was
+     * declared, so that members of different versions can talk.
+     */
+    private static final long serialVersionUID = -7110773160397277922L;
     
     public SessionMessageImpl() {
     }
@@ -111,6 +117,8 @@ public class SessionMessageImpl extends ClusterMessageBase implements SessionMes
      * @return the session ID for the session
      */
     public String getSessionID(){ return mSessionID; }
+
+    public Object getMessageKey() { return mSessionID; }
     
     /**
      * set message send time but only the first setting works (one shot)
@@ -132,7 +140,16 @@ public class SessionMessageImpl extends ClusterMessageBase implements SessionMes
      */
     public String getEventTypeString()
     {
-        switch (mEvtType)
+        return getEventTypeString(mEvtType);
+    }
+
+    /**
+     * clear text event type name (for logging purpose only)
+     * @param type one of the event types EVT_XXXX
+     */
+    static String getEventTypeString(int type)
+    {
+        switch (type)
         {
             case EVT_SESSION_CREATED : return "SESSION-MODIFIED";
             case EVT_SESSION_EXPIRED : return "SESSION-EXPIRED";
@@ -142,6 +159,7 @@ public class SessionMessageImpl extends ClusterMessageBase implements SessionMes
             case EVT_ALL_SESSION_DATA : return "ALL-SESSION-DATA";
             case EVT_ALL_SESSION_TRANSFERCOMPLETE : return "SESSION-STATE-TRANSFERED";
             case EVT_CHANGE_SESSION_ID : return "SESSION-ID-CHANGED";
+            case EVT_ATTRIBUTE_NAMES_ACK : return "ATTRIBUTE-NAMES-ACK";
             default : return "UNKNOWN-EVENT-TYPE";
         }
     }
@@ -0,0 +1,338 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.ha.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.Session;
+import org.apache.catalina.tribes.util.TcclThreadFactory;
+
+/**
+ * The streamed transfer of all sessions to a joining {@link DeltaManager}.
+ * <p>
+ * The sender writes the sessions into chunks of about
+ * <code>stateTransferChunkSize</code> bytes and sends every chunk with a
+ * synchronized ack. Within a chunk the sessions are framed in groups of up
+ * to {@link #SESSIONS_PER_FRAME}, each frame is a separate object stream
+ * with its length in front. The joiner only splits a received chunk into
+ * frames and hands them to a pool of <code>stateTransferThreads</code>
+ * threads that deserialize and add the sessions. The queue of the pool is
+ * bounded, if it is full the receiving thread deserializes itself, which
+ * delays the ack and so the next chunk of the sender. Framing single
+ * sessions would repeat the class descriptors of the object stream for
+ * every session.
+ * <p>
+ * A chunk starts with {@link #STREAM_FORMAT}, followed by the number of
+ * sessions of the whole transfer, the number of frames in the chunk and the
+ * frames. A frame starts with the number of its sessions. The data of the
+ * old format is a single object stream, which starts
+ * with the stream magic. A joiner asks for a streamed transfer by sending
+ * <code>{STREAM_FORMAT}</code> as data of the
+ * <code>EVT_GET_ALL_SESSIONS</code> message, a sender that doesn't know the
+ * streamed transfer ignores it.
+ *
+ * @version $Id$
+ */
+public class StreamedStateTransfer {
+
+    public static final org.apache.juli.logging.Log log =
+        org.apache.juli.logging.LogFactory.getLog(StreamedStateTransfer.class);
+
+    /**
+     * The first byte of a streamed chunk, and the data of a request for a
+     * streamed transfer.
+     */
+    public static final byte STREAM_FORMAT = 1;
+
+    /**
+     * The maximum number of sessions of a frame, a frame is deserialized by
+     * one task.
+     */
+    public static final int SESSIONS_PER_FRAME = 32;
+
+    private final DeltaManager manager;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile int totalSessions = -1;
+    private volatile boolean sent = false;
+    private final long startTime;
+    private volatile long endTime = 0;
+
+    /**
+     * Create the joiner side of a transfer.
+     * @param manager the manager the sessions are added to
+     * @param threads the number of threads that deserialize sessions,
+     *  with <code>0</code> the receiving thread deserializes
+     */
+    public StreamedStateTransfer(DeltaManager manager, int threads) {
+        this.manager = manager;
+        this.startTime = System.currentTimeMillis();
+        if (threads > 0) {
+            executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(threads * 4),
+                    new TcclThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the data is a streamed chunk
+     */
+    public static boolean isStreamed(byte[] data) {
+        return data != null && data.length > 0 && data[0] == STREAM_FORMAT;
+    }
+
+    /**
+     * Serialize sessions as chunks of a streamed transfer and pass each chunk
+     * to the sender, which must not return before the chunk was received.
+     * @param sessions all sessions to transfer
+     * @param chunkSize the size in bytes after which a chunk is completed
+     * @param sender sends a chunk
+     * @return the number of chunks sent
+     */
+    public static int writeChunks(Session[] sessions, int chunkSize, ChunkSender sender) throws IOException {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(chunkSize + chunkSize / 4);
+        DataOutputStream out = new DataOutputStream(chunk);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(16 * 1024);
+        int chunks = 0;
+        int frames = 0;
+        for (int i = 0; i < sessions.length; i += SESSIONS_PER_FRAME) {
+            if (frames == 0) {
+                chunk.reset();
+                out.writeByte(STREAM_FORMAT);
+                out.writeInt(sessions.length);
+                // Number of frames, written when the chunk is complete
+                out.writeInt(0);
+            }
+            int count = Math.min(SESSIONS_PER_FRAME, sessions.length - i);
+            frame.reset();
+            ObjectOutputStream oos = new ObjectOutputStream(frame);
+            oos.writeInt(count);
+            for (int j = i; j < i + count; j++) {
+                ((DeltaSession) sessions[j]).writeObjectData(oos);
+            }
+            oos.flush();
+            out.writeInt(frame.size());
+            frame.writeTo(out);
+            frames++;
+            if (chunk.size() >= chunkSize || i + count == sessions.length) {
+                out.flush();
+                sender.send(complete(chunk.toByteArray(), frames));
+                chunks++;
+                frames = 0;
+            }
+        }
+        return chunks;
+    }
+
+    private static byte[] complete(byte[] data, int count) {
+        data[5] = (byte) (count >>> 24);
+        data[6] = (byte) (count >>> 16);
+        data[7] = (byte) (count >>> 8);
+        data[8] = (byte) count;
+        return data;
+    }
+
+    /**
+     * Split a received chunk into frames and deserialize them, in parallel
+     * if threads are configured.
+     * @param data the chunk
+     */
+    public void receive(byte[] data) throws IOException {
+        bytes.addAndGet(data.length);
+        totalSessions = readInt(data, 1);
+        int count = readInt(data, 5);
+        int offset = 9;
+        for (int i = 0; i < count; i++) {
+            if (offset + 4 > data.length) {
+                throw new IOException(DeltaManager.sm.getString("deltaManager.stateTransfer.truncated", manager.getName()));
+            }
+            int length = readInt(data, offset);
+            offset += 4;
+            if (length < 0 || offset + length > data.length) {
+                throw new IOException(DeltaManager.sm.getString("deltaManager.stateTransfer.truncated", manager.getName()));
+            }
+            submit(new DeserializeTask(data, offset, length));
+            offset += length;
+        }
+    }
+
+    private void submit(DeserializeTask task) {
+        pendingTasks.incrementAndGet();
+        if (executor != null && !executor.isShutdown()) {
+            try {
+                executor.execute(task);
+                return;
+            } catch (RejectedExecutionException x) {
+                // shut down meanwhile
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Called when the sender completed the transfer. Doesn't wait for the
+     * sessions that are still deserialized, so that the receiving thread
+     * isn't blocked.
+     */
+    public void sent() {
+        sent = true;
+    }
+
+    /**
+     * @return <code>true</code> if the sender completed the transfer and
+     *  all received sessions are added to the manager
+     */
+    public boolean isComplete() {
+        if (!sent || pendingTasks.get() > 0) {
+            return false;
+        }
+        if (endTime == 0) {
+            endTime = System.currentTimeMillis();
+        }
+        return true;
+    }
+
+    /**
+     * Stop the threads, sessions received later are deserialized by the
+     * receiving thread.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    // ------------------------------------------------------------------ stats
+
+    /**
+     * @return the number of sessions added so far
+     */
+    public long getSessions() {
+        return sessions.get();
+    }
+
+    /**
+     * @return the number of sessions the sender transfers, or
+     *  <code>-1</code> if no chunk was received yet
+     */
+    public int getTotalSessions() {
+        return totalSessions;
+    }
+
+    /**
+     * @return the number of sessions that could not be deserialized
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return the number of bytes received so far
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the time in milliseconds from the request until all sessions
+     *  were added, or until now if the transfer is not complete
+     */
+    public long getTime() {
+        long end = endTime;
+        return (end == 0 ? System.currentTimeMillis() : end) - startTime;
+    }
+
+    /**
+     * @return the number of sessions added per second
+     */
+    public long getSessionsPerSecond() {
+        long time = getTime();
+        return time > 0 ? sessions.get() * 1000 / time : 0;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+            | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * Sends a chunk of a streamed transfer.
+     */
+    public static interface ChunkSender {
+        public void send(byte[] chunk) throws IOException;
+    }
+
+    /**
+     * Deserializes the sessions of a frame.
+     */
+    private class DeserializeTask implements Runnable {
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+
+        DeserializeTask(byte[] data, int offset, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public void run() {
+            Thread thread = Thread.currentThread();
+            ClassLoader contextLoader = thread.getContextClassLoader();
+            try {
+                ClassLoader[] loaders = manager.getClassLoaders();
+                if (loaders != null && loaders.length > 0) thread.setContextClassLoader(loaders[0]);
+                int count = 0;
+                int added = 0;
+                try {
+                    ObjectInputStream ois = manager.getReplicationStream(data, offset, length);
+                    count = ois.readInt();
+                    for (; added < count; added++) {
+                        DeltaSession session = (DeltaSession) manager.createEmptySession();
+                        session.readObjectData(ois);
+                        manager.addTransferredSession(session);
+                        sessions.incrementAndGet();
+                    }
+                    ois.close();
+                } catch (Exception x) {
+                    // the rest of the frame is lost
+                    failures.addAndGet(Math.max(1, count - added));
+                    log.error(DeltaManager.sm.getString("deltaManager.stateTransfer.sessionError", manager.getName()), x);
+                }
+            } finally {
+                thread.setContextClassLoader(contextLoader);
+                pendingTasks.decrementAndGet();
+            }
+        }
+    }
+}
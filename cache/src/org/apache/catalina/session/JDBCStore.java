@@ -965,7 +965,7 @@ public class JDBCStore
         super.start();
 
         // Open connection to the database
-        this.dbConnection = getConnection();
+        release(getConnection());
     }
 
     /**
@@ -0,0 +1,923 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.session;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Loader;
+import org.apache.catalina.Session;
+import org.apache.catalina.Store;
+import org.apache.catalina.util.CustomObjectInputStream;
+import org.apache.tomcat.dbcp.dbcp.BasicDataSource;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link JDBCStore} that takes its connections from a pool and writes
+ * Sessions behind.
+ * <p>
+ * <code>save</code> and <code>remove</code> only serialize the Session and
+ * queue the write; a later write for the same session identifier replaces
+ * the queued one.  A background thread writes the queued Sessions every
+ * <b>writeDelay</b> milliseconds in one transaction of up to
+ * <b>batchSize</b> batched UPDATE statements, followed by batched INSERTs
+ * for the Sessions that were not in the table yet, and batched DELETEs.
+ * If more than <b>maxPendingWrites</b> writes are queued, <code>save</code>
+ * writes them before it returns, and fails if they can't be written.
+ * If a transaction fails, its Sessions are written one by one and a Session
+ * that can't be written is dropped with an error.  <code>load</code>
+ * answers from the queue first, and loads from the database concurrently
+ * otherwise.
+ * <p>
+ * Connections come from a <code>BasicDataSource</code> of the bundled
+ * tomcat-dbcp, configured with the <b>driverName</b>, <b>connectionURL</b>,
+ * <b>connectionName</b> and <b>connectionPassword</b> of the JDBCStore and
+ * at most <b>maxActive</b> connections.
+ *
+ * @version $Id$
+ */
+
+public class PooledJDBCStore
+        extends JDBCStore implements Store {
+
+    /**
+     * The descriptive information about this implementation.
+     */
+    protected static String info = "PooledJDBCStore/1.0";
+
+    /**
+     * The maximum number of active connections of the pool.
+     */
+    protected int maxActive = 10;
+
+    /**
+     * The delay in milliseconds between two writes of the queued Sessions.
+     */
+    protected int writeDelay = 1000;
+
+    /**
+     * The maximum number of Sessions written in one transaction.
+     */
+    protected int batchSize = 100;
+
+    /**
+     * The number of queued writes above which <code>save</code> writes
+     * the queue itself.
+     */
+    protected int maxPendingWrites = 10000;
+
+    /**
+     * The number of times a Session is written alone without success
+     * before its write is dropped.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * The connection pool.
+     */
+    private BasicDataSource dataSource = null;
+
+    /**
+     * The queued writes by session identifier.
+     */
+    private final ConcurrentHashMap<String, PendingWrite> pending =
+        new ConcurrentHashMap<String, PendingWrite>();
+
+    /**
+     * Ensures that only one thread writes the queue at a time, so that
+     * a write can't overtake an older write of the same Session.
+     */
+    private final Object flushLock = new Object();
+
+    /**
+     * The background thread that writes the queue.
+     */
+    private Thread writer = null;
+
+    /**
+     * Set to <code>true</code> to stop the background thread.
+     */
+    private volatile boolean writerDone = false;
+
+    // ------------------------------------------------------------- Properties
+
+    /**
+     * Return the info for this Store.
+     */
+    public String getInfo() {
+        return (info);
+    }
+
+    /**
+     * Return the maximum number of active connections.
+     */
+    public int getMaxActive() {
+        return (this.maxActive);
+    }
+
+    /**
+     * Set the maximum number of active connections.
+     *
+     * @param maxActive The new maximum
+     */
+    public void setMaxActive(int maxActive) {
+        int oldMaxActive = this.maxActive;
+        this.maxActive = maxActive;
+        support.firePropertyChange("maxActive",
+                new Integer(oldMaxActive),
+                new Integer(this.maxActive));
+    }
+
+    /**
+     * Return the delay in milliseconds between two writes of the queue.
+     */
+    public int getWriteDelay() {
+        return (this.writeDelay);
+    }
+
+    /**
+     * Set the delay in milliseconds between two writes of the queue.
+     *
+     * @param writeDelay The new delay
+     */
+    public void setWriteDelay(int writeDelay) {
+        int oldWriteDelay = this.writeDelay;
+        this.writeDelay = writeDelay;
+        support.firePropertyChange("writeDelay",
+                new Integer(oldWriteDelay),
+                new Integer(this.writeDelay));
+    }
+
+    /**
+     * Return the maximum number of Sessions written in one transaction.
+     */
+    public int getBatchSize() {
+        return (this.batchSize);
+    }
+
+    /**
+     * Set the maximum number of Sessions written in one transaction.
+     *
+     * @param batchSize The new batch size
+     */
+    public void setBatchSize(int batchSize) {
+        int oldBatchSize = this.batchSize;
+        this.batchSize = batchSize;
+        support.firePropertyChange("batchSize",
+                new Integer(oldBatchSize),
+                new Integer(this.batchSize));
+    }
+
+    /**
+     * Return the number of queued writes above which <code>save</code>
+     * writes the queue itself.
+     */
+    public int getMaxPendingWrites() {
+        return (this.maxPendingWrites);
+    }
+
+    /**
+     * Set the number of queued writes above which <code>save</code>
+     * writes the queue itself.
+     *
+     * @param maxPendingWrites The new maximum
+     */
+    public void setMaxPendingWrites(int maxPendingWrites) {
+        int oldMaxPendingWrites = this.maxPendingWrites;
+        this.maxPendingWrites = maxPendingWrites;
+        support.firePropertyChange("maxPendingWrites",
+                new Integer(oldMaxPendingWrites),
+                new Integer(this.maxPendingWrites));
+    }
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Return an array containing the session identifiers of all Sessions
+     * currently saved in this Store, after the queued writes are written.
+     *
+     * @exception IOException if an input/output error occurred
+     */
+    public String[] keys() throws IOException {
+        flush();
+        String keysSql = "SELECT " + sessionIdCol + " FROM "
+                + sessionTable + " WHERE " + sessionAppCol + " = ?";
+        return (queryKeys(keysSql, -1));
+    }
+
+    /**
+     * Return the number of Sessions currently saved in this Store, after
+     * the queued writes are written.
+     *
+     * @exception IOException if an input/output error occurred
+     */
+    public int getSize() throws IOException {
+        flush();
+        int size = 0;
+        Connection _conn = getConnection();
+        if (_conn == null) {
+            return (size);
+        }
+        PreparedStatement statement = null;
+        ResultSet rst = null;
+        try {
+            String sizeSql = "SELECT COUNT(" + sessionIdCol
+                    + ") FROM " + sessionTable + " WHERE "
+                    + sessionAppCol + " = ?";
+            statement = _conn.prepareStatement(sizeSql);
+            statement.setString(1, getName());
+            rst = statement.executeQuery();
+            if (rst.next()) {
+                size = rst.getInt(1);
+            }
+        } catch (SQLException e) {
+            manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".SQLException", e));
+        } finally {
+            close(rst, statement);
+            release(_conn);
+        }
+        return (size);
+    }
+
+    /**
+     * Load the Session associated with the id <code>id</code>, from the
+     * queued writes or from the database.
+     * If no such session is found <code>null</code> is returned.
+     *
+     * @param id a value of type <code>String</code>
+     * @return the stored <code>Session</code>
+     * @exception ClassNotFoundException if an error occurs
+     * @exception IOException if an input/output error occurred
+     */
+    public Session load(String id)
+            throws ClassNotFoundException, IOException {
+        PendingWrite write = pending.get(id);
+        if (write != null) {
+            if (manager.getContainer().getLogger().isDebugEnabled()) {
+                manager.getContainer().getLogger().debug(sm.getString(getStoreName() + ".loading",
+                        id, sessionTable));
+            }
+            return (write.data == null ? null
+                    : readSession(new ByteArrayInputStream(write.data)));
+        }
+
+        StandardSession _session = null;
+        Connection _conn = getConnection();
+        if (_conn == null) {
+            return (null);
+        }
+        PreparedStatement statement = null;
+        ResultSet rst = null;
+        try {
+            String loadSql = "SELECT " + sessionIdCol + ", "
+                    + sessionDataCol + " FROM " + sessionTable
+                    + " WHERE " + sessionIdCol + " = ? AND "
+                    + sessionAppCol + " = ?";
+            statement = _conn.prepareStatement(loadSql);
+            statement.setString(1, id);
+            statement.setString(2, getName());
+            rst = statement.executeQuery();
+            if (rst.next()) {
+                if (manager.getContainer().getLogger().isDebugEnabled()) {
+                    manager.getContainer().getLogger().debug(sm.getString(getStoreName() + ".loading",
+                            id, sessionTable));
+                }
+                _session = readSession(rst.getBinaryStream(2));
+            } else if (manager.getContainer().getLogger().isDebugEnabled()) {
+                manager.getContainer().getLogger().debug(getStoreName() + ": No persisted data object found");
+            }
+        } catch (SQLException e) {
+            manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".SQLException", e));
+        } finally {
+            close(rst, statement);
+            release(_conn);
+        }
+        return (_session);
+    }
+
+    /**
+     * Queue the removal of the Session with the specified session
+     * identifier.
+     *
+     * @param id Session identifier of the Session to be removed
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void remove(String id) throws IOException {
+        enqueue(id, new PendingWrite(null, false, 0, 0));
+        if (manager.getContainer().getLogger().isDebugEnabled()) {
+            manager.getContainer().getLogger().debug(sm.getString(getStoreName() + ".removing", id, sessionTable));
+        }
+    }
+
+    /**
+     * Remove all of the Sessions in this Store, including the queued
+     * writes.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void clear() throws IOException {
+        synchronized (flushLock) {
+            pending.clear();
+            Connection _conn = getConnection();
+            if (_conn == null) {
+                return;
+            }
+            PreparedStatement statement = null;
+            try {
+                String clearSql = "DELETE FROM " + sessionTable
+                        + " WHERE " + sessionAppCol + " = ?";
+                statement = _conn.prepareStatement(clearSql);
+                statement.setString(1, getName());
+                statement.execute();
+            } catch (SQLException e) {
+                manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".SQLException", e));
+            } finally {
+                close(null, statement);
+                release(_conn);
+            }
+        }
+    }
+
+    /**
+     * Serialize the session and queue its write.  A queued write of the
+     * same Session is replaced.
+     *
+     * @param session the session to be stored
+     * @exception IOException if an input/output error occurs, or if the
+     *  queue is full and can't be written
+     */
+    public void save(Session session) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(bos));
+        try {
+            ((StandardSession) session).writeObjectData(oos);
+        } finally {
+            oos.close();
+        }
+        enqueue(session.getIdInternal(),
+                new PendingWrite(bos.toByteArray(), session.isValid(),
+                        session.getMaxInactiveInterval(), session.getLastAccessedTime()));
+        if (manager.getContainer().getLogger().isDebugEnabled()) {
+            manager.getContainer().getLogger().debug(sm.getString(getStoreName() + ".saving",
+                    session.getIdInternal(), sessionTable));
+        }
+    }
+
+    /**
+     * Write all queued Sessions to the database.  Writes stay queued while
+     * the database can't be reached; a Session that can't be written
+     * while others can is dropped.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            while (!pending.isEmpty()) {
+                if (!flushBatch()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // --------------------------------------------------------- Protected Methods
+
+    /**
+     * Return the identifiers of the Sessions whose last access is longer
+     * ago than their maximum inactive interval, according to the columns
+     * of the table.
+     *
+     * @param timeNow The time of the expiration check
+     */
+    protected String[] expirationCandidates(long timeNow) throws IOException {
+        flush();
+        String expiredSql = "SELECT " + sessionIdCol + " FROM "
+                + sessionTable + " WHERE " + sessionAppCol + " = ? AND ("
+                + sessionMaxInactiveCol + " < 0 OR "
+                + sessionLastAccessedCol + " + " + sessionMaxInactiveCol
+                + " * 1000 <= ?)";
+        return (queryKeys(expiredSql, timeNow));
+    }
+
+    /**
+     * Return a connection from the pool, or <code>null</code> if no
+     * connection could be established.
+     */
+    protected Connection getConnection() {
+        try {
+            return (open());
+        } catch (SQLException ex) {
+            manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".checkConnectionSQLException",
+                    ex.toString()));
+            return (null);
+        }
+    }
+
+    /**
+     * Return a connection from the pool, the pool is created if necessary.
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected Connection open() throws SQLException {
+        BasicDataSource ds;
+        synchronized (this) {
+            if (dataSource == null) {
+                dataSource = new BasicDataSource();
+                dataSource.setDriverClassName(driverName);
+                dataSource.setUrl(connectionURL);
+                if (connectionName != null)
+                    dataSource.setUsername(connectionName);
+                if (connectionPassword != null)
+                    dataSource.setPassword(connectionPassword);
+                dataSource.setMaxActive(maxActive);
+                dataSource.setMaxIdle(maxActive);
+                dataSource.setPoolPreparedStatements(true);
+                dataSource.setDefaultAutoCommit(true);
+            }
+            ds = dataSource;
+        }
+        return (ds.getConnection());
+    }
+
+    /**
+     * Return the connection to the pool.
+     *
+     * @param conn The connection to be released
+     */
+    protected void release(Connection conn) {
+        if (conn == null)
+            return;
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".close", e.toString()));
+        }
+    }
+
+    /**
+     * Start the pool and the background writer.
+     */
+    public void start() throws LifecycleException {
+        super.start();
+        writerDone = false;
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeBehind();
+            }
+        }, getThreadName() + "[" + getName() + "]");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop the background writer, write the queued Sessions and close the
+     * pool.  Writes that are still queued afterwards are lost.
+     */
+    public void stop() throws LifecycleException {
+        writerDone = true;
+        if (writer != null) {
+            writer.interrupt();
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                ;
+            }
+            writer = null;
+        }
+        flush();
+        if (!pending.isEmpty()) {
+            manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".unwritten",
+                    new Integer(pending.size())));
+        }
+        synchronized (this) {
+            if (dataSource != null) {
+                try {
+                    dataSource.close();
+                } catch (SQLException e) {
+                    manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".close", e.toString()));
+                }
+                dataSource = null;
+            }
+        }
+        super.stop();
+    }
+
+    // --------------------------------------------------------- Private Methods
+
+    /**
+     * Queue the given write.  If the queue is full it is written first, and
+     * an <code>IOException</code> is thrown if it is still full afterwards,
+     * so that the queue doesn't grow without bounds while the database is
+     * not available.
+     */
+    private void enqueue(String id, PendingWrite write) throws IOException {
+        if (pending.size() >= maxPendingWrites && !pending.containsKey(id)) {
+            flush();
+            if (pending.size() >= maxPendingWrites) {
+                throw new IOException(sm.getString(getStoreName() + ".queueFull",
+                        id, new Integer(pending.size())));
+            }
+        }
+        pending.put(id, write);
+    }
+
+    /**
+     * The loop of the background writer.
+     */
+    private void writeBehind() {
+        while (!writerDone) {
+            try {
+                Thread.sleep(writeDelay);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".flushError"), e);
+            }
+        }
+    }
+
+    /**
+     * Write up to <code>batchSize</code> queued Sessions in one transaction
+     * and remove them from the queue unless they were queued again
+     * meanwhile.  Must be called holding <code>flushLock</code>.
+     *
+     * @return <code>false</code> if the writes failed
+     */
+    private boolean flushBatch() {
+        List<String> ids = new ArrayList<String>(batchSize);
+        List<PendingWrite> writes = new ArrayList<PendingWrite>(batchSize);
+        Iterator<Map.Entry<String, PendingWrite>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext() && ids.size() < batchSize) {
+            Map.Entry<String, PendingWrite> entry = iterator.next();
+            ids.add(entry.getKey());
+            writes.add(entry.getValue());
+        }
+        if (ids.isEmpty()) {
+            return (true);
+        }
+
+        Connection _conn = getConnection();
+        if (_conn == null) {
+            return (false);
+        }
+        long start = System.currentTimeMillis();
+        boolean failed = false;
+        PreparedStatement update = null;
+        PreparedStatement insert = null;
+        PreparedStatement delete = null;
+        int saves = 0;
+        int removes = 0;
+        try {
+            _conn.setAutoCommit(false);
+            String removeSql = "DELETE FROM " + sessionTable
+                    + " WHERE " + sessionIdCol + " = ?  AND "
+                    + sessionAppCol + " = ?";
+            String updateSql = "UPDATE " + sessionTable + " SET "
+                    + sessionDataCol + " = ?, " + sessionValidCol + " = ?, "
+                    + sessionMaxInactiveCol + " = ?, "
+                    + sessionLastAccessedCol + " = ? WHERE "
+                    + sessionIdCol + " = ? AND " + sessionAppCol + " = ?";
+            String saveSql = "INSERT INTO " + sessionTable + " ("
+                    + sessionIdCol + ", " + sessionAppCol + ", "
+                    + sessionDataCol + ", " + sessionValidCol
+                    + ", " + sessionMaxInactiveCol + ", "
+                    + sessionLastAccessedCol
+                    + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+            List<Integer> updated = new ArrayList<Integer>();
+            for (int i = 0; i < ids.size(); i++) {
+                PendingWrite write = writes.get(i);
+                if (write.data == null) {
+                    if (delete == null)
+                        delete = _conn.prepareStatement(removeSql);
+                    delete.setString(1, ids.get(i));
+                    delete.setString(2, getName());
+                    delete.addBatch();
+                    removes++;
+                } else {
+                    if (update == null)
+                        update = _conn.prepareStatement(updateSql);
+                    update.setBinaryStream(1, new ByteArrayInputStream(write.data), write.data.length);
+                    update.setString(2, write.valid ? "1" : "0");
+                    update.setInt(3, write.maxInactive);
+                    update.setLong(4, write.lastAccessed);
+                    update.setString(5, ids.get(i));
+                    update.setString(6, getName());
+                    update.addBatch();
+                    updated.add(new Integer(i));
+                    saves++;
+                }
+            }
+            if (delete != null) {
+                delete.executeBatch();
+            }
+            if (update != null) {
+                int[] counts = update.executeBatch();
+                for (int j = 0; j < counts.length; j++) {
+                    int i = updated.get(j).intValue();
+                    PendingWrite write = writes.get(i);
+                    int count = counts[j];
+                    if (count == Statement.SUCCESS_NO_INFO) {
+                        // The driver does not tell, update this one alone
+                        update.clearParameters();
+                        update.setBinaryStream(1, new ByteArrayInputStream(write.data), write.data.length);
+                        update.setString(2, write.valid ? "1" : "0");
+                        update.setInt(3, write.maxInactive);
+                        update.setLong(4, write.lastAccessed);
+                        update.setString(5, ids.get(i));
+                        update.setString(6, getName());
+                        count = update.executeUpdate();
+                    }
+                    if (count == 0) {
+                        if (insert == null)
+                            insert = _conn.prepareStatement(saveSql);
+                        insert.setString(1, ids.get(i));
+                        insert.setString(2, getName());
+                        insert.setBinaryStream(3, new ByteArrayInputStream(write.data), write.data.length);
+                        insert.setString(4, write.valid ? "1" : "0");
+                        insert.setInt(5, write.maxInactive);
+                        insert.setLong(6, write.lastAccessed);
+                        insert.addBatch();
+                    }
+                }
+            }
+            if (insert != null) {
+                insert.executeBatch();
+            }
+            _conn.commit();
+        } catch (SQLException e) {
+            manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".SQLException", e));
+            try {
+                _conn.rollback();
+            } catch (SQLException f) {
+                ;
+            }
+            failed = true;
+        } finally {
+            close(null, delete);
+            close(null, update);
+            close(null, insert);
+            try {
+                _conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                ;
+            }
+            release(_conn);
+        }
+        if (failed) {
+            return (flushSingly(ids, writes));
+        }
+
+        // Writes queued meanwhile are kept for the next batch
+        for (int i = 0; i < ids.size(); i++) {
+            pending.remove(ids.get(i), writes.get(i));
+        }
+        if (manager.getContainer().getLogger().isDebugEnabled()) {
+            manager.getContainer().getLogger().debug(sm.getString(getStoreName() + ".flushed",
+                    new Integer(saves), new Integer(removes),
+                    new Long(System.currentTimeMillis() - start)));
+        }
+        return (true);
+    }
+
+    /**
+     * Write the Sessions of a failed transaction one by one.  A Session
+     * that can't be written is dropped with an error if others could be
+     * written, or if it failed <code>MAX_ATTEMPTS</code> times, so that
+     * it can't block the queue.  Must be called holding
+     * <code>flushLock</code>.
+     *
+     * @return <code>false</code> if no write was removed from the queue
+     */
+    private boolean flushSingly(List<String> ids, List<PendingWrite> writes) {
+        Connection _conn = getConnection();
+        if (_conn == null) {
+            return (false);
+        }
+        int written = 0;
+        SQLException[] errors = new SQLException[ids.size()];
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                try {
+                    writeSingle(_conn, ids.get(i), writes.get(i));
+                    pending.remove(ids.get(i), writes.get(i));
+                    written++;
+                } catch (SQLException e) {
+                    errors[i] = e;
+                }
+            }
+        } finally {
+            release(_conn);
+        }
+        boolean removed = written > 0;
+        for (int i = 0; i < ids.size(); i++) {
+            if (errors[i] == null) {
+                continue;
+            }
+            PendingWrite write = writes.get(i);
+            write.attempts++;
+            if (written > 0 || write.attempts >= MAX_ATTEMPTS) {
+                manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".dropped",
+                        ids.get(i), new Integer(write.attempts)), errors[i]);
+                pending.remove(ids.get(i), write);
+                removed = true;
+            }
+        }
+        return (removed);
+    }
+
+    /**
+     * Write the given Session alone with an UPDATE, or an INSERT if it
+     * is not in the table yet, or remove it.
+     *
+     * @exception SQLException if a database error occurs
+     */
+    private void writeSingle(Connection _conn, String id, PendingWrite write)
+            throws SQLException {
+        PreparedStatement statement = null;
+        try {
+            if (write.data == null) {
+                statement = _conn.prepareStatement("DELETE FROM " + sessionTable
+                        + " WHERE " + sessionIdCol + " = ?  AND "
+                        + sessionAppCol + " = ?");
+                statement.setString(1, id);
+                statement.setString(2, getName());
+                statement.execute();
+                return;
+            }
+            statement = _conn.prepareStatement("UPDATE " + sessionTable + " SET "
+                    + sessionDataCol + " = ?, " + sessionValidCol + " = ?, "
+                    + sessionMaxInactiveCol + " = ?, "
+                    + sessionLastAccessedCol + " = ? WHERE "
+                    + sessionIdCol + " = ? AND " + sessionAppCol + " = ?");
+            statement.setBinaryStream(1, new ByteArrayInputStream(write.data), write.data.length);
+            statement.setString(2, write.valid ? "1" : "0");
+            statement.setInt(3, write.maxInactive);
+            statement.setLong(4, write.lastAccessed);
+            statement.setString(5, id);
+            statement.setString(6, getName());
+            if (statement.executeUpdate() > 0) {
+                return;
+            }
+            statement.close();
+            statement = _conn.prepareStatement("INSERT INTO " + sessionTable + " ("
+                    + sessionIdCol + ", " + sessionAppCol + ", "
+                    + sessionDataCol + ", " + sessionValidCol
+                    + ", " + sessionMaxInactiveCol + ", "
+                    + sessionLastAccessedCol
+                    + ") VALUES (?, ?, ?, ?, ?, ?)");
+            statement.setString(1, id);
+            statement.setString(2, getName());
+            statement.setBinaryStream(3, new ByteArrayInputStream(write.data), write.data.length);
+            statement.setString(4, write.valid ? "1" : "0");
+            statement.setInt(5, write.maxInactive);
+            statement.setLong(6, write.lastAccessed);
+            statement.executeUpdate();
+        } finally {
+            close(null, statement);
+        }
+    }
+
+    /**
+     * Return the session identifiers selected by the given query, which
+     * has the application name as first parameter and optionally a time
+     * as second parameter.
+     */
+    private String[] queryKeys(String sql, long time) {
+        ArrayList<String> tmpkeys = new ArrayList<String>();
+        Connection _conn = getConnection();
+        if (_conn == null) {
+            return (new String[0]);
+        }
+        PreparedStatement statement = null;
+        ResultSet rst = null;
+        try {
+            statement = _conn.prepareStatement(sql);
+            statement.setString(1, getName());
+            if (time >= 0) {
+                statement.setLong(2, time);
+            }
+            rst = statement.executeQuery();
+            while (rst.next()) {
+                tmpkeys.add(rst.getString(1));
+            }
+        } catch (SQLException e) {
+            manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".SQLException", e));
+            return (new String[0]);
+        } finally {
+            close(rst, statement);
+            release(_conn);
+        }
+        return (tmpkeys.toArray(new String[tmpkeys.size()]));
+    }
+
+    /**
+     * Deserialize a Session from the given stream.
+     */
+    private StandardSession readSession(InputStream in)
+            throws ClassNotFoundException, IOException {
+        Loader loader = null;
+        ClassLoader classLoader = null;
+        Container container = manager.getContainer();
+        if (container != null) {
+            loader = container.getLoader();
+        }
+        if (loader != null) {
+            classLoader = loader.getClassLoader();
+        }
+        BufferedInputStream bis = new BufferedInputStream(in);
+        ObjectInputStream ois;
+        if (classLoader != null) {
+            ois = new CustomObjectInputStream(bis, classLoader);
+        } else {
+            ois = new ObjectInputStream(bis);
+        }
+        try {
+            StandardSession _session = (StandardSession) manager.createEmptySession();
+            _session.readObjectData(ois);
+            _session.setManager(manager);
+            return (_session);
+        } finally {
+            try {
+                ois.close();
+            } catch (IOException e) {
+                ;
+            }
+        }
+    }
+
+    /**
+     * Close the result set and statement, if any.
+     */
+    private static void close(ResultSet rst, Statement statement) {
+        try {
+            if (rst != null)
+                rst.close();
+        } catch (SQLException e) {
+            ;
+        }
+        try {
+            if (statement != null)
+                statement.close();
+        } catch (SQLException e) {
+            ;
+        }
+    }
+
+    /**
+     * A queued write, <code>data</code> is <code>null</code> for a removal.
+     * Instances are compared by identity, so that a write queued again
+     * replaces the one being written.  <code>attempts</code> is guarded by
+     * <code>flushLock</code>.
+     */
+    private static final class PendingWrite {
+
+        final byte[] data;
+        final boolean valid;
+        final int maxInactive;
+        final long lastAccessed;
+        int attempts;
+
+        PendingWrite(byte[] data, boolean valid, int maxInactive, long lastAccessed) {
+            this.data = data;
+            this.valid = valid;
+            this.maxInactive = maxInactive;
+            this.lastAccessed = lastAccessed;
+        }
+
+    }
+
+}
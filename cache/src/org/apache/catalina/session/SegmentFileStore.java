@@ -0,0 +1,1221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import javax.servlet.ServletContext;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.Globals;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Loader;
+import org.apache.catalina.Session;
+import org.apache.catalina.Store;
+import org.apache.catalina.util.CustomObjectInputStream;
+
+
+/**
+ * Concrete implementation of the <b>Store</b> interface that appends
+ * saved Sessions to a small number of segment files in a configured
+ * directory, instead of writing a file per Session like {@link FileStore}.
+ * <p>
+ * An in-memory index maps each session identifier to the position of its
+ * latest record, so <code>load</code> reads a single record through a
+ * memory mapping of the segment, <code>save</code> and <code>remove</code>
+ * are sequential appends, and <code>keys</code> and <code>getSize</code>
+ * don't touch the file system.  Records carry the last access time of the
+ * Session, so <code>processExpires</code> only loads expired Sessions.
+ * <p>
+ * Overwritten and removed records stay in their segment until the
+ * segment is compacted: during <code>processExpires</code> the live
+ * records of every full segment with less than <b>compactionThreshold</b>
+ * percent live data are copied to the current segment and the segment
+ * file is deleted.  The mapping of a deleted segment is released as soon
+ * as no load reads it anymore, instead of waiting for the garbage
+ * collector.  On start the index is rebuilt by reading all segments
+ * in the order they were written, a record that was only partly written
+ * ends its segment.
+ *
+ * @version $Id$
+ */
+
+public final class SegmentFileStore
+    extends StoreBase implements Store {
+
+
+    // ----------------------------------------------------- Constants
+
+
+    /**
+     * The extension to use for segment filenames.
+     */
+    private static final String FILE_EXT = ".segment";
+
+
+    /**
+     * Record types.
+     */
+    private static final byte SAVE = 1;
+    private static final byte REMOVE = 2;
+
+
+    /**
+     * The length of the record header: the length of the record body
+     * and its CRC-32 checksum.
+     */
+    private static final int HEADER_LENGTH = 8;
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The pathname of the directory in which segments are stored.
+     * This may be an absolute pathname, or a relative path that is
+     * resolved against the temporary work directory for this application.
+     */
+    private String directory = ".";
+
+
+    /**
+     * A File representing the directory in which segments are stored.
+     */
+    private File directoryFile = null;
+
+
+    /**
+     * The size of a segment file in bytes.
+     */
+    private int segmentSize = 16 * 1024 * 1024;
+
+
+    /**
+     * The percentage of live data below which a full segment is compacted.
+     */
+    private int compactionThreshold = 50;
+
+
+    /**
+     * The location of the latest record of each stored Session.
+     */
+    private final ConcurrentHashMap<String, Location> index =
+        new ConcurrentHashMap<String, Location>();
+
+
+    /**
+     * All segments in the order they were written, the last one is the
+     * segment records are appended to.  Guarded by <code>writeLock</code>.
+     */
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+
+    /**
+     * The segment records are appended to.  Guarded by <code>writeLock</code>.
+     */
+    private Segment current = null;
+
+
+    /**
+     * Serializes appends, index updates of appends and changes of the
+     * segments.  Sessions are serialized before the lock is acquired.
+     */
+    private final Object writeLock = new Object();
+
+
+    /**
+     * The descriptive information about this implementation.
+     */
+    private static final String info = "SegmentFileStore/1.0";
+
+    /**
+     * Name to register for this Store, used for logging.
+     */
+    private static final String storeName = "segmentFileStore";
+
+    /**
+     * Name to register for the background thread.
+     */
+    private static final String threadName = "SegmentFileStore";
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the directory path for this Store.
+     */
+    public String getDirectory() {
+
+        return (directory);
+
+    }
+
+
+    /**
+     * Set the directory path for this Store.
+     *
+     * @param path The new directory path
+     */
+    public void setDirectory(String path) {
+
+        String oldDirectory = this.directory;
+        this.directory = path;
+        this.directoryFile = null;
+        support.firePropertyChange("directory", oldDirectory,
+                                   this.directory);
+
+    }
+
+
+    /**
+     * Return the size of a segment file in bytes.
+     */
+    public int getSegmentSize() {
+
+        return (segmentSize);
+
+    }
+
+
+    /**
+     * Set the size of a segment file in bytes.  Sessions larger than this
+     * get a segment of their own.
+     *
+     * @param segmentSize The new segment size
+     */
+    public void setSegmentSize(int segmentSize) {
+
+        int oldSegmentSize = this.segmentSize;
+        this.segmentSize = segmentSize;
+        support.firePropertyChange("segmentSize",
+                                   new Integer(oldSegmentSize),
+                                   new Integer(this.segmentSize));
+
+    }
+
+
+    /**
+     * Return the percentage of live data below which a segment is compacted.
+     */
+    public int getCompactionThreshold() {
+
+        return (compactionThreshold);
+
+    }
+
+
+    /**
+     * Set the percentage of live data below which a segment is compacted.
+     *
+     * @param compactionThreshold The new threshold, between 0 and 100
+     */
+    public void setCompactionThreshold(int compactionThreshold) {
+
+        int oldCompactionThreshold = this.compactionThreshold;
+        this.compactionThreshold = compactionThreshold;
+        support.firePropertyChange("compactionThreshold",
+                                   new Integer(oldCompactionThreshold),
+                                   new Integer(this.compactionThreshold));
+
+    }
+
+
+    /**
+     * Return descriptive information about this Store implementation and
+     * the corresponding version number, in the format
+     * <code>&lt;description&gt;/&lt;version&gt;</code>.
+     */
+    public String getInfo() {
+
+        return (info);
+
+    }
+
+    /**
+     * Return the thread name for this Store.
+     */
+    public String getThreadName() {
+        return(threadName);
+    }
+
+    /**
+     * Return the name for this Store, used for logging.
+     */
+    public String getStoreName() {
+        return(storeName);
+    }
+
+
+    /**
+     * Return the number of Sessions present in this Store.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public int getSize() throws IOException {
+
+        return (index.size());
+
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Remove all of the Sessions in this Store.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void clear()
+        throws IOException {
+
+        synchronized (writeLock) {
+            index.clear();
+            Iterator<Segment> iterator = segments.values().iterator();
+            while (iterator.hasNext()) {
+                iterator.next().delete();
+                iterator.remove();
+            }
+            current = null;
+        }
+
+    }
+
+
+    /**
+     * Return an array containing the session identifiers of all Sessions
+     * currently saved in this Store.  If there are no such Sessions, a
+     * zero-length array is returned.
+     *
+     * @exception IOException if an input/output error occurred
+     */
+    public String[] keys() throws IOException {
+
+        return (index.keySet().toArray(new String[0]));
+
+    }
+
+
+    /**
+     * Load and return the Session associated with the specified session
+     * identifier from this Store, without removing it.  If there is no
+     * such stored Session, return <code>null</code>.
+     *
+     * @param id Session identifier of the session to load
+     *
+     * @exception ClassNotFoundException if a deserialization error occurs
+     * @exception IOException if an input/output error occurs
+     */
+    public Session load(String id)
+        throws ClassNotFoundException, IOException {
+
+        Location location = index.get(id);
+        while (location != null && !location.segment.beginRead()) {
+            // Compacted meanwhile, the index already points to the copy
+            location = index.get(id);
+        }
+        if (location == null) {
+            return (null);
+        }
+        try {
+            return (load(id, location));
+        } finally {
+            location.segment.endRead();
+        }
+    }
+
+
+    /**
+     * Load the Session from the given record, the caller makes sure that
+     * the segment is not unmapped meanwhile.
+     */
+    private Session load(String id, Location location)
+        throws ClassNotFoundException, IOException {
+
+        if (manager.getContainer().getLogger().isDebugEnabled()) {
+            manager.getContainer().getLogger().debug(sm.getString(getStoreName()+".loading",
+                             id, location.segment.file.getAbsolutePath()));
+        }
+
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.limit(location.offset + location.length);
+        buffer.position(location.offset + HEADER_LENGTH);
+        if (buffer.get() != SAVE || !id.equals(readUTF(buffer))) {
+            throw new IOException(sm.getString(getStoreName()+".corrupt",
+                    id, location.segment.file.getAbsolutePath()));
+        }
+        buffer.position(buffer.position() + 12);
+
+        Loader loader = null;
+        ClassLoader classLoader = null;
+        Container container = manager.getContainer();
+        if (container != null)
+            loader = container.getLoader();
+        if (loader != null)
+            classLoader = loader.getClassLoader();
+        InputStream in = new ByteBufferInputStream(buffer);
+        ObjectInputStream ois = null;
+        if (classLoader != null)
+            ois = new CustomObjectInputStream(in, classLoader);
+        else
+            ois = new ObjectInputStream(in);
+
+        try {
+            StandardSession session =
+                (StandardSession) manager.createEmptySession();
+            session.readObjectData(ois);
+            session.setManager(manager);
+            return (session);
+        } finally {
+            try {
+                ois.close();
+            } catch (IOException f) {
+                ;
+            }
+        }
+    }
+
+
+    /**
+     * Remove the Session with the specified session identifier from
+     * this Store, if present.  If no such Session is present, this method
+     * takes no action.
+     *
+     * @param id Session identifier of the Session to be removed
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void remove(String id) throws IOException {
+
+        if (!index.containsKey(id)) {
+            return;
+        }
+        RecordOutputStream record = new RecordOutputStream(REMOVE, id);
+        record.finish();
+
+        synchronized (writeLock) {
+            Location previous = index.remove(id);
+            if (previous == null) {
+                return;
+            }
+            // The removal record must be kept until the saved record is gone
+            Location location = append(record);
+            location.segment.release(location.length);
+            previous.segment.release(previous.length);
+            if (manager.getContainer().getLogger().isDebugEnabled()) {
+                manager.getContainer().getLogger().debug(sm.getString(getStoreName()+".removing",
+                                 id, location.segment.file.getAbsolutePath()));
+            }
+        }
+
+    }
+
+
+    /**
+     * Save the specified Session into this Store.  Any previously saved
+     * information for the associated session identifier is replaced.
+     *
+     * @param session Session to be saved
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void save(Session session) throws IOException {
+
+        StandardSession standardSession = (StandardSession) session;
+        RecordOutputStream record =
+            new RecordOutputStream(SAVE, session.getIdInternal());
+        record.data.writeLong(standardSession.thisAccessedTime);
+        record.data.writeInt(standardSession.getMaxInactiveInterval());
+        ObjectOutputStream oos = new ObjectOutputStream(record);
+        standardSession.writeObjectData(oos);
+        oos.flush();
+        record.finish();
+
+        synchronized (writeLock) {
+            Location location = append(record);
+            Location previous = index.put(session.getIdInternal(), location);
+            if (previous != null) {
+                previous.segment.release(previous.length);
+            }
+            if (manager.getContainer().getLogger().isDebugEnabled()) {
+                manager.getContainer().getLogger().debug(sm.getString(getStoreName()+".saving",
+                                 session.getIdInternal(), location.segment.file.getAbsolutePath()));
+            }
+        }
+
+    }
+
+
+    /**
+     * Expire the Sessions of this Store and compact segments with little
+     * live data.
+     */
+    public void processExpires() {
+
+        super.processExpires();
+        if (started) {
+            compact();
+        }
+
+    }
+
+
+    // --------------------------------------------------------- Thread Methods
+
+
+    /**
+     * Read the existing segments and rebuild the index.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that prevents this component from being used
+     */
+    public void start() throws LifecycleException {
+
+        super.start();
+        synchronized (writeLock) {
+            try {
+                recover();
+            } catch (IOException e) {
+                throw new LifecycleException(e);
+            }
+        }
+
+    }
+
+
+    /**
+     * Flush and close the segments.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that needs to be reported
+     */
+    public void stop() throws LifecycleException {
+
+        super.stop();
+        synchronized (writeLock) {
+            // Loads must not find a closed segment in the index
+            index.clear();
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+            current = null;
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Return the identifiers of the Sessions that are idle longer than
+     * their maximum inactive interval, as of their last save.
+     *
+     * @param timeNow The time of the expiration check
+     */
+    protected String[] expirationCandidates(long timeNow) {
+
+        ArrayList<String> list = new ArrayList<String>();
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            Location location = entry.getValue();
+            int timeIdle = (int) ((timeNow - location.thisAccessedTime) / 1000L);
+            if (timeIdle >= location.maxInactiveInterval) {
+                list.add(entry.getKey());
+            }
+        }
+        return (list.toArray(new String[list.size()]));
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Append a record to the current segment, starting a new segment if
+     * it does not fit.  Must be called holding <code>writeLock</code>.
+     */
+    private Location append(RecordOutputStream record) throws IOException {
+
+        if (current == null || !current.fits(record.size())) {
+            if (current != null) {
+                current.seal();
+            }
+            long sequence = segments.isEmpty() ? 1 : segments.lastKey().longValue() + 1;
+            current = Segment.create(file(sequence), sequence,
+                    Math.max(segmentSize, record.size()));
+            segments.put(new Long(sequence), current);
+        }
+        int offset = current.append(record.buffer(), record.size());
+        return (new Location(current, offset, record.size(),
+                             record.thisAccessedTime, record.maxInactiveInterval));
+
+    }
+
+
+    /**
+     * Copy the live records of full segments with less than
+     * <code>compactionThreshold</code> percent live data to the current
+     * segment, and delete those segments.
+     */
+    private void compact() {
+
+        Segment[] candidates;
+        synchronized (writeLock) {
+            ArrayList<Segment> list = new ArrayList<Segment>();
+            for (Segment segment : segments.values()) {
+                if (segment != current && (segment.live == 0
+                        || segment.live * 100L < (long) segment.used * compactionThreshold)) {
+                    list.add(segment);
+                }
+            }
+            candidates = list.toArray(new Segment[list.size()]);
+        }
+        for (int i = 0; i < candidates.length; i++) {
+            try {
+                compact(candidates[i]);
+            } catch (IOException e) {
+                manager.getContainer().getLogger().error(sm.getString(getStoreName()+".compactError",
+                        candidates[i].file.getAbsolutePath()), e);
+            }
+        }
+
+    }
+
+
+    /**
+     * Copy the live records of the given segment to the current segment and
+     * delete it.  Removal records are copied as long as an older segment
+     * might contain a record they remove.
+     */
+    private void compact(Segment segment) throws IOException {
+
+        if (!segment.beginRead()) {
+            // Cleared meanwhile
+            return;
+        }
+        try {
+            compactSegment(segment);
+        } finally {
+            segment.endRead();
+        }
+
+    }
+
+
+    /**
+     * Copy the live records of the given segment, the caller makes sure
+     * that the segment is not unmapped meanwhile.
+     */
+    private void compactSegment(Segment segment) throws IOException {
+
+        if (manager.getContainer().getLogger().isDebugEnabled()) {
+            manager.getContainer().getLogger().debug(sm.getString(getStoreName()+".compacting",
+                    segment.file.getAbsolutePath(), new Integer(segment.live), new Integer(segment.used)));
+        }
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+        while (offset < segment.used) {
+            int length = HEADER_LENGTH + buffer.getInt(offset);
+            buffer.limit(offset + length);
+            buffer.position(offset + HEADER_LENGTH);
+            byte type = buffer.get();
+            String id = readUTF(buffer);
+            synchronized (writeLock) {
+                if (!segments.containsKey(new Long(segment.sequence))) {
+                    // Cleared meanwhile
+                    return;
+                }
+                Location location = index.get(id);
+                boolean copy;
+                if (type == SAVE) {
+                    copy = location != null && location.segment == segment
+                        && location.offset == offset;
+                } else {
+                    copy = location == null
+                        && segments.firstKey().longValue() != segment.sequence;
+                }
+                if (copy) {
+                    buffer.position(offset);
+                    byte[] record = new byte[length];
+                    buffer.get(record);
+                    Location copied = appendCopy(record, location);
+                    if (type == SAVE) {
+                        index.put(id, copied);
+                        segment.release(length);
+                    } else {
+                        copied.segment.release(length);
+                    }
+                }
+            }
+            buffer.limit(buffer.capacity());
+            offset += length;
+        }
+        synchronized (writeLock) {
+            if (segments.remove(new Long(segment.sequence)) != null) {
+                // The copies must be on disk before the originals are gone
+                if (current != null) {
+                    current.force();
+                }
+                segment.delete();
+            }
+        }
+
+    }
+
+
+    /**
+     * Append a copy of a record.  Must be called holding
+     * <code>writeLock</code>.
+     */
+    private Location appendCopy(byte[] record, Location location) throws IOException {
+
+        RecordOutputStream copy = new RecordOutputStream(record);
+        if (location != null) {
+            copy.thisAccessedTime = location.thisAccessedTime;
+            copy.maxInactiveInterval = location.maxInactiveInterval;
+        }
+        return (append(copy));
+
+    }
+
+
+    /**
+     * Read all segments in the order they were written and rebuild the
+     * index.  Must be called holding <code>writeLock</code>.
+     */
+    private void recover() throws IOException {
+
+        File dir = directory();
+        String[] files = dir.list();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; i++) {
+            if (!files[i].endsWith(FILE_EXT)) {
+                continue;
+            }
+            long sequence;
+            try {
+                sequence = Long.parseLong(files[i].substring(0, files[i].length() - FILE_EXT.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = Segment.open(new File(dir, files[i]), sequence);
+            segments.put(new Long(sequence), segment);
+        }
+        for (Segment segment : segments.values()) {
+            recover(segment);
+        }
+        if (manager.getContainer().getLogger().isDebugEnabled()) {
+            manager.getContainer().getLogger().debug(sm.getString(getStoreName()+".recovered",
+                    new Integer(index.size()), new Integer(segments.size()), dir.getAbsolutePath()));
+        }
+        // Appends always go to a new segment
+        current = null;
+
+    }
+
+
+    /**
+     * Read the records of a segment into the index.  Reading stops at the
+     * end of the written data or at a record that was only partly written.
+     */
+    private void recover(Segment segment) {
+
+        ByteBuffer buffer = segment.buffer.duplicate();
+        CRC32 crc = new CRC32();
+        int offset = 0;
+        while (offset + HEADER_LENGTH < buffer.capacity()) {
+            int bodyLength = buffer.getInt(offset);
+            if (bodyLength <= 0 || bodyLength > buffer.capacity() - offset - HEADER_LENGTH) {
+                break;
+            }
+            int length = HEADER_LENGTH + bodyLength;
+            buffer.limit(offset + length);
+            buffer.position(offset + HEADER_LENGTH);
+            crc.reset();
+            update(crc, buffer.slice());
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                manager.getContainer().getLogger().warn(sm.getString(getStoreName()+".truncated",
+                        segment.file.getAbsolutePath(), new Integer(offset)));
+                break;
+            }
+            byte type = buffer.get();
+            String id;
+            try {
+                id = readUTF(buffer);
+            } catch (IOException e) {
+                break;
+            }
+            segment.used = offset + length;
+            segment.live += length;
+            Location previous;
+            if (type == SAVE) {
+                long thisAccessedTime = buffer.getLong();
+                int maxInactiveInterval = buffer.getInt();
+                previous = index.put(id, new Location(segment, offset, length,
+                                                      thisAccessedTime, maxInactiveInterval));
+            } else {
+                previous = index.remove(id);
+                segment.release(length);
+            }
+            if (previous != null) {
+                previous.segment.release(previous.length);
+            }
+            buffer.limit(buffer.capacity());
+            offset += length;
+        }
+
+    }
+
+
+    /**
+     * Update the checksum with the remaining bytes of the buffer.
+     */
+    private static void update(CRC32 crc, ByteBuffer buffer) {
+
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                       buffer.remaining());
+        } else {
+            byte[] bytes = new byte[Math.min(buffer.remaining(), 8192)];
+            while (buffer.hasRemaining()) {
+                int count = Math.min(buffer.remaining(), bytes.length);
+                buffer.get(bytes, 0, count);
+                crc.update(bytes, 0, count);
+            }
+        }
+
+    }
+
+
+    /**
+     * Read a string written by {@link DataOutputStream#writeUTF(String)}.
+     */
+    private static String readUTF(ByteBuffer buffer) throws IOException {
+
+        int length = buffer.getShort() & 0xffff;
+        if (length > buffer.remaining()) {
+            throw new UTFDataFormatException();
+        }
+        char[] chars = new char[length];
+        int count = 0;
+        int end = buffer.position() + length;
+        while (buffer.position() < end) {
+            int c = buffer.get() & 0xff;
+            switch (c >> 4) {
+            case 12:
+            case 13:
+                chars[count++] = (char) (((c & 0x1F) << 6) | (buffer.get() & 0x3F));
+                break;
+            case 14:
+                chars[count++] = (char) (((c & 0x0F) << 12) | ((buffer.get() & 0x3F) << 6)
+                                         | (buffer.get() & 0x3F));
+                break;
+            default:
+                if (c >= 0x80) {
+                    throw new UTFDataFormatException();
+                }
+                chars[count++] = (char) c;
+            }
+        }
+        return (new String(chars, 0, count));
+
+    }
+
+
+    /**
+     * Release the mapping of a buffer without waiting for the garbage
+     * collector, so that the file of a deleted segment is really gone and
+     * its address space is free.  The buffer must not be accessed
+     * afterwards.  If the JVM offers no way to do this, the mapping is
+     * released when the buffer is collected.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(field.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            // Not available, try the cleaner of the buffer
+        }
+        try {
+            // Java 8 and earlier
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // Released by the garbage collector
+        }
+
+    }
+
+
+    /**
+     * Return a File object representing the pathname to our
+     * session persistence directory, if any.  The directory will be
+     * created if it does not already exist.
+     */
+    private File directory() {
+
+        if (this.directory == null) {
+            return (null);
+        }
+        if (this.directoryFile != null) {
+            // NOTE:  Race condition is harmless, so do not synchronize
+            return (this.directoryFile);
+        }
+        File file = new File(this.directory);
+        if (!file.isAbsolute()) {
+            Container container = manager.getContainer();
+            if (container instanceof Context) {
+                ServletContext servletContext =
+                    ((Context) container).getServletContext();
+                File work = (File)
+                    servletContext.getAttribute(Globals.WORK_DIR_ATTR);
+                file = new File(work, this.directory);
+            } else {
+                throw new IllegalArgumentException
+                    ("Parent Container is not a Context");
+            }
+        }
+        if (!file.exists() || !file.isDirectory()) {
+            file.delete();
+            file.mkdirs();
+        }
+        this.directoryFile = file;
+        return (file);
+
+    }
+
+
+    /**
+     * Return a File object representing the pathname of the segment
+     * with the given sequence number.
+     */
+    private File file(long sequence) {
+
+        String name = Long.toString(sequence);
+        StringBuffer filename = new StringBuffer(20 + FILE_EXT.length());
+        for (int i = name.length(); i < 20; i++) {
+            filename.append('0');
+        }
+        filename.append(name).append(FILE_EXT);
+        return (new File(directory(), filename.toString()));
+
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * The position of a record in a segment, and the last access time and
+     * maximum inactive interval of the saved Session.
+     */
+    private static final class Location {
+
+        final Segment segment;
+        final int offset;
+        final int length;
+        final long thisAccessedTime;
+        final int maxInactiveInterval;
+
+        Location(Segment segment, int offset, int length,
+                 long thisAccessedTime, int maxInactiveInterval) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.thisAccessedTime = thisAccessedTime;
+            this.maxInactiveInterval = maxInactiveInterval;
+        }
+
+    }
+
+
+    /**
+     * A segment file, mapped into memory as a whole.  The file is created
+     * with its full size, the unwritten rest is zero, which ends the
+     * records.  Apart from <code>buffer</code> and the reader count all
+     * fields are guarded by the <code>writeLock</code> of the Store.
+     * Reading the buffer outside of that lock must be enclosed by
+     * <code>beginRead</code> and <code>endRead</code>, the buffer is
+     * unmapped when the segment is closed and no one reads it.
+     */
+    private static final class Segment {
+
+        final File file;
+        final long sequence;
+        final MappedByteBuffer buffer;
+        private RandomAccessFile raf;
+        /** The number of bytes written. */
+        int used;
+        /** The number of bytes of records that are still needed. */
+        int live;
+        /** The number of threads reading the buffer.  Guarded by this. */
+        private int readers;
+        /** Set when the segment is closed.  Guarded by this. */
+        private boolean closed;
+
+        private Segment(File file, long sequence, RandomAccessFile raf,
+                        MappedByteBuffer buffer) {
+            this.file = file;
+            this.sequence = sequence;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+
+        static Segment create(File file, long sequence, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                MappedByteBuffer buffer =
+                    raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                return (new Segment(file, sequence, raf, buffer));
+            } catch (IOException e) {
+                raf.close();
+                file.delete();
+                throw e;
+            }
+        }
+
+        static Segment open(File file, long sequence) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                MappedByteBuffer buffer =
+                    raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                return (new Segment(file, sequence, raf, buffer));
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        boolean fits(int length) {
+            return (used + length <= buffer.capacity());
+        }
+
+        /**
+         * Append a record, the caller has checked that it fits.
+         *
+         * @return the offset of the record
+         */
+        int append(byte[] record, int length) {
+            ByteBuffer target = buffer.duplicate();
+            target.position(used);
+            target.put(record, 0, length);
+            int offset = used;
+            used += length;
+            live += length;
+            return (offset);
+        }
+
+        void release(int length) {
+            live -= length;
+        }
+
+        /**
+         * Start reading the buffer.
+         *
+         * @return <code>false</code> if the segment is closed
+         */
+        synchronized boolean beginRead() {
+            if (closed) {
+                return (false);
+            }
+            readers++;
+            return (true);
+        }
+
+        /**
+         * Done reading the buffer, unmap it if the segment was closed
+         * meanwhile.
+         */
+        synchronized void endRead() {
+            if (--readers == 0 && closed) {
+                unmap(buffer);
+            }
+        }
+
+        void force() {
+            if (!buffer.isReadOnly()) {
+                buffer.force();
+            }
+        }
+
+        void seal() {
+            force();
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+            }
+            force();
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    ;
+                }
+                raf = null;
+            }
+            synchronized (this) {
+                closed = true;
+                if (readers == 0) {
+                    unmap(buffer);
+                }
+            }
+        }
+
+        void delete() {
+            close();
+            // Fails on platforms that don't delete mapped files while a
+            // load still reads the segment
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+
+    }
+
+
+    /**
+     * Builds a record in memory: the header, the record type and session
+     * identifier, and for saved Sessions their last access time, maximum
+     * inactive interval and serialized data.
+     */
+    private static final class RecordOutputStream extends ByteArrayOutputStream {
+
+        final DataOutputStream data = new DataOutputStream(this);
+        long thisAccessedTime;
+        int maxInactiveInterval;
+
+        RecordOutputStream(byte type, String id) throws IOException {
+            super(256);
+            data.writeLong(0);
+            data.writeByte(type);
+            data.writeUTF(id);
+        }
+
+        /**
+         * A copy of a complete record.
+         */
+        RecordOutputStream(byte[] record) {
+            super(0);
+            buf = record;
+            count = record.length;
+        }
+
+        /**
+         * Write the length and checksum of the body to the header.
+         */
+        void finish() {
+            CRC32 crc = new CRC32();
+            crc.update(buf, HEADER_LENGTH, count - HEADER_LENGTH);
+            ByteBuffer header = ByteBuffer.wrap(buf, 0, HEADER_LENGTH);
+            header.putInt(count - HEADER_LENGTH);
+            header.putInt((int) crc.getValue());
+            if (buf[HEADER_LENGTH] == SAVE) {
+                ByteBuffer meta = ByteBuffer.wrap(buf);
+                meta.position(HEADER_LENGTH + 1);
+                meta.position(HEADER_LENGTH + 3 + (meta.getShort() & 0xffff));
+                thisAccessedTime = meta.getLong();
+                maxInactiveInterval = meta.getInt();
+            }
+        }
+
+        byte[] buffer() {
+            return (buf);
+        }
+
+    }
+
+
+    /**
+     * Reads the remaining bytes of a buffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return (buffer.hasRemaining() ? buffer.get() & 0xff : -1);
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return (0);
+            }
+            if (!buffer.hasRemaining()) {
+                return (-1);
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return (count);
+        }
+
+        public int available() {
+            return (buffer.remaining());
+        }
+
+    }
+
+
+}
@@ -181,7 +181,7 @@ public abstract class StoreBase
         }
 
         try {
-            keys = keys();
+            keys = expirationCandidates(timeNow);
         } catch (IOException e) {
             manager.getContainer().getLogger().error("Error getting keys", e);
             return;
@@ -223,6 +223,21 @@ public abstract class StoreBase
     }
 
 
+    /**
+     * Return the identifiers of the Sessions that <code>processExpires</code>
+     * loads to check if they are expired.  The default implementation
+     * returns all keys of this Store, implementations that know the last
+     * access time of their Sessions may return only the expired ones.
+     *
+     * @param timeNow The time of the expiration check
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected String[] expirationCandidates(long timeNow) throws IOException {
+        return keys();
+    }
+
+
     // --------------------------------------------------------- Thread Methods
 
 
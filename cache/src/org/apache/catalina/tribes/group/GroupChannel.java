@@ -30,6 +30,7 @@ import org.apache.catalina.tribes.ChannelMessage;
 import org.apache.catalina.tribes.ChannelReceiver;
 import org.apache.catalina.tribes.ChannelSender;
 import org.apache.catalina.tribes.ErrorHandler;
+import org.apache.catalina.tribes.KeyedMessage;
 import org.apache.catalina.tribes.ManagedChannel;
 import org.apache.catalina.tribes.Member;
 import org.apache.catalina.tribes.MembershipListener;
@@ -100,6 +101,13 @@ public class GroupChannel extends ChannelInterceptorBase implements ManagedChann
      */
     protected boolean optionCheck = false;
 
+    /**
+     * The initial size of the buffer a message is serialized into, the size
+     * of the last serialized message
+     */
+    protected volatile int serializedSizeHint = 2048;
+    protected static final int MAX_SERIALIZED_SIZE_HINT = 64*1024;
+
     /**
      * Creates a GroupChannel. This constructor will also
      * add the first interceptor in the GroupChannel.<br>
@@ -195,23 +203,26 @@ public class GroupChannel extends ChannelInterceptorBase implements ManagedChann
             ChannelData data = new ChannelData(true);//generates a unique Id
             data.setAddress(getLocalMember(false));
             data.setTimestamp(System.currentTimeMillis());
-            byte[] b = null;
             if ( msg instanceof ByteMessage ){
-                b = ((ByteMessage)msg).getMessage();
+                byte[] b = ((ByteMessage)msg).getMessage();
                 options = options | SEND_OPTIONS_BYTE_MESSAGE;
+                buffer = BufferPool.getBufferPool().getBuffer(b.length+128, false);
+                buffer.append(b,0,b.length);
             } else {
-                b = XByteBuffer.serialize(msg);
+                //serialize straight into the pooled buffer
+                buffer = BufferPool.getBufferPool().getBuffer(serializedSizeHint, false);
+                buffer.appendSerialized(msg);
+                serializedSizeHint = Math.min(Math.max(buffer.getLength()+128, 1024), MAX_SERIALIZED_SIZE_HINT);
                 options = options & (~SEND_OPTIONS_BYTE_MESSAGE);
             }
             data.setOptions(options);
-            //XByteBuffer buffer = new XByteBuffer(b.length+128,false);
-            buffer = BufferPool.getBufferPool().getBuffer(b.length+128, false);
-            buffer.append(b,0,b.length);
             data.setMessage(buffer);
             InterceptorPayload payload = null;
-            if ( handler != null ) {
+            Object key = (msg instanceof KeyedMessage) ? ((KeyedMessage)msg).getMessageKey() : null;
+            if ( handler != null || key != null ) {
                 payload = new InterceptorPayload();
                 payload.setErrorHandler(handler);
+                payload.setKey(key);
             }
             getFirstInterceptor().sendMessage(destination, data, payload);
             if ( Logs.MESSAGES.isTraceEnabled() ) {
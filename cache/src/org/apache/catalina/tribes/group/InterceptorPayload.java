@@ -24,6 +24,7 @@ import org.apache.catalina.tribes.ErrorHandler;
  */
 public class InterceptorPayload  {
     private ErrorHandler errorHandler;
+    private Object key;
     
     public ErrorHandler getErrorHandler() {
         return errorHandler;
@@ -32,4 +33,15 @@ public class InterceptorPayload  {
     public void setErrorHandler(ErrorHandler errorHandler) {
         this.errorHandler = errorHandler;
     }
+
+    /**
+     * @return the key of the message, see {@link org.apache.catalina.tribes.KeyedMessage}
+     */
+    public Object getKey() {
+        return key;
+    }
+
+    public void setKey(Object key) {
+        this.key = key;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,430 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.tribes.group.interceptors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.tribes.Channel;
+import org.apache.catalina.tribes.ChannelException;
+import org.apache.catalina.tribes.ChannelInterceptor;
+import org.apache.catalina.tribes.ChannelMessage;
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.UniqueId;
+import org.apache.catalina.tribes.group.ChannelInterceptorBase;
+import org.apache.catalina.tribes.group.InterceptorPayload;
+import org.apache.catalina.tribes.io.BufferPool;
+import org.apache.catalina.tribes.io.ChannelData;
+import org.apache.catalina.tribes.io.XByteBuffer;
+
+/**
+ *
+ * The batching interceptor coalesces small messages for the same members and
+ * with the same options into one message, a frame, that goes through the rest
+ * of the stack and out as one write. The interceptor on the other end splits
+ * the frame into the original messages.
+ * <p>
+ * A frame is sent when it reaches <code>maxBatchSize</code> bytes, when
+ * <code>flushDelay</code> microseconds have passed since its first message,
+ * or at a flush point: a message that is not batched, a call of
+ * {@link #flush()} and the heartbeat. Frames are sent in the order they were
+ * started, and a message is only added to a frame if no later frame goes to
+ * one of its members, so the order of the messages to a member is kept.
+ * <p>
+ * A thread sending an asynchronous message returns as soon as the message is
+ * added to a frame, the {@link org.apache.catalina.tribes.ErrorHandler} of
+ * the payload is notified when the frame was sent. A thread sending a
+ * synchronous message waits until its frame was sent. While asynchronous
+ * messages wait in a frame, their size is added to the queue size of the
+ * {@link MessageDispatchInterceptor} in front of this interceptor, so they
+ * count against its <code>maxQueueSize</code>.
+ *
+ * <br><b>Configuration Options</b><br>
+ * BatchingInterceptor.maxMessageSize=&lt;bytes&gt; - larger messages are not batched <b>default=1024</b><br>
+ * BatchingInterceptor.maxBatchSize=&lt;bytes&gt; - the size at which a frame is sent <b>default=16384</b><br>
+ * BatchingInterceptor.flushDelay=&lt;microseconds&gt; - the maximum time a message waits in a frame <b>default=200</b><br>
+ *
+ * @version $Id$
+ */
+public class BatchingInterceptor extends ChannelInterceptorBase implements Runnable {
+    private static org.apache.juli.logging.Log log = org.apache.juli.logging.LogFactory.getLog(BatchingInterceptor.class);
+
+    protected int maxMessageSize = 1024;
+    protected int maxBatchSize = 16*1024;
+    protected long flushDelay = 200;
+
+    protected volatile boolean run = false;
+    protected Thread flushThread = null;
+    /**
+     * The open frames in the order they were started
+     */
+    protected LinkedList batches = new LinkedList();
+    protected DelayQueue deadlines = new DelayQueue();
+    /**
+     * Held while frames are sent, so they go out in order
+     */
+    protected Object sendLock = new Object();
+    protected MessageDispatchInterceptor dispatcher = null;
+
+    protected AtomicLong messagesBatched = new AtomicLong();
+    protected AtomicLong framesSent = new AtomicLong();
+
+    public void sendMessage(Member[] destination, ChannelMessage msg, InterceptorPayload payload) throws ChannelException {
+        int size = msg.getMessage().getLength();
+        if ( !run || size > maxMessageSize || !okToProcess(msg.getOptions()) ) {
+            //everything batched before goes out first
+            flush();
+            //the flag goes on a copy, the message may still be queued or sent after this call
+            XByteBuffer message = new XByteBuffer(size + 1, false);
+            message.append(msg.getMessage().getBytesDirect(), 0, size);
+            message.append(false);
+            ChannelData data = new ChannelData(msg.getUniqueId(), message, msg.getTimestamp());
+            data.setOptions(msg.getOptions());
+            data.setAddress(msg.getAddress());
+            super.sendMessage(destination, data, payload);
+            return;
+        }
+        boolean async = (msg.getOptions() & Channel.SEND_OPTIONS_ASYNCHRONOUS) == Channel.SEND_OPTIONS_ASYNCHRONOUS;
+        Batch batch = null;
+        boolean full = false;
+        synchronized (this) {
+            batch = getBatch(destination, msg);
+            batch.add(msg, async ? payload : null);
+            if ( async ) batch.asyncBytes += size;
+            full = batch.size() >= maxBatchSize;
+        }
+        messagesBatched.incrementAndGet();
+        if ( async && dispatcher != null ) dispatcher.addAndGetCurrentSize(size);
+        if ( full ) flush(batch);
+        if ( !async ) {
+            ChannelException cx = batch.await();
+            if ( cx != null ) {
+                ChannelException x = new ChannelException("Sending the batched message failed.", cx);
+                x.addFaultyMember(cx.getFaultyMembers());
+                throw x;
+            }
+        }
+    }
+
+    /**
+     * @return the open frame for the members and options of the message, or a new frame
+     */
+    protected Batch getBatch(Member[] destination, ChannelMessage msg) {
+        for ( ListIterator i = batches.listIterator(batches.size()); i.hasPrevious(); ) {
+            Batch batch = (Batch)i.previous();
+            if ( batch.accepts(destination, msg) ) return batch;
+            //a message must not overtake one to the same member
+            if ( batch.intersects(destination) ) break;
+        }
+        Batch batch = new Batch(destination, msg, maxBatchSize + maxMessageSize, System.nanoTime() + flushDelay * 1000);
+        batches.addLast(batch);
+        deadlines.add(batch);
+        return batch;
+    }
+
+    /**
+     * Send all open frames. Errors are reported to the senders of the
+     * batched messages.
+     */
+    public void flush() {
+        flush(null);
+    }
+
+    /**
+     * Send the frame and all frames started before it.
+     * @param target the frame, or <code>null</code> for all open frames
+     */
+    protected void flush(Batch target) {
+        synchronized (sendLock) {
+            List frames = new ArrayList();
+            synchronized (this) {
+                if ( target != null && target.closed ) return;
+                while ( !batches.isEmpty() ) {
+                    Batch batch = (Batch)batches.removeFirst();
+                    batch.closed = true;
+                    frames.add(batch);
+                    if ( batch == target ) break;
+                }
+            }
+            for ( int i=0; i<frames.size(); i++ ) send((Batch)frames.get(i));
+        }
+    }
+
+    protected void send(Batch batch) {
+        ChannelException cx = null;
+        try {
+            ChannelData frame = new ChannelData(true);
+            frame.setAddress(batch.address);
+            frame.setOptions(batch.options);
+            frame.setTimestamp(System.currentTimeMillis());
+            batch.body.append(true);
+            frame.setMessage(batch.body);
+            super.sendMessage(batch.destination, frame, null);
+            framesSent.incrementAndGet();
+        } catch ( ChannelException x ) {
+            cx = x;
+            if ( log.isDebugEnabled() ) log.debug("Unable to send a batch of "+batch.count()+" messages.", x);
+        } catch ( Exception x ) {
+            cx = new ChannelException(x);
+            if ( log.isDebugEnabled() ) log.debug("Unable to send a batch of "+batch.count()+" messages.", x);
+        } finally {
+            if ( dispatcher != null && batch.asyncBytes > 0 ) dispatcher.addAndGetCurrentSize(-batch.asyncBytes);
+            batch.done(cx);
+            BufferPool.getBufferPool().returnBuffer(batch.body);
+            batch.body = null;
+        }
+    }
+
+    public void messageReceived(ChannelMessage msg) {
+        boolean batched = XByteBuffer.toBoolean(msg.getMessage().getBytesDirect(),msg.getMessage().getLength()-1);
+        msg.getMessage().trim(1);
+        if ( !batched ) {
+            super.messageReceived(msg);
+            return;
+        }
+        byte[] b = msg.getMessage().getBytesDirect();
+        int length = msg.getMessage().getLength();
+        int offset = 0;
+        RuntimeException failure = null;
+        while ( offset < length ) {
+            ChannelData data = new ChannelData(false);
+            byte[] uniqueId = new byte[XByteBuffer.toInt(b,offset)];
+            offset += 4;
+            System.arraycopy(b,offset,uniqueId,0,uniqueId.length);
+            offset += uniqueId.length;
+            data.setUniqueId(uniqueId);
+            data.setTimestamp(XByteBuffer.toLong(b,offset));
+            offset += 8;
+            int size = XByteBuffer.toInt(b,offset);
+            offset += 4;
+            XByteBuffer message = new XByteBuffer(size,false);
+            message.append(b,offset,size);
+            offset += size;
+            data.setMessage(message);
+            data.setOptions(msg.getOptions());
+            data.setAddress(msg.getAddress());
+            try {
+                super.messageReceived(data);
+            } catch ( RuntimeException x ) {
+                //deliver the other messages of the frame
+                if ( failure == null ) failure = x;
+            }
+        }
+        if ( failure != null ) throw failure;
+    }
+
+    public void heartbeat() {
+        flush();
+        super.heartbeat();
+    }
+
+    public void start(int svc) throws ChannelException {
+        if ( !run ) {
+            synchronized (this) {
+                if ( !run && ((svc & Channel.SND_TX_SEQ)==Channel.SND_TX_SEQ) ) {//only start with the sender
+                    dispatcher = null;
+                    for ( ChannelInterceptor i = getPrevious(); i != null && dispatcher == null; i = i.getPrevious() ) {
+                        if ( i instanceof MessageDispatchInterceptor ) dispatcher = (MessageDispatchInterceptor)i;
+                    }
+                    flushThread = new Thread(this);
+                    flushThread.setName("BatchingInterceptor.FlushThread");
+                    flushThread.setDaemon(true);
+                    run = true;
+                    flushThread.start();
+                }
+            }
+        }
+        super.start(svc);
+    }
+
+    public void stop(int svc) throws ChannelException {
+        if ( run ) {
+            synchronized (this) {
+                if ( run && ((svc & Channel.SND_TX_SEQ)==Channel.SND_TX_SEQ) ) {
+                    run = false;
+                    flushThread.interrupt();
+                    flushThread = null;
+                }
+            }
+            if ( !run ) {
+                flush();
+                deadlines.clear();
+            }
+        }
+        super.stop(svc);
+    }
+
+    public void run() {
+        while ( run ) {
+            try {
+                Batch batch = (Batch)deadlines.take();
+                flush(batch);
+            } catch ( InterruptedException x ) {
+                //stopped
+            } catch ( Exception x ) {
+                if ( log.isDebugEnabled() ) log.debug("Unable to flush the batched messages.", x);
+            }
+        }
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return the maximum time in microseconds a message waits in a frame
+     */
+    public long getFlushDelay() {
+        return flushDelay;
+    }
+
+    public void setFlushDelay(long flushDelay) {
+        this.flushDelay = flushDelay;
+    }
+
+    public long getMessagesBatched() {
+        return messagesBatched.get();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    /**
+     * An open frame. The messages are written to the body when they are
+     * added, as [uniqueId length][uniqueId][timestamp][message length][message].
+     */
+    protected static class Batch implements Delayed {
+        protected final Member[] destination;
+        protected final Member address;
+        protected final int options;
+        protected final long deadline;
+        protected XByteBuffer body;
+        protected final List uniqueIds = new ArrayList();
+        protected final List payloads = new ArrayList();
+        protected long asyncBytes = 0;
+        protected int count = 0;
+        protected boolean closed = false;
+        protected boolean sent = false;
+        protected ChannelException cx = null;
+
+        public Batch(Member[] destination, ChannelMessage msg, int capacity, long deadline) {
+            this.destination = destination;
+            this.address = msg.getAddress();
+            this.options = msg.getOptions();
+            this.deadline = deadline;
+            this.body = BufferPool.getBufferPool().getBuffer(capacity, false);
+        }
+
+        public boolean accepts(Member[] destination, ChannelMessage msg) {
+            return options == msg.getOptions() && Arrays.equals(this.destination, destination)
+                && (address == null ? msg.getAddress() == null : address.equals(msg.getAddress()));
+        }
+
+        public boolean intersects(Member[] destination) {
+            for ( int i=0; i<destination.length; i++ ) {
+                for ( int j=0; j<this.destination.length; j++ ) {
+                    if ( destination[i].equals(this.destination[j]) ) return true;
+                }
+            }
+            return false;
+        }
+
+        public void add(ChannelMessage msg, InterceptorPayload payload) {
+            byte[] uniqueId = msg.getUniqueId();
+            body.append(uniqueId.length);
+            body.append(uniqueId,0,uniqueId.length);
+            body.append(msg.getTimestamp());
+            body.append(msg.getMessage().getLength());
+            body.append(msg.getMessage().getBytesDirect(),0,msg.getMessage().getLength());
+            if ( payload != null && payload.getErrorHandler() != null ) {
+                uniqueIds.add(uniqueId);
+                payloads.add(payload);
+            }
+            count++;
+        }
+
+        public int size() {
+            return body.getLength();
+        }
+
+        public int count() {
+            return count;
+        }
+
+        public void done(ChannelException cx) {
+            for ( int i=0; i<payloads.size(); i++ ) {
+                InterceptorPayload payload = (InterceptorPayload)payloads.get(i);
+                UniqueId id = new UniqueId((byte[])uniqueIds.get(i));
+                try {
+                    if ( cx == null ) payload.getErrorHandler().handleCompletion(id);
+                    else payload.getErrorHandler().handleError(cx, id);
+                } catch ( Exception x ) {
+                    log.error("Unable to report back the batched message.", x);
+                }
+            }
+            synchronized (this) {
+                this.cx = cx;
+                sent = true;
+                notifyAll();
+            }
+        }
+
+        public synchronized ChannelException await() {
+            boolean interrupted = false;
+            while ( !sent ) {
+                try {
+                    wait();
+                } catch ( InterruptedException x ) {
+                    interrupted = true;
+                }
+            }
+            if ( interrupted ) Thread.currentThread().interrupt();
+            return cx;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed o) {
+            long other = ((Batch)o).deadline;
+            return deadline < other ? -1 : (deadline == other ? 0 : 1);
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.tribes.group.interceptors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.Adler32;
+
+/**
+ * A preset dictionary for the deflate compression of small messages, shared
+ * by all members. A message of a few hundred bytes doesn't contain enough
+ * repetitions to compress well, but the messages of a cluster share class
+ * names, field names and attribute names, which deflate can reference in the
+ * dictionary instead.
+ * <p>
+ * A dictionary is trained from sample messages with
+ * {@link #train(List, int)}: the samples are split into overlapping segments,
+ * a segment is scored by the number of samples its 8 byte sequences occur in,
+ * and the best segments are taken greedily, counting only sequences not
+ * covered by the segments taken before. The best segments are put at the end,
+ * where deflate reaches them with the shortest distances.
+ *
+ * @version $Id$
+ */
+public class CompressionDictionary {
+
+    /**
+     * The maximum size, deflate can't reference data further back
+     */
+    public static final int MAX_SIZE = 32 * 1024;
+
+    protected static final int GRAM = 8;
+    protected static final int SEGMENT = 64;
+
+    private final byte[] data;
+    private final int id;
+
+    public CompressionDictionary(byte[] data) {
+        if ( data.length > MAX_SIZE ) {
+            byte[] tail = new byte[MAX_SIZE];
+            System.arraycopy(data, data.length - MAX_SIZE, tail, 0, MAX_SIZE);
+            data = tail;
+        }
+        this.data = data;
+        Adler32 adler = new Adler32();
+        adler.update(data, 0, data.length);
+        this.id = (int)adler.getValue();
+    }
+
+    /**
+     * @return the dictionary bytes, not to be modified
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the Adler-32 checksum of the dictionary, sent with every message
+     *  compressed with it
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Load a dictionary from a file, or from a class path resource if there
+     * is no such file.
+     */
+    public static CompressionDictionary load(String name) throws IOException {
+        InputStream in = null;
+        File file = new File(name);
+        if ( file.isFile() ) in = new FileInputStream(file);
+        else in = CompressionDictionary.class.getClassLoader().getResourceAsStream(name);
+        if ( in == null ) throw new IOException("Dictionary " + name + " not found.");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for ( int n = in.read(buf); n >= 0; n = in.read(buf) ) out.write(buf, 0, n);
+            return new CompressionDictionary(out.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+
+    public void store(String name) throws IOException {
+        FileOutputStream out = new FileOutputStream(name);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Train a dictionary.
+     * @param samples the sample messages, <code>byte[]</code>
+     * @param size the maximum size of the dictionary
+     */
+    public static CompressionDictionary train(List samples, int size) {
+        size = Math.min(size, MAX_SIZE);
+        //the number of samples each sequence occurs in
+        Map frequency = new HashMap();
+        for ( int i=0; i<samples.size(); i++ ) {
+            byte[] sample = (byte[])samples.get(i);
+            Set grams = new HashSet();
+            for ( int j=0; j+GRAM<=sample.length; j++ ) grams.add(new Long(gram(sample, j)));
+            for ( Iterator it = grams.iterator(); it.hasNext(); ) {
+                Object gram = it.next();
+                int[] count = (int[])frequency.get(gram);
+                if ( count == null ) frequency.put(gram, count = new int[1]);
+                count[0]++;
+            }
+        }
+        PriorityQueue candidates = new PriorityQueue();
+        for ( int i=0; i<samples.size(); i++ ) {
+            byte[] sample = (byte[])samples.get(i);
+            for ( int start=0; start<sample.length; start+=SEGMENT/2 ) {
+                Segment segment = new Segment(sample, start, Math.min(SEGMENT, sample.length - start));
+                segment.score = segment.score(frequency, Collections.EMPTY_SET);
+                if ( segment.score > 0 ) candidates.add(segment);
+            }
+        }
+        //lazy greedy selection, a segment is rescored when it comes up
+        Set covered = new HashSet();
+        List selected = new ArrayList();
+        int total = 0;
+        while ( total < size && !candidates.isEmpty() ) {
+            Segment segment = (Segment)candidates.poll();
+            int score = segment.score(frequency, covered);
+            if ( score <= 0 ) continue;
+            if ( !candidates.isEmpty() && score < ((Segment)candidates.peek()).score ) {
+                segment.score = score;
+                candidates.add(segment);
+                continue;
+            }
+            for ( int j=segment.start; j+GRAM<=segment.start+segment.length; j++ ) covered.add(new Long(gram(segment.sample, j)));
+            selected.add(segment);
+            total += segment.length;
+        }
+        //the best segments go last
+        ByteArrayOutputStream out = new ByteArrayOutputStream(total);
+        for ( int i=selected.size()-1; i>=0; i-- ) {
+            Segment segment = (Segment)selected.get(i);
+            out.write(segment.sample, segment.start, segment.length);
+        }
+        byte[] result = out.toByteArray();
+        if ( result.length > size ) {
+            //drop the start of the worst segment
+            byte[] tail = new byte[size];
+            System.arraycopy(result, result.length - size, tail, 0, size);
+            result = tail;
+        }
+        return new CompressionDictionary(result);
+    }
+
+    protected static long gram(byte[] b, int offset) {
+        long result = 0;
+        for ( int i=0; i<GRAM; i++ ) result = (result << 8) | (b[offset+i] & 0xff);
+        return result;
+    }
+
+    protected static class Segment implements Comparable {
+        protected final byte[] sample;
+        protected final int start;
+        protected final int length;
+        protected int score;
+
+        public Segment(byte[] sample, int start, int length) {
+            this.sample = sample;
+            this.start = start;
+            this.length = length;
+        }
+
+        /**
+         * @return the summed frequency of the sequences that are not covered
+         *  and occur in more than one sample
+         */
+        public int score(Map frequency, Set covered) {
+            int result = 0;
+            for ( int j=start; j+GRAM<=start+length; j++ ) {
+                Long gram = new Long(gram(sample, j));
+                int count = ((int[])frequency.get(gram))[0];
+                if ( count > 1 && !covered.contains(gram) ) result += count;
+            }
+            return result;
+        }
+
+        public int compareTo(Object o) {
+            //highest score first
+            return ((Segment)o).score - score;
+        }
+    }
+}
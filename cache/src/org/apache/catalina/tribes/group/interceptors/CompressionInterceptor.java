@@ -0,0 +1,578 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.tribes.group.interceptors;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.catalina.tribes.Channel;
+import org.apache.catalina.tribes.ChannelException;
+import org.apache.catalina.tribes.ChannelMessage;
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.group.ChannelInterceptorBase;
+import org.apache.catalina.tribes.group.InterceptorPayload;
+import org.apache.catalina.tribes.io.BufferPool;
+import org.apache.catalina.tribes.io.ChannelData;
+import org.apache.catalina.tribes.io.XByteBuffer;
+
+/**
+ *
+ * Compresses messages with deflate, the replacement of the
+ * {@link GzipInterceptor}. Each thread keeps its <code>Deflater</code>,
+ * <code>Inflater</code> and buffer, a message is compressed from and
+ * decompressed into its own buffer.
+ * <p>
+ * A message is sent uncompressed if it is smaller than <code>minSize</code>,
+ * if it starts like compressed data (gzip, zlib, zip, jpeg, png), or if it
+ * doesn't get smaller than <code>maxRatio</code> of its size. Messages are
+ * grouped by type, the class of a serialized message or <code>bytes</code>
+ * for byte messages, and a type whose average ratio is above
+ * <code>maxRatio</code> is only tried every <code>probeInterval</code>
+ * messages. The ratio and the compression and decompression time of every
+ * type are available from {@link #getStatistics()} and reported every
+ * <code>reportInterval</code> milliseconds.
+ * <p>
+ * With a <code>dictionary</code> the messages are compressed with a preset
+ * dictionary, see {@link CompressionDictionary}, all members must have the
+ * same dictionary. A dictionary is trained from the messages a member sends:
+ * with <code>sampleCount</code> the first messages are kept as samples, and
+ * {@link #trainDictionary(String, int)} writes a dictionary trained from them.
+ * <p>
+ * The last byte of a message is its mode: {@link #STORED},
+ * {@link #DEFLATED} or {@link #DEFLATED_DICTIONARY}. A compressed message
+ * ends with the uncompressed length, followed by the id of the dictionary if
+ * one is used.
+ *
+ * <br><b>Configuration Options</b><br>
+ * CompressionInterceptor.minSize=&lt;bytes&gt; - smaller messages are not compressed <b>default=256</b><br>
+ * CompressionInterceptor.level=&lt;0-9&gt; - the deflate level <b>default=1</b><br>
+ * CompressionInterceptor.maxRatio=&lt;ratio&gt; - messages that don't get smaller are sent uncompressed <b>default=0.9</b><br>
+ * CompressionInterceptor.dictionary=&lt;file or resource&gt; - the preset dictionary<br>
+ *
+ * @version $Id$
+ */
+public class CompressionInterceptor extends ChannelInterceptorBase {
+    private static org.apache.juli.logging.Log log = org.apache.juli.logging.LogFactory.getLog(CompressionInterceptor.class);
+
+    public static final byte STORED = 0;
+    public static final byte DEFLATED = 1;
+    public static final byte DEFLATED_DICTIONARY = 2;
+
+    /**
+     * Types beyond this number are counted as <code>other</code>
+     */
+    protected static final int MAX_TYPES = 64;
+    /**
+     * Buffers that have grown larger than this are not kept for the next message
+     */
+    protected static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+
+    protected int minSize = 256;
+    protected int level = Deflater.BEST_SPEED;
+    protected double maxRatio = 0.9;
+    protected int probeInterval = 64;
+    protected String dictionary = null;
+    protected int sampleCount = 0;
+    protected long reportInterval = 0;
+
+    protected CompressionDictionary dict = null;
+    protected ThreadLocal codecs = new ThreadLocal();
+    /**
+     * The codecs by thread, ended when the interceptor is stopped
+     */
+    protected Map threadCodecs = Collections.synchronizedMap(new WeakHashMap());
+    protected ConcurrentHashMap statistics = new ConcurrentHashMap();
+    protected List samples = Collections.synchronizedList(new ArrayList());
+    protected long lastReport = System.currentTimeMillis();
+
+    public void sendMessage(Member[] destination, ChannelMessage msg, InterceptorPayload payload) throws ChannelException {
+        XByteBuffer message = msg.getMessage();
+        byte[] data = message.getBytesDirect();
+        int length = message.getLength();
+        Statistics stats = getStatistics(getType(data, length, msg.getOptions()));
+        if ( sampleCount > 0 && samples.size() < sampleCount ) {
+            byte[] sample = new byte[length];
+            System.arraycopy(data, 0, sample, 0, length);
+            samples.add(sample);
+        }
+        XByteBuffer buf = null;
+        if ( length >= minSize && !isCompressed(data, length) && !stats.skip(maxRatio, probeInterval) ) {
+            long start = System.nanoTime();
+            Codec codec = getCodec();
+            try {
+                //the compressed data must leave room for the trailer and be smaller than maxRatio
+                int limit = Math.min(length - trailerLength(), (int)(length * maxRatio));
+                int size = codec.deflate(data, 0, length, dict, limit);
+                stats.compressed(length, size < 0 ? length : size + trailerLength(), System.nanoTime() - start);
+                if ( size >= 0 ) {
+                    buf = BufferPool.getBufferPool().getBuffer(size + trailerLength(), false);
+                    buf.append(codec.buffer, 0, size);
+                }
+            } finally {
+                codec.release();
+            }
+        }
+        if ( buf == null ) {
+            stats.stored(length);
+            //the mode goes on a copy, the message may still be queued or sent after this call
+            XByteBuffer stored = new XByteBuffer(length + 1, false);
+            stored.append(data, 0, length);
+            stored.append(STORED);
+            ChannelData copy = new ChannelData(msg.getUniqueId(), stored, msg.getTimestamp());
+            copy.setAddress(msg.getAddress());
+            copy.setOptions(msg.getOptions());
+            super.sendMessage(destination, copy, payload);
+            return;
+        }
+        buf.append(length);
+        if ( dict != null ) buf.append(dict.getId());
+        buf.append(dict != null ? DEFLATED_DICTIONARY : DEFLATED);
+        //the message of the sender is not modified
+        ChannelData compressed = new ChannelData(false);
+        compressed.setUniqueId(msg.getUniqueId());
+        compressed.setAddress(msg.getAddress());
+        compressed.setOptions(msg.getOptions());
+        compressed.setTimestamp(msg.getTimestamp());
+        compressed.setMessage(buf);
+        try {
+            super.sendMessage(destination, compressed, payload);
+        } finally {
+            BufferPool.getBufferPool().returnBuffer(buf);
+        }
+    }
+
+    public void messageReceived(ChannelMessage msg) {
+        XByteBuffer message = msg.getMessage();
+        byte[] b = message.getBytesDirect();
+        int length = message.getLength();
+        byte mode = b[length-1];
+        if ( mode == STORED ) {
+            message.trim(1);
+            super.messageReceived(msg);
+            return;
+        }
+        try {
+            CompressionDictionary d = null;
+            int trailer = 5;
+            if ( mode == DEFLATED_DICTIONARY ) {
+                trailer = 9;
+                int id = XByteBuffer.toInt(b, length - 5);
+                d = dict;
+                if ( d == null || d.getId() != id ) throw new IOException("The message was compressed with the dictionary " + id + ", which is not configured.");
+            } else if ( mode != DEFLATED ) {
+                throw new IOException("Unknown compression mode " + mode + ".");
+            }
+            int original = XByteBuffer.toInt(b, length - trailer);
+            long start = System.nanoTime();
+            Codec codec = getCodec();
+            try {
+                byte[] in = codec.buffer(length - trailer);
+                System.arraycopy(b, 0, in, 0, length - trailer);
+                message.clear();
+                if ( message.getCapacity() < original ) message.expand(original);
+                codec.inflate(in, 0, length - trailer, message.getBytesDirect(), original, d);
+            } finally {
+                codec.release();
+            }
+            message.setLength(original);
+            getStatistics(getType(message.getBytesDirect(), original, msg.getOptions())).decompressed(System.nanoTime() - start);
+        } catch ( Exception x ) {
+            log.error("Unable to decompress byte contents", x);
+            return;
+        }
+        super.messageReceived(msg);
+    }
+
+    protected int trailerLength() {
+        return dict != null ? 9 : 5;
+    }
+
+    /**
+     * @return the codec of the thread, acquired, it must be released
+     */
+    protected Codec getCodec() {
+        Codec codec = (Codec)codecs.get();
+        if ( codec == null || !codec.acquire() ) {
+            //the first message of the thread, or the codec was ended by stop
+            codec = new Codec(level);
+            codec.acquire();
+            codecs.set(codec);
+            threadCodecs.put(Thread.currentThread(), codec);
+        }
+        return codec;
+    }
+
+    /**
+     * @return the type of a message, the class of a serialized object
+     */
+    protected static String getType(byte[] b, int length, int options) {
+        if ( (options & Channel.SEND_OPTIONS_BYTE_MESSAGE) == Channel.SEND_OPTIONS_BYTE_MESSAGE ) return "bytes";
+        //stream magic and version, TC_OBJECT, TC_CLASSDESC and the class name
+        if ( length > 8 && (b[0] & 0xff) == 0xac && (b[1] & 0xff) == 0xed && b[4] == 0x73 && b[5] == 0x72 ) {
+            int n = ((b[6] & 0xff) << 8) | (b[7] & 0xff);
+            if ( 8 + n <= length ) {
+                try {
+                    return new String(b, 8, n, "UTF-8");
+                } catch ( UnsupportedEncodingException x ) {
+                    //UTF-8 is always supported
+                }
+            }
+        }
+        return "other";
+    }
+
+    /**
+     * @return <code>true</code> if the data starts like compressed data
+     */
+    protected static boolean isCompressed(byte[] b, int length) {
+        if ( length < 4 ) return false;
+        int b0 = b[0] & 0xff;
+        int b1 = b[1] & 0xff;
+        if ( b0 == 0x1f && b1 == 0x8b ) return true; //gzip
+        if ( b0 == 0x78 && ((b0 << 8) | b1) % 31 == 0 ) return true; //zlib
+        if ( b0 == 0x50 && b1 == 0x4b && b[2] == 3 && b[3] == 4 ) return true; //zip
+        if ( b0 == 0xff && b1 == 0xd8 && (b[2] & 0xff) == 0xff ) return true; //jpeg
+        if ( b0 == 0x89 && b1 == 0x50 && b[2] == 0x4e && b[3] == 0x47 ) return true; //png
+        return false;
+    }
+
+    protected Statistics getStatistics(String type) {
+        Statistics stats = (Statistics)statistics.get(type);
+        if ( stats == null ) {
+            if ( statistics.size() >= MAX_TYPES ) type = "other";
+            stats = new Statistics(type);
+            Statistics existing = (Statistics)statistics.putIfAbsent(type, stats);
+            if ( existing != null ) stats = existing;
+        }
+        return stats;
+    }
+
+    /**
+     * @return the statistics of each message type, by type
+     */
+    public Map getStatistics() {
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    /**
+     * Write a dictionary trained from the sampled messages.
+     * @param file the file name
+     * @param size the maximum size of the dictionary
+     */
+    public void trainDictionary(String file, int size) throws IOException {
+        List copy = null;
+        synchronized (samples) {
+            copy = new ArrayList(samples);
+        }
+        if ( copy.isEmpty() ) throw new IOException("There are no samples, set sampleCount to collect them.");
+        CompressionDictionary trained = CompressionDictionary.train(copy, size);
+        trained.store(file);
+        if ( log.isInfoEnabled() ) log.info("Trained a compression dictionary of " + trained.getData().length + " bytes from " + copy.size() + " messages, stored in " + file);
+    }
+
+    public void start(int svc) throws ChannelException {
+        synchronized (this) {
+            if ( dictionary != null && dict == null ) {
+                try {
+                    dict = CompressionDictionary.load(dictionary);
+                } catch ( IOException x ) {
+                    throw new ChannelException("Unable to load the compression dictionary " + dictionary, x);
+                }
+            }
+        }
+        super.start(svc);
+    }
+
+    public void heartbeat() {
+        if ( reportInterval > 0 && (System.currentTimeMillis() - lastReport) >= reportInterval ) {
+            lastReport = System.currentTimeMillis();
+            report();
+        }
+        super.heartbeat();
+    }
+
+    public void stop(int svc) throws ChannelException {
+        super.stop(svc);
+        //a codec in use is ended when it is released, threads that send after a restart create new codecs
+        synchronized (threadCodecs) {
+            for ( Iterator i = threadCodecs.values().iterator(); i.hasNext(); ) ((Codec)i.next()).end();
+            threadCodecs.clear();
+        }
+    }
+
+    public void report() {
+        StringBuffer buf = new StringBuffer("CompressionInterceptor Report[");
+        for ( Iterator i = statistics.values().iterator(); i.hasNext(); ) {
+            buf.append("\n\t").append(i.next());
+        }
+        buf.append("]\n");
+        if ( log.isInfoEnabled() ) log.info(buf);
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public void setMinSize(int minSize) {
+        this.minSize = minSize;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public double getMaxRatio() {
+        return maxRatio;
+    }
+
+    public void setMaxRatio(double maxRatio) {
+        this.maxRatio = maxRatio;
+    }
+
+    public int getProbeInterval() {
+        return probeInterval;
+    }
+
+    public void setProbeInterval(int probeInterval) {
+        this.probeInterval = probeInterval;
+    }
+
+    public String getDictionary() {
+        return dictionary;
+    }
+
+    public void setDictionary(String dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public void setSampleCount(int sampleCount) {
+        this.sampleCount = sampleCount;
+    }
+
+    public long getReportInterval() {
+        return reportInterval;
+    }
+
+    public void setReportInterval(long reportInterval) {
+        this.reportInterval = reportInterval;
+    }
+
+    /**
+     * The deflate state and buffer of a thread. The codec is acquired before
+     * it is used and released after, so it can be ended by another thread.
+     */
+    protected static class Codec {
+        protected final Deflater deflater;
+        protected final Inflater inflater = new Inflater(true);
+        protected byte[] buffer = new byte[4096];
+        protected boolean busy = false;
+        protected boolean ended = false;
+
+        public Codec(int level) {
+            deflater = new Deflater(level, true);
+        }
+
+        public byte[] buffer(int size) {
+            if ( buffer.length < size ) buffer = new byte[Math.max(size, buffer.length * 2)];
+            return buffer;
+        }
+
+        /**
+         * Compress into the buffer.
+         * @param limit the maximum size of the compressed data
+         * @return the size of the compressed data, or <code>-1</code> if it
+         *  exceeds the limit
+         */
+        public int deflate(byte[] b, int offset, int length, CompressionDictionary dict, int limit) {
+            deflater.reset();
+            if ( dict != null ) deflater.setDictionary(dict.getData());
+            deflater.setInput(b, offset, length);
+            deflater.finish();
+            buffer(Math.min(limit + 1, length));
+            int size = 0;
+            while ( !deflater.finished() ) {
+                if ( size > limit ) return -1;
+                if ( size == buffer.length ) buffer(size + 1);
+                size += deflater.deflate(buffer, size, buffer.length - size);
+            }
+            return size > limit ? -1 : size;
+        }
+
+        public void inflate(byte[] b, int offset, int length, byte[] out, int size, CompressionDictionary dict) throws DataFormatException {
+            inflater.reset();
+            if ( dict != null ) inflater.setDictionary(dict.getData());
+            inflater.setInput(b, offset, length);
+            int n = 0;
+            while ( n < size ) {
+                int read = inflater.inflate(out, n, size - n);
+                if ( read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()) ) break;
+                n += read;
+            }
+            if ( n != size ) throw new DataFormatException("Decompressed " + n + " bytes instead of " + size + ".");
+        }
+
+        /**
+         * @return <code>false</code> if the codec was ended
+         */
+        public synchronized boolean acquire() {
+            if ( ended ) return false;
+            busy = true;
+            return true;
+        }
+
+        /**
+         * Release the native memory of the deflater and inflater, now or
+         * when the thread using the codec releases it.
+         */
+        public synchronized void end() {
+            if ( ended ) return;
+            ended = true;
+            if ( !busy ) {
+                deflater.end();
+                inflater.end();
+            }
+        }
+
+        /**
+         * End the codec if it was ended while in use, and drop a buffer that
+         * has grown too large.
+         */
+        public synchronized void release() {
+            busy = false;
+            if ( ended ) {
+                deflater.end();
+                inflater.end();
+            } else if ( buffer.length > MAX_POOLED_BUFFER_SIZE ) {
+                buffer = new byte[4096];
+            }
+        }
+    }
+
+    /**
+     * The compression statistics of a message type.
+     */
+    public static class Statistics {
+        protected final String type;
+        protected final AtomicLong messages = new AtomicLong();
+        protected final AtomicLong compressed = new AtomicLong();
+        protected final AtomicLong bytesIn = new AtomicLong();
+        protected final AtomicLong bytesOut = new AtomicLong();
+        protected final AtomicLong compressNanos = new AtomicLong();
+        protected final AtomicLong received = new AtomicLong();
+        protected final AtomicLong decompressNanos = new AtomicLong();
+        protected final AtomicInteger probe = new AtomicInteger();
+        /**
+         * The moving average of the compressed size by the size
+         */
+        protected volatile double ratio = 0;
+
+        public Statistics(String type) {
+            this.type = type;
+        }
+
+        protected boolean skip(double maxRatio, int probeInterval) {
+            return ratio > maxRatio && (probe.incrementAndGet() % probeInterval) != 0;
+        }
+
+        protected void compressed(int length, int size, long nanos) {
+            ratio = ratio == 0 ? (double)size / length : ratio * 0.9 + 0.1 * size / length;
+            compressNanos.addAndGet(nanos);
+            if ( size < length ) {
+                messages.incrementAndGet();
+                compressed.incrementAndGet();
+                bytesIn.addAndGet(length);
+                bytesOut.addAndGet(size);
+            }
+        }
+
+        protected void stored(int length) {
+            messages.incrementAndGet();
+            bytesIn.addAndGet(length);
+            bytesOut.addAndGet(length);
+        }
+
+        protected void decompressed(long nanos) {
+            received.incrementAndGet();
+            decompressNanos.addAndGet(nanos);
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public long getMessages() {
+            return messages.get();
+        }
+
+        public long getCompressedMessages() {
+            return compressed.get();
+        }
+
+        /**
+         * @return the size sent by the size of all messages of the type
+         */
+        public double getRatio() {
+            long in = bytesIn.get();
+            return in > 0 ? (double)bytesOut.get() / in : 1;
+        }
+
+        public long getCompressNanos() {
+            return compressNanos.get();
+        }
+
+        public long getReceivedMessages() {
+            return received.get();
+        }
+
+        public long getDecompressNanos() {
+            return decompressNanos.get();
+        }
+
+        public String toString() {
+            DecimalFormat df = new DecimalFormat("#0.000");
+            StringBuffer buf = new StringBuffer(type);
+            buf.append(": sent ").append(messages).append(" (").append(compressed).append(" compressed), ratio ");
+            buf.append(df.format(getRatio())).append(", compress ");
+            buf.append(df.format(compressNanos.get() / 1000000d)).append(" ms; received ").append(received);
+            buf.append(" compressed, decompress ").append(df.format(decompressNanos.get() / 1000000d)).append(" ms");
+            return buf.toString();
+        }
+    }
+
+}
@@ -36,7 +36,11 @@ import org.apache.catalina.tribes.group.InterceptorPayload;
  *
  * @author Filip Hanik
  * @version 1.0
+ * @deprecated Use {@link CompressionInterceptor}, which doesn't create
+ *  streams per message, skips small and incompressible messages and
+ *  decompresses messages of any size
  */
+@Deprecated
 public class GzipInterceptor extends ChannelInterceptorBase {
     public static final int DEFAULT_BUFFER_SIZE = 2048;
     
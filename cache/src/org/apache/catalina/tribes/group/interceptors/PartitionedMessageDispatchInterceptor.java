@@ -0,0 +1,408 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.tribes.group.interceptors;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.catalina.tribes.Channel;
+import org.apache.catalina.tribes.ChannelException;
+import org.apache.catalina.tribes.ChannelMessage;
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.UniqueId;
+import org.apache.catalina.tribes.group.InterceptorPayload;
+import org.apache.catalina.tribes.transport.bio.util.LinkObject;
+import org.apache.catalina.tribes.util.TcclThreadFactory;
+import org.apache.tomcat.util.modeler.Registry;
+
+/**
+ *
+ * A message dispatcher that sends the asynchronous messages with several
+ * threads. Each thread has its own queue, a partition, and a message goes to
+ * the partition of its key: the messages with the same key are sent in the
+ * order they were queued. The key is the one of a
+ * {@link org.apache.catalina.tribes.KeyedMessage}, like the session id of a
+ * session message or the entry key of a replicated map message, so the
+ * messages of different sessions are sent in parallel. Messages without a key
+ * go to the partition of their destination. Override
+ * {@link #getPartitionKey(Member[], ChannelMessage, InterceptorPayload)} to
+ * partition by another key.
+ * <p>
+ * The queued bytes are counted without locks, in total and by partition. When
+ * a message doesn't fit in <code>maxQueueSize</code> or
+ * <code>maxPartitionQueueSize</code> the <code>overflowPolicy</code> applies:
+ * <ul>
+ * <li><code>send</code> - the message is sent by the calling thread, which
+ *  may overtake the queued messages</li>
+ * <li><code>reject</code> - a <code>ChannelException</code> is thrown</li>
+ * <li><code>block</code> - the calling thread waits up to
+ *  <code>overflowTimeout</code> ms for the queue to drain, then the message
+ *  is rejected</li>
+ * </ul>
+ * The size, queue length and lag of each partition are registered with JMX
+ * when the queue starts, see {@link PartitionedMessageDispatchInterceptorMBean}.
+ *
+ * @version $Id$
+ */
+public class PartitionedMessageDispatchInterceptor extends MessageDispatchInterceptor implements PartitionedMessageDispatchInterceptorMBean {
+
+    public static final String OVERFLOW_SEND = "send";
+    public static final String OVERFLOW_REJECT = "reject";
+    public static final String OVERFLOW_BLOCK = "block";
+
+    protected int partitions = Math.max(2, Runtime.getRuntime().availableProcessors());
+    protected long maxPartitionQueueSize = -1;
+    protected String overflowPolicy = OVERFLOW_SEND;
+    protected long overflowTimeout = 3000;
+    protected String domain = "Catalina";
+
+    /**
+     * The bytes queued in all partitions, replaces the synchronized
+     * <code>currentSize</code> of the parent through the overridden accessors
+     */
+    protected AtomicLong queuedSize = new AtomicLong(0);
+    protected AtomicLong overflowCount = new AtomicLong(0);
+    protected Partition[] queues = null;
+    protected Object space = new Object();
+    protected AtomicInteger spaceWaiters = new AtomicInteger(0);
+    protected ObjectName oname = null;
+
+    public void sendMessage(Member[] destination, ChannelMessage msg, InterceptorPayload payload) throws ChannelException {
+        boolean async = (msg.getOptions() & Channel.SEND_OPTIONS_ASYNCHRONOUS) == Channel.SEND_OPTIONS_ASYNCHRONOUS;
+        Partition[] queues = this.queues;
+        if ( !async || !run || queues == null ) {
+            if ( getNext() != null ) getNext().sendMessage(destination, msg, payload);
+            return;
+        }
+        Partition partition = queues[partition(getPartitionKey(destination, msg, payload), queues.length)];
+        int length = msg.getMessage().getLength();
+        if ( !fits(partition, length) ) {
+            overflowCount.incrementAndGet();
+            if ( OVERFLOW_SEND.equals(overflowPolicy) ) {
+                //straight to the next interceptor, the queues of the parent are the partitions
+                if ( getNext() != null ) getNext().sendMessage(destination, msg, payload);
+                return;
+            } else if ( !OVERFLOW_BLOCK.equals(overflowPolicy) || !awaitSpace(partition, length) ) {
+                throw new ChannelException("Asynchronous queue is full, reached its limit of " + maxQueueSize + " bytes, current:" + getCurrentSize() + " bytes, partition:" + partition.size.get() + " bytes.");
+            }
+        }
+        if ( useDeepClone ) msg = (ChannelMessage)msg.deepclone();
+        addAndGetCurrentSize(length);
+        partition.add(new LinkObject(msg, destination, payload), length);
+    }
+
+    /**
+     * @return the key of the partition of a message, messages with the same
+     *  key are sent in order
+     */
+    protected int getPartitionKey(Member[] destination, ChannelMessage msg, InterceptorPayload payload) {
+        if ( payload != null && payload.getKey() != null ) return payload.getKey().hashCode();
+        //the same for the same members in any order
+        int key = 0;
+        for ( int i=0; destination!=null && i<destination.length; i++ ) {
+            key += Arrays.hashCode(destination[i].getUniqueId()) ^ destination[i].getPort();
+        }
+        return key;
+    }
+
+    protected static int partition(int key, int count) {
+        key ^= (key >>> 16);
+        key *= 0x85ebca6b;
+        key ^= (key >>> 13);
+        return (key & 0x7fffffff) % count;
+    }
+
+    protected boolean fits(Partition partition, int length) {
+        if ( (getCurrentSize() + length) > maxQueueSize ) return false;
+        //an empty partition always takes a message
+        return maxPartitionQueueSize <= 0 || partition.size.get() == 0 || (partition.size.get() + length) <= maxPartitionQueueSize;
+    }
+
+    protected boolean awaitSpace(Partition partition, int length) {
+        long deadline = System.currentTimeMillis() + overflowTimeout;
+        spaceWaiters.incrementAndGet();
+        try {
+            synchronized (space) {
+                while ( run && !fits(partition, length) ) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if ( wait <= 0 ) return false;
+                    space.wait(wait);
+                }
+            }
+            return run;
+        } catch ( InterruptedException x ) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            spaceWaiters.decrementAndGet();
+        }
+    }
+
+    public boolean addToQueue(ChannelMessage msg, Member[] destination, InterceptorPayload payload) {
+        Partition[] queues = this.queues;
+        if ( queues == null ) return false;
+        Partition partition = queues[partition(getPartitionKey(destination, msg, payload), queues.length)];
+        addAndGetCurrentSize(msg.getMessage().getLength());
+        partition.add(new LinkObject(msg, destination, payload), msg.getMessage().getLength());
+        return true;
+    }
+
+    public LinkObject removeFromQueue() {
+        return null; //not used, each partition has its own queue.
+    }
+
+    public void startQueue() {
+        if ( run ) return;
+        Partition[] queues = new Partition[partitions];
+        TcclThreadFactory factory = new TcclThreadFactory();
+        for ( int i=0; i<queues.length; i++ ) {
+            queues[i] = new Partition();
+            Thread thread = factory.newThread(queues[i]);
+            thread.setName("PartitionedMessageDispatchInterceptor.MessageDispatchThread-" + i);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            queues[i].thread = thread;
+        }
+        this.queues = queues;
+        run = true;
+        for ( int i=0; i<queues.length; i++ ) queues[i].thread.start();
+        register();
+    }
+
+    public void stopQueue() {
+        run = false;
+        unregister();
+        Partition[] queues = this.queues;
+        this.queues = null;
+        for ( int i=0; queues!=null && i<queues.length; i++ ) {
+            queues[i].thread.interrupt();
+            queues[i].discard();
+        }
+        synchronized (space) {
+            space.notifyAll();
+        }
+    }
+
+    protected void register() {
+        try {
+            MBeanServer server = Registry.getRegistry(null, null).getMBeanServer();
+            ObjectName name = new ObjectName(domain + ":type=ChannelInterceptor,name=PartitionedMessageDispatchInterceptor,id=" + Integer.toHexString(System.identityHashCode(this)));
+            server.registerMBean(this, name);
+            oname = name;
+        } catch ( Exception x ) {
+            log.warn("Unable to register the message dispatcher with JMX.", x);
+        }
+    }
+
+    protected void unregister() {
+        if ( oname == null ) return;
+        try {
+            Registry.getRegistry(null, null).getMBeanServer().unregisterMBean(oname);
+        } catch ( Exception x ) {
+            log.warn("Unable to unregister the message dispatcher " + oname + " from JMX.", x);
+        }
+        oname = null;
+    }
+
+    @Override
+    public long getCurrentSize() {
+        return queuedSize.get();
+    }
+
+    @Override
+    public long addAndGetCurrentSize(long inc) {
+        long size = queuedSize.addAndGet(inc);
+        if ( inc < 0 && spaceWaiters.get() > 0 ) {
+            synchronized (space) {
+                space.notifyAll();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long setAndGetCurrentSize(long value) {
+        queuedSize.set(value);
+        return value;
+    }
+
+    public long[] getPartitionSizes() {
+        Partition[] queues = this.queues;
+        long[] result = new long[queues != null ? queues.length : 0];
+        for ( int i=0; i<result.length; i++ ) result[i] = queues[i].size.get();
+        return result;
+    }
+
+    public int[] getPartitionQueueLengths() {
+        Partition[] queues = this.queues;
+        int[] result = new int[queues != null ? queues.length : 0];
+        for ( int i=0; i<result.length; i++ ) result[i] = queues[i].queue.size();
+        return result;
+    }
+
+    public long[] getPartitionLag() {
+        Partition[] queues = this.queues;
+        long now = System.currentTimeMillis();
+        long[] result = new long[queues != null ? queues.length : 0];
+        for ( int i=0; i<result.length; i++ ) result[i] = queues[i].getLag(now);
+        return result;
+    }
+
+    public long[] getPartitionMessagesSent() {
+        Partition[] queues = this.queues;
+        long[] result = new long[queues != null ? queues.length : 0];
+        for ( int i=0; i<result.length; i++ ) result[i] = queues[i].sent.get();
+        return result;
+    }
+
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public void setPartitions(int partitions) {
+        this.partitions = Math.max(1, partitions);
+    }
+
+    public long getMaxPartitionQueueSize() {
+        return maxPartitionQueueSize;
+    }
+
+    public void setMaxPartitionQueueSize(long maxPartitionQueueSize) {
+        this.maxPartitionQueueSize = maxPartitionQueueSize;
+    }
+
+    public String getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(String overflowPolicy) {
+        if ( !OVERFLOW_SEND.equals(overflowPolicy) && !OVERFLOW_REJECT.equals(overflowPolicy) && !OVERFLOW_BLOCK.equals(overflowPolicy) ) {
+            throw new IllegalArgumentException("Unknown overflow policy " + overflowPolicy + ", use send, reject or block.");
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getOverflowTimeout() {
+        return overflowTimeout;
+    }
+
+    public void setOverflowTimeout(long overflowTimeout) {
+        this.overflowTimeout = overflowTimeout;
+    }
+
+    public void setAlwaysSend(boolean alwaysSend) {
+        super.setAlwaysSend(alwaysSend);
+        this.overflowPolicy = alwaysSend ? OVERFLOW_SEND : OVERFLOW_REJECT;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public void setDomain(String domain) {
+        this.domain = domain;
+    }
+
+    /**
+     * The queue of a dispatch thread.
+     */
+    protected class Partition implements Runnable {
+        protected final LinkedBlockingQueue queue = new LinkedBlockingQueue();
+        protected final AtomicLong size = new AtomicLong(0);
+        protected final AtomicLong sent = new AtomicLong(0);
+        protected Thread thread = null;
+        /**
+         * The time the message being sent was queued, 0 if none
+         */
+        protected volatile long sending = 0;
+
+        protected void add(LinkObject link, int length) {
+            size.addAndGet(length);
+            queue.add(new QueuedMessage(link, System.currentTimeMillis()));
+        }
+
+        protected long getLag(long now) {
+            long oldest = sending;
+            if ( oldest == 0 ) {
+                QueuedMessage head = (QueuedMessage)queue.peek();
+                if ( head != null ) oldest = head.queued;
+            }
+            return oldest == 0 ? 0 : Math.max(0, now - oldest);
+        }
+
+        public void run() {
+            while ( run ) {
+                QueuedMessage message = null;
+                try {
+                    message = (QueuedMessage)queue.poll(1000, TimeUnit.MILLISECONDS);
+                } catch ( InterruptedException x ) {
+                    //stopped
+                }
+                if ( message == null ) continue;
+                sending = message.queued;
+                int length = message.link.data().getMessage().getLength();
+                try {
+                    sendAsyncData(message.link);
+                } finally {
+                    sending = 0;
+                    size.addAndGet(-length);
+                    sent.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Report the messages that are not sent anymore.
+         */
+        protected void discard() {
+            QueuedMessage message = (QueuedMessage)queue.poll();
+            while ( message != null ) {
+                //a message being sent is counted down by its thread
+                size.addAndGet(-message.link.data().getMessage().getLength());
+                addAndGetCurrentSize(-message.link.data().getMessage().getLength());
+                try {
+                    if ( message.link.getHandler() != null ) message.link.getHandler().handleError(new ChannelException("The message dispatcher has been stopped."), new UniqueId(message.link.data().getUniqueId()));
+                } catch ( Exception ex ) {
+                    log.error("Unable to report back error message.",ex);
+                }
+                message = (QueuedMessage)queue.poll();
+            }
+        }
+    }
+
+    protected static class QueuedMessage {
+        protected final LinkObject link;
+        protected final long queued;
+
+        protected QueuedMessage(LinkObject link, long queued) {
+            this.link = link;
+            this.queued = queued;
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.tribes.group.interceptors;
+
+/**
+ * The JMX view of a {@link PartitionedMessageDispatchInterceptor}.
+ *
+ * @version $Id$
+ */
+public interface PartitionedMessageDispatchInterceptorMBean {
+
+    public int getPartitions();
+
+    public long getMaxQueueSize();
+
+    public long getMaxPartitionQueueSize();
+
+    public String getOverflowPolicy();
+
+    public long getCurrentSize();
+
+    /**
+     * @return the bytes queued in each partition
+     */
+    public long[] getPartitionSizes();
+
+    /**
+     * @return the messages queued in each partition
+     */
+    public int[] getPartitionQueueLengths();
+
+    /**
+     * @return the age in ms of the oldest message not sent in each partition
+     */
+    public long[] getPartitionLag();
+
+    /**
+     * @return the messages sent by each partition
+     */
+    public long[] getPartitionMessagesSent();
+
+    /**
+     * @return the messages that didn't fit in the queue
+     */
+    public long getOverflowCount();
+
+}
@@ -17,6 +17,8 @@
 package org.apache.catalina.tribes.io;
 
 
+import java.nio.ByteBuffer;
+
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
@@ -31,6 +33,18 @@ public class BufferPool {
 
     public static int DEFAULT_POOL_SIZE = 100*1024*1024; //100MB
 
+    /**
+     * The number of buffers per size class each thread keeps, see {@link SizeClassBufferPool}
+     */
+    public static int DEFAULT_THREAD_CACHE_SIZE = 
+        Integer.getInteger("org.apache.catalina.tribes.io.BufferPool.threadCacheSize", 2).intValue();
+
+    /**
+     * Buffers not returned within this time in msec are logged, 0 disables leak detection
+     */
+    public static long DEFAULT_LEAK_DETECTION_THRESHOLD = 
+        Long.getLong("org.apache.catalina.tribes.io.BufferPool.leakDetectionThreshold", 0).longValue();
+
 
 
     protected static volatile BufferPool instance = null;
@@ -49,10 +63,31 @@ public class BufferPool {
         if ( pool != null ) pool.returnBuffer(buffer);
     }
 
+    /**
+     * Get a <code>ByteBuffer</code> with at least minSize bytes, cleared.
+     * @param minSize the minimum capacity
+     * @param direct get a direct buffer
+     */
+    public ByteBuffer getByteBuffer(int minSize, boolean direct) {
+        if ( pool instanceof ByteBufferPoolAPI ) return ((ByteBufferPoolAPI)pool).getByteBuffer(minSize, direct);
+        else return direct?ByteBuffer.allocateDirect(minSize):ByteBuffer.allocate(minSize);
+    }
+
+    public void returnByteBuffer(ByteBuffer buffer) {
+        if ( pool instanceof ByteBufferPoolAPI ) ((ByteBufferPoolAPI)pool).returnByteBuffer(buffer);
+    }
+
     public void clear() {
         if ( pool != null ) pool.clear();
     }
 
+    /**
+     * @return the pool implementation, for its metrics
+     */
+    public BufferPoolAPI getPool() {
+        return pool;
+    }
+
 
     public static BufferPool getBufferPool() {
         if (  (instance == null) ) {
@@ -60,19 +95,25 @@ public class BufferPool {
                 if ( instance == null ) {
                    BufferPoolAPI pool = null;
                    Class clazz = null;
-                   try {
-                       clazz = Class.forName("org.apache.catalina.tribes.io.BufferPool15Impl");
-                       pool = (BufferPoolAPI)clazz.newInstance();
-                   } catch ( Throwable x ) {
+                   String[] impls = new String[] {"org.apache.catalina.tribes.io.SizeClassBufferPool",
+                                                  "org.apache.catalina.tribes.io.BufferPool15Impl",
+                                                  "org.apache.catalina.tribes.io.BufferPool14Impl"};
+                   Throwable x = null;
+                   for ( int i=0; pool==null && i<impls.length; i++ ) {
                        try {
-                           clazz = Class.forName("org.apache.catalina.tribes.io.BufferPool14Impl");
+                           clazz = Class.forName(impls[i]);
                            pool = (BufferPoolAPI)clazz.newInstance();
-                       } catch ( Throwable e ) {
-                           log.warn("Unable to initilize BufferPool, not pooling XByteBuffer objects:"+x.getMessage());
-                           if ( log.isDebugEnabled() ) log.debug("Unable to initilize BufferPool, not pooling XByteBuffer objects:",x);
+                       } catch ( Throwable t ) {
+                           clazz = null;
+                           if ( x == null ) x = t;
                        }
                    }
-                   pool.setMaxSize(DEFAULT_POOL_SIZE);
+                   if ( pool == null ) {
+                       log.warn("Unable to initilize BufferPool, not pooling XByteBuffer objects:"+x.getMessage());
+                       if ( log.isDebugEnabled() ) log.debug("Unable to initilize BufferPool, not pooling XByteBuffer objects:",x);
+                   } else {
+                       pool.setMaxSize(DEFAULT_POOL_SIZE);
+                   }
                    log.info("Created a buffer pool with max size:"+DEFAULT_POOL_SIZE+" bytes of type:"+(clazz!=null?clazz.getName():"null"));
                    instance = new BufferPool(pool);
                 }//end if
@@ -91,4 +132,13 @@ public class BufferPool {
 
         public void clear();
     }    
+
+    /**
+     * A pool that also holds the <code>ByteBuffer</code>s of the NIO transport.
+     */
+    public static interface ByteBufferPoolAPI extends BufferPoolAPI {
+        public ByteBuffer getByteBuffer(int minSize, boolean direct);
+
+        public void returnByteBuffer(ByteBuffer buffer);
+    }
 }
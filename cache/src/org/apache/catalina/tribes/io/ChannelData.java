@@ -16,6 +16,7 @@
  */
 package org.apache.catalina.tribes.io;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.apache.catalina.tribes.ChannelMessage;
@@ -213,6 +214,24 @@ public class ChannelData implements ChannelMessage {
         return data;
     }
     
+    /**
+     * Serializes the ChannelData object into a ByteBuffer, from its position on
+     * @param buffer ByteBuffer
+     * @return the buffer
+     */
+    public ByteBuffer getDataPackage(ByteBuffer buffer)  {
+        byte[] addr = ((MemberImpl)address).getData(false);
+        buffer.putInt(options);
+        buffer.putLong(timestamp);
+        buffer.putInt(uniqueId.length);
+        buffer.put(uniqueId);
+        buffer.putInt(addr.length);
+        buffer.put(addr);
+        buffer.putInt(message.getLength());
+        buffer.put(message.getBytesDirect(),0,message.getLength());
+        return buffer;
+    }
+    
     /**
      * Deserializes a ChannelData object from a byte array
      * @param b byte[]
@@ -0,0 +1,431 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.tribes.io;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * A buffer pool with a queue per size class. The size classes are the
+ * powers of two from {@link #MIN_CLASS_SIZE} to {@link #MAX_CLASS_SIZE}, a
+ * request is served from the smallest class that is large enough, so a
+ * pooled buffer never has to be expanded. Larger buffers are not pooled.
+ * <p>
+ * Besides <code>XByteBuffer</code>s the pool holds heap and direct
+ * <code>ByteBuffer</code>s, for the NIO transport. Each thread keeps a few
+ * buffers of the small classes, which are served without touching the
+ * shared queues. The buffers in the thread caches count towards the
+ * maximum size of the pool, and {@link #clear()} drops them as well, each
+ * thread drops its cache when it uses the pool the next time.
+ * <p>
+ * With a leak detection threshold the pool remembers where each buffer was
+ * taken, and logs buffers that were not returned within the threshold once.
+ * This is meant for diagnosis, a leaked buffer is released by the pool
+ * when it is reported.
+ *
+ * @version $Id$
+ */
+public class SizeClassBufferPool implements BufferPool.ByteBufferPoolAPI {
+    protected static Log log = LogFactory.getLog(SizeClassBufferPool.class);
+
+    public static final int MIN_CLASS_SHIFT = 10;
+    public static final int MAX_CLASS_SHIFT = 22;
+    public static final int MIN_CLASS_SIZE = 1 << MIN_CLASS_SHIFT;
+    public static final int MAX_CLASS_SIZE = 1 << MAX_CLASS_SHIFT;
+
+    /**
+     * The largest size class kept in the thread caches.
+     */
+    public static final int MAX_THREAD_CACHE_CLASS_SHIFT = 14;
+
+    private static final int CLASSES = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+    private static final int XBYTEBUFFER = 0;
+    private static final int HEAP = 1;
+    private static final int DIRECT = 2;
+    private static final String[] KIND_NAMES = {"XByteBuffer", "heap ByteBuffer", "direct ByteBuffer"};
+
+    protected long maxSize;
+    protected int threadCacheSize;
+    protected long leakDetectionThreshold;
+
+    protected final ConcurrentLinkedQueue[][] queues = new ConcurrentLinkedQueue[3][CLASSES];
+    protected final ThreadLocal threadCache = new ThreadLocal();
+
+    /**
+     * Incremented by {@link #clear()}, a thread cache of an older generation
+     * is dropped.
+     */
+    protected final AtomicLong generation = new AtomicLong();
+
+    protected final AtomicLong pooledBytes = new AtomicLong();
+    protected final AtomicLong taken = new AtomicLong();
+    protected final AtomicLong allocated = new AtomicLong();
+    protected final AtomicLong reused = new AtomicLong();
+    protected final AtomicLong threadCacheHits = new AtomicLong();
+    protected final AtomicLong returned = new AtomicLong();
+    protected final AtomicLong discarded = new AtomicLong();
+    protected final AtomicLong leaks = new AtomicLong();
+
+    protected final Map outstanding = new IdentityHashMap();
+    protected final AtomicLong lastLeakCheck = new AtomicLong();
+
+    public SizeClassBufferPool() {
+        for (int kind = 0; kind < queues.length; kind++) {
+            for (int i = 0; i < CLASSES; i++) {
+                queues[kind][i] = new ConcurrentLinkedQueue();
+            }
+        }
+        setThreadCacheSize(BufferPool.DEFAULT_THREAD_CACHE_SIZE);
+        setLeakDetectionThreshold(BufferPool.DEFAULT_LEAK_DETECTION_THRESHOLD);
+    }
+
+    public void setMaxSize(int bytes) {
+        this.maxSize = bytes;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param threadCacheSize the number of buffers per size class and kind
+     *  each thread keeps, <code>0</code> disables the thread caches
+     */
+    public void setThreadCacheSize(int threadCacheSize) {
+        this.threadCacheSize = threadCacheSize;
+    }
+
+    public int getThreadCacheSize() {
+        return threadCacheSize;
+    }
+
+    /**
+     * @param leakDetectionThreshold the time in milliseconds after which a
+     *  buffer that was not returned is reported, <code>0</code> disables
+     *  leak detection
+     */
+    public void setLeakDetectionThreshold(long leakDetectionThreshold) {
+        this.leakDetectionThreshold = leakDetectionThreshold;
+    }
+
+    public long getLeakDetectionThreshold() {
+        return leakDetectionThreshold;
+    }
+
+    // ----------------------------------------------------------------- buffers
+
+    public XByteBuffer getBuffer(int minSize, boolean discard) {
+        XByteBuffer buffer = (XByteBuffer) take(XBYTEBUFFER, minSize);
+        if (buffer == null) {
+            buffer = new XByteBuffer(allocationSize(minSize), discard);
+            allocated(buffer);
+        }
+        buffer.setDiscard(discard);
+        buffer.reset();
+        return buffer;
+    }
+
+    public void returnBuffer(XByteBuffer buffer) {
+        give(XBYTEBUFFER, buffer, buffer.getCapacity());
+    }
+
+    public ByteBuffer getByteBuffer(int minSize, boolean direct) {
+        int kind = direct ? DIRECT : HEAP;
+        ByteBuffer buffer = (ByteBuffer) take(kind, minSize);
+        if (buffer == null) {
+            int size = allocationSize(minSize);
+            buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            allocated(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void returnByteBuffer(ByteBuffer buffer) {
+        give(buffer.isDirect() ? DIRECT : HEAP, buffer, buffer.capacity());
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        for (int kind = 0; kind < queues.length; kind++) {
+            for (int i = 0; i < CLASSES; i++) {
+                queues[kind][i].clear();
+            }
+        }
+        pooledBytes.set(0);
+    }
+
+    /**
+     * @return the size class that serves a request of the size, or
+     *  <code>-1</code> if the size is too large to be pooled
+     */
+    protected static int classOf(int size) {
+        if (size <= MIN_CLASS_SIZE) return 0;
+        if (size > MAX_CLASS_SIZE) return -1;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * @return the largest size class a buffer of the capacity serves, or
+     *  <code>-1</code> if it is not pooled
+     */
+    protected static int floorClassOf(int capacity) {
+        if (capacity < MIN_CLASS_SIZE || capacity > MAX_CLASS_SIZE) return -1;
+        return 31 - Integer.numberOfLeadingZeros(capacity) - MIN_CLASS_SHIFT;
+    }
+
+    protected static int allocationSize(int minSize) {
+        int sizeClass = classOf(minSize);
+        return sizeClass < 0 ? minSize : 1 << (sizeClass + MIN_CLASS_SHIFT);
+    }
+
+    protected Object take(int kind, int minSize) {
+        taken.incrementAndGet();
+        int sizeClass = classOf(minSize);
+        if (sizeClass < 0) return null;
+        Object buffer = null;
+        if (threadCacheSize > 0 && sizeClass + MIN_CLASS_SHIFT <= MAX_THREAD_CACHE_CLASS_SHIFT) {
+            ThreadCache cache = threadCache(false);
+            if (cache != null) {
+                Object[] slots = cache.slots[kind][sizeClass];
+                for (int i = 0; i < slots.length; i++) {
+                    if (slots[i] != null) {
+                        buffer = slots[i];
+                        slots[i] = null;
+                        threadCacheHits.incrementAndGet();
+                        break;
+                    }
+                }
+            }
+        }
+        if (buffer == null) {
+            buffer = queues[kind][sizeClass].poll();
+            if (buffer != null) reused.incrementAndGet();
+        }
+        if (buffer != null) pooledBytes.addAndGet(-capacityOf(buffer));
+        if (buffer != null) track(buffer);
+        return buffer;
+    }
+
+    protected void give(int kind, Object buffer, int capacity) {
+        returned.incrementAndGet();
+        untrack(buffer);
+        int sizeClass = floorClassOf(capacity);
+        if (sizeClass < 0) {
+            discarded.incrementAndGet();
+            return;
+        }
+        if (pooledBytes.addAndGet(capacity) > maxSize) {
+            pooledBytes.addAndGet(-capacity);
+            discarded.incrementAndGet();
+            return;
+        }
+        if (threadCacheSize > 0 && sizeClass + MIN_CLASS_SHIFT <= MAX_THREAD_CACHE_CLASS_SHIFT) {
+            Object[] slots = threadCache(true).slots[kind][sizeClass];
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] == null) {
+                    slots[i] = buffer;
+                    return;
+                }
+            }
+        }
+        queues[kind][sizeClass].offer(buffer);
+    }
+
+    /**
+     * @return the cache of the current thread, <code>null</code> if there
+     *  is none and <code>create</code> is <code>false</code>. A cache of an
+     *  older generation is dropped, its bytes were already discounted.
+     */
+    private ThreadCache threadCache(boolean create) {
+        ThreadCache cache = (ThreadCache) threadCache.get();
+        long current = generation.get();
+        if (cache != null && cache.generation != current) {
+            cache = null;
+            threadCache.set(null);
+        }
+        if (cache == null && create) {
+            cache = new ThreadCache(current, threadCacheSize);
+            threadCache.set(cache);
+        }
+        return cache;
+    }
+
+    private static int capacityOf(Object buffer) {
+        if (buffer instanceof XByteBuffer) return ((XByteBuffer) buffer).getCapacity();
+        return ((ByteBuffer) buffer).capacity();
+    }
+
+    private void allocated(Object buffer) {
+        allocated.incrementAndGet();
+        track(buffer);
+    }
+
+    // ------------------------------------------------------------ leak detection
+
+    private void track(Object buffer) {
+        if (leakDetectionThreshold <= 0) return;
+        long now = System.currentTimeMillis();
+        synchronized (outstanding) {
+            outstanding.put(buffer, new Allocation(now));
+        }
+        long last = lastLeakCheck.get();
+        if (now - last > leakDetectionThreshold / 2 && lastLeakCheck.compareAndSet(last, now)) {
+            checkLeaks(now);
+        }
+    }
+
+    private void untrack(Object buffer) {
+        if (leakDetectionThreshold <= 0) return;
+        synchronized (outstanding) {
+            outstanding.remove(buffer);
+        }
+    }
+
+    /**
+     * Report the buffers that are outstanding longer than the leak detection
+     * threshold.
+     * @param now the current time
+     * @return the number of buffers reported
+     */
+    public int checkLeaks(long now) {
+        int count = 0;
+        synchronized (outstanding) {
+            for (Iterator i = outstanding.entrySet().iterator(); i.hasNext();) {
+                Map.Entry entry = (Map.Entry) i.next();
+                Allocation allocation = (Allocation) entry.getValue();
+                if (now - allocation.time > leakDetectionThreshold) {
+                    Object buffer = entry.getKey();
+                    log.warn("Buffer leak: " + kindOf(buffer) + " of " + capacityOf(buffer)
+                             + " bytes was not returned to the pool within " + (now - allocation.time)
+                             + " ms, it was taken by:", allocation.stack);
+                    i.remove();
+                    count++;
+                }
+            }
+        }
+        leaks.addAndGet(count);
+        return count;
+    }
+
+    private static String kindOf(Object buffer) {
+        if (buffer instanceof XByteBuffer) return KIND_NAMES[XBYTEBUFFER];
+        return ((ByteBuffer) buffer).isDirect() ? KIND_NAMES[DIRECT] : KIND_NAMES[HEAP];
+    }
+
+    private static class ThreadCache {
+        final long generation;
+        final Object[][][] slots;
+
+        ThreadCache(long generation, int size) {
+            this.generation = generation;
+            this.slots = new Object[3][MAX_THREAD_CACHE_CLASS_SHIFT - MIN_CLASS_SHIFT + 1][size];
+        }
+    }
+
+    private static class Allocation {
+        final long time;
+        final Throwable stack;
+
+        Allocation(long time) {
+            this.time = time;
+            this.stack = new Throwable("Buffer taken by thread " + Thread.currentThread().getName());
+        }
+    }
+
+    // ------------------------------------------------------------------ metrics
+
+    /**
+     * @return the number of bytes in the shared queues and the thread caches
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * @return the number of buffers taken from the pool
+     */
+    public long getTaken() {
+        return taken.get();
+    }
+
+    /**
+     * @return the number of buffers allocated because none was pooled
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * @return the number of buffers served from the shared queues
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * @return the number of buffers served from the thread caches
+     */
+    public long getThreadCacheHits() {
+        return threadCacheHits.get();
+    }
+
+    /**
+     * @return the number of buffers returned to the pool
+     */
+    public long getReturned() {
+        return returned.get();
+    }
+
+    /**
+     * @return the number of returned buffers that were dropped, because they
+     *  are too small or too large or the pool is full
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * @return the number of buffers taken and not returned
+     */
+    public long getOutstanding() {
+        return taken.get() - returned.get();
+    }
+
+    /**
+     * @return the number of leaked buffers reported
+     */
+    public long getLeaks() {
+        return leaks.get();
+    }
+
+    public String toString() {
+        return "SizeClassBufferPool[taken=" + getTaken() + ", allocated=" + getAllocated()
+            + ", reused=" + getReused() + ", threadCacheHits=" + getThreadCacheHits()
+            + ", returned=" + getReturned() + ", discarded=" + getDiscarded()
+            + ", outstanding=" + getOutstanding() + ", leaks=" + getLeaks()
+            + ", pooledBytes=" + getPooledBytes() + "/" + getMaxSize() + "]";
+    }
+
+}
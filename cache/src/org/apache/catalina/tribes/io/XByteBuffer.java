@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 
@@ -244,6 +245,30 @@ public class XByteBuffer
         return true;
     }
 
+    /**
+     * Serializes the message and appends it to the buffer, without an
+     * intermediate byte array.
+     * @param msg the message
+     * @throws IOException
+     */
+    public void appendSerialized(Serializable msg) throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(new OutputStream() {
+            public void write(int b) {
+                append((byte)b);
+            }
+            public void write(byte[] b, int off, int len) {
+                if ( len > 0 ) {
+                    int newcount = bufSize + len;
+                    if (newcount > buf.length) expand(newcount);
+                    System.arraycopy(b, off, buf, bufSize, len);
+                    bufSize = newcount;
+                }
+            }
+        });
+        out.writeObject(msg);
+        out.flush();
+    }
+
     public void expand(int newcount) {
         //don't change the allocation strategy
         byte newbuf[] = new byte[Math.max(buf.length << 1, newcount)];
@@ -362,6 +387,22 @@ public class XByteBuffer
         return data;
     }
     
+    /**
+     * Writes a complete data package into the buffer, from its position on.
+     * @param cdata the message
+     * @param buffer the buffer, must have {@link #getDataPackageLength(int)}
+     *  of the message length remaining
+     * @return the buffer
+     */
+    public static ByteBuffer createDataPackage(ChannelData cdata, ByteBuffer buffer) {
+        int dlength = cdata.getDataPackageLength();
+        buffer.put(START_DATA);
+        buffer.putInt(dlength);
+        cdata.getDataPackage(buffer);
+        buffer.put(END_DATA);
+        return buffer;
+    }
+
     public static byte[] createDataPackage(byte[] data, int doff, int dlength, byte[] buffer, int bufoff) {
         if ( (buffer.length-bufoff) > getDataPackageLength(dlength) ) {
             throw new ArrayIndexOutOfBoundsException("Unable to create data package, buffer is too small.");
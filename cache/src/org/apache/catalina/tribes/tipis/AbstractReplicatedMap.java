@@ -28,14 +28,21 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.catalina.tribes.Channel;
 import org.apache.catalina.tribes.ChannelException;
 import org.apache.catalina.tribes.ChannelException.FaultyMember;
 import org.apache.catalina.tribes.ChannelListener;
 import org.apache.catalina.tribes.Heartbeat;
+import org.apache.catalina.tribes.KeyedMessage;
 import org.apache.catalina.tribes.Member;
 import org.apache.catalina.tribes.MembershipListener;
 import org.apache.catalina.tribes.group.Response;
@@ -44,6 +51,7 @@ import org.apache.catalina.tribes.group.RpcChannel;
 import org.apache.catalina.tribes.io.XByteBuffer;
 import org.apache.catalina.tribes.membership.MemberImpl;
 import org.apache.catalina.tribes.util.Arrays;
+import org.apache.catalina.tribes.util.TcclThreadFactory;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import java.util.concurrent.ConcurrentHashMap;
@@ -71,6 +79,12 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
      */
     final String chset = "ISO-8859-1";
 
+    /**
+     * The key of a state request that asks for a streamed transfer, a map
+     * that doesn't know the streamed transfer ignores it
+     */
+    public static final String STATE_STREAM = "stream";
+
 //------------------------------------------------------------------------------
 //              INSTANCE VARIABLES
 //------------------------------------------------------------------------------
@@ -104,9 +118,16 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
      */
     protected transient Object stateMutex = new Object();
     /**
-     * A list of members in our map
+     * The members of our map, with the time they were last seen.
+     * Members are added and removed while holding the lock of this map, see
+     * {@link #addMapMember(Member)}
      */
-    protected transient HashMap mapMembers = new HashMap();
+    protected transient ConcurrentHashMap mapMembers = new ConcurrentHashMap();
+    /**
+     * The members of {@link #mapMembers}, replaced whenever a member is added
+     * or removed
+     */
+    protected transient volatile MemberSnapshot memberSnapshot = MemberSnapshot.EMPTY;
     /**
      * Our default send options
      */
@@ -124,7 +145,21 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
      * The node we are currently backing up data to, this index will rotate
      * on a round robin basis
      */
-    protected transient int currentNode = 0;
+    protected transient AtomicInteger currentNode = new AtomicInteger(0);
+
+    /**
+     * The number of entries sent in one message of a streamed state transfer
+     */
+    protected transient int stateTransferChunkSize = Integer.getInteger("org.apache.catalina.tribes.tipis.AbstractReplicatedMap.stateTransferChunkSize", 1000).intValue();
+    /**
+     * The number of threads that apply the entries of a streamed state
+     * transfer, with <code>0</code> the receiving thread applies them
+     */
+    protected transient int stateTransferThreads = Integer.getInteger("org.apache.catalina.tribes.tipis.AbstractReplicatedMap.stateTransferThreads", Runtime.getRuntime().availableProcessors()).intValue();
+    /**
+     * The streamed state transfer in progress
+     */
+    protected transient volatile StateTransfer stateTransfer = null;
     
     /**
      * Since the map keeps internal membership
@@ -272,18 +307,18 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
             }            
         }
         //update our map of members, expire some if we didn't receive a ping back
-        synchronized (mapMembers) {
-            Iterator it = mapMembers.entrySet().iterator();
-            long now = System.currentTimeMillis();
-            while ( it.hasNext() ) {
-                Map.Entry entry = (Map.Entry)it.next();
-                long access = ((Long)entry.getValue()).longValue(); 
-                if ( (now - access) > timeout ) {
-                    it.remove();
-                    memberDisappeared( (Member) entry.getKey());
+        Iterator it = mapMembers.entrySet().iterator();
+        long now = System.currentTimeMillis();
+        while ( it.hasNext() ) {
+            Map.Entry entry = (Map.Entry)it.next();
+            long access = ((Long)entry.getValue()).longValue(); 
+            if ( (now - access) > timeout ) {
+                //only if it wasn't seen meanwhile
+                if ( removeMapMember((Member) entry.getKey(), (Long)entry.getValue()) ) {
+                    mapMemberRemoved((Member) entry.getKey());
                 }
             }
-        }//synch
+        }
     }
 
     /**
@@ -291,11 +326,35 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
      * @param member Member
      */
     protected void memberAlive(Member member) {
+        if ( mapMembers.replace(member, new Long(System.currentTimeMillis())) == null ) {
+            mapMemberAdded(member);
+        } //end if
+    }
+
+    /**
+     * Add a member and publish a new snapshot of the members.
+     * @return <code>true</code> if the member was not a member before
+     */
+    protected boolean addMapMember(Member member) {
         synchronized (mapMembers) {
-            if (!mapMembers.containsKey(member)) {
-                mapMemberAdded(member);
-            } //end if
+            if ( mapMembers.containsKey(member) ) return false;
             mapMembers.put(member, new Long(System.currentTimeMillis()));
+            memberSnapshot = new MemberSnapshot(mapMembers.keySet());
+            return true;
+        }
+    }
+
+    /**
+     * Remove a member and publish a new snapshot of the members.
+     * @param access the time the member must have been seen last, or
+     *  <code>null</code>
+     * @return <code>true</code> if the member was removed
+     */
+    protected boolean removeMapMember(Member member, Long access) {
+        synchronized (mapMembers) {
+            boolean removed = access != null ? mapMembers.remove(member, access) : (mapMembers.remove(member) != null);
+            if ( removed ) memberSnapshot = new MemberSnapshot(mapMembers.keySet());
+            return removed;
         }
     }
     
@@ -336,7 +395,10 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
         }
         this.rpcChannel = null;
         this.channel = null;
-        this.mapMembers.clear();
+        synchronized (mapMembers) {
+            this.mapMembers.clear();
+            this.memberSnapshot = MemberSnapshot.EMPTY;
+        }
         super.clear();
         this.stateTransferred = false;
         this.externalLoaders = null;
@@ -364,16 +426,26 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
             return result;
         }
     }
+    /**
+     * @return the members of the map, the array is shared and must not be
+     *  modified
+     */
     public Member[] getMapMembers() {
-        return getMapMembers(this.mapMembers);
+        return memberSnapshot.getMembers();
     }
     
+    /**
+     * @return the members of the map that are not excluded, the array may be
+     *  shared and must not be modified
+     */
     public Member[] getMapMembersExcl(Member[] exclude) {
-        synchronized (mapMembers) {
-            HashMap list = (HashMap)mapMembers.clone();
-            for (int i=0; i<exclude.length;i++) list.remove(exclude[i]);
-            return getMapMembers(list);
+        MemberSnapshot snapshot = memberSnapshot;
+        if ( exclude == null || exclude.length == 0 ) return snapshot.getMembers();
+        if ( exclude.length == 1 ) {
+            int index = snapshot.indexOf(exclude[0]);
+            return index >= 0 ? snapshot.excluding(index) : snapshot.getMembers();
         }
+        return excludeFromSet(exclude, snapshot.getMembers());
     }
 
 
@@ -456,22 +528,36 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
 
     }
 
+    /**
+     * Request the entries of the map from the first member. The member sends
+     * them in messages of <code>stateTransferChunkSize</code> entries, which
+     * are applied by <code>stateTransferThreads</code> threads while the
+     * next ones arrive, and then replies with the number of messages sent.
+     * A member that doesn't know the streamed transfer replies with all
+     * entries.
+     */
     public void transferState() {
+        StateTransfer transfer = new StateTransfer(stateTransferThreads);
         try {
             Member[] members = getMapMembers();
             Member backup = members.length > 0 ? (Member) members[0] : null;
             if (backup != null) {
+                stateTransfer = transfer;
                 MapMessage msg = new MapMessage(mapContextName, getStateMessageType(), false,
-                                                null, null, null, null, null);
+                                                STATE_STREAM, null, null, null, null);
                 Response[] resp = rpcChannel.send(new Member[] {backup}, msg, rpcChannel.FIRST_REPLY, channelSendOptions, rpcTimeout);
                 if (resp.length > 0) {
-                    synchronized (stateMutex) {
-                        msg = (MapMessage) resp[0].getMessage();
-                        msg.deserialize(getExternalLoaders());
-                        ArrayList list = (ArrayList) msg.getValue();
-                        for (int i = 0; i < list.size(); i++) {
-                            messageReceived( (Serializable) list.get(i), resp[0].getSource());
-                        } //for
+                    msg = (MapMessage) resp[0].getMessage();
+                    msg.deserialize(getExternalLoaders());
+                    if ( msg.getValue() instanceof Integer ) {
+                        int chunks = ((Integer)msg.getValue()).intValue();
+                        if ( !transfer.await(chunks, rpcTimeout) ) {
+                            log.warn("Transfer state, received " + transfer.getChunks() + " of " + chunks + " messages, probably a timeout.");
+                        }
+                    } else {
+                        synchronized (stateMutex) {
+                            applyState((List) msg.getValue(), resp[0].getSource());
+                        }
                     }
                 } else {
                     log.warn("Transfer state, 0 replies, probably a timeout.");
@@ -483,10 +569,52 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
             log.error("Unable to transfer LazyReplicatedMap state.", x);
         } catch (ClassNotFoundException x) {
             log.error("Unable to transfer LazyReplicatedMap state.", x);
+        } finally {
+            stateTransfer = null;
+            transfer.shutdown();
         }
         stateTransferred = true;
     }
 
+    protected void applyState(List list, Member sender) {
+        for (int i = 0; i < list.size(); i++) {
+            messageReceived( (Serializable) list.get(i), sender);
+        } //for
+    }
+
+    /**
+     * Send the entries of the map to a member that requested a streamed
+     * state transfer.
+     * @return the number of messages sent
+     */
+    protected int sendState(boolean copy, Member sender) throws ChannelException {
+        int chunks = 0;
+        ArrayList list = new ArrayList();
+        //the map is concurrent, the entries are read without a lock
+        Iterator i = super.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry e = (Map.Entry) i.next();
+            MapEntry entry = (MapEntry) super.get(e.getKey());
+            if ( entry != null && entry.isSerializable() ) {
+                list.add(getStateMessage(entry, copy));
+            }
+            if ( list.size() >= stateTransferChunkSize || (!i.hasNext() && list.size() > 0) ) {
+                MapMessage chunk = new MapMessage(mapContextName, copy?MapMessage.MSG_STATE_COPY:MapMessage.MSG_STATE,
+                                                  false, null, list, null, null, null);
+                channel.send(new Member[] {sender}, chunk, channelSendOptions);
+                chunks++;
+                list = new ArrayList();
+            }
+        }
+        return chunks;
+    }
+
+    protected MapMessage getStateMessage(MapEntry entry, boolean copy) {
+        return new MapMessage(mapContextName, 
+                              copy?MapMessage.MSG_COPY:MapMessage.MSG_PROXY,
+                              false, (Serializable) entry.getKey(), copy?(Serializable) entry.getValue():null, null, entry.getPrimary(),entry.getBackupNodes());
+    }
+
     /**
      * @todo implement state transfer
      * @param msg Serializable
@@ -519,24 +647,28 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
 
         //state transfer request
         if (mapmsg.getMsgType() == mapmsg.MSG_STATE || mapmsg.getMsgType() == mapmsg.MSG_STATE_COPY) {
-            synchronized (stateMutex) { //make sure we dont do two things at the same time
-                ArrayList list = new ArrayList();
-                Iterator i = super.entrySet().iterator();
-                while (i.hasNext()) {
-                    Map.Entry e = (Map.Entry) i.next();
-                    MapEntry entry = (MapEntry) super.get(e.getKey());
-                    if ( entry != null && entry.isSerializable() ) {
-                        boolean copy = (mapmsg.getMsgType() == mapmsg.MSG_STATE_COPY);
-                        MapMessage me = new MapMessage(mapContextName, 
-                                                       copy?MapMessage.MSG_COPY:MapMessage.MSG_PROXY,
-                            false, (Serializable) entry.getKey(), copy?(Serializable) entry.getValue():null, null, entry.getPrimary(),entry.getBackupNodes());
-                        list.add(me);
-                    }
+            boolean copy = (mapmsg.getMsgType() == mapmsg.MSG_STATE_COPY);
+            if ( STATE_STREAM.equals(mapmsg.getKey()) ) {
+                try {
+                    mapmsg.setValue(new Integer(sendState(copy, sender)));
+                    return mapmsg;
+                } catch (ChannelException x) {
+                    log.error("Unable to transfer the map state to " + sender + ".", x);
+                    return null;
                 }
-                mapmsg.setValue(list);
-                return mapmsg;
-                
-            } //synchronized
+            }
+            //the map is concurrent, the entries are read without a lock
+            ArrayList list = new ArrayList();
+            Iterator i = super.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry e = (Map.Entry) i.next();
+                MapEntry entry = (MapEntry) super.get(e.getKey());
+                if ( entry != null && entry.isSerializable() ) {
+                    list.add(getStateMessage(entry, copy));
+                }
+            }
+            mapmsg.setValue(list);
+            return mapmsg;
         }
 
         return null;
@@ -595,6 +727,16 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
             memberDisappeared(mapmsg.getPrimary());
         }
 
+        //entries of a streamed state transfer
+        if (mapmsg.getMsgType() == MapMessage.MSG_STATE || mapmsg.getMsgType() == MapMessage.MSG_STATE_COPY) {
+            if ( mapmsg.getValue() instanceof List ) {
+                StateTransfer transfer = stateTransfer;
+                if ( transfer != null ) transfer.submit((List) mapmsg.getValue(), sender);
+                else applyState((List) mapmsg.getValue(), sender);
+            }
+            return;
+        }
+
         if (mapmsg.getMsgType() == MapMessage.MSG_PROXY) {
             MapEntry entry = (MapEntry)super.get(mapmsg.getKey());
             if ( entry==null ) {
@@ -671,15 +813,8 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
 
     public void mapMemberAdded(Member member) {
         if ( member.equals(getChannel().getLocalMember(false)) ) return;
-        boolean memberAdded = false;
         //select a backup node if we don't have one
-        synchronized (mapMembers) {
-            if (!mapMembers.containsKey(member) ) {
-                mapMembers.put(member, new Long(System.currentTimeMillis()));
-                memberAdded = true;
-            }
-        }
-        if ( memberAdded ) {
+        if ( addMapMember(member) ) {
             synchronized (stateMutex) {
                 Iterator i = super.entrySet().iterator();
                 while (i.hasNext()) {
@@ -724,15 +859,18 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
     }
 
     public void memberDisappeared(Member member) {
-        boolean removed = false;
-        synchronized (mapMembers) {
-            removed = (mapMembers.remove(member) != null );
-            if (!removed) {
-                if (log.isDebugEnabled()) log.debug("Member["+member+"] disappeared, but was not present in the map.");
-                return; //the member was not part of our map.
-            }
+        if (!removeMapMember(member, null)) {
+            if (log.isDebugEnabled()) log.debug("Member["+member+"] disappeared, but was not present in the map.");
+            return; //the member was not part of our map.
         }
-        
+        mapMemberRemoved(member);
+    }
+
+    /**
+     * Relocate the entries of a member that was removed from the map.
+     * @param member Member
+     */
+    protected void mapMemberRemoved(Member member) {
         Iterator i = super.entrySet().iterator();
         while (i.hasNext()) {
             Map.Entry e = (Map.Entry) i.next();
@@ -783,20 +921,23 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
     }
 
     public int getNextBackupIndex() {
-        int size = mapMembers.size();
-        if (mapMembers.size() == 0)return -1;
-        int node = currentNode++;
-        if (node >= size) {
-            node = 0;
-            currentNode = 0;
-        }
-        return node;
+        return getNextBackupIndex(memberSnapshot.getMembers().length);
     }
+
+    /**
+     * @param size the number of members
+     * @return the index of the next backup node, or <code>-1</code> if there
+     *  are no members
+     */
+    protected int getNextBackupIndex(int size) {
+        if (size == 0)return -1;
+        return (currentNode.getAndIncrement() & Integer.MAX_VALUE) % size;
+    }
+
     public Member getNextBackupNode() {
         Member[] members = getMapMembers();
-        int node = getNextBackupIndex();
-        if ( members.length == 0 || node==-1) return null;
-        if ( node >= members.length ) node = 0;
+        int node = getNextBackupIndex(members.length);
+        if ( node==-1) return null;
         return members[node];
     }
 
@@ -1087,6 +1228,154 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
         }
         
 
+//------------------------------------------------------------------------------
+//                Member snapshot
+//------------------------------------------------------------------------------
+    /**
+     * The members of a map at one time. A snapshot is never modified, the
+     * map publishes a new one when a member is added or removed, so reading
+     * the members and selecting a backup node neither locks nor allocates.
+     * The arrays returned are shared and must not be modified.
+     */
+    public static class MemberSnapshot {
+        public static final MemberSnapshot EMPTY = new MemberSnapshot(new Member[0]);
+
+        private final Member[] members;
+        /**
+         * Each member wrapped in an array
+         */
+        private final Member[][] single;
+        /**
+         * The members without the member of the index
+         */
+        private final Member[][] excluding;
+
+        public MemberSnapshot(Collection members) {
+            this((Member[])members.toArray(new Member[members.size()]));
+        }
+
+        public MemberSnapshot(Member[] members) {
+            this.members = members;
+            this.single = new Member[members.length][];
+            this.excluding = new Member[members.length][];
+            for (int i=0; i<members.length; i++) {
+                single[i] = new Member[] {members[i]};
+                excluding[i] = new Member[members.length - 1];
+                System.arraycopy(members, 0, excluding[i], 0, i);
+                System.arraycopy(members, i + 1, excluding[i], i, members.length - i - 1);
+            }
+        }
+
+        public Member[] getMembers() {
+            return members;
+        }
+
+        /**
+         * @return the member of the index, wrapped in an array
+         */
+        public Member[] wrap(int index) {
+            return single[index];
+        }
+
+        /**
+         * @return all members except the one of the index
+         */
+        public Member[] excluding(int index) {
+            return excluding[index];
+        }
+
+        public int indexOf(Member member) {
+            for (int i=0; i<members.length; i++) {
+                if ( members[i].equals(member) ) return i;
+            }
+            return -1;
+        }
+    }
+
+//------------------------------------------------------------------------------
+//                Streamed state transfer
+//------------------------------------------------------------------------------
+    /**
+     * The receiving side of a streamed state transfer, applies the received
+     * entries with a pool of threads. The queue of the pool is bounded, if
+     * it is full the receiving thread applies the entries itself.
+     */
+    protected class StateTransfer {
+        private final ThreadPoolExecutor executor;
+        private final AtomicInteger chunks = new AtomicInteger(0);
+
+        public StateTransfer(int threads) {
+            if ( threads > 0 ) {
+                executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue(threads * 2),
+                        new TcclThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+                executor.allowCoreThreadTimeOut(true);
+            } else {
+                executor = null;
+            }
+        }
+
+        public void submit(final List list, final Member sender) {
+            Runnable task = new Runnable() {
+                public void run() {
+                    try {
+                        applyState(list, sender);
+                    } finally {
+                        synchronized (chunks) {
+                            chunks.incrementAndGet();
+                            chunks.notifyAll();
+                        }
+                    }
+                }
+            };
+            if ( executor != null ) {
+                try {
+                    executor.execute(task);
+                    return;
+                } catch (RejectedExecutionException x) {
+                    //shut down meanwhile
+                }
+            }
+            task.run();
+        }
+
+        public int getChunks() {
+            return chunks.get();
+        }
+
+        /**
+         * Wait until the messages are applied.
+         * @param count the number of messages sent
+         * @param timeout the maximum time to wait for the next message
+         * @return <code>true</code> if all messages are applied
+         */
+        public boolean await(int count, long timeout) {
+            synchronized (chunks) {
+                int applied = chunks.get();
+                long end = System.currentTimeMillis() + timeout;
+                while ( chunks.get() < count ) {
+                    if ( chunks.get() > applied ) {
+                        applied = chunks.get();
+                        end = System.currentTimeMillis() + timeout;
+                    }
+                    long wait = end - System.currentTimeMillis();
+                    if ( wait <= 0 ) return false;
+                    try {
+                        chunks.wait(wait);
+                    } catch (InterruptedException x) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        public void shutdown() {
+            if ( executor != null ) executor.shutdown();
+        }
+    }
+
 //------------------------------------------------------------------------------
 //                Map Entry class
 //------------------------------------------------------------------------------
@@ -1227,7 +1516,7 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
 //                map message to send to and from other maps
 //------------------------------------------------------------------------------
 
-    public static class MapMessage implements Serializable {
+    public static class MapMessage implements KeyedMessage {
         public static final int MSG_BACKUP = 1;
         public static final int MSG_RETRIEVE_BACKUP = 2;
         public static final int MSG_PROXY = 3;
@@ -1308,6 +1597,14 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
             return diff;
         }
 
+        /**
+         * @return the key of the entry if it is not serialized, messages of
+         * the same entry are sent in order
+         */
+        public Object getMessageKey() {
+            return key;
+        }
+
         public Serializable getKey() {
             try {
                 return key(null);
@@ -1485,4 +1782,20 @@ public abstract class AbstractReplicatedMap extends ConcurrentHashMap implements
         this.accessTimeout = accessTimeout;
     }
 
+    public int getStateTransferChunkSize() {
+        return stateTransferChunkSize;
+    }
+
+    public void setStateTransferChunkSize(int stateTransferChunkSize) {
+        this.stateTransferChunkSize = Math.max(1, stateTransferChunkSize);
+    }
+
+    public int getStateTransferThreads() {
+        return stateTransferThreads;
+    }
+
+    public void setStateTransferThreads(int stateTransferThreads) {
+        this.stateTransferThreads = stateTransferThreads;
+    }
+
 }
\ No newline at end of file
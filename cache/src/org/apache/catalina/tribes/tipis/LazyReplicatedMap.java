@@ -127,8 +127,10 @@ public class LazyReplicatedMap extends AbstractReplicatedMap
      */
     protected Member[] publishEntryInfo(Object key, Object value) throws ChannelException {
         if  (! (key instanceof Serializable && value instanceof Serializable)  ) return new Member[0];
-        Member[] members = getMapMembers();
-        int firstIdx = getNextBackupIndex();
+        //one snapshot of the members for the selection and the messages
+        MemberSnapshot snapshot = memberSnapshot;
+        Member[] members = snapshot.getMembers();
+        int firstIdx = getNextBackupIndex(members.length);
         int nextIdx = firstIdx;
         Member[] backup = new Member[0];
         
@@ -139,6 +141,7 @@ public class LazyReplicatedMap extends AbstractReplicatedMap
         do {
             //select a backup node
             Member next = members[nextIdx];
+            int idx = nextIdx;
             
             //increment for the next round of back up selection
             nextIdx = nextIdx + 1;
@@ -149,7 +152,7 @@ public class LazyReplicatedMap extends AbstractReplicatedMap
             }
             MapMessage msg = null;
             try {
-                backup = wrap(next);
+                backup = snapshot.wrap(idx);
                 //publish the backup data to one node
                 msg = new MapMessage(getMapContextName(), MapMessage.MSG_BACKUP, false,
                                      (Serializable) key, (Serializable) value, null, channel.getLocalMember(false), backup);
@@ -165,7 +168,7 @@ public class LazyReplicatedMap extends AbstractReplicatedMap
             }
             try {
                 //publish the data out to all nodes
-                Member[] proxies = excludeFromSet(backup, getMapMembers());
+                Member[] proxies = snapshot.excluding(idx);
                 if (success && proxies.length > 0 ) {
                     msg = new MapMessage(getMapContextName(), MapMessage.MSG_PROXY, false,
                                          (Serializable) key, null, null, channel.getLocalMember(false),backup);
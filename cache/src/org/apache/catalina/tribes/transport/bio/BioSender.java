@@ -25,6 +25,7 @@ import java.net.Socket;
 import java.util.Arrays;
 
 import org.apache.catalina.tribes.RemoteProcessException;
+import org.apache.catalina.tribes.io.BufferPool;
 import org.apache.catalina.tribes.io.XByteBuffer;
 import org.apache.catalina.tribes.transport.AbstractSender;
 import org.apache.catalina.tribes.transport.Constants;
@@ -266,7 +267,9 @@ public class BioSender extends AbstractSender implements DataSender {
                 byte d = (byte)i;
                 ackbuf.append(d);
                 if (ackbuf.doesPackageExist() ) {
-                    byte[] ackcmd = ackbuf.extractDataPackage(true).getBytes();
+                    XByteBuffer ackpkg = ackbuf.extractDataPackage(true);
+                    byte[] ackcmd = ackpkg.getBytes();
+                    BufferPool.getBufferPool().returnBuffer(ackpkg);
                     ackReceived = Arrays.equals(ackcmd,org.apache.catalina.tribes.transport.Constants.ACK_DATA);
                     failAckReceived = Arrays.equals(ackcmd,org.apache.catalina.tribes.transport.Constants.FAIL_ACK_DATA);
                     ackReceived = ackReceived || failAckReceived;
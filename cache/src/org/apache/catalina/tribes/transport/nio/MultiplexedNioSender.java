@@ -0,0 +1,747 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.tribes.transport.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.tribes.Channel;
+import org.apache.catalina.tribes.ChannelException;
+import org.apache.catalina.tribes.ChannelMessage;
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.RemoteProcessException;
+import org.apache.catalina.tribes.io.BufferPool;
+import org.apache.catalina.tribes.io.ChannelData;
+import org.apache.catalina.tribes.io.XByteBuffer;
+import org.apache.catalina.tribes.transport.AbstractSender;
+import org.apache.catalina.tribes.transport.Constants;
+import org.apache.catalina.tribes.transport.MultiPointSender;
+import org.apache.catalina.tribes.transport.SenderState;
+
+/**
+ * A sender that multiplexes the messages of all sending threads over one
+ * connection per member.
+ * <p>
+ * {@link ParallelNioSender} sends one message at a time, concurrent threads
+ * wait for each other or are spread over the few senders of a
+ * {@link PooledParallelSender}. Here a sending thread writes the package once
+ * into a pooled buffer and adds it to a bounded queue of each destination,
+ * then waits for the completion of its own message only. A small number of IO
+ * threads owns the connections, an IO thread takes up to
+ * <code>maxBatchSize</code> queued messages of a member and writes them with
+ * one gathering write. The more threads send at the same time, the larger
+ * the batches get.
+ * <p>
+ * The receiver acknowledges messages sent with
+ * {@link Channel#SEND_OPTIONS_USE_ACK} in the order they arrive, so every ack
+ * read from a connection completes the oldest written message waiting for an
+ * ack. Messages without ack complete when they are written. If a connection
+ * fails, the messages that are not acknowledged are sent again on a new
+ * connection, up to <code>maxRetryAttempts</code> times. A full queue blocks
+ * the sending thread until the timeout.
+ * <p>
+ * Configured as the transport of the sender:
+ * <code>&lt;Transport className="org.apache.catalina.tribes.transport.nio.MultiplexedNioSender"/&gt;</code>
+ *
+ * @version $Id$
+ */
+public class MultiplexedNioSender extends AbstractSender implements MultiPointSender {
+
+    protected static org.apache.juli.logging.Log log = org.apache.juli.logging.LogFactory.getLog(MultiplexedNioSender.class);
+
+    /**
+     * The number of IO threads, members are assigned to them round robin
+     */
+    protected int ioThreads = 2;
+    /**
+     * The number of messages that can be queued per member
+     */
+    protected int queueSize = 1024;
+    /**
+     * The maximum number of messages written with one gathering write
+     */
+    protected int maxBatchSize = 64;
+    protected long selectTimeout = 1000;
+
+    protected IoThread[] threads = null;
+    protected int nextThread = 0;
+    protected ConcurrentHashMap channels = new ConcurrentHashMap();
+
+    protected AtomicLong messagesSent = new AtomicLong();
+    protected AtomicLong writes = new AtomicLong();
+    protected AtomicLong messagesFailed = new AtomicLong();
+
+    public MultiplexedNioSender() {
+        setConnected(true);
+    }
+
+    public void sendMessage(Member[] destination, ChannelMessage msg) throws ChannelException {
+        if ( !isConnected() ) throw new ChannelException("Sender not connected.");
+        long start = System.currentTimeMillis();
+        ChannelData cdata = (ChannelData)msg;
+        ByteBuffer data = BufferPool.getBufferPool().getByteBuffer(XByteBuffer.getDataPackageLength(cdata.getDataPackageLength()), getDirectBuffer());
+        XByteBuffer.createDataPackage(cdata,data);
+        data.flip();
+        boolean waitForAck = (Channel.SEND_OPTIONS_USE_ACK & msg.getOptions()) == Channel.SEND_OPTIONS_USE_ACK;
+        //the buffer is returned to the pool when the message is completed for all members
+        SendRequest request = new SendRequest(data, destination, waitForAck);
+        for (int i=0; i<destination.length; i++ ) {
+            try {
+                getChannel(destination[i]).enqueue(new Entry(request,destination[i],start),start+getTimeout());
+            } catch ( Exception x ) {
+                request.done(destination[i],x);
+            }
+        }
+        ChannelException cx = request.await(start+getTimeout(),getTimeout());
+        if ( cx != null ) throw cx;
+    }
+
+    protected MemberChannel getChannel(Member member) throws IOException {
+        MemberChannel channel = (MemberChannel)channels.get(member);
+        if ( channel == null ) {
+            channel = new MemberChannel(member,nextIoThread());
+            MemberChannel existing = (MemberChannel)channels.putIfAbsent(member,channel);
+            if ( existing != null ) channel = existing;
+            else channel.thread.channels.add(channel);
+        }
+        return channel;
+    }
+
+    protected synchronized IoThread nextIoThread() throws IOException {
+        if ( threads == null ) {
+            IoThread[] started = new IoThread[Math.max(1,ioThreads)];
+            for (int i=0; i<started.length; i++ ) {
+                started[i] = new IoThread("MultiplexedNioSender-IO-"+i);
+                started[i].start();
+            }
+            threads = started;
+        }
+        nextThread = (nextThread + 1) % threads.length;
+        return threads[nextThread];
+    }
+
+    public synchronized void connect() {
+        //connections are opened on demand by the IO threads
+        setConnected(true);
+    }
+
+    public synchronized void disconnect() {
+        setConnected(false);
+        if ( threads != null ) {
+            for (int i=0; i<threads.length; i++ ) threads[i].shutdown();
+            threads = null;
+        }
+        channels.clear();
+    }
+
+    public void add(Member member) {
+
+    }
+
+    public void remove(Member member) {
+        MemberChannel channel = (MemberChannel)channels.remove(member);
+        if ( channel != null ) channel.close();
+    }
+
+    /**
+     * Connections are recycled after <code>keepAliveCount</code> messages or
+     * <code>keepAliveTime</code> by the IO threads.
+     */
+    public boolean keepalive() {
+        return false;
+    }
+
+    public void finalize() {
+        try {disconnect(); }catch ( Exception ignore){}
+    }
+
+    // ---------------------------------------------------------------- metrics
+
+    /**
+     * @return the number of messages queued for the member and not written
+     *  yet
+     */
+    public int getQueueDepth(Member member) {
+        MemberChannel channel = (MemberChannel)channels.get(member);
+        return channel != null ? channel.queue.size() : 0;
+    }
+
+    /**
+     * @return the largest number of messages that were queued for the member
+     */
+    public int getMaxQueueDepth(Member member) {
+        MemberChannel channel = (MemberChannel)channels.get(member);
+        return channel != null ? channel.maxQueueDepth.get() : 0;
+    }
+
+    /**
+     * @return the number of messages written to the member that wait for
+     *  their ack
+     */
+    public int getPendingAcks(Member member) {
+        MemberChannel channel = (MemberChannel)channels.get(member);
+        return channel != null ? channel.pendingAcks : 0;
+    }
+
+    /**
+     * @return the queue depth of all members, by member name
+     */
+    public Map getQueueDepths() {
+        HashMap result = new HashMap();
+        for ( Iterator i = channels.values().iterator(); i.hasNext(); ) {
+            MemberChannel channel = (MemberChannel)i.next();
+            result.put(channel.member.getName(),new Integer(channel.queue.size()));
+        }
+        return result;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    public long getMessagesFailed() {
+        return messagesFailed.get();
+    }
+
+    /**
+     * @return the number of gathering writes
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    // ------------------------------------------------------------- properties
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public long getSelectTimeout() {
+        return selectTimeout;
+    }
+
+    public void setSelectTimeout(long selectTimeout) {
+        this.selectTimeout = selectTimeout;
+    }
+
+    // ---------------------------------------------------------------- classes
+
+    /**
+     * A message sent to a number of members. The sending thread waits until
+     * it is completed for all of them, or until the timeout.
+     */
+    protected static class SendRequest {
+        protected final ByteBuffer data;
+        protected final boolean waitForAck;
+        protected final List pending;
+        protected ChannelException cx = null;
+        protected boolean abandoned = false;
+
+        public SendRequest(ByteBuffer data, Member[] destination, boolean waitForAck) {
+            this.data = data;
+            this.waitForAck = waitForAck;
+            this.pending = new ArrayList(Arrays.asList(destination));
+            if ( destination.length == 0 ) BufferPool.getBufferPool().returnByteBuffer(data);
+        }
+
+        public synchronized void done(Member member, Exception x) {
+            pending.remove(member);
+            if ( x != null && !abandoned ) {
+                if ( cx == null ) cx = new ChannelException("Multiplexed NIO send failed.", x);
+                cx.addFaultyMember(member,x);
+            }
+            if ( pending.isEmpty() ) {
+                BufferPool.getBufferPool().returnByteBuffer(data);
+                notifyAll();
+            }
+        }
+
+        /**
+         * Wait for the completion.
+         * @return the failures, or <code>null</code> if the message was sent
+         *  to all members
+         */
+        public synchronized ChannelException await(long deadline, long timeout) {
+            while ( !pending.isEmpty() ) {
+                long wait = deadline - System.currentTimeMillis();
+                if ( wait <= 0 ) break;
+                try {
+                    wait(wait);
+                } catch ( InterruptedException x ) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if ( !pending.isEmpty() ) {
+                ChannelException cxtimeout = new ChannelException("Operation has timed out("+timeout+" ms.).");
+                if ( cx == null ) cx = new ChannelException("Operation has timed out("+timeout+" ms.).");
+                for (int i=0; i<pending.size(); i++ ) cx.addFaultyMember((Member)pending.get(i),cxtimeout);
+            }
+            //members completing later don't modify the exception
+            abandoned = true;
+            return cx;
+        }
+    }
+
+    /**
+     * A message queued for one member, written from its own view of the
+     * package.
+     */
+    protected static class Entry {
+        protected final SendRequest request;
+        protected final Member member;
+        protected final ByteBuffer view;
+        protected final long start;
+        protected int attempt = 0;
+
+        public Entry(SendRequest request, Member member, long start) {
+            this.request = request;
+            this.member = member;
+            this.view = request.data.duplicate();
+            this.start = start;
+        }
+    }
+
+    /**
+     * The queue and connection of a member. Apart from the queue and the
+     * metrics it is only used by its IO thread.
+     */
+    protected class MemberChannel {
+        protected final Member member;
+        protected final IoThread thread;
+        protected final ArrayBlockingQueue queue;
+        protected final AtomicBoolean scheduled = new AtomicBoolean(false);
+        protected final AtomicInteger maxQueueDepth = new AtomicInteger();
+        protected volatile boolean closed = false;
+        protected volatile int pendingAcks = 0;
+
+        protected SocketChannel socketChannel = null;
+        protected SelectionKey key = null;
+        protected boolean connecting = false;
+        protected long connectTime = 0;
+        protected int requestCount = 0;
+        protected ByteBuffer readbuf = null;
+        protected XByteBuffer ackbuf = new XByteBuffer(128,true);
+        protected final LinkedList retry = new LinkedList();
+        protected final LinkedList awaitingAck = new LinkedList();
+        protected final Entry[] batch;
+        protected final ByteBuffer[] buffers;
+        protected int batchStart = 0;
+        protected int batchEnd = 0;
+
+        public MemberChannel(Member member, IoThread thread) {
+            this.member = member;
+            this.thread = thread;
+            this.queue = new ArrayBlockingQueue(Math.max(1,queueSize));
+            this.batch = new Entry[Math.max(1,maxBatchSize)];
+            this.buffers = new ByteBuffer[batch.length];
+        }
+
+        /**
+         * Called by the sending threads.
+         */
+        public void enqueue(Entry entry, long deadline) throws ChannelException {
+            try {
+                long wait = deadline - System.currentTimeMillis();
+                if ( !queue.offer(entry) && (wait <= 0 || !queue.offer(entry,wait,TimeUnit.MILLISECONDS)) ) {
+                    throw new ChannelException("Send queue for "+member.getName()+" is full ("+queue.size()+" messages).");
+                }
+            } catch ( InterruptedException x ) {
+                Thread.currentThread().interrupt();
+                throw new ChannelException("Interrupted while waiting for the send queue of "+member.getName()+".", x);
+            }
+            int depth = queue.size();
+            int max = maxQueueDepth.get();
+            while ( depth > max && !maxQueueDepth.compareAndSet(max,depth) ) max = maxQueueDepth.get();
+            schedule();
+        }
+
+        public void schedule() {
+            if ( scheduled.compareAndSet(false,true) ) thread.schedule(this);
+        }
+
+        public void close() {
+            closed = true;
+            schedule();
+        }
+
+        /**
+         * Called by the IO thread when new messages are queued.
+         */
+        protected void process() {
+            scheduled.set(false);
+            if ( closed ) {
+                failed(new IOException("Sender to "+member.getName()+" has been disconnected."),false,true);
+                return;
+            }
+            try {
+                flush();
+            } catch ( Exception x ) {
+                failed(x,true,false);
+            }
+        }
+
+        protected void handle(SelectionKey key) {
+            //the key of a connection closed while processing the selected keys
+            if ( key != this.key ) return;
+            try {
+                if ( !key.isValid() ) throw new IOException("Key is not valid, it must have been cancelled.");
+                if ( key.isConnectable() ) {
+                    try {
+                        if ( !socketChannel.finishConnect() ) return;
+                        completeConnect();
+                    } catch ( IOException x ) {
+                        //the member isn't reachable now, fail all queued messages
+                        failed(x,false,true);
+                        return;
+                    }
+                    flush();
+                    return;
+                }
+                if ( key.isReadable() ) read();
+                if ( key.isValid() && key.isWritable() ) flush();
+            } catch ( Exception x ) {
+                failed(x,true,false);
+            }
+        }
+
+        /**
+         * Write the current batch and the queued messages until the socket
+         * doesn't take more.
+         */
+        protected void flush() throws IOException {
+            if ( socketChannel == null ) {
+                if ( retry.isEmpty() && queue.isEmpty() ) return;
+                try {
+                    openConnection();
+                } catch ( IOException x ) {
+                    //the member isn't reachable now, fail all queued messages
+                    failed(x,false,true);
+                    return;
+                }
+            }
+            if ( connecting ) return;
+            while ( true ) {
+                if ( batchStart < batchEnd ) {
+                    socketChannel.write(buffers,batchStart,batchEnd-batchStart);
+                    writes.incrementAndGet();
+                    while ( batchStart < batchEnd && !buffers[batchStart].hasRemaining() ) {
+                        written(batch[batchStart]);
+                        batch[batchStart] = null;
+                        buffers[batchStart] = null;
+                        batchStart++;
+                    }
+                    if ( batchStart < batchEnd ) {
+                        //the socket buffer is full, continue when it is writable
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if ( !fill() ) break;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        protected boolean fill() throws IOException {
+            batchStart = 0;
+            batchEnd = 0;
+            if ( retry.isEmpty() && queue.isEmpty() ) return false;
+            if ( keepAliveExpired() && awaitingAck.isEmpty() ) {
+                closeSocket();
+                openConnection();
+                if ( connecting ) return false;
+            }
+            while ( batchEnd < batch.length ) {
+                Entry entry = retry.isEmpty() ? (Entry)queue.poll() : (Entry)retry.removeFirst();
+                if ( entry == null ) break;
+                entry.view.rewind();
+                batch[batchEnd] = entry;
+                buffers[batchEnd] = entry.view;
+                batchEnd++;
+            }
+            return batchEnd > 0;
+        }
+
+        protected void written(Entry entry) {
+            messagesSent.incrementAndGet();
+            if ( entry.request.waitForAck ) {
+                awaitingAck.addLast(entry);
+                pendingAcks = awaitingAck.size();
+            } else {
+                complete(entry,null);
+            }
+        }
+
+        protected void read() throws IOException {
+            if ( readbuf == null ) readbuf = getDirectBuffer() ? ByteBuffer.allocateDirect(getRxBufSize()) : ByteBuffer.allocate(getRxBufSize());
+            readbuf.clear();
+            int read = socketChannel.read(readbuf);
+            if ( read == -1 ) throw new IOException("Unable to receive an ack message. EOF on socket channel has been reached.");
+            if ( read == 0 ) return;
+            readbuf.flip();
+            ackbuf.append(readbuf,read);
+            while ( ackbuf.doesPackageExist() ) {
+                XByteBuffer ackpkg = ackbuf.extractDataPackage(true);
+                byte[] ackcmd = ackpkg.getBytes();
+                BufferPool.getBufferPool().returnBuffer(ackpkg);
+                boolean ack = Arrays.equals(ackcmd,Constants.ACK_DATA);
+                boolean fack = Arrays.equals(ackcmd,Constants.FAIL_ACK_DATA);
+                if ( !ack && !fack ) throw new IOException("Received an unknown ack from "+member.getName()+".");
+                if ( awaitingAck.isEmpty() ) {
+                    log.warn("Received an ack from "+member.getName()+" without a message waiting for it.");
+                    continue;
+                }
+                Entry entry = (Entry)awaitingAck.removeFirst();
+                pendingAcks = awaitingAck.size();
+                if ( fack && getThrowOnFailedAck() ) complete(entry,new RemoteProcessException("Received a failed ack:org.apache.catalina.tribes.transport.Constants.FAIL_ACK_DATA"));
+                else complete(entry,null);
+            }
+        }
+
+        protected void complete(Entry entry, Exception x) {
+            if ( x == null ) {
+                requestCount++;
+                SenderState state = SenderState.getSenderState(member);
+                if ( !state.isReady() ) state.setReady();
+            } else {
+                messagesFailed.incrementAndGet();
+            }
+            entry.request.done(member,x);
+        }
+
+        /**
+         * Close the connection after an error.
+         * @param x the error
+         * @param resend send the messages that are not acknowledged again
+         * @param drain fail the queued messages too
+         */
+        protected void failed(Exception x, boolean resend, boolean drain) {
+            if ( !closed ) {
+                SenderState state = SenderState.getSenderState(member);
+                synchronized (state) {
+                    if (state.isSuspect()) state.setFailing();
+                    if (state.isReady()) {
+                        state.setSuspect();
+                        log.warn("Member send is failing for:" + member.getName() +" ; Setting to suspect.", x);
+                    }
+                }
+            }
+            closeSocket();
+            LinkedList unsent = new LinkedList(awaitingAck);
+            for (int i=batchStart; i<batchEnd; i++ ) {
+                unsent.add(batch[i]);
+                batch[i] = null;
+                buffers[i] = null;
+            }
+            unsent.addAll(retry);
+            awaitingAck.clear();
+            pendingAcks = 0;
+            retry.clear();
+            batchStart = 0;
+            batchEnd = 0;
+            resend = resend && isConnected() && !closed;
+            for ( Iterator i = unsent.iterator(); i.hasNext(); ) {
+                Entry entry = (Entry)i.next();
+                if ( resend && entry.attempt < getMaxRetryAttempts() ) {
+                    entry.attempt++;
+                    retry.add(entry);
+                } else {
+                    complete(entry,x);
+                }
+            }
+            if ( drain ) {
+                for ( Entry entry = (Entry)queue.poll(); entry != null; entry = (Entry)queue.poll() ) complete(entry,x);
+            }
+            //reconnect for the messages to resend
+            if ( !retry.isEmpty() || !queue.isEmpty() ) schedule();
+        }
+
+        /**
+         * Called by the IO thread regularly, fails the connection if a
+         * message is not completed within the timeout and closes an idle
+         * connection when it is to be recycled.
+         */
+        protected void check(long now) {
+            if ( closed ) {
+                process();
+                return;
+            }
+            Entry oldest = null;
+            if ( !awaitingAck.isEmpty() ) oldest = (Entry)awaitingAck.getFirst();
+            else if ( batchStart < batchEnd ) oldest = batch[batchStart];
+            long timeout = getTimeout();
+            if ( oldest != null && (now - oldest.start) > timeout ) {
+                failed(new IOException("Operation has timed out("+timeout+" ms.)."),false,false);
+            } else if ( connecting && (now - connectTime) > timeout ) {
+                failed(new IOException("Connecting to "+member.getName()+" has timed out("+timeout+" ms.)."),false,true);
+            } else if ( socketChannel != null && !connecting && oldest == null && retry.isEmpty() && queue.isEmpty() && keepAliveExpired() ) {
+                closeSocket();
+            }
+        }
+
+        protected boolean keepAliveExpired() {
+            if ( getKeepAliveCount() >= 0 && requestCount > getKeepAliveCount() ) return true;
+            return getKeepAliveTime() >= 0 && (System.currentTimeMillis() - connectTime) > getKeepAliveTime();
+        }
+
+        protected void openConnection() throws IOException {
+            InetSocketAddress addr = new InetSocketAddress(InetAddress.getByAddress(member.getHost()),member.getPort());
+            socketChannel = SocketChannel.open();
+            socketChannel.configureBlocking(false);
+            connectTime = System.currentTimeMillis();
+            if ( socketChannel.connect(addr) ) {
+                completeConnect();
+                key = socketChannel.register(thread.selector,SelectionKey.OP_READ,this);
+            } else {
+                connecting = true;
+                key = socketChannel.register(thread.selector,SelectionKey.OP_CONNECT,this);
+            }
+        }
+
+        protected void completeConnect() throws IOException {
+            connecting = false;
+            requestCount = 0;
+            connectTime = System.currentTimeMillis();
+            ackbuf.clear();
+            socketChannel.socket().setSendBufferSize(getTxBufSize());
+            socketChannel.socket().setReceiveBufferSize(getRxBufSize());
+            socketChannel.socket().setSoTimeout((int)getTimeout());
+            socketChannel.socket().setTcpNoDelay(getTcpNoDelay());
+            socketChannel.socket().setKeepAlive(getSoKeepAlive());
+            socketChannel.socket().setReuseAddress(getSoReuseAddress());
+            socketChannel.socket().setOOBInline(getOoBInline());
+            socketChannel.socket().setSoLinger(getSoLingerOn(),getSoLingerTime());
+            socketChannel.socket().setTrafficClass(getSoTrafficClass());
+            if ( key != null ) key.interestOps(SelectionKey.OP_READ);
+        }
+
+        protected void closeSocket() {
+            if ( key != null ) key.cancel();
+            key = null;
+            if ( socketChannel != null ) {
+                try { socketChannel.close(); } catch ( Exception ignore ) {}
+            }
+            socketChannel = null;
+            connecting = false;
+            ackbuf.clear();
+        }
+    }
+
+    /**
+     * Owns the connections of its members and writes their queued messages.
+     */
+    protected class IoThread extends Thread {
+        protected final Selector selector;
+        protected final ConcurrentLinkedQueue ready = new ConcurrentLinkedQueue();
+        protected final List channels = new CopyOnWriteArrayList();
+        protected volatile boolean running = true;
+
+        public IoThread(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        public void schedule(MemberChannel channel) {
+            ready.offer(channel);
+            selector.wakeup();
+        }
+
+        public void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            long lastCheck = System.currentTimeMillis();
+            while ( running ) {
+                try {
+                    selector.select(selectTimeout);
+                    for ( MemberChannel channel = (MemberChannel)ready.poll(); channel != null; channel = (MemberChannel)ready.poll() ) {
+                        channel.process();
+                    }
+                    Iterator it = selector.selectedKeys().iterator();
+                    while ( it.hasNext() ) {
+                        SelectionKey sk = (SelectionKey)it.next();
+                        it.remove();
+                        ((MemberChannel)sk.attachment()).handle(sk);
+                    }
+                    long now = System.currentTimeMillis();
+                    if ( now - lastCheck >= Math.min(selectTimeout,getTimeout()/2) ) {
+                        lastCheck = now;
+                        for ( Iterator i = channels.iterator(); i.hasNext(); ) {
+                            MemberChannel channel = (MemberChannel)i.next();
+                            channel.check(now);
+                            if ( channel.closed ) channels.remove(channel);
+                        }
+                    }
+                } catch ( Throwable x ) {
+                    log.error("Unable to process the sender connections.",x);
+                }
+            }
+            IOException x = new IOException("Sender has been disconnected.");
+            for ( Iterator i = channels.iterator(); i.hasNext(); ) {
+                MemberChannel channel = (MemberChannel)i.next();
+                channel.closed = true;
+                channel.failed(x,false,true);
+            }
+            channels.clear();
+            try { selector.close(); } catch ( Exception ignore ) {}
+        }
+    }
+
+}
@@ -25,6 +25,7 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 
+import org.apache.catalina.tribes.io.BufferPool;
 import org.apache.catalina.tribes.io.XByteBuffer;
 import org.apache.catalina.tribes.transport.AbstractSender;
 import org.apache.catalina.tribes.transport.DataSender;
@@ -61,6 +62,12 @@ public class NioSender extends AbstractSender implements DataSender{
     protected ByteBuffer readbuf = null;
     protected ByteBuffer writebuf = null;
     protected byte[] current = null;
+    /**
+     * A message package shared with other senders, written from a view
+     * instead of being copied to the writebuf
+     */
+    protected ByteBuffer message = null;
+    protected ByteBuffer messageView = null;
     protected XByteBuffer ackbuf = new XByteBuffer(128,true);
     protected int remaining = 0;
     protected boolean complete;
@@ -87,7 +94,7 @@ public class NioSender extends AbstractSender implements DataSender{
         if ( key.isConnectable() ) {
             if ( socketChannel.finishConnect() ) {
                 completeConnect();
-                if ( current != null ) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                if ( hasMessage() ) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
                 return false;
             } else  { 
                 //wait for the connection to finish
@@ -151,7 +158,7 @@ public class NioSender extends AbstractSender implements DataSender{
 
     protected boolean read(SelectionKey key) throws IOException {
         //if there is no message here, we are done
-        if ( current == null ) return true;
+        if ( !hasMessage() ) return true;
         int read = socketChannel.read(readbuf);
         //end of stream
         if ( read == -1 ) throw new IOException("Unable to receive an ack message. EOF on socket channel has been reached.");
@@ -161,7 +168,9 @@ public class NioSender extends AbstractSender implements DataSender{
         ackbuf.append(readbuf,read);
         readbuf.clear();
         if (ackbuf.doesPackageExist() ) {
-            byte[] ackcmd = ackbuf.extractDataPackage(true).getBytes();
+            XByteBuffer ackpkg = ackbuf.extractDataPackage(true);
+            byte[] ackcmd = ackpkg.getBytes();
+            BufferPool.getBufferPool().returnBuffer(ackpkg);
             boolean ack = Arrays.equals(ackcmd,org.apache.catalina.tribes.transport.Constants.ACK_DATA);
             boolean fack = Arrays.equals(ackcmd,org.apache.catalina.tribes.transport.Constants.FAIL_ACK_DATA);
             if ( fack && getThrowOnFailedAck() ) throw new RemoteProcessException("Received a failed ack:org.apache.catalina.tribes.transport.Constants.FAIL_ACK_DATA");
@@ -176,11 +185,11 @@ public class NioSender extends AbstractSender implements DataSender{
         if ( (!isConnected()) || (this.socketChannel==null)) {
             throw new IOException("NioSender is not connected, this should not occur.");
         }
-        if ( current != null ) {
+        if ( hasMessage() ) {
             if ( remaining > 0 ) {
                 //weve written everything, or we are starting a new package
                 //protect against buffer overwrite
-                int byteswritten = socketChannel.write(writebuf);
+                int byteswritten = socketChannel.write(messageView!=null?messageView:writebuf);
                 if (byteswritten == -1 ) throw new EOFException();
                 remaining -= byteswritten;
                 //if the entire message was written from the buffer
@@ -265,6 +274,8 @@ public class NioSender extends AbstractSender implements DataSender{
         if ( readbuf != null ) readbuf.clear();
         if ( writebuf != null ) writebuf.clear();
         current = null;
+        message = null;
+        messageView = null;
         ackbuf.clear();
         remaining = 0;
         complete = false;
@@ -299,6 +310,8 @@ public class NioSender extends AbstractSender implements DataSender{
    public synchronized void setMessage(byte[] data,int offset, int length) throws IOException {
        if ( data != null ) {
            current = data;
+           message = null;
+           messageView = null;
            remaining = length;
            ackbuf.clear();
            if ( writebuf != null ) writebuf.clear();
@@ -315,10 +328,48 @@ public class NioSender extends AbstractSender implements DataSender{
        } 
    }
    
+   /**
+    * Send a message package that other senders send as well. The package is
+    * not copied, it must not be changed until the message is complete.
+    * @param data the package, from its position to its limit
+    * @throws IOException
+    */
+   public synchronized void setMessage(ByteBuffer data) throws IOException {
+       if ( data != null ) {
+           current = null;
+           message = data;
+           messageView = data.duplicate();
+           remaining = messageView.remaining();
+           ackbuf.clear();
+           if (isConnected()) {
+               socketChannel.register(getSelector(), SelectionKey.OP_WRITE, this);
+           }
+       }
+   }
+
+   /**
+    * Forget a shared message package, after it was sent.
+    */
+   public synchronized void releaseMessage() {
+       message = null;
+       messageView = null;
+   }
+
    public byte[] getMessage() {
        return current;
    }
 
+   /**
+    * @return the shared message package, or <code>null</code>
+    */
+   public ByteBuffer getMessageBuffer() {
+       return message;
+   }
+
+   protected boolean hasMessage() {
+       return current != null || message != null;
+   }
+
 
 
     public boolean isComplete() {
@@ -18,6 +18,7 @@ package org.apache.catalina.tribes.transport.nio;
 
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.HashMap;
@@ -27,6 +28,7 @@ import java.util.Map;
 import org.apache.catalina.tribes.ChannelException;
 import org.apache.catalina.tribes.ChannelMessage;
 import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.io.BufferPool;
 import org.apache.catalina.tribes.io.ChannelData;
 import org.apache.catalina.tribes.io.XByteBuffer;
 import org.apache.catalina.tribes.transport.MultiPointSender;
@@ -62,11 +64,27 @@ public class ParallelNioSender extends AbstractSender implements MultiPointSende
     
     public synchronized void sendMessage(Member[] destination, ChannelMessage msg) throws ChannelException {
         long start = System.currentTimeMillis();
-        byte[] data = XByteBuffer.createDataPackage((ChannelData)msg);
-        NioSender[] senders = setupForSend(destination);
-        connect(senders);
-        setData(senders,data);
-        
+        //the package is written once, into a pooled buffer, that all senders write from
+        ChannelData cdata = (ChannelData)msg;
+        ByteBuffer data = BufferPool.getBufferPool().getByteBuffer(XByteBuffer.getDataPackageLength(cdata.getDataPackageLength()), getDirectBuffer());
+        XByteBuffer.createDataPackage(cdata,data);
+        data.flip();
+        NioSender[] senders = null;
+        try {
+            senders = setupForSend(destination);
+            connect(senders);
+            setData(senders,data);
+            send(senders,msg,start);
+        } finally {
+            //all senders are complete or disconnected, none writes the package any more
+            if ( senders != null ) {
+                for (int i=0; i<senders.length; i++ ) senders[i].releaseMessage();
+            }
+            BufferPool.getBufferPool().returnByteBuffer(data);
+        }
+    }
+
+    private void send(NioSender[] senders, ChannelMessage msg, long start) throws ChannelException {
         int remaining = senders.length;
         ChannelException cx = null;
         try {
@@ -159,12 +177,14 @@ public class ParallelNioSender extends AbstractSender implements MultiPointSende
                 }
                 
                 byte[] data = sender.getMessage();
+                ByteBuffer buffer = sender.getMessageBuffer();
                 if ( retry ) {
                     try { 
                         sender.disconnect(); 
                         sender.connect();
                         sender.setAttempt(attempt);
-                        sender.setMessage(data);
+                        if ( buffer != null ) sender.setMessage(buffer);
+                        else sender.setMessage(data);
                     }catch ( Exception ignore){
                         state.setFailing();
                     }
@@ -192,7 +212,7 @@ public class ParallelNioSender extends AbstractSender implements MultiPointSende
         if ( x != null ) throw x;
     }
     
-    private void setData(NioSender[] senders, byte[] data) throws ChannelException {
+    private void setData(NioSender[] senders, ByteBuffer data) throws ChannelException {
         ChannelException x = null;
         for (int i=0; i<senders.length; i++ ) {
             try {
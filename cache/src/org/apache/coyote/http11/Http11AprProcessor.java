@@ -1711,7 +1711,7 @@ public class Http11AprProcessor implements ActionHook {
         }
 
         // Add date header
-        headers.setValue("Date").setString(FastHttpDateFormat.getCurrentDate());
+        FastHttpDateFormat.setCurrentDate(headers.setValue("Date"));
 
         // FIXME: Add transfer encoding header
 
@@ -1736,7 +1736,7 @@ public class Http11NioProcessor implements ActionHook {
         }
 
         // Add date header
-        headers.setValue("Date").setString(FastHttpDateFormat.getCurrentDate());
+        FastHttpDateFormat.setCurrentDate(headers.setValue("Date"));
 
         // FIXME: Add transfer encoding header
 
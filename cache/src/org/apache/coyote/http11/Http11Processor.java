@@ -1603,7 +1603,7 @@ public class Http11Processor implements ActionHook {
         }
 
         // Add date header
-        headers.setValue("Date").setString(FastHttpDateFormat.getCurrentDate());
+        FastHttpDateFormat.setCurrentDate(headers.setValue("Date"));
 
         // FIXME: Add transfer encoding header
 
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.coyote.ActionCode;
 import org.apache.coyote.OutputBuffer;
@@ -443,7 +444,16 @@ public class InternalNioOutputBuffer
      * @throws IOException
      * @todo Fix non blocking write properly
      */
-    private synchronized int writeToSocket(ByteBuffer bytebuffer, boolean block, boolean flip) throws IOException {
+    private int writeToSocket(ByteBuffer bytebuffer, boolean block, boolean flip) throws IOException {
+        writeLock.lock();
+        try {
+            return writeToSocket0(bytebuffer, block, flip);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private int writeToSocket0(ByteBuffer bytebuffer, boolean block, boolean flip) throws IOException {
         if ( flip ) bytebuffer.flip();
 
         int written = 0;
@@ -635,7 +645,24 @@ public class InternalNioOutputBuffer
     }
 
     int total = 0;
-    private synchronized void addToBB(byte[] buf, int offset, int length) throws IOException {
+
+    /**
+     * Serializes writes to the socket. A lock rather than a monitor, as a
+     * thread blocked on a slow client while holding a monitor would pin the
+     * carrier of a virtual thread.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private void addToBB(byte[] buf, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            addToBB0(buf, offset, length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void addToBB0(byte[] buf, int offset, int length) throws IOException {
         while (length > 0) {
             int thisTime = length;
             if (socket.getBufHandler().getWriteBuffer().position() ==
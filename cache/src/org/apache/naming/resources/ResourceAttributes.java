@@ -30,6 +30,8 @@ import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
 
+import org.apache.tomcat.util.http.FastHttpDateFormat;
+
 /**
  * Attributes implementation.
  * 
@@ -603,9 +605,8 @@ public class ResourceAttributes implements Attributes {
         if (modifiedDate == null) {
             modifiedDate = new Date();
         }
-        synchronized (format) {
-            lastModifiedHttp = format.format(modifiedDate);
-        }
+        lastModifiedHttp =
+            FastHttpDateFormat.formatDate(modifiedDate.getTime(), null);
         return lastModifiedHttp;
     }
     
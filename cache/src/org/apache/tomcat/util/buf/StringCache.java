@@ -18,12 +18,31 @@
 package org.apache.tomcat.util.buf;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * This class implements a String cache for ByteChunk and CharChunk.
+ * <p>
+ * The cache is an open addressing hash table which is never modified once
+ * published, so it is looked up without locking, and a hit hashes and compares
+ * the chunk content without allocating anything. The strings converted on a
+ * miss are counted in a count-min sketch updated with atomic operations, and
+ * the ones seen often enough become candidates. Every
+ * <code>trainThreshold</code> misses, a single background thread builds a
+ * new table from the candidates and the entries still hit, keeping the
+ * <code>cacheSize</code> most used, and publishes it. While the new tables
+ * keep the same entries, the number of misses until the next build doubles,
+ * up to <code>MAX_TRAIN_BACKOFF</code> times <code>trainThreshold</code>.
+ * <p>
+ * Names, that is short strings made only of HTTP token characters such as
+ * header names, method names and most parameter names, are cached by default.
+ * Enabling the byte or char cache admits any string shorter than
+ * <code>maxStringSize</code>.
  *
  * @author Remy Maucherat
  */
@@ -32,93 +51,181 @@ public class StringCache {
 
     private static org.apache.juli.logging.Log log=
         org.apache.juli.logging.LogFactory.getLog( StringCache.class );
-    
-    
+
+
     // ------------------------------------------------------- Static Variables
 
-    
+
     /**
      * Enabled ?
      */
-    protected static boolean byteEnabled = 
+    protected static boolean byteEnabled =
         ("true".equals(System.getProperty("tomcat.util.buf.StringCache.byte.enabled", "false")));
 
-    
-    protected static boolean charEnabled = 
+
+    protected static boolean charEnabled =
         ("true".equals(System.getProperty("tomcat.util.buf.StringCache.char.enabled", "false")));
 
-    
-    protected static int trainThreshold = 
+
+    /**
+     * Cache names, even if the byte and char caches are disabled ?
+     */
+    protected static boolean nameEnabled =
+        ("true".equals(System.getProperty("tomcat.util.buf.StringCache.name.enabled", "true")));
+
+
+    protected static int trainThreshold =
         Integer.parseInt(System.getProperty("tomcat.util.buf.StringCache.trainThreshold", "20000"));
-    
 
-    protected static int cacheSize = 
+
+    protected static int cacheSize =
         Integer.parseInt(System.getProperty("tomcat.util.buf.StringCache.cacheSize", "200"));
-    
 
-    protected static int maxStringSize = 
+
+    protected static int maxStringSize =
         Integer.parseInt(System.getProperty("tomcat.util.buf.StringCache.maxStringSize", "128"));
-    
+
+
+    protected static int maxNameSize =
+        Integer.parseInt(System.getProperty("tomcat.util.buf.StringCache.maxNameSize", "32"));
+
+
+    /**
+     * Occurrences needed for a string to become a candidate.
+     */
+    protected static final int MIN_FREQUENCY = 3;
+
+
+    /**
+     * Counters in each row of the frequency sketches.
+     */
+    protected static final int SKETCH_WIDTH = 2048;
+
+
+    /**
+     * Largest multiple of trainThreshold between two builds of a cache that
+     * doesn't change.
+     */
+    protected static final int MAX_TRAIN_BACKOFF = 64;
+
+
+    /**
+     * Token characters, as defined by RFC 2616.
+     */
+    protected static final boolean[] TOKEN = new boolean[128];
+
+    static {
+        for (int i = 0; i < 128; i++) {
+            TOKEN[i] = (i > 32) && (i < 127) && ("()<>@,;:\\\"/[]?={}".indexOf(i) < 0);
+        }
+    }
+
 
    /**
-     * Statistics hash map for byte chunk.
+     * Statistics sketch for byte chunk.
+     */
+    protected static final FrequencySketch bcStats =
+        new FrequencySketch(SKETCH_WIDTH);
+
+
+    /**
+     * Candidates for the next byte chunk cache.
      */
-    protected static HashMap bcStats = new HashMap(cacheSize);
+    protected static final ConcurrentHashMap bcCandidates =
+        new ConcurrentHashMap();
+
+
+    protected static final AtomicInteger bcCandidateCount = new AtomicInteger();
+
 
-    
     /**
-     * toString count for byte chunk.
+     * Miss count for byte chunk since the cache was built.
      */
     protected static int bcCount = 0;
-    
-    
+
+
+    /**
+     * Misses for byte chunk until the cache is built again.
+     */
+    protected static int bcInterval = trainThreshold;
+
+
     /**
      * Cache for byte chunk.
      */
-    protected static ByteEntry[] bcCache = null;
-    
+    protected static volatile ByteEntry[] bcCache = null;
+
+
+    protected static final AtomicBoolean bcBuilding = new AtomicBoolean();
+
+
+    /**
+     * Statistics sketch for char chunk.
+     */
+    protected static final FrequencySketch ccStats =
+        new FrequencySketch(SKETCH_WIDTH);
+
 
     /**
-     * Statistics hash map for char chunk.
+     * Candidates for the next char chunk cache.
      */
-    protected static HashMap ccStats = new HashMap(cacheSize);
+    protected static final ConcurrentHashMap ccCandidates =
+        new ConcurrentHashMap();
+
+
+    protected static final AtomicInteger ccCandidateCount = new AtomicInteger();
 
 
     /**
-     * toString count for char chunk.
+     * Miss count for char chunk since the cache was built.
      */
-    protected static int ccCount = 0; 
-    
+    protected static int ccCount = 0;
+
+
+    /**
+     * Misses for char chunk until the cache is built again.
+     */
+    protected static int ccInterval = trainThreshold;
+
 
     /**
      * Cache for char chunk.
      */
-    protected static CharEntry[] ccCache = null;
+    protected static volatile CharEntry[] ccCache = null;
+
+
+    protected static final AtomicBoolean ccBuilding = new AtomicBoolean();
+
+
+    /**
+     * The thread building the caches, started with the first build.
+     */
+    protected static Thread trainer = null;
+
 
-    
     /**
      * Access count.
      */
     protected static int accessCount = 0;
-    
+
 
     /**
      * Hit count.
      */
     protected static int hitCount = 0;
-    
+
 
     // ------------------------------------------------------------ Properties
 
-    
+
     /**
      * @return Returns the cacheSize.
      */
     public int getCacheSize() {
         return cacheSize;
     }
-    
-    
+
+
     /**
      * @param cacheSize The cacheSize to set.
      */
@@ -126,63 +233,81 @@ public class StringCache {
         StringCache.cacheSize = cacheSize;
     }
 
-    
+
     /**
      * @return Returns the enabled.
      */
     public boolean getByteEnabled() {
         return byteEnabled;
     }
-    
-    
+
+
     /**
      * @param byteEnabled The enabled to set.
      */
     public void setByteEnabled(boolean byteEnabled) {
         StringCache.byteEnabled = byteEnabled;
     }
-    
-    
+
+
     /**
      * @return Returns the enabled.
      */
     public boolean getCharEnabled() {
         return charEnabled;
     }
-    
-    
+
+
     /**
      * @param charEnabled The enabled to set.
      */
     public void setCharEnabled(boolean charEnabled) {
         StringCache.charEnabled = charEnabled;
     }
-    
-    
+
+
+    /**
+     * @return Returns the nameEnabled.
+     */
+    public boolean getNameEnabled() {
+        return nameEnabled;
+    }
+
+
+    /**
+     * @param nameEnabled The nameEnabled to set.
+     */
+    public void setNameEnabled(boolean nameEnabled) {
+        StringCache.nameEnabled = nameEnabled;
+    }
+
+
     /**
      * @return Returns the trainThreshold.
      */
     public int getTrainThreshold() {
         return trainThreshold;
     }
-    
-    
+
+
     /**
      * @param trainThreshold The trainThreshold to set.
      */
     public void setTrainThreshold(int trainThreshold) {
         StringCache.trainThreshold = trainThreshold;
+        bcInterval = trainThreshold;
+        ccInterval = trainThreshold;
     }
 
-    
+
     /**
      * @return Returns the accessCount.
      */
     public int getAccessCount() {
         return accessCount;
     }
-    
-    
+
+
     /**
      * @return Returns the hitCount.
      */
@@ -190,442 +315,535 @@ public class StringCache {
         return hitCount;
     }
 
-    
+
     // -------------------------------------------------- Public Static Methods
 
-    
+
     public void reset() {
         hitCount = 0;
         accessCount = 0;
-        synchronized (bcStats) {
-            bcCache = null;
-            bcCount = 0;
-        }
-        synchronized (ccStats) {
-            ccCache = null;
-            ccCount = 0;
-        }
+        bcCache = null;
+        bcCandidates.clear();
+        bcCandidateCount.set(0);
+        bcStats.clear();
+        bcCount = 0;
+        bcInterval = trainThreshold;
+        ccCache = null;
+        ccCandidates.clear();
+        ccCandidateCount.set(0);
+        ccStats.clear();
+        ccCount = 0;
+        ccInterval = trainThreshold;
     }
-    
-    
+
+
     public static String toString(ByteChunk bc) {
 
-        // If the cache is null, then either caching is disabled, or we're
-        // still training
-        if (bcCache == null) {
-            String value = bc.toStringInternal();
-            if (byteEnabled && (value.length() < maxStringSize)) {
-                // If training, everything is synced
-                synchronized (bcStats) {
-                    // If the cache has been generated on a previous invocation
-                    // while waiting fot the lock, just return the toString value
-                    // we just calculated
-                    if (bcCache != null) {
-                        return value;
-                    }
-                    // Two cases: either we just exceeded the train count, in which
-                    // case the cache must be created, or we just update the count for
-                    // the string
-                    if (bcCount > trainThreshold) {
-                        long t1 = System.currentTimeMillis();
-                        // Sort the entries according to occurrence
-                        TreeMap tempMap = new TreeMap();
-                        Iterator entries = bcStats.keySet().iterator();
-                        while (entries.hasNext()) {
-                            ByteEntry entry = (ByteEntry) entries.next();
-                            int[] countA = (int[]) bcStats.get(entry);
-                            Integer count = new Integer(countA[0]);
-                            // Add to the list for that count
-                            ArrayList list = (ArrayList) tempMap.get(count);
-                            if (list == null) {
-                                // Create list
-                                list = new ArrayList();
-                                tempMap.put(count, list);
-                            }
-                            list.add(entry);
-                        }
-                        // Allocate array of the right size
-                        int size = bcStats.size();
-                        if (size > cacheSize) {
-                            size = cacheSize;
-                        }
-                        ByteEntry[] tempbcCache = new ByteEntry[size];
-                        // Fill it up using an alphabetical order
-                        // and a dumb insert sort
-                        ByteChunk tempChunk = new ByteChunk();
-                        int n = 0;
-                        while (n < size) {
-                            Object key = tempMap.lastKey();
-                            ArrayList list = (ArrayList) tempMap.get(key);
-                            for (int i = 0; i < list.size() && n < size; i++) {
-                                ByteEntry entry = (ByteEntry) list.get(i);
-                                tempChunk.setBytes(entry.name, 0, entry.name.length);
-                                int insertPos = findClosest(tempChunk, tempbcCache, n);
-                                if (insertPos == n) {
-                                    tempbcCache[n + 1] = entry;
-                                } else {
-                                    System.arraycopy(tempbcCache, insertPos + 1, tempbcCache, 
-                                            insertPos + 2, n - insertPos - 1);
-                                    tempbcCache[insertPos + 1] = entry;
-                                }
-                                n++;
-                            }
-                            tempMap.remove(key);
-                        }
-                        bcCount = 0;
-                        bcStats.clear();
-                        bcCache = tempbcCache;
-                        if (log.isDebugEnabled()) {
-                            long t2 = System.currentTimeMillis();
-                            log.debug("ByteCache generation time: " + (t2 - t1) + "ms");
-                        }
-                    } else {
-                        bcCount++;
-                        // Allocate new ByteEntry for the lookup
-                        ByteEntry entry = new ByteEntry();
-                        entry.value = value;
-                        int[] count = (int[]) bcStats.get(entry);
-                        if (count == null) {
-                            int end = bc.getEnd();
-                            int start = bc.getStart();
-                            // Create byte array and copy bytes
-                            entry.name = new byte[bc.getLength()];
-                            System.arraycopy(bc.getBuffer(), start, entry.name, 0, end - start);
-                            // Set encoding
-                            entry.enc = bc.getEncoding();
-                            // Initialize occurrence count to one 
-                            count = new int[1];
-                            count[0] = 1;
-                            // Set in the stats hash map
-                            bcStats.put(entry, count);
-                        } else {
-                            count[0] = count[0] + 1;
-                        }
-                    }
-                }
-            }
-            return value;
-        } else {
+        int hash = hash(bc);
+        if (hash < 0) {
+            return bc.toStringInternal();
+        }
+        ByteEntry[] cache = bcCache;
+        if (cache != null) {
             accessCount++;
-            // Find the corresponding String
-            String result = find(bc);
-            if (result == null) {
-                return bc.toStringInternal();
+            ByteEntry entry = find(bc, hash, cache);
+            if (entry != null) {
+                // Note: We don't care about safety for the stats
+                entry.hits++;
+                hitCount++;
+                return entry.value;
+            }
+        }
+        String value = bc.toStringInternal();
+        ByteEntry entry = new ByteEntry();
+        entry.value = value;
+        entry.enc = bc.getEncoding();
+        ByteEntry candidate = (ByteEntry) bcCandidates.get(entry);
+        if (candidate != null) {
+            candidate.hits++;
+        } else if (bcStats.increment(hash) >= MIN_FREQUENCY
+                && bcCandidateCount.get() < 4 * cacheSize) {
+            int start = bc.getStart();
+            entry.name = new byte[bc.getLength()];
+            System.arraycopy(bc.getBuffer(), start, entry.name, 0, entry.name.length);
+            entry.hash = hash;
+            entry.hits = MIN_FREQUENCY;
+            if (bcCandidates.putIfAbsent(entry, entry) == null) {
+                bcCandidateCount.incrementAndGet();
             }
-            // Note: We don't care about safety for the stats
-            hitCount++;
-            return result;
         }
-        
+        if (++bcCount > bcInterval) {
+            build(true);
+        }
+        return value;
+
     }
 
 
     public static String toString(CharChunk cc) {
-        
-        // If the cache is null, then either caching is disabled, or we're
-        // still training
-        if (ccCache == null) {
-            String value = cc.toStringInternal();
-            if (charEnabled && (value.length() < maxStringSize)) {
-                // If training, everything is synced
-                synchronized (ccStats) {
-                    // If the cache has been generated on a previous invocation
-                    // while waiting fot the lock, just return the toString value
-                    // we just calculated
-                    if (ccCache != null) {
-                        return value;
-                    }
-                    // Two cases: either we just exceeded the train count, in which
-                    // case the cache must be created, or we just update the count for
-                    // the string
-                    if (ccCount > trainThreshold) {
-                        long t1 = System.currentTimeMillis();
-                        // Sort the entries according to occurrence
-                        TreeMap tempMap = new TreeMap();
-                        Iterator entries = ccStats.keySet().iterator();
-                        while (entries.hasNext()) {
-                            CharEntry entry = (CharEntry) entries.next();
-                            int[] countA = (int[]) ccStats.get(entry);
-                            Integer count = new Integer(countA[0]);
-                            // Add to the list for that count
-                            ArrayList list = (ArrayList) tempMap.get(count);
-                            if (list == null) {
-                                // Create list
-                                list = new ArrayList();
-                                tempMap.put(count, list);
-                            }
-                            list.add(entry);
-                        }
-                        // Allocate array of the right size
-                        int size = ccStats.size();
-                        if (size > cacheSize) {
-                            size = cacheSize;
-                        }
-                        CharEntry[] tempccCache = new CharEntry[size];
-                        // Fill it up using an alphabetical order
-                        // and a dumb insert sort
-                        CharChunk tempChunk = new CharChunk();
-                        int n = 0;
-                        while (n < size) {
-                            Object key = tempMap.lastKey();
-                            ArrayList list = (ArrayList) tempMap.get(key);
-                            for (int i = 0; i < list.size() && n < size; i++) {
-                                CharEntry entry = (CharEntry) list.get(i);
-                                tempChunk.setChars(entry.name, 0, entry.name.length);
-                                int insertPos = findClosest(tempChunk, tempccCache, n);
-                                if (insertPos == n) {
-                                    tempccCache[n + 1] = entry;
-                                } else {
-                                    System.arraycopy(tempccCache, insertPos + 1, tempccCache, 
-                                            insertPos + 2, n - insertPos - 1);
-                                    tempccCache[insertPos + 1] = entry;
-                                }
-                                n++;
-                            }
-                            tempMap.remove(key);
-                        }
-                        ccCount = 0;
-                        ccStats.clear();
-                        ccCache = tempccCache;
-                        if (log.isDebugEnabled()) {
-                            long t2 = System.currentTimeMillis();
-                            log.debug("CharCache generation time: " + (t2 - t1) + "ms");
-                        }
-                    } else {
-                        ccCount++;
-                        // Allocate new CharEntry for the lookup
-                        CharEntry entry = new CharEntry();
-                        entry.value = value;
-                        int[] count = (int[]) ccStats.get(entry);
-                        if (count == null) {
-                            int end = cc.getEnd();
-                            int start = cc.getStart();
-                            // Create char array and copy chars
-                            entry.name = new char[cc.getLength()];
-                            System.arraycopy(cc.getBuffer(), start, entry.name, 0, end - start);
-                            // Initialize occurrence count to one 
-                            count = new int[1];
-                            count[0] = 1;
-                            // Set in the stats hash map
-                            ccStats.put(entry, count);
-                        } else {
-                            count[0] = count[0] + 1;
-                        }
-                    }
-                }
-            }
-            return value;
-        } else {
+
+        int hash = hash(cc);
+        if (hash < 0) {
+            return cc.toStringInternal();
+        }
+        CharEntry[] cache = ccCache;
+        if (cache != null) {
             accessCount++;
-            // Find the corresponding String
-            String result = find(cc);
-            if (result == null) {
-                return cc.toStringInternal();
+            CharEntry entry = find(cc, hash, cache);
+            if (entry != null) {
+                // Note: We don't care about safety for the stats
+                entry.hits++;
+                hitCount++;
+                return entry.value;
+            }
+        }
+        String value = cc.toStringInternal();
+        CharEntry entry = new CharEntry();
+        entry.value = value;
+        CharEntry candidate = (CharEntry) ccCandidates.get(entry);
+        if (candidate != null) {
+            candidate.hits++;
+        } else if (ccStats.increment(hash) >= MIN_FREQUENCY
+                && ccCandidateCount.get() < 4 * cacheSize) {
+            int start = cc.getStart();
+            entry.name = new char[cc.getLength()];
+            System.arraycopy(cc.getBuffer(), start, entry.name, 0, entry.name.length);
+            entry.hash = hash;
+            entry.hits = MIN_FREQUENCY;
+            if (ccCandidates.putIfAbsent(entry, entry) == null) {
+                ccCandidateCount.incrementAndGet();
             }
-            // Note: We don't care about safety for the stats
-            hitCount++;
-            return result;
         }
-        
+        if (++ccCount > ccInterval) {
+            build(false);
+        }
+        return value;
+
     }
-    
-    
+
+
     // ----------------------------------------------------- Protected Methods
 
 
     /**
-     * Compare given byte chunk with byte array.
-     * Return -1, 0 or +1 if inferior, equal, or superior to the String.
+     * Hash the content of the given byte chunk.
+     * Return -1 if the chunk isn't to be cached.
      */
-    protected static final int compare(ByteChunk name, byte[] compareTo) {
-        int result = 0;
-
-        byte[] b = name.getBuffer();
+    protected static final int hash(ByteChunk name) {
         int start = name.getStart();
         int end = name.getEnd();
-        int len = compareTo.length;
+        boolean any = byteEnabled && (end - start < maxStringSize);
+        if ((start == end)
+                || !(any || (nameEnabled && (end - start <= maxNameSize)))) {
+            return -1;
+        }
+        byte[] b = name.getBuffer();
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            int c = b[i];
+            if (!any && ((c < 0) || !TOKEN[c])) {
+                return -1;
+            }
+            h = 31 * h + c;
+        }
+        return mix(h) & 0x7fffffff;
+    }
 
-        if ((end - start) < len) {
-            len = end - start;
+
+    /**
+     * Hash the content of the given char chunk.
+     * Return -1 if the chunk isn't to be cached.
+     */
+    protected static final int hash(CharChunk name) {
+        int start = name.getStart();
+        int end = name.getEnd();
+        boolean any = charEnabled && (end - start < maxStringSize);
+        if ((start == end)
+                || !(any || (nameEnabled && (end - start <= maxNameSize)))) {
+            return -1;
         }
-        for (int i = 0; (i < len) && (result == 0); i++) {
-            if (b[i + start] > compareTo[i]) {
-                result = 1;
-            } else if (b[i + start] < compareTo[i]) {
-                result = -1;
+        char[] c = name.getBuffer();
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            int ch = c[i];
+            if (!any && ((ch >= 128) || !TOKEN[ch])) {
+                return -1;
             }
+            h = 31 * h + ch;
         }
-        if (result == 0) {
-            if (compareTo.length > (end - start)) {
-                result = -1;
-            } else if (compareTo.length < (end - start)) {
-                result = 1;
+        return mix(h) & 0x7fffffff;
+    }
+
+
+    protected static final int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+
+    /**
+     * Find an entry given its name in the cache.
+     */
+    protected static final ByteEntry find(ByteChunk name, int hash, ByteEntry[] cache) {
+        int mask = cache.length - 1;
+        int pos = hash & mask;
+        ByteEntry entry;
+        while ((entry = cache[pos]) != null) {
+            if ((entry.hash == hash) && equals(name, entry)) {
+                return entry;
             }
+            pos = (pos + 1) & mask;
         }
-        return result;
+        return null;
     }
 
-    
+
     /**
-     * Find an entry given its name in the cache and return the associated String.
+     * Compare given byte chunk with the name and encoding of an entry.
      */
-    protected static final String find(ByteChunk name) {
-        int pos = findClosest(name, bcCache, bcCache.length);
-        if ((pos < 0) || (compare(name, bcCache[pos].name) != 0)
-                || !(name.getEncoding().equals(bcCache[pos].enc))) {
-            return null;
-        } else {
-            return bcCache[pos].value;
+    protected static final boolean equals(ByteChunk name, ByteEntry entry) {
+        byte[] b = name.getBuffer();
+        int start = name.getStart();
+        byte[] compareTo = entry.name;
+        if ((name.getEnd() - start) != compareTo.length) {
+            return false;
         }
+        for (int i = 0; i < compareTo.length; i++) {
+            if (b[i + start] != compareTo[i]) {
+                return false;
+            }
+        }
+        String enc = name.getEncoding();
+        return (enc == entry.enc) || enc.equals(entry.enc);
     }
 
-    
+
     /**
-     * Find an entry given its name in a sorted array of map elements.
-     * This will return the index for the closest inferior or equal item in the
-     * given array.
+     * Find an entry given its name in the cache.
      */
-    protected static final int findClosest(ByteChunk name, ByteEntry[] array, int len) {
+    protected static final CharEntry find(CharChunk name, int hash, CharEntry[] cache) {
+        int mask = cache.length - 1;
+        int pos = hash & mask;
+        CharEntry entry;
+        while ((entry = cache[pos]) != null) {
+            if ((entry.hash == hash) && equals(name, entry)) {
+                return entry;
+            }
+            pos = (pos + 1) & mask;
+        }
+        return null;
+    }
 
-        int a = 0;
-        int b = len - 1;
 
-        // Special cases: -1 and 0
-        if (b == -1) {
-            return -1;
+    /**
+     * Compare given char chunk with the name of an entry.
+     */
+    protected static final boolean equals(CharChunk name, CharEntry entry) {
+        char[] c = name.getBuffer();
+        int start = name.getStart();
+        char[] compareTo = entry.name;
+        if ((name.getEnd() - start) != compareTo.length) {
+            return false;
         }
-        
-        if (compare(name, array[0].name) < 0) {
-            return -1;
-        }         
-        if (b == 0) {
-            return 0;
-        }
-
-        int i = 0;
-        while (true) {
-            i = (b + a) / 2;
-            int result = compare(name, array[i].name);
-            if (result == 1) {
-                a = i;
-            } else if (result == 0) {
-                return i;
-            } else {
-                b = i;
+        for (int i = 0; i < compareTo.length; i++) {
+            if (c[i + start] != compareTo[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Ask the trainer thread to build a new cache, unless one is already
+     * being built.
+     */
+    protected static void build(boolean bytes) {
+        AtomicBoolean building = bytes ? bcBuilding : ccBuilding;
+        if (!building.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (bcBuilding) {
+            if (trainer == null) {
+                trainer = new Thread(new Trainer(), "StringCache");
+                trainer.setDaemon(true);
+                trainer.setContextClassLoader(StringCache.class.getClassLoader());
+                trainer.start();
+            }
+            bcBuilding.notifyAll();
+        }
+    }
+
+
+    protected static void buildByteCache() {
+        long t1 = System.currentTimeMillis();
+        List entries = new ArrayList(bcCandidates.values());
+        int candidates = entries.size();
+        ByteEntry[] cache = bcCache;
+        if (cache != null) {
+            for (int i = 0; i < cache.length; i++) {
+                if ((cache[i] != null) && (cache[i].hits != 0)
+                        && !bcCandidates.containsKey(cache[i])) {
+                    entries.add(cache[i]);
+                }
             }
-            if ((b - a) == 1) {
-                int result2 = compare(name, array[b].name);
-                if (result2 < 0) {
-                    return a;
-                } else {
-                    return b;
+        }
+        int size = Math.min(entries.size(), cacheSize);
+        boolean changed = (size != count(cache));
+        ByteEntry[] tempbcCache = null;
+        if (size > 0) {
+            int[] order = sortByHits(entries);
+            tempbcCache = new ByteEntry[tableSize(size)];
+            int mask = tempbcCache.length - 1;
+            for (int i = 0; i < size; i++) {
+                // The candidates come first
+                changed |= (order[i] < candidates);
+                ByteEntry entry = (ByteEntry) entries.get(order[i]);
+                // Age the count, so that strings no longer used get evicted
+                entry.hits = hits(entry) >> 1;
+                int pos = entry.hash & mask;
+                while (tempbcCache[pos] != null) {
+                    pos = (pos + 1) & mask;
                 }
+                tempbcCache[pos] = entry;
             }
         }
+        bcCandidates.clear();
+        bcCandidateCount.set(0);
+        bcStats.decay();
+        bcCount = 0;
+        bcInterval = changed ? trainThreshold
+                : (int) Math.min(2L * bcInterval, (long) MAX_TRAIN_BACKOFF * trainThreshold);
+        bcCache = tempbcCache;
+        if (log.isDebugEnabled()) {
+            long t2 = System.currentTimeMillis();
+            log.debug("ByteCache generation time: " + (t2 - t1) + "ms");
+        }
+    }
 
+
+    protected static void buildCharCache() {
+        long t1 = System.currentTimeMillis();
+        List entries = new ArrayList(ccCandidates.values());
+        int candidates = entries.size();
+        CharEntry[] cache = ccCache;
+        if (cache != null) {
+            for (int i = 0; i < cache.length; i++) {
+                if ((cache[i] != null) && (cache[i].hits != 0)
+                        && !ccCandidates.containsKey(cache[i])) {
+                    entries.add(cache[i]);
+                }
+            }
+        }
+        int size = Math.min(entries.size(), cacheSize);
+        boolean changed = (size != count(cache));
+        CharEntry[] tempccCache = null;
+        if (size > 0) {
+            int[] order = sortByHits(entries);
+            tempccCache = new CharEntry[tableSize(size)];
+            int mask = tempccCache.length - 1;
+            for (int i = 0; i < size; i++) {
+                // The candidates come first
+                changed |= (order[i] < candidates);
+                CharEntry entry = (CharEntry) entries.get(order[i]);
+                // Age the count, so that strings no longer used get evicted
+                entry.hits = hits(entry) >> 1;
+                int pos = entry.hash & mask;
+                while (tempccCache[pos] != null) {
+                    pos = (pos + 1) & mask;
+                }
+                tempccCache[pos] = entry;
+            }
+        }
+        ccCandidates.clear();
+        ccCandidateCount.set(0);
+        ccStats.decay();
+        ccCount = 0;
+        ccInterval = changed ? trainThreshold
+                : (int) Math.min(2L * ccInterval, (long) MAX_TRAIN_BACKOFF * trainThreshold);
+        ccCache = tempccCache;
+        if (log.isDebugEnabled()) {
+            long t2 = System.currentTimeMillis();
+            log.debug("CharCache generation time: " + (t2 - t1) + "ms");
+        }
     }
 
 
     /**
-     * Compare given char chunk with char array.
-     * Return -1, 0 or +1 if inferior, equal, or superior to the String.
+     * Number of entries in a cache.
      */
-    protected static final int compare(CharChunk name, char[] compareTo) {
-        int result = 0;
+    protected static final int count(Entry[] cache) {
+        int count = 0;
+        if (cache != null) {
+            for (int i = 0; i < cache.length; i++) {
+                if (cache[i] != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
 
-        char[] c = name.getBuffer();
-        int start = name.getStart();
-        int end = name.getEnd();
-        int len = compareTo.length;
 
-        if ((end - start) < len) {
-            len = end - start;
+    /**
+     * The table length for the given number of entries: a power of two, at
+     * most half full so that probes stay short.
+     */
+    protected static final int tableSize(int size) {
+        int length = 4;
+        while (length < 2 * size) {
+            length <<= 1;
         }
-        for (int i = 0; (i < len) && (result == 0); i++) {
-            if (c[i + start] > compareTo[i]) {
-                result = 1;
-            } else if (c[i + start] < compareTo[i]) {
-                result = -1;
-            }
+        return length;
+    }
+
+
+    /**
+     * Hit count of an entry, which may have overflowed.
+     */
+    protected static final int hits(Entry entry) {
+        int hits = entry.hits;
+        return (hits < 0) ? Integer.MAX_VALUE : hits;
+    }
+
+
+    /**
+     * Order entries by decreasing hit count. The counts are read once, as
+     * they keep being updated by the request threads.
+     * @return the indexes of the entries, most hit first
+     */
+    protected static final int[] sortByHits(List entries) {
+        long[] keys = new long[entries.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ((long) hits((Entry) entries.get(i)) << 32) | i;
         }
-        if (result == 0) {
-            if (compareTo.length > (end - start)) {
-                result = -1;
-            } else if (compareTo.length < (end - start)) {
-                result = 1;
-            }
+        Arrays.sort(keys);
+        int[] order = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = (int) keys[keys.length - 1 - i];
         }
-        return result;
+        return order;
     }
 
-    
+
+    // --------------------------------------------------- Trainer Inner Class
+
+
     /**
-     * Find an entry given its name in the cache and return the associated String.
+     * Builds the caches requested through the building flags, and waits
+     * for the next request.
      */
-    protected static final String find(CharChunk name) {
-        int pos = findClosest(name, ccCache, ccCache.length);
-        if ((pos < 0) || (compare(name, ccCache[pos].name) != 0)) {
-            return null;
-        } else {
-            return ccCache[pos].value;
+    protected static class Trainer implements Runnable {
+
+        public void run() {
+            while (true) {
+                try {
+                    synchronized (bcBuilding) {
+                        while (!bcBuilding.get() && !ccBuilding.get()) {
+                            bcBuilding.wait();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                if (bcBuilding.get()) {
+                    try {
+                        buildByteCache();
+                    } catch (Throwable t) {
+                        log.warn("StringCache generation failed", t);
+                    } finally {
+                        bcBuilding.set(false);
+                    }
+                }
+                if (ccBuilding.get()) {
+                    try {
+                        buildCharCache();
+                    } catch (Throwable t) {
+                        log.warn("StringCache generation failed", t);
+                    } finally {
+                        ccBuilding.set(false);
+                    }
+                }
+            }
         }
+
     }
 
-    
+
+    // ------------------------------------------- FrequencySketch Inner Class
+
+
     /**
-     * Find an entry given its name in a sorted array of map elements.
-     * This will return the index for the closest inferior or equal item in the
-     * given array.
+     * A count-min sketch: each row of counters is indexed by a different
+     * hash of the string, and the frequency is estimated by the smallest of
+     * its counters. Only the smallest counters are incremented, which limits
+     * the overestimation caused by collisions.
      */
-    protected static final int findClosest(CharChunk name, CharEntry[] array, int len) {
+    protected static class FrequencySketch {
 
-        int a = 0;
-        int b = len - 1;
+        protected static final int DEPTH = 4;
+        protected static final int[] SEEDS =
+            { 0x9e3779b1, 0x85ebca77, 0xc2b2ae3d, 0x27d4eb2f };
 
-        // Special cases: -1 and 0
-        if (b == -1) {
-            return -1;
+        protected final AtomicIntegerArray counts;
+        protected final int width;
+
+        public FrequencySketch(int width) {
+            this.width = width;
+            this.counts = new AtomicIntegerArray(DEPTH * width);
         }
-        
-        if (compare(name, array[0].name) < 0 ) {
-            return -1;
-        }         
-        if (b == 0) {
-            return 0;
-        }
-
-        int i = 0;
-        while (true) {
-            i = (b + a) / 2;
-            int result = compare(name, array[i].name);
-            if (result == 1) {
-                a = i;
-            } else if (result == 0) {
-                return i;
-            } else {
-                b = i;
+
+        protected final int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return row * width + (h & (width - 1));
+        }
+
+        /**
+         * Count one occurrence.
+         * @return the estimated frequency, including this occurrence
+         */
+        public int increment(int hash) {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, counts.get(index(hash, i)));
             }
-            if ((b - a) == 1) {
-                int result2 = compare(name, array[b].name);
-                if (result2 < 0) {
-                    return a;
-                } else {
-                    return b;
-                }
+            for (int i = 0; i < DEPTH; i++) {
+                // A failed update means a concurrent increment, which is
+                // just as good
+                counts.compareAndSet(index(hash, i), min, min + 1);
+            }
+            return min + 1;
+        }
+
+        /**
+         * Halve all the counters.
+         */
+        public void decay() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, counts.get(i) >> 1);
+            }
+        }
+
+        public void clear() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
             }
         }
 
     }
 
 
-    // -------------------------------------------------- ByteEntry Inner Class
+    // ------------------------------------------------------ Entry Inner Class
 
 
-    public static class ByteEntry {
+    public abstract static class Entry {
 
-        public byte[] name = null;
-        public String enc = null;
         public String value = null;
+        int hash = 0;
+        int hits = 0;
 
         public String toString() {
             return value;
@@ -633,37 +851,44 @@ public class StringCache {
         public int hashCode() {
             return value.hashCode();
         }
+
+    }
+
+
+    // -------------------------------------------------- ByteEntry Inner Class
+
+
+    public static class ByteEntry extends Entry {
+
+        public byte[] name = null;
+        public String enc = null;
+
         public boolean equals(Object obj) {
             if (obj instanceof ByteEntry) {
-                return value.equals(((ByteEntry) obj).value);
+                ByteEntry entry = (ByteEntry) obj;
+                return value.equals(entry.value)
+                    && ((enc == null) ? (entry.enc == null) : enc.equals(entry.enc));
             }
             return false;
         }
-        
+
     }
 
 
     // -------------------------------------------------- CharEntry Inner Class
 
 
-    public static class CharEntry {
+    public static class CharEntry extends Entry {
 
         public char[] name = null;
-        public String value = null;
 
-        public String toString() {
-            return value;
-        }
-        public int hashCode() {
-            return value.hashCode();
-        }
         public boolean equals(Object obj) {
             if (obj instanceof CharEntry) {
                 return value.equals(((CharEntry) obj).value);
             }
             return false;
         }
-        
+
     }
 
 
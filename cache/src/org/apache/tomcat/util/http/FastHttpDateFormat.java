@@ -17,17 +17,28 @@
 
 package org.apache.tomcat.util.http;
 
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
-import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
 
 /**
- * Utility class to generate HTTP dates.
- * 
+ * Utility class to generate and parse HTTP dates.
+ * <p>
+ * Dates are formatted arithmetically in GMT, and the current date is formatted
+ * once per second and shared through a volatile field, so generating the
+ * <code>Date</code> header takes no lock and, with the <code>ByteChunk</code>
+ * and <code>MessageBytes</code> methods, allocates nothing. RFC 1123, RFC 1036
+ * and asctime dates are parsed by hand; <code>SimpleDateFormat</code> is only
+ * used for the dates the parser doesn't recognize and for years before 1583
+ * or after 9999.
+ *
  * @author Remy Maucherat
  */
 public final class FastHttpDateFormat {
@@ -36,14 +47,16 @@ public final class FastHttpDateFormat {
     // -------------------------------------------------------------- Variables
 
 
-    private static final int CACHE_SIZE = 
-        Integer.parseInt(System.getProperty("org.apache.tomcat.util.http.FastHttpDateFormat.CACHE_SIZE", "1000"));
+    /**
+     * Length of a formatted date, such as "Sun, 06 Nov 1994 08:49:37 GMT".
+     */
+    public static final int DATE_LENGTH = 29;
+
 
-    
     /**
      * HTTP date format.
      */
-    private static final SimpleDateFormat format = 
+    private static final SimpleDateFormat format =
         new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
 
 
@@ -74,30 +87,35 @@ public final class FastHttpDateFormat {
     }
 
 
-    /**
-     * Instant on which the currentDate object was generated.
-     */
-    private static volatile long currentDateGenerated = 0L;
+    private static final String[] DAYS =
+        { "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat" };
 
 
-    /**
-     * Current formatted date.
-     */
-    private static String currentDate = null;
+    private static final String[] DAY_NAMES =
+        { "Sunday", "Monday", "Tuesday", "Wednesday", "Thursday", "Friday",
+          "Saturday" };
+
+
+    private static final String[] MONTHS =
+        { "January", "February", "March", "April", "May", "June", "July",
+          "August", "September", "October", "November", "December" };
+
+
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
 
 
     /**
-     * Formatter cache.
+     * The first year handled here, SimpleDateFormat uses the Julian calendar
+     * before October 1582.
      */
-    private static final ConcurrentHashMap<Long, String> formatCache = 
-        new ConcurrentHashMap<Long, String>(CACHE_SIZE);
+    private static final int MIN_YEAR = 1583;
 
 
     /**
-     * Parser cache.
+     * Current formatted date.
      */
-    private static final ConcurrentHashMap<String, Long> parseCache = 
-        new ConcurrentHashMap<String, Long>(CACHE_SIZE);
+    private static volatile CurrentDate currentDate =
+        new CurrentDate(System.currentTimeMillis());
 
 
     // --------------------------------------------------------- Public Methods
@@ -107,76 +125,524 @@ public final class FastHttpDateFormat {
      * Get the current date in HTTP format.
      */
     public static final String getCurrentDate() {
+        return currentDate().value;
+    }
 
-        long now = System.currentTimeMillis();
-        if ((now - currentDateGenerated) > 1000) {
-            synchronized (format) {
-                if ((now - currentDateGenerated) > 1000) {
-                    currentDate = format.format(new Date(now));
-                    currentDateGenerated = now;
-                }
-            }
-        }
-        return currentDate;
 
+    /**
+     * Append the current date in HTTP format to the given chunk.
+     */
+    public static final void appendCurrentDate(ByteChunk bc)
+        throws IOException {
+        bc.append(currentDate().bytes, 0, DATE_LENGTH);
+    }
+
+
+    /**
+     * Set the current date in HTTP format as the value of the given message
+     * bytes. The date is copied in the buffer of the message bytes, like
+     * {@link MessageBytes#setInt(int)} does.
+     */
+    public static final void setCurrentDate(MessageBytes mb) {
+        ByteChunk bc = mb.getByteChunk();
+        bc.allocate(DATE_LENGTH, -1);
+        byte[] buf = bc.getBuffer();
+        System.arraycopy(currentDate().bytes, 0, buf, 0, DATE_LENGTH);
+        mb.setBytes(buf, 0, DATE_LENGTH);
     }
 
 
     /**
      * Get the HTTP format of the specified date.
+     *
+     * @param threadLocalformat a format used only for years before 1583 or
+     *  after 9999, <code>null</code> to use a shared format
      */
     public static final String formatDate
         (long value, DateFormat threadLocalformat) {
 
-        Long longValue = new Long(value);
-        String cachedDate = formatCache.get(longValue);
-        if (cachedDate != null)
-            return cachedDate;
-
-        String newDate = null;
+        CurrentDate date = currentDate;
+        if (date.second == second(value)) {
+            return date.value;
+        }
+        byte[] b = new byte[DATE_LENGTH];
+        if (format(value, b, 0)) {
+            char[] c = new char[DATE_LENGTH];
+            for (int i = 0; i < DATE_LENGTH; i++) {
+                c[i] = (char) b[i];
+            }
+            return new String(c);
+        }
         Date dateValue = new Date(value);
         if (threadLocalformat != null) {
-            newDate = threadLocalformat.format(dateValue);
-            updateFormatCache(longValue, newDate);
-        } else {
-            synchronized (formatCache) {
-                synchronized (format) {
-                    newDate = format.format(dateValue);
-                }
-                updateFormatCache(longValue, newDate);
+            return threadLocalformat.format(dateValue);
+        }
+        synchronized (format) {
+            return format.format(dateValue);
+        }
+
+    }
+
+
+    /**
+     * Append the HTTP format of the specified date to the given chunk.
+     */
+    public static final void appendDate(long value, ByteChunk bc)
+        throws IOException {
+
+        CurrentDate date = currentDate;
+        if (date.second == second(value)) {
+            bc.append(date.bytes, 0, DATE_LENGTH);
+            return;
+        }
+        int limit = bc.getLimit();
+        if ((limit < 0) || (limit - bc.getEnd() > DATE_LENGTH)) {
+            // The chunk won't flush: reserve the space, then format in place
+            bc.append(date.bytes, 0, DATE_LENGTH);
+            if (format(value, bc.getBuffer(), bc.getEnd() - DATE_LENGTH)) {
+                return;
             }
+            bc.setEnd(bc.getEnd() - DATE_LENGTH);
+        }
+        String s = formatDate(value, null);
+        for (int i = 0; i < s.length(); i++) {
+            bc.append((byte) s.charAt(i));
         }
-        return newDate;
 
     }
 
 
     /**
      * Try to parse the given date as a HTTP date.
+     *
+     * @param threadLocalformats the formats to try if the date isn't a
+     *  RFC 1123, RFC 1036 or asctime date, <code>null</code> to use shared
+     *  formats
+     * @return the date, or -1 if it can't be parsed
      */
-    public static final long parseDate(String value, 
+    public static final long parseDate(String value,
                                        DateFormat[] threadLocalformats) {
 
-        Long cachedDate = parseCache.get(value);
-        if (cachedDate != null)
-            return cachedDate.longValue();
-
-        Long date = null;
+        long date = parse(value);
+        if (date != -1L) {
+            return date;
+        }
+        Long result = null;
         if (threadLocalformats != null) {
-            date = internalParseDate(value, threadLocalformats);
-            updateParseCache(value, date);
+            result = internalParseDate(value, threadLocalformats);
         } else {
-            synchronized (parseCache) {
-                date = internalParseDate(value, formats);
-                updateParseCache(value, date);
+            synchronized (formats) {
+                result = internalParseDate(value, formats);
             }
         }
-        if (date == null) {
+        if (result == null) {
             return (-1L);
         } else {
-            return date.longValue();
+            return result.longValue();
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Get the current date, formatting it if the second has changed.
+     */
+    private static CurrentDate currentDate() {
+        long now = System.currentTimeMillis();
+        CurrentDate date = currentDate;
+        if (date.second != second(now)) {
+            // Concurrent updates are harmless, they produce the same value
+            date = new CurrentDate(now);
+            currentDate = date;
+        }
+        return date;
+    }
+
+
+    private static long second(long value) {
+        long second = value / 1000;
+        return ((value % 1000) < 0) ? second - 1 : second;
+    }
+
+
+    /**
+     * Format the given date, such as "Sun, 06 Nov 1994 08:49:37 GMT".
+     * @return false if the year is before MIN_YEAR or has more than four
+     *  digits
+     */
+    private static boolean format(long value, byte[] b, int off) {
+
+        long days = value / MILLIS_PER_DAY;
+        if ((value % MILLIS_PER_DAY) < 0) {
+            days--;
+        }
+        int seconds = (int) ((value - days * MILLIS_PER_DAY) / 1000);
+        // Civil date from the day number, see
+        // http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = ((z >= 0) ? z : z - 146096) / 146097;
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = (mp < 10) ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + ((month <= 2) ? 1 : 0);
+        if ((year < MIN_YEAR) || (year > 9999)) {
+            return false;
+        }
+        // 1970-01-01 was a Thursday
+        int dayOfWeek = (int) ((days + 4) % 7);
+        if (dayOfWeek < 0) {
+            dayOfWeek += 7;
+        }
+
+        String name = DAYS[dayOfWeek];
+        b[off++] = (byte) name.charAt(0);
+        b[off++] = (byte) name.charAt(1);
+        b[off++] = (byte) name.charAt(2);
+        b[off++] = (byte) ',';
+        b[off++] = (byte) ' ';
+        off = digits(day, 2, b, off);
+        b[off++] = (byte) ' ';
+        name = MONTHS[month - 1];
+        b[off++] = (byte) name.charAt(0);
+        b[off++] = (byte) name.charAt(1);
+        b[off++] = (byte) name.charAt(2);
+        b[off++] = (byte) ' ';
+        off = digits((int) year, 4, b, off);
+        b[off++] = (byte) ' ';
+        off = digits(seconds / 3600, 2, b, off);
+        b[off++] = (byte) ':';
+        off = digits((seconds / 60) % 60, 2, b, off);
+        b[off++] = (byte) ':';
+        off = digits(seconds % 60, 2, b, off);
+        b[off++] = (byte) ' ';
+        b[off++] = (byte) 'G';
+        b[off++] = (byte) 'M';
+        b[off++] = (byte) 'T';
+        return true;
+
+    }
+
+
+    private static int digits(int value, int count, byte[] b, int off) {
+        for (int i = off + count - 1; i >= off; i--) {
+            b[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return off + count;
+    }
+
+
+    /**
+     * Parse a RFC 1123 ("Sun, 06 Nov 1994 08:49:37 GMT"), RFC 1036
+     * ("Sunday, 06-Nov-94 08:49:37 GMT") or asctime
+     * ("Sun Nov  6 08:49:37 1994") date. Like SimpleDateFormat, the names
+     * of days and months are matched ignoring case, either abbreviated or
+     * in full, the day of the week isn't checked against the date, and the
+     * text following the date is ignored. RFC 1123 and RFC 1036 dates must
+     * have a time zone.
+     * @return the date, or -1 if it isn't in one of these formats, or has a
+     *  time zone other than GMT, UTC or a numeric offset
+     */
+    private static long parse(String value) {
+
+        int length = value.length();
+        int start = 0;
+        int pos = skipLetters(value, start);
+        if (!isDayName(value, start, pos) || (pos >= length)) {
+            return -1L;
+        }
+
+        int day;
+        int month;
+        int year;
+        int time;
+        int offset = 0;
+        boolean shortYear = false;
+        if (value.charAt(pos) == ',') {
+            // RFC 1123 or RFC 1036
+            pos = skip(value, pos + 1, ' ');
+            day = parseNumber(value, pos, 2);
+            pos = skipDigits(value, pos);
+            if ((day < 0) || (pos >= length)) {
+                return -1L;
+            }
+            char separator = value.charAt(pos);
+            if ((separator != ' ') && (separator != '-')) {
+                return -1L;
+            }
+            start = ++pos;
+            pos = skipLetters(value, pos);
+            month = parseMonth(value, start, pos);
+            if ((month < 0) || (pos >= length)
+                    || (value.charAt(pos) != separator)) {
+                return -1L;
+            }
+            start = ++pos;
+            pos = skipDigits(value, pos);
+            // Only RFC 1036 has two digit years, as "yy" in SimpleDateFormat
+            shortYear = (separator == '-') && ((pos - start) == 2);
+            year = (shortYear || ((pos - start) == 4))
+                ? parseNumber(value, start, 4) : -1;
+            pos = skip(value, pos, ' ');
+            time = parseTime(value, pos);
+            if ((year < 0) || (time < 0)) {
+                return -1L;
+            }
+            pos = skip(value, pos + 8, ' ');
+            offset = parseZone(value, pos);
+            if (offset == Integer.MIN_VALUE) {
+                return -1L;
+            }
+        } else if (value.charAt(pos) == ' ') {
+            // asctime
+            pos = skip(value, pos, ' ');
+            start = pos;
+            pos = skipLetters(value, pos);
+            month = parseMonth(value, start, pos);
+            pos = skip(value, pos, ' ');
+            day = parseNumber(value, pos, 2);
+            pos = skip(value, skipDigits(value, pos), ' ');
+            time = parseTime(value, pos);
+            if ((month < 0) || (day < 0) || (time < 0)) {
+                return -1L;
+            }
+            pos = skip(value, pos + 8, ' ');
+            start = pos;
+            pos = skipDigits(value, pos);
+            if ((pos - start) != 4) {
+                return -1L;
+            }
+            year = parseNumber(value, start, 4);
+        } else {
+            return -1L;
+        }
+
+        if (shortYear) {
+            // A two digit year is taken within 80 years before and 20 years
+            // after now, like SimpleDateFormat does
+            CurrentDate date = currentDate();
+            year += date.centuryStartYear - date.centuryStartYear % 100;
+            long result = toMillis(year, month, day, time, offset);
+            if ((result == -1L) || (result >= date.centuryStart)) {
+                return result;
+            }
+            year += 100;
+        }
+        return toMillis(year, month, day, time, offset);
+
+    }
+
+
+    /**
+     * @return the date, or -1 if the day doesn't exist
+     */
+    private static long toMillis(int year, int month, int day, int time,
+                                 int offset) {
+        if ((year < MIN_YEAR) || (day < 1)
+                || (day > daysInMonth(month, year))) {
+            return -1L;
+        }
+        return ((days(year, month, day) * 86400L) + time - offset) * 1000L;
+    }
+
+
+    private static int skip(String value, int pos, char c) {
+        while ((pos < value.length()) && (value.charAt(pos) == c)) {
+            pos++;
         }
+        return pos;
+    }
+
+
+    private static int skipLetters(String value, int pos) {
+        while ((pos < value.length())
+                && Character.isLetter(value.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
 
+    private static int skipDigits(String value, int pos) {
+        while ((pos < value.length()) && isDigit(value.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+
+    private static boolean isDigit(char c) {
+        return (c >= '0') && (c <= '9');
+    }
+
+
+    /**
+     * Parse a number of one up to <code>max</code> digits.
+     * @return the number, or -1 if there is no digit or too many
+     */
+    private static int parseNumber(String value, int pos, int max) {
+        int end = skipDigits(value, pos);
+        if ((end == pos) || (end - pos > max)) {
+            return -1;
+        }
+        int result = 0;
+        for (int i = pos; i < end; i++) {
+            result = result * 10 + (value.charAt(i) - '0');
+        }
+        return result;
+    }
+
+
+    /**
+     * @return <code>true</code> if the text between start and end is the
+     *  name of a day or its first three letters
+     */
+    private static boolean isDayName(String value, int start, int end) {
+        int length = end - start;
+        for (int i = 0; i < DAYS.length; i++) {
+            String day = (length == 3) ? DAYS[i] : DAY_NAMES[i];
+            if ((length == day.length())
+                    && value.regionMatches(true, start, day, 0, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @return the month, from 1 to 12, or -1 if the text between start and end
+     *  is neither the name of a month nor its first three letters
+     */
+    private static int parseMonth(String value, int start, int end) {
+        int length = end - start;
+        if (length < 3) {
+            return -1;
+        }
+        for (int i = 0; i < MONTHS.length; i++) {
+            String month = MONTHS[i];
+            if (((length == 3) || (length == month.length()))
+                    && value.regionMatches(true, start, month, 0, length)) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Parse a time such as "08:49:37".
+     * @return the seconds since midnight, or -1
+     */
+    private static int parseTime(String value, int pos) {
+        if ((pos + 8 > value.length())
+                || (value.charAt(pos + 2) != ':')
+                || (value.charAt(pos + 5) != ':')) {
+            return -1;
+        }
+        int hours = parseTwoDigits(value, pos);
+        int minutes = parseTwoDigits(value, pos + 3);
+        int seconds = parseTwoDigits(value, pos + 6);
+        if ((hours < 0) || (hours > 23) || (minutes < 0) || (minutes > 59)
+                || (seconds < 0) || (seconds > 59)) {
+            return -1;
+        }
+        return hours * 3600 + minutes * 60 + seconds;
+    }
+
+
+    private static int parseTwoDigits(String value, int pos) {
+        char c1 = value.charAt(pos);
+        char c2 = value.charAt(pos + 1);
+        if (!isDigit(c1) || !isDigit(c2)) {
+            return -1;
+        }
+        return (c1 - '0') * 10 + (c2 - '0');
+    }
+
+
+    /**
+     * Parse the time zone: GMT, UTC or an offset such as "+0100".
+     * @return the offset in seconds, or Integer.MIN_VALUE for another zone
+     *  or none
+     */
+    private static int parseZone(String value, int pos) {
+        int length = value.length();
+        if (pos >= length) {
+            return Integer.MIN_VALUE;
+        }
+        int end = skipLetters(value, pos);
+        if (end > pos) {
+            int zoneLength = end - pos;
+            if (!isZone(value, pos, zoneLength, "GMT")
+                    && !isZone(value, pos, zoneLength, "UTC")) {
+                return Integer.MIN_VALUE;
+            }
+            if ((end < length) && ((value.charAt(end) == '+')
+                    || (value.charAt(end) == '-'))) {
+                // Such as GMT+01:00
+                return Integer.MIN_VALUE;
+            }
+            return 0;
+        }
+        char sign = value.charAt(pos);
+        if ((sign == '+') || (sign == '-')) {
+            if ((pos + 5 > length) || ((pos + 5 < length)
+                    && isDigit(value.charAt(pos + 5)))) {
+                return Integer.MIN_VALUE;
+            }
+            int hours = parseTwoDigits(value, pos + 1);
+            int minutes = parseTwoDigits(value, pos + 3);
+            if ((hours < 0) || (hours > 23) || (minutes < 0)
+                    || (minutes > 59)) {
+                return Integer.MIN_VALUE;
+            }
+            int offset = hours * 3600 + minutes * 60;
+            return (sign == '-') ? -offset : offset;
+        }
+        return Integer.MIN_VALUE;
+    }
+
+
+    private static boolean isZone(String value, int pos, int length,
+                                  String zone) {
+        return (length == zone.length())
+            && value.regionMatches(true, pos, zone, 0, length);
+    }
+
+
+    private static boolean isLeapYear(int year) {
+        return ((year % 4) == 0) && (((year % 100) != 0) || ((year % 400) == 0));
+    }
+
+
+    private static int daysInMonth(int month, int year) {
+        if (month == 2) {
+            return isLeapYear(year) ? 29 : 28;
+        }
+        return ((month == 4) || (month == 6) || (month == 9) || (month == 11))
+            ? 30 : 31;
+    }
+
+
+    /**
+     * @return the number of days between 1970-01-01 and the given date
+     */
+    private static long days(int year, int month, int day) {
+        if (month <= 2) {
+            year--;
+        }
+        int era = ((year >= 0) ? year : year - 399) / 400;
+        int yoe = year - era * 400;
+        int doy = (153 * ((month > 2) ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
     }
 
 
@@ -200,31 +666,40 @@ public final class FastHttpDateFormat {
     }
 
 
-    /**
-     * Update cache.
-     */
-    private static void updateFormatCache(Long key, String value) {
-        if (value == null) {
-            return;
-        }
-        if (formatCache.size() > CACHE_SIZE) {
-            formatCache.clear();
-        }
-        formatCache.put(key, value);
-    }
+    // ----------------------------------------------- CurrentDate Inner Class
 
 
     /**
-     * Update cache.
+     * The date of a second, formatted.
      */
-    private static void updateParseCache(String key, Long value) {
-        if (value == null) {
-            return;
-        }
-        if (parseCache.size() > CACHE_SIZE) {
-            parseCache.clear();
+    private static final class CurrentDate {
+
+        private final long second;
+        private final byte[] bytes = new byte[DATE_LENGTH];
+        private final String value;
+        // 80 years before now, the start of the two digit years
+        private final int centuryStartYear;
+        private final long centuryStart;
+
+        private CurrentDate(long now) {
+            second = second(now);
+            format(second * 1000, bytes, 0);
+            char[] c = new char[DATE_LENGTH];
+            for (int i = 0; i < DATE_LENGTH; i++) {
+                c[i] = (char) bytes[i];
+            }
+            value = new String(c);
+            int year = (c[12] - '0') * 1000 + (c[13] - '0') * 100
+                + (c[14] - '0') * 10 + (c[15] - '0');
+            int month = parseMonth(value, 8, 11);
+            int day = (c[5] - '0') * 10 + (c[6] - '0');
+            long timeOfDay = now - days(year, month, day) * MILLIS_PER_DAY;
+            centuryStartYear = year - 80;
+            day = Math.min(day, daysInMonth(month, centuryStartYear));
+            centuryStart =
+                days(centuryStartYear, month, day) * MILLIS_PER_DAY + timeOfDay;
         }
-        parseCache.put(key, value);
+
     }
 
 
@@ -19,8 +19,13 @@ package org.apache.tomcat.util.http;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
 
+import org.apache.tomcat.util.buf.Ascii;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.CharChunk;
 import org.apache.tomcat.util.buf.MessageBytes;
 
 /* XXX XXX XXX Need a major rewrite  !!!!
@@ -57,9 +62,12 @@ import org.apache.tomcat.util.buf.MessageBytes;
    Apache seems to be using a similar method for storing and manipulating
    headers.
        
+   Once there are INDEX_THRESHOLD headers, the first lookup by name hashes
+   the names into an index, headers added later are hashed by the next
+   lookup. The index is kept when a header is removed and discarded on
+   recycle, keeping its arrays.
+
    Future enhancements:
-   - hash the headers the first time a header is requested ( i.e. if the
-   servlet needs direct access to headers).
    - scan "common" values ( length, cookies, etc ) during the parse
    ( addHeader hook )
    
@@ -96,7 +104,37 @@ public class MimeHeaders {
      *  XXX  make it configurable ( fine-tuning of web-apps )
      */
     public static final int DEFAULT_HEADER_SIZE=8;
-    
+
+    /**
+     * The number of headers from which lookups by name use a hash index.
+     */
+    public static final int INDEX_THRESHOLD =
+        Integer.getInteger("org.apache.tomcat.util.http.MimeHeaders.INDEX_THRESHOLD", 12).intValue();
+
+    /**
+     * Case insensitive hashes of well known header names, by name as they
+     * are usually written, so looking up these names doesn't hash them.
+     */
+    private static final HashMap knownHashes = new HashMap();
+
+    static {
+        String[] known = { "Accept", "Accept-Charset", "Accept-Encoding",
+            "Accept-Language", "Authorization", "Cache-Control", "Connection",
+            "Content-Encoding", "Content-Language", "Content-Length",
+            "Content-Type", "Cookie", "Date", "ETag", "Expect", "Expires",
+            "Host", "If-Match", "If-Modified-Since", "If-None-Match",
+            "If-Range", "If-Unmodified-Since", "Keep-Alive", "Last-Modified",
+            "Location", "Pragma", "Proxy-Authorization", "Range", "Referer",
+            "Server", "Set-Cookie", "Set-Cookie2", "Transfer-Encoding",
+            "Upgrade", "User-Agent", "Vary", "Via", "WWW-Authenticate",
+            "X-Forwarded-For", "X-Forwarded-Proto" };
+        for (int i = 0; i < known.length; i++) {
+            Integer hash = new Integer(hash(known[i]));
+            knownHashes.put(known[i], hash);
+            knownHashes.put(known[i].toLowerCase(), hash);
+        }
+    }
+
     /**
      * The header fields.
      */
@@ -108,6 +146,38 @@ public class MimeHeaders {
      */
     private int count;
 
+    /**
+     * Use the hash index for lookups by name.
+     */
+    private boolean useIndex = true;
+
+    /**
+     * The index is valid for the first <code>indexCount</code> headers.
+     */
+    private boolean indexed = false;
+
+    /**
+     * A header name is not ASCII, so hashes can't be compared.
+     */
+    private boolean unindexable = false;
+
+    private int indexCount = 0;
+
+    /**
+     * The hash of the name of each header.
+     */
+    private int[] hashes = new int[0];
+
+    /**
+     * The next header in the same bucket, or -1.
+     */
+    private int[] chain = new int[0];
+
+    /**
+     * The first header of each bucket, or -1, the length is a power of two.
+     */
+    private int[] buckets = new int[0];
+
     /**
      * Creates a new MimeHeaders object using a default buffer size.
      */
@@ -130,6 +200,20 @@ public class MimeHeaders {
             headers[i].recycle();
         }
         count = 0;
+        indexed = false;
+        unindexable = false;
+    }
+
+    public boolean getUseIndex() {
+        return useIndex;
+    }
+
+    /**
+     * Enable or disable the hash index for lookups by name.
+     */
+    public void setUseIndex(boolean useIndex) {
+        this.useIndex = useIndex;
+        this.indexed = false;
     }
 
     /**
@@ -175,13 +259,22 @@ public class MimeHeaders {
     /** Find the index of a header with the given name.
      */
     public int findHeader( String name, int starting ) {
-        // We can use a hash - but it's not clear how much
-        // benefit you can get - there is an  overhead 
-        // and the number of headers is small (4-5 ?)
-        // Another problem is that we'll pay the overhead
-        // of constructing the hashtable
-
-        // A custom search tree may be better
+        if (useIndex && count >= INDEX_THRESHOLD && !unindexable && index()) {
+            Integer known = (Integer) knownHashes.get(name);
+            int hash = known != null ? known.intValue() : hash(name);
+            if (known != null || !isUnhashable(name)) {
+                // the chain is not ordered, find the first one
+                int result = -1;
+                for (int i = buckets[hash & (buckets.length - 1)]; i != -1; i = chain[i]) {
+                    if (i >= starting && (result == -1 || i < result)
+                        && hashes[i] == hash
+                        && headers[i].getName().equalsIgnoreCase(name)) {
+                        result = i;
+                    }
+                }
+                return result;
+            }
+        }
         for (int i = starting; i < count; i++) {
             if (headers[i].getName().equalsIgnoreCase(name)) {
                 return i;
@@ -189,6 +282,134 @@ public class MimeHeaders {
         }
         return -1;
     }
+
+    // -------------------- Index --------------------
+
+    /**
+     * Build the index, or add the headers added since.
+     * @return <code>false</code> if a name can't be indexed
+     */
+    private boolean index() {
+        if (!indexed || buckets.length < count * 2) {
+            int size = 16;
+            while (size < count * 2) {
+                size <<= 1;
+            }
+            if (buckets.length < size) {
+                buckets = new int[size];
+            }
+            Arrays.fill(buckets, -1);
+            indexCount = 0;
+            indexed = true;
+        }
+        if (hashes.length < headers.length) {
+            int[] tmp = new int[headers.length];
+            System.arraycopy(hashes, 0, tmp, 0, hashes.length);
+            hashes = tmp;
+            tmp = new int[headers.length];
+            System.arraycopy(chain, 0, tmp, 0, chain.length);
+            chain = tmp;
+        }
+        for (; indexCount < count; indexCount++) {
+            MessageBytes name = headers[indexCount].getName();
+            if (isUnhashable(name)) {
+                unindexable = true;
+                indexed = false;
+                return false;
+            }
+            link(indexCount, hash(name));
+        }
+        return true;
+    }
+
+    private void link(int i, int hash) {
+        int bucket = hash & (buckets.length - 1);
+        hashes[i] = hash;
+        chain[i] = buckets[bucket];
+        buckets[bucket] = i;
+    }
+
+    private void unlink(int i) {
+        int bucket = hashes[i] & (buckets.length - 1);
+        int prev = -1;
+        for (int j = buckets[bucket]; j != -1; prev = j, j = chain[j]) {
+            if (j == i) {
+                if (prev == -1) {
+                    buckets[bucket] = chain[j];
+                } else {
+                    chain[prev] = chain[j];
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * The hash of a name, ignoring the case of ASCII letters.
+     */
+    static int hash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = hash * 31 + Ascii.toLower(name.charAt(i));
+        }
+        return hash;
+    }
+
+    static int hash(MessageBytes name) {
+        int hash = 0;
+        switch (name.getType()) {
+        case MessageBytes.T_BYTES:
+            ByteChunk bc = name.getByteChunk();
+            byte[] b = bc.getBuffer();
+            for (int i = bc.getStart(); i < bc.getEnd(); i++) {
+                hash = hash * 31 + Ascii.toLower(b[i]);
+            }
+            return hash;
+        case MessageBytes.T_CHARS:
+            CharChunk cc = name.getCharChunk();
+            char[] c = cc.getBuffer();
+            for (int i = cc.getStart(); i < cc.getEnd(); i++) {
+                hash = hash * 31 + Ascii.toLower(c[i]);
+            }
+            return hash;
+        case MessageBytes.T_STR:
+            return hash(name.getString());
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Names that are not ASCII may be equal ignoring case without having the
+     * same hash.
+     */
+    private static boolean isUnhashable(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) > 127) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isUnhashable(MessageBytes name) {
+        switch (name.getType()) {
+        case MessageBytes.T_CHARS:
+            CharChunk cc = name.getCharChunk();
+            char[] c = cc.getBuffer();
+            for (int i = cc.getStart(); i < cc.getEnd(); i++) {
+                if (c[i] > 127) {
+                    return true;
+                }
+            }
+            return false;
+        case MessageBytes.T_STR:
+            return isUnhashable(name.getString());
+        default:
+            // a byte compares with the low byte of a char, which is ASCII
+            return false;
+        }
+    }
     
     // -------------------- --------------------
 
@@ -263,15 +484,12 @@ public class MimeHeaders {
         if this .
     */
     public MessageBytes setValue( String name ) {
-        for ( int i = 0; i < count; i++ ) {
-            if(headers[i].getName().equalsIgnoreCase(name)) {
-                for ( int j=i+1; j < count; j++ ) {
-                    if(headers[j].getName().equalsIgnoreCase(name)) {
-                        removeHeader(j--);
-                    }
-                }
-                return headers[i].getValue();
+        int i = findHeader(name, 0);
+        if (i >= 0) {
+            for (int j = findHeader(name, i + 1); j >= 0; j = findHeader(name, j)) {
+                removeHeader(j);
             }
+            return headers[i].getValue();
         }
         MimeHeaderField mh = createHeader();
         mh.getName().setString(name);
@@ -285,12 +503,8 @@ public class MimeHeaders {
      * in the header, an arbitrary one is returned.
      */
     public MessageBytes getValue(String name) {
-        for (int i = 0; i < count; i++) {
-            if (headers[i].getName().equalsIgnoreCase(name)) {
-                return headers[i].getValue();
-            }
-        }
-        return null;
+        int i = findHeader(name, 0);
+        return i >= 0 ? headers[i].getValue() : null;
     }
 
     /**
@@ -299,17 +513,14 @@ public class MimeHeaders {
      * unique then an {@link IllegalArgumentException} is thrown. 
      */
     public MessageBytes getUniqueValue(String name) {
-        MessageBytes result = null;
-        for (int i = 0; i < count; i++) {
-            if (headers[i].getName().equalsIgnoreCase(name)) {
-                if (result == null) {
-                    result = headers[i].getValue();
-                } else {
-                    throw new IllegalArgumentException();
-                }
-            }
+        int i = findHeader(name, 0);
+        if (i < 0) {
+            return null;
         }
-        return result;
+        if (findHeader(name, i + 1) >= 0) {
+            throw new IllegalArgumentException();
+        }
+        return headers[i].getValue();
     }
 
     // bad shortcut - it'll convert to string ( too early probably,
@@ -329,10 +540,9 @@ public class MimeHeaders {
         // XXX
         // warning: rather sticky code; heavily tuned
 
-        for (int i = 0; i < count; i++) {
-            if (headers[i].getName().equalsIgnoreCase(name)) {
-                removeHeader(i--);
-            }
+        // the last header takes the place of the removed one
+        for (int i = findHeader(name, 0); i >= 0; i = findHeader(name, i)) {
+            removeHeader(i);
         }
     }
 
@@ -343,6 +553,20 @@ public class MimeHeaders {
     private void removeHeader(int idx) {
         MimeHeaderField mh = headers[idx];
         
+        if (indexed) {
+            if (indexCount == count) {
+                // the last header moves to idx
+                unlink(idx);
+                if (idx != count - 1) {
+                    int hash = hashes[count - 1];
+                    unlink(count - 1);
+                    link(idx, hash);
+                }
+                indexCount--;
+            } else {
+                indexed = false;
+            }
+        }
         mh.recycle();
         headers[idx] = headers[count - 1];
         headers[count - 1] = mh;
@@ -423,12 +647,11 @@ class ValuesEnumerator implements Enumeration {
 
     private void findNext() {
         next=null;
-        for( ; pos< size; pos++ ) {
-            MessageBytes n1=headers.getName( pos );
-            if( n1.equalsIgnoreCase( name )) {
-                next=headers.getValue( pos );
-                break;
-            }
+        pos = headers.findHeader( name, pos );
+        if( pos >= 0 && pos < size ) {
+            next=headers.getValue( pos );
+        } else {
+            pos = size;
         }
         pos++;
     }
@@ -205,141 +205,25 @@ public class NioEndpoint {
     /**
      * Cache for SocketProcessor objects
      */
-    protected ConcurrentLinkedQueue<SocketProcessor> processorCache = new ConcurrentLinkedQueue<SocketProcessor>() {
-        protected AtomicInteger size = new AtomicInteger(0);
-        public boolean offer(SocketProcessor sc) {
-            sc.reset(null,null);
-            boolean offer = socketProperties.getProcessorCache()==-1?true:size.get()<socketProperties.getProcessorCache();
-            //avoid over growing our cache or add after we have stopped
-            if ( running && (!paused) && (offer) ) {
-                boolean result = super.offer(sc);
-                if ( result ) {
-                    size.incrementAndGet();
-                }
-                return result;
-            }
-            else return false;
-        }
-        
-        public SocketProcessor poll() {
-            SocketProcessor result = super.poll();
-            if ( result != null ) {
-                size.decrementAndGet();
-            }
-            return result;
-        }
-        
-        public void clear() {
-            super.clear();
-            size.set(0);
-        }
-    };
+    protected ConcurrentLinkedQueue<SocketProcessor> processorCache = new ProcessorCache(1, false);
 
 
     /**
      * Cache for key attachment objects
      */
-    protected ConcurrentLinkedQueue<KeyAttachment> keyCache = new ConcurrentLinkedQueue<KeyAttachment>() {
-        protected AtomicInteger size = new AtomicInteger(0);
-        public boolean offer(KeyAttachment ka) {
-            ka.reset();
-            boolean offer = socketProperties.getKeyCache()==-1?true:size.get()<socketProperties.getKeyCache();
-            //avoid over growing our cache or add after we have stopped
-            if ( running && (!paused) && (offer) ) {
-                boolean result = super.offer(ka);
-                if ( result ) {
-                    size.incrementAndGet();
-                }
-                return result;
-            }
-            else return false;
-        }
-
-        public KeyAttachment poll() {
-            KeyAttachment result = super.poll();
-            if ( result != null ) {
-                size.decrementAndGet();
-            }
-            return result;
-        }
-
-        public void clear() {
-            super.clear();
-            size.set(0);
-        }
-    };
+    protected ConcurrentLinkedQueue<KeyAttachment> keyCache = new KeyCache(1, false);
 
     
     /**
      * Cache for poller events
      */
-    protected ConcurrentLinkedQueue<PollerEvent> eventCache = new ConcurrentLinkedQueue<PollerEvent>() {
-        protected AtomicInteger size = new AtomicInteger(0);
-        public boolean offer(PollerEvent pe) {
-            pe.reset();
-            boolean offer = socketProperties.getEventCache()==-1?true:size.get()<socketProperties.getEventCache();
-            //avoid over growing our cache or add after we have stopped
-            if ( running && (!paused) && (offer) ) {
-                boolean result = super.offer(pe);
-                if ( result ) {
-                    size.incrementAndGet();
-                }
-                return result;
-            }
-            else return false;
-        }
-
-        public PollerEvent poll() {
-            PollerEvent result = super.poll();
-            if ( result != null ) {
-                size.decrementAndGet();
-            }
-            return result;
-        }
-
-        public void clear() {
-            super.clear();
-            size.set(0);
-        }
-    };
+    protected ConcurrentLinkedQueue<PollerEvent> eventCache = new EventCache(1, false);
 
 
     /**
      * Bytebuffer cache, each channel holds a set of buffers (two, except for SSL holds four)
      */
-    protected ConcurrentLinkedQueue<NioChannel> nioChannels = new ConcurrentLinkedQueue<NioChannel>() {
-        protected AtomicInteger size = new AtomicInteger(0);
-        protected AtomicInteger bytes = new AtomicInteger(0);
-        public boolean offer(NioChannel socket) {
-            boolean offer = socketProperties.getBufferPool()==-1?true:size.get()<socketProperties.getBufferPool();
-            offer = offer && (socketProperties.getBufferPoolSize()==-1?true:(bytes.get()+socket.getBufferSize())<socketProperties.getBufferPoolSize());
-            //avoid over growing our cache or add after we have stopped
-            if ( running && (!paused) && (offer) ) {
-                boolean result = super.offer(socket);
-                if ( result ) {
-                    size.incrementAndGet();
-                    bytes.addAndGet(socket.getBufferSize());
-                }
-                return result;
-            }
-            else return false;
-        }
-        
-        public NioChannel poll() {
-            NioChannel result = super.poll();
-            if ( result != null ) {
-                size.decrementAndGet();
-                bytes.addAndGet(-result.getBufferSize());
-            }
-            return result;
-        }
-        
-        public void clear() {
-            super.clear();
-            size.set(0);
-            bytes.set(0);
-        }
-    };
+    protected ConcurrentLinkedQueue<NioChannel> nioChannels = new ChannelCache(1, false);
 
     
 
@@ -364,7 +248,11 @@ public class NioEndpoint {
     public void setMaxThreads(int maxThreads) {
         this.maxThreads = maxThreads;
         if (running) {
-            if (getUseExecutor() && executor!=null) {
+            if (hasPartitionExecutors()) {
+                for (int i=0; i<pollers.length; i++) {
+                    if (pollers[i]!=null) pollers[i].setMaxThreads(maxThreads, pollers.length);
+                }
+            } else if (getUseExecutor() && executor!=null) {
                 if (executor instanceof ThreadPoolExecutor) {
                     ((ThreadPoolExecutor)executor).setMaximumPoolSize(maxThreads);
                 }
@@ -376,7 +264,16 @@ public class NioEndpoint {
         }
     }
     public int getMaxThreads() {
-        if (running && getUseExecutor() && executor!=null) {
+        if (running && hasPartitionExecutors()) {
+            int sum = 0;
+            for (int i=0; i<pollers.length; i++) {
+                Poller poller = pollers[i];
+                if (poller!=null && poller.executor instanceof ThreadPoolExecutor) {
+                    sum += ((ThreadPoolExecutor)poller.executor).getMaximumPoolSize();
+                }
+            }
+            return sum;
+        } else if (running && getUseExecutor() && executor!=null) {
             if (executor instanceof ThreadPoolExecutor) {
                 return ((ThreadPoolExecutor)executor).getMaximumPoolSize();
             } else {
@@ -510,6 +407,16 @@ public class NioEndpoint {
     public void setPollerThreadCount(int pollerThreadCount) { this.pollerThreadCount = pollerThreadCount; }
     public int getPollerThreadCount() { return pollerThreadCount; }
 
+    /**
+     * Partition the endpoint by poller. Each poller gets its own worker
+     * threads and object caches, and a socket stays with the poller it was
+     * registered with until it is closed, so its requests are always handled
+     * by the same small group of threads.
+     */
+    protected boolean partitioned = false;
+    public void setPartitioned(boolean partitioned) { this.partitioned = partitioned; }
+    public boolean getPartitioned() { return partitioned; }
+
     protected long selectorTimeout = 1000;
     public void setSelectorTimeout(long timeout){ this.selectorTimeout = timeout;}
     public long getSelectorTimeout(){ return this.selectorTimeout; }
@@ -714,6 +621,10 @@ public class NioEndpoint {
         this.keyCache.clear();
         this.nioChannels.clear();
         this.processorCache.clear();
+        Poller[] pollers = this.pollers;
+        for (int i=0; pollers!=null && i<pollers.length; i++) {
+            if (pollers[i]!=null) pollers[i].releaseCaches();
+        }
         if ( handler != null ) handler.releaseCaches();
         
     }
@@ -742,7 +653,16 @@ public class NioEndpoint {
      * @return the amount of threads that are managed by the pool
      */
     public int getCurrentThreadCount() {
-        if (executor!=null) {
+        if (hasPartitionExecutors()) {
+            int sum = 0;
+            for (int i=0; i<pollers.length; i++) {
+                Poller poller = pollers[i];
+                if (poller!=null && poller.executor instanceof ThreadPoolExecutor) {
+                    sum += ((ThreadPoolExecutor)poller.executor).getPoolSize();
+                }
+            }
+            return sum;
+        } else if (executor!=null) {
             if (executor instanceof ThreadPoolExecutor) {
                 return ((ThreadPoolExecutor)executor).getPoolSize();
             } else {
@@ -759,7 +679,16 @@ public class NioEndpoint {
      * @return the amount of threads that are in use
      */
     public int getCurrentThreadsBusy() {
-        if (executor!=null) {
+        if (hasPartitionExecutors()) {
+            int sum = 0;
+            for (int i=0; i<pollers.length; i++) {
+                Poller poller = pollers[i];
+                if (poller!=null && poller.executor instanceof ThreadPoolExecutor) {
+                    sum += ((ThreadPoolExecutor)poller.executor).getActiveCount();
+                }
+            }
+            return sum;
+        } else if (executor!=null) {
             if (executor instanceof ThreadPoolExecutor) {
                 return ((ThreadPoolExecutor)executor).getActiveCount();
             } else {
@@ -770,6 +699,77 @@ public class NioEndpoint {
         }
     }
 
+    /**
+     * Return the number of requests the pollers handed off to a worker thread.
+     */
+    public long getHandoffCount() {
+        long sum = 0;
+        Poller[] pollers = this.pollers;
+        for (int i=0; pollers!=null && i<pollers.length; i++) {
+            if (pollers[i]!=null) sum += pollers[i].handoffs;
+        }
+        return sum;
+    }
+
+    /**
+     * Return the number of hand offs that were made from a thread other than
+     * the socket's own poller, such as a comet event raised by the
+     * application.
+     */
+    public long getRemoteHandoffCount() {
+        long sum = 0;
+        Poller[] pollers = this.pollers;
+        for (int i=0; pollers!=null && i<pollers.length; i++) {
+            if (pollers[i]!=null) sum += pollers[i].remoteHandoffs;
+        }
+        return sum;
+    }
+
+    /**
+     * Return the number of times an object had to be created because its
+     * cache was empty, over the processor, key, event and channel caches.
+     * Only the caches of the pollers of a partitioned endpoint are counted,
+     * -1 if the endpoint isn't partitioned.
+     */
+    public long getCacheMissCount() {
+        Poller[] pollers = this.pollers;
+        if (!partitioned || pollers==null) return -1;
+        long sum = 0;
+        for (int i=0; i<pollers.length; i++) {
+            Poller poller = pollers[i];
+            if (poller==null) continue;
+            sum += misses(poller.processorCache) + misses(poller.keyCache)
+                + misses(poller.eventCache) + misses(poller.nioChannels);
+        }
+        return sum;
+    }
+
+    /**
+     * Return one line of statistics per poller: registered keys, hand offs,
+     * worker threads and the size/hits/misses of each cache.
+     */
+    public String[] getPartitionStats() {
+        Poller[] pollers = this.pollers;
+        if (pollers==null) return new String[0];
+        String[] result = new String[pollers.length];
+        for (int i=0; i<pollers.length; i++) {
+            Poller poller = pollers[i];
+            result[i] = (poller!=null)?poller.getStats(i):("poller=" + i + " stopped");
+        }
+        return result;
+    }
+
+    protected static long misses(ConcurrentLinkedQueue<?> cache) {
+        return (cache instanceof ObjectCache)?((ObjectCache<?>)cache).misses:0;
+    }
+
+    protected static String cacheStats(ConcurrentLinkedQueue<?> cache) {
+        if (!(cache instanceof ObjectCache)) return "-";
+        ObjectCache<?> oc = (ObjectCache<?>)cache;
+        if (!oc.counted) return String.valueOf(oc.size.get());
+        return oc.size.get() + "/" + oc.hits + "/" + oc.misses;
+    }
+
     /**
      * Return the state of the endpoint.
      *
@@ -891,11 +891,9 @@ public class NioEndpoint {
             
             // Create worker collection
             if (getUseExecutor()) {
-                if ( executor == null ) {
-                    TaskQueue taskqueue = new TaskQueue();
-                    TaskThreadFactory tf = new TaskThreadFactory(getName() + "-exec-");
-                    executor = new ThreadPoolExecutor(getMinSpareThreads(), getMaxThreads(), 60, TimeUnit.SECONDS,taskqueue, tf);
-                    taskqueue.setParent( (ThreadPoolExecutor) executor, this);
+                //a partitioned endpoint creates one executor per poller
+                if ( executor == null && !partitioned ) {
+                    executor = createExecutor(getName() + "-exec-", getMinSpareThreads(), getMaxThreads(), activeSocketProcessors);
                 }
             } else if ( executor == null ) {//avoid two thread pools being created
                 workers = new WorkerStack(maxThreads);
@@ -905,6 +903,7 @@ public class NioEndpoint {
             pollers = new Poller[getPollerThreadCount()];
             for (int i=0; i<pollers.length; i++) {
                 pollers[i] = new Poller();
+                if ( partitioned ) pollers[i].partition(i, pollers.length);
                 Thread pollerThread = new Thread(pollers[i], getName() + "-ClientPoller-"+i);
                 pollerThread.setPriority(threadPriority);
                 pollerThread.setDaemon(true);
@@ -954,22 +953,25 @@ public class NioEndpoint {
             for (int i=0; pollers!=null && i<pollers.length; i++) {
                 if (pollers[i]==null) continue;
                 pollers[i].destroy();
-                pollers[i] = null;
             }
             try { stopLatch.await(selectorTimeout+100,TimeUnit.MILLISECONDS); } catch (InterruptedException ignore ) {}
         }
+        for (int i=0; pollers!=null && i<pollers.length; i++) {
+            if (pollers[i]==null) continue;
+            pollers[i].eventCache.clear();
+            pollers[i].releaseCaches();
+            if ( pollers[i].executor!=null ) {
+                shutdownExecutor(pollers[i].executor);
+                pollers[i].executor = null;
+            }
+            pollers[i] = null;
+        }
         eventCache.clear();
         keyCache.clear();
         nioChannels.clear();
         processorCache.clear();
         if ( executor!=null ) {
-            if ( executor instanceof ThreadPoolExecutor ) {
-                //this is our internal one, so we need to shut it down
-                ThreadPoolExecutor tpe = (ThreadPoolExecutor) executor;
-                tpe.shutdownNow();
-                TaskQueue queue = (TaskQueue) tpe.getQueue();
-                queue.setParent(null,null);
-            }
+            shutdownExecutor(executor);
             executor = null;
         }
         
@@ -1010,6 +1012,40 @@ public class NioEndpoint {
         return sequence++;
     }
 
+    /**
+     * Create an internal worker pool whose queue sizes itself on the given
+     * count of busy socket processors.
+     */
+    protected ThreadPoolExecutor createExecutor(String namePrefix, int minThreads, int maxThreads, AtomicInteger active) {
+        TaskQueue taskqueue = new TaskQueue();
+        TaskThreadFactory tf = new TaskThreadFactory(namePrefix);
+        ThreadPoolExecutor tpe = new ThreadPoolExecutor(minThreads, maxThreads, 60, TimeUnit.SECONDS,taskqueue, tf);
+        taskqueue.setParent(tpe, this, active);
+        return tpe;
+    }
+
+    protected void shutdownExecutor(Executor executor) {
+        if ( executor instanceof ThreadPoolExecutor ) {
+            //this is our internal one, so we need to shut it down
+            ThreadPoolExecutor tpe = (ThreadPoolExecutor) executor;
+            tpe.shutdownNow();
+            TaskQueue queue = (TaskQueue) tpe.getQueue();
+            queue.setParent(null,null);
+        }
+    }
+
+    /**
+     * Returns true if the pollers dispatch to their own executors rather than
+     * to the endpoint's executor or worker stack.
+     */
+    protected boolean hasPartitionExecutors() {
+        Poller[] pollers = this.pollers;
+        if (pollers==null || pollers.length==0) return false;
+        //the last poller is the last one to get its executor on start
+        Poller poller = pollers[pollers.length-1];
+        return poller!=null && poller.executor!=null;
+    }
+
     public int getWriteBufSize() {
         return socketProperties.getTxBufSize();
     }
@@ -1089,7 +1125,8 @@ public class NioEndpoint {
             Socket sock = socket.socket();
             socketProperties.setProperties(sock);
 
-            NioChannel channel = nioChannels.poll();
+            Poller poller = getPoller0();
+            NioChannel channel = poller.nioChannels.poll();
             if ( channel == null ) {
                 // SSL setup
                 if (sslContext != null) {
@@ -1116,7 +1153,7 @@ public class NioEndpoint {
                     channel.reset();
                 }
             }
-            getPoller0().register(channel);
+            poller.register(channel);
         } catch (Throwable t) {
             try {
                 log.error("",t);
@@ -1150,7 +1187,7 @@ public class NioEndpoint {
      * @return boolean
      */
     protected boolean isWorkerAvailable() {
-        if ( executor != null ) {
+        if ( executor != null || hasPartitionExecutors() ) {
             return true;
         } else {
             if (workers.size() > 0) {
@@ -1263,13 +1300,18 @@ public class NioEndpoint {
         try {
             KeyAttachment attachment = (KeyAttachment)socket.getAttachment(false);
             attachment.setCometNotify(false); //will get reset upon next reg
-            if (executor == null) {
+            Poller poller = socket.getPoller();
+            Executor pool = poller.getExecutor();
+            if (pool == null) {
                 getWorkerThread().assign(socket, status);
             } else {
-                SocketProcessor sc = processorCache.poll();
+                SocketProcessor sc = poller.processorCache.poll();
                 if ( sc == null ) sc = new SocketProcessor(socket,status);
                 else sc.reset(socket,status);
-                if ( dispatch ) executor.execute(sc);
+                if ( dispatch ) {
+                    poller.handoff();
+                    pool.execute(sc);
+                }
                 else sc.run();
             }
         } catch (Throwable t) {
@@ -1434,6 +1476,28 @@ public class NioEndpoint {
         
         protected CountDownLatch stopLatch = new CountDownLatch(1);
 
+        /**
+         * The caches and the busy processor count used by the sockets of this
+         * poller. They are the endpoint's own unless it is partitioned.
+         */
+        protected ConcurrentLinkedQueue<SocketProcessor> processorCache = NioEndpoint.this.processorCache;
+        protected ConcurrentLinkedQueue<KeyAttachment> keyCache = NioEndpoint.this.keyCache;
+        protected ConcurrentLinkedQueue<PollerEvent> eventCache = NioEndpoint.this.eventCache;
+        protected ConcurrentLinkedQueue<NioChannel> nioChannels = NioEndpoint.this.nioChannels;
+        protected AtomicInteger activeSocketProcessors = NioEndpoint.this.activeSocketProcessors;
+
+        /**
+         * The executor of this partition, null to use the endpoint's.
+         */
+        protected Executor executor = null;
+
+        protected Thread thread = null;
+
+        /**
+         * Hand off statistics, updated without synchronization.
+         */
+        protected long handoffs = 0;
+        protected long remoteHandoffs = 0;
 
 
         public Poller() throws IOException {
@@ -1442,6 +1506,67 @@ public class NioEndpoint {
         
         public Selector getSelector() { return selector;}
 
+        public Executor getExecutor() {
+            return (executor!=null)?executor:NioEndpoint.this.executor;
+        }
+
+        /**
+         * Give this poller its own share of the caches and, when the endpoint
+         * manages its own threads, of the worker threads.
+         */
+        protected void partition(int index, int count) {
+            processorCache = new ProcessorCache(count, true);
+            keyCache = new KeyCache(count, true);
+            eventCache = new EventCache(count, true);
+            nioChannels = new ChannelCache(count, true);
+            activeSocketProcessors = new AtomicInteger(0);
+            if ( getUseExecutor() && NioEndpoint.this.executor == null ) {
+                int max = Math.max(1, (maxThreads+count-1)/count);
+                int min = Math.min(max, Math.max(1, getMinSpareThreads()/count));
+                executor = createExecutor(getName() + "-exec-" + index + "-", min, max, activeSocketProcessors);
+            }
+        }
+
+        protected void setMaxThreads(int maxThreads, int count) {
+            if ( executor instanceof ThreadPoolExecutor ) {
+                ThreadPoolExecutor tpe = (ThreadPoolExecutor)executor;
+                int max = Math.max(1, (maxThreads+count-1)/count);
+                if ( tpe.getCorePoolSize() > max ) tpe.setCorePoolSize(max);
+                tpe.setMaximumPoolSize(max);
+            }
+        }
+
+        protected void handoff() {
+            handoffs++;
+            if ( Thread.currentThread() != thread ) remoteHandoffs++;
+        }
+
+        protected void releaseCaches() {
+            keyCache.clear();
+            nioChannels.clear();
+            processorCache.clear();
+        }
+
+        protected String getStats(int index) {
+            StringBuffer buf = new StringBuffer("poller=");
+            buf.append(index);
+            buf.append(" keys=").append(selector.keys().size());
+            buf.append(" handoffs=").append(handoffs);
+            buf.append(" remote=").append(remoteHandoffs);
+            buf.append(" active=").append(activeSocketProcessors.get());
+            if ( executor instanceof ThreadPoolExecutor ) {
+                ThreadPoolExecutor tpe = (ThreadPoolExecutor)executor;
+                buf.append(" threads=").append(tpe.getPoolSize());
+                buf.append("/").append(tpe.getMaximumPoolSize());
+                buf.append(" queued=").append(tpe.getQueue().size());
+            }
+            buf.append(" processorCache=").append(cacheStats(processorCache));
+            buf.append(" keyCache=").append(cacheStats(keyCache));
+            buf.append(" eventCache=").append(cacheStats(eventCache));
+            buf.append(" nioChannels=").append(cacheStats(nioChannels));
+            return buf.toString();
+        }
+
         /**
          * Destroy the poller.
          */
@@ -1557,6 +1682,7 @@ public class NioEndpoint {
          * hands them off to an appropriate processor.
          */
         public void run() {
+            thread = Thread.currentThread();
             // Loop until we receive a shutdown command
             while (running) {
                 try {
@@ -2061,7 +2187,7 @@ public class NioEndpoint {
                         }
                     } else {
                         socket = (NioChannel)channel;
-                        SocketProcessor sc = processorCache.poll();
+                        SocketProcessor sc = socket.getPoller().processorCache.poll();
                         if ( sc == null ) sc = new SocketProcessor(socket,status);
                         else sc.reset(socket,status);
                         sc.run();
@@ -2243,7 +2369,8 @@ public class NioEndpoint {
         }
          
         public void run() {
-            NioEndpoint.this.activeSocketProcessors.addAndGet(1);
+            final Poller poller = socket.getPoller();
+            poller.activeSocketProcessors.addAndGet(1);
             SelectionKey key = null;
             try {
                 key = socket.getIOChannel().keyFor(socket.getPoller().getSelector());
@@ -2271,9 +2398,9 @@ public class NioEndpoint {
                                 if (ka!=null) ka.setComet(false);
                                 socket.getPoller().cancelledKey(key, SocketStatus.ERROR, false);
                             }
-                            if (socket!=null) nioChannels.offer(socket);
+                            if (socket!=null) poller.nioChannels.offer(socket);
                             socket = null;
-                            if ( ka!=null ) keyCache.offer(ka);
+                            if ( ka!=null ) poller.keyCache.offer(ka);
                             ka = null;
                         }catch ( Exception x ) {
                             log.error("",x);
@@ -2285,9 +2412,9 @@ public class NioEndpoint {
                         ka = (KeyAttachment) key.attachment();
                         socket.getPoller().cancelledKey(key, SocketStatus.DISCONNECT, false);
                     }
-                    if (socket!=null) nioChannels.offer(socket);
+                    if (socket!=null) poller.nioChannels.offer(socket);
                     socket = null;
-                    if ( ka!=null ) keyCache.offer(ka);
+                    if ( ka!=null ) poller.keyCache.offer(ka);
                     ka = null;
                 } else {
                     final SelectionKey fk = key;
@@ -2316,16 +2443,126 @@ public class NioEndpoint {
                 socket = null;
                 status = null;
                 //return to cache
-                processorCache.offer(this);
-                NioEndpoint.this.activeSocketProcessors.addAndGet(-1);            }
+                poller.processorCache.offer(this);
+                poller.activeSocketProcessors.addAndGet(-1);            }
         }
 
     }
     
+    // -------------------------------------------------- Cache Inner Classes
+
+
+    /**
+     * Bounded cache of recycled objects. The pollers share the endpoint's
+     * caches unless it is partitioned, in which case each poller has its
+     * own, holding its share of the configured limit.
+     */
+    protected abstract class ObjectCache<T> extends ConcurrentLinkedQueue<T> {
+        protected AtomicInteger size = new AtomicInteger(0);
+        protected int partitions = 1;
+        /**
+         * Polls answered from the cache and polls that found it empty,
+         * updated without synchronization and only if <code>counted</code>.
+         * The caches shared by all pollers aren't counted, as every poll
+         * would write the same fields.
+         */
+        protected final boolean counted;
+        protected long hits = 0;
+        protected long misses = 0;
+
+        public ObjectCache(int partitions, boolean counted) {
+            this.partitions = partitions;
+            this.counted = counted;
+        }
+
+        /**
+         * @return the configured limit for the whole endpoint, -1 for none
+         */
+        protected abstract int getLimit();
+
+        protected void recycle(T o) {}
+        protected void added(T o) {}
+        protected void removed(T o) {}
+
+        protected boolean accept(T o) {
+            int limit = getLimit();
+            return limit==-1?true:size.get()<(limit+partitions-1)/partitions;
+        }
+
+        public boolean offer(T o) {
+            recycle(o);
+            //avoid over growing our cache or add after we have stopped
+            if ( running && (!paused) && accept(o) ) {
+                boolean result = super.offer(o);
+                if ( result ) {
+                    size.incrementAndGet();
+                    added(o);
+                }
+                return result;
+            }
+            else return false;
+        }
+
+        public T poll() {
+            T result = super.poll();
+            if ( result != null ) {
+                size.decrementAndGet();
+                removed(result);
+                if ( counted ) hits++;
+            } else if ( counted ) {
+                misses++;
+            }
+            return result;
+        }
+
+        public void clear() {
+            while ( super.poll() != null ) ;
+            size.set(0);
+        }
+    }
+
+    protected class ProcessorCache extends ObjectCache<SocketProcessor> {
+        public ProcessorCache(int partitions, boolean counted) { super(partitions, counted); }
+        protected int getLimit() { return socketProperties.getProcessorCache(); }
+        protected void recycle(SocketProcessor sc) { sc.reset(null,null); }
+    }
+
+    protected class KeyCache extends ObjectCache<KeyAttachment> {
+        public KeyCache(int partitions, boolean counted) { super(partitions, counted); }
+        protected int getLimit() { return socketProperties.getKeyCache(); }
+        protected void recycle(KeyAttachment ka) { ka.reset(); }
+    }
+
+    protected class EventCache extends ObjectCache<PollerEvent> {
+        public EventCache(int partitions, boolean counted) { super(partitions, counted); }
+        protected int getLimit() { return socketProperties.getEventCache(); }
+        protected void recycle(PollerEvent pe) { pe.reset(); }
+    }
+
+    protected class ChannelCache extends ObjectCache<NioChannel> {
+        protected AtomicInteger bytes = new AtomicInteger(0);
+        public ChannelCache(int partitions, boolean counted) { super(partitions, counted); }
+        protected int getLimit() { return socketProperties.getBufferPool(); }
+
+        protected boolean accept(NioChannel socket) {
+            int limit = socketProperties.getBufferPoolSize();
+            return super.accept(socket) && (limit==-1?true:(bytes.get()+socket.getBufferSize())<limit/partitions);
+        }
+
+        protected void added(NioChannel socket) { bytes.addAndGet(socket.getBufferSize()); }
+        protected void removed(NioChannel socket) { bytes.addAndGet(-socket.getBufferSize()); }
+
+        public void clear() {
+            super.clear();
+            bytes.set(0);
+        }
+    }
+
     // ---------------------------------------------- TaskQueue Inner Class
     public static class TaskQueue extends LinkedBlockingQueue<Runnable> {
         ThreadPoolExecutor parent = null;
         NioEndpoint endpoint = null;
+        AtomicInteger active = null;
         
         public TaskQueue() {
             super();
@@ -2341,8 +2578,17 @@ public class NioEndpoint {
 
         
         public void setParent(ThreadPoolExecutor tp, NioEndpoint ep) {
+            setParent(tp, ep, (ep!=null)?ep.activeSocketProcessors:null);
+        }
+
+        /**
+         * @param active the busy processor count of the pollers feeding this
+         * queue, which is the endpoint's unless it is partitioned
+         */
+        public void setParent(ThreadPoolExecutor tp, NioEndpoint ep, AtomicInteger active) {
             parent = tp;
             this.endpoint = ep;
+            this.active = active;
         }
         
         public boolean offer(Runnable o) {
@@ -2352,7 +2598,7 @@ public class NioEndpoint {
             if (parent.getPoolSize() == parent.getMaximumPoolSize()) return super.offer(o);
             //we have idle threads, just add it to the queue
             //this is an approximation, so it could use some tuning
-            if (endpoint.activeSocketProcessors.get()<(parent.getPoolSize())) return super.offer(o);
+            if (active.get()<(parent.getPoolSize())) return super.offer(o);
             //if we have less threads than maximum force creation of a new thread
             if (parent.getPoolSize()<parent.getMaximumPoolSize()) return false;
             //if we reached here, we need to add it to the queue
@@ -0,0 +1,251 @@
+package com.esotericsoftware.kryo.serialize;
+
+import static org.testng.Assert.*;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.SerializationException;
+
+/**
+ * Test for the {@link FieldAccessor}s of {@link UnsafeFieldAccessorFactory} and {@link FieldAccessorFactory#REFLECTION}, and for
+ * {@link FieldSerializer} with private primitive and final fields.
+ */
+public class FieldAccessorTest {
+	@Test
+	public void testUnsafeIsAvailable () {
+		assertTrue(UnsafeFieldAccessorFactory.isAvailable());
+		assertSame(FieldAccessorFactory.getDefault(), UnsafeFieldAccessorFactory.INSTANCE);
+	}
+
+	@Test
+	public void testPrimitiveFields () throws Exception {
+		testPrimitiveFields(UnsafeFieldAccessorFactory.INSTANCE);
+		testPrimitiveFields(FieldAccessorFactory.REFLECTION);
+	}
+
+	private void testPrimitiveFields (FieldAccessorFactory factory) throws Exception {
+		Primitives object = new Primitives();
+
+		accessor(factory, "intValue").setInt(object, -42);
+		accessor(factory, "longValue").setLong(object, Long.MIN_VALUE);
+		accessor(factory, "booleanValue").setBoolean(object, true);
+		accessor(factory, "doubleValue").setDouble(object, 1.5);
+		accessor(factory, "floatValue").setFloat(object, -2.5f);
+		accessor(factory, "shortValue").setShort(object, (short)-300);
+		accessor(factory, "byteValue").setByte(object, (byte)-7);
+		accessor(factory, "charValue").setChar(object, '\u20AC');
+		assertEquals(object, new Primitives(-42, Long.MIN_VALUE, true, 1.5, -2.5f, (short)-300, (byte)-7, '\u20AC'));
+
+		assertEquals(accessor(factory, "intValue").getInt(object), -42);
+		assertEquals(accessor(factory, "longValue").getLong(object), Long.MIN_VALUE);
+		assertEquals(accessor(factory, "booleanValue").getBoolean(object), true);
+		assertEquals(accessor(factory, "doubleValue").getDouble(object), 1.5);
+		assertEquals(accessor(factory, "floatValue").getFloat(object), -2.5f);
+		assertEquals(accessor(factory, "shortValue").getShort(object), (short)-300);
+		assertEquals(accessor(factory, "byteValue").getByte(object), (byte)-7);
+		assertEquals(accessor(factory, "charValue").getChar(object), '\u20AC');
+
+		// The boxed methods work on the same fields.
+		assertEquals(accessor(factory, "intValue").get(object), Integer.valueOf(-42));
+		assertEquals(accessor(factory, "charValue").get(object), Character.valueOf('\u20AC'));
+		accessor(factory, "longValue").set(object, Long.valueOf(7));
+		accessor(factory, "booleanValue").set(object, Boolean.FALSE);
+		assertEquals(accessor(factory, "longValue").getLong(object), 7L);
+		assertEquals(accessor(factory, "booleanValue").getBoolean(object), false);
+	}
+
+	@Test
+	public void testFinalFields () throws Exception {
+		FinalFields object = new FinalFields(1, "foo");
+		FieldAccessor number = accessor(UnsafeFieldAccessorFactory.INSTANCE, FinalFields.class, "number");
+		FieldAccessor name = accessor(UnsafeFieldAccessorFactory.INSTANCE, FinalFields.class, "name");
+		number.setInt(object, 2);
+		name.set(object, "bar");
+		assertEquals(object.number, 2);
+		assertEquals(object.name, "bar");
+		assertEquals(name.get(object), "bar");
+		name.set(object, null);
+		assertNull(object.name);
+	}
+
+	@Test
+	public void testObjectFieldTypeMismatch () throws Exception {
+		FinalFields object = new FinalFields(1, "foo");
+		FieldAccessor name = accessor(UnsafeFieldAccessorFactory.INSTANCE, FinalFields.class, "name");
+		assertTrue(name instanceof UnsafeFieldAccessorFactory.ObjectFieldAccessor);
+		try {
+			name.set(object, Integer.valueOf(1));
+			fail("An Integer must not be set to a String field.");
+		} catch (IllegalArgumentException expected) {
+		}
+		assertEquals(object.name, "foo");
+	}
+
+	@Test
+	public void testFieldSerializer () {
+		Primitives object = new Primitives(-42, Long.MAX_VALUE, true, Double.NaN, 0.25f, Short.MIN_VALUE, Byte.MAX_VALUE, 'x');
+		object.name = "foo";
+		FinalFields finalFields = new FinalFields(300, "bar");
+
+		ByteBuffer unsafe = write(UnsafeFieldAccessorFactory.INSTANCE, object, finalFields);
+		ByteBuffer reflection = write(FieldAccessorFactory.REFLECTION, object, finalFields);
+		// The typed accessors write the same bytes as the serializers.
+		assertEquals(unsafe, reflection);
+		assertEquals(unsafe, write(new BoxingFactory(), object, finalFields));
+
+		for (FieldAccessorFactory factory : new FieldAccessorFactory[] {UnsafeFieldAccessorFactory.INSTANCE,
+			FieldAccessorFactory.REFLECTION, new BoxingFactory()}) {
+			Kryo kryo = newKryo(factory);
+			ByteBuffer buffer = unsafe.duplicate();
+			assertEquals(kryo.readObjectData(buffer, Primitives.class), object);
+			FinalFields read = kryo.readObjectData(buffer, FinalFields.class);
+			assertEquals(read.number, 300);
+			assertEquals(read.name, "bar");
+			assertFalse(buffer.hasRemaining());
+		}
+	}
+
+	@Test
+	public void testFieldSerializerWithCustomSerializer () {
+		Kryo kryo = newKryo(UnsafeFieldAccessorFactory.INSTANCE);
+		// An int field with a serializer that is not the registered one is written by the serializer: -1 is written with 1 byte
+		// instead of 5, plus the byte for null.
+		((FieldSerializer)kryo.getRegisteredClass(Primitives.class).getSerializer()).getField("intValue").setClass(int.class,
+			new IntSerializer(false));
+		Primitives object = new Primitives(-1, 0, false, 0, 0, (short)0, (byte)0, 'a');
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		kryo.writeObjectData(buffer, object);
+		buffer.flip();
+		assertEquals(buffer.remaining(), write(UnsafeFieldAccessorFactory.INSTANCE, object).remaining() - 3);
+		assertEquals(kryo.readObjectData(buffer, Primitives.class), object);
+	}
+
+	@Test(expectedExceptions = SerializationException.class)
+	public void testWrongObjectTypeFails () {
+		Kryo kryo = newKryo(UnsafeFieldAccessorFactory.INSTANCE);
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		// A field of type Object, written as Integer and read into a CharSequence field.
+		ObjectField object = new ObjectField();
+		object.value = Integer.valueOf(1);
+		kryo.writeObjectData(buffer, object);
+		buffer.flip();
+		kryo.readObjectData(buffer, CharSequenceField.class);
+	}
+
+	static private ByteBuffer write (FieldAccessorFactory factory, Object... objects) {
+		Kryo kryo = newKryo(factory);
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		for (Object object : objects)
+			kryo.writeObjectData(buffer, object);
+		buffer.flip();
+		return buffer;
+	}
+
+	static private Kryo newKryo (FieldAccessorFactory factory) {
+		Kryo kryo = new Kryo();
+		kryo.setFieldAccessorFactory(factory);
+		kryo.register(Primitives.class);
+		kryo.register(FinalFields.class);
+		kryo.register(ObjectField.class);
+		kryo.register(CharSequenceField.class);
+		return kryo;
+	}
+
+	static private FieldAccessor accessor (FieldAccessorFactory factory, String name) throws Exception {
+		return accessor(factory, Primitives.class, name);
+	}
+
+	static private FieldAccessor accessor (FieldAccessorFactory factory, Class type, String name) throws Exception {
+		Field field = type.getDeclaredField(name);
+		field.setAccessible(true);
+		return factory.newFieldAccessor(field);
+	}
+
+	/**
+	 * Uses the default implementation of the typed methods, which box the values.
+	 */
+	static private class BoxingFactory extends FieldAccessorFactory {
+		public FieldAccessor newFieldAccessor (final Field field) {
+			return new FieldAccessor(field) {
+				public Object get (Object object) throws IllegalAccessException {
+					return field.get(object);
+				}
+
+				public void set (Object object, Object value) throws IllegalAccessException {
+					field.set(object, value);
+				}
+			};
+		}
+	}
+
+	static private class Primitives {
+		private int intValue;
+		private long longValue;
+		private boolean booleanValue;
+		private double doubleValue;
+		private float floatValue;
+		private short shortValue;
+		private byte byteValue;
+		private char charValue;
+		private String name;
+
+		Primitives () {
+		}
+
+		Primitives (int intValue, long longValue, boolean booleanValue, double doubleValue, float floatValue, short shortValue,
+			byte byteValue, char charValue) {
+			this.intValue = intValue;
+			this.longValue = longValue;
+			this.booleanValue = booleanValue;
+			this.doubleValue = doubleValue;
+			this.floatValue = floatValue;
+			this.shortValue = shortValue;
+			this.byteValue = byteValue;
+			this.charValue = charValue;
+		}
+
+		public boolean equals (Object obj) {
+			if (!(obj instanceof Primitives)) return false;
+			Primitives other = (Primitives)obj;
+			return intValue == other.intValue && longValue == other.longValue && booleanValue == other.booleanValue
+				&& Double.compare(doubleValue, other.doubleValue) == 0 && Float.compare(floatValue, other.floatValue) == 0
+				&& shortValue == other.shortValue && byteValue == other.byteValue && charValue == other.charValue
+				&& (name == null ? other.name == null : name.equals(other.name));
+		}
+
+		public int hashCode () {
+			return intValue;
+		}
+
+		public String toString () {
+			return intValue + "," + longValue + "," + booleanValue + "," + doubleValue + "," + floatValue + "," + shortValue + ","
+				+ byteValue + "," + charValue + "," + name;
+		}
+	}
+
+	static private class FinalFields {
+		private final int number;
+		private final String name;
+
+		FinalFields () {
+			this(0, null);
+		}
+
+		FinalFields (int number, String name) {
+			this.number = number;
+			this.name = name;
+		}
+	}
+
+	static private class ObjectField {
+		Object value;
+	}
+
+	static private class CharSequenceField {
+		CharSequence value;
+	}
+}
@@ -0,0 +1,144 @@
+
+package com.esotericsoftware.kryo.serialize;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Random;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.ObjectBuffer;
+
+/**
+ * Compares the per-byte string encoding that StringSerializer used before with the current one, for heap and direct buffers, and
+ * shows the size and speed of a session-like map with and without string references. Run with the number of iterations as optional
+ * argument. The encoding itself is tested by {@link StringSerializerTest}.
+ */
+public class StringSerializerBenchmark {
+	static private final int WARMUP = 3;
+
+	static public void main (String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		Random random = new Random(42);
+		String[] ascii = new String[64];
+		String[] mixed = new String[64];
+		for (int i = 0; i < ascii.length; i++) {
+			ascii[i] = randomString(random, 8 + random.nextInt(120), false);
+			mixed[i] = randomString(random, 8 + random.nextInt(120), true);
+		}
+		for (int run = 0; run <= WARMUP; run++) {
+			boolean print = run == WARMUP;
+			run("ascii heap", ByteBuffer.allocate(1024), ascii, iterations, print);
+			run("ascii direct", ByteBuffer.allocateDirect(1024), ascii, iterations, print);
+			run("mixed heap", ByteBuffer.allocate(1024), mixed, iterations, print);
+			run("mixed direct", ByteBuffer.allocateDirect(1024), mixed, iterations, print);
+			runReferences(iterations / 100, print);
+		}
+	}
+
+	static private void run (String name, ByteBuffer buffer, String[] values, int iterations, boolean print) {
+		long perByte = 0, bulk = 0;
+		int check = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				String s = values[i & (values.length - 1)];
+				buffer.clear();
+				if (pass == 0) putPerByte(buffer, s);
+				else
+					StringSerializer.put(buffer, s);
+				buffer.flip();
+				check += (pass == 0 ? getPerByte(buffer) : StringSerializer.get(buffer)).length();
+			}
+			long time = System.nanoTime() - start;
+			if (pass == 0) perByte = time;
+			else
+				bulk = time;
+		}
+		if (print)
+			System.out.println(name + ": per byte " + perByte / iterations + " ns, bulk " + bulk / iterations + " ns per round trip ("
+				+ check + ")");
+	}
+
+	static private void runReferences (int iterations, boolean print) {
+		HashMap<String, Object> attributes = new HashMap<String, Object>();
+		for (int i = 0; i < 50; i++) {
+			HashMap<String, Object> item = new HashMap<String, Object>();
+			item.put("id", "item-" + i);
+			item.put("type", "de.javakaffee.web.msm.example.ShoppingCartItem");
+			item.put("currency", "EUR");
+			item.put("category", i % 2 == 0 ? "books" : "music");
+			attributes.put("cart.item." + i, item);
+		}
+		for (int pass = 0; pass < 2; pass++) {
+			Kryo kryo = new Kryo();
+			kryo.setRegistrationOptional(true);
+			kryo.register(String.class, new StringSerializer(pass == 1));
+			ObjectBuffer buffer = new ObjectBuffer(kryo, 16 * 1024, 1024 * 1024);
+			int size = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				byte[] bytes = buffer.writeObject(attributes);
+				size = bytes.length;
+				if (!attributes.equals(buffer.readObject(bytes, HashMap.class))) throw new IllegalStateException("Round trip failed.");
+			}
+			long time = System.nanoTime() - start;
+			if (print)
+				System.out.println("session map, references " + (pass == 1) + ": " + size + " bytes, " + time / iterations / 1000
+					+ " us per round trip");
+		}
+	}
+
+	static private String randomString (Random random, int length, boolean mixed) {
+		StringBuilder buffer = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			if (mixed && random.nextInt(8) == 0)
+				buffer.append((char)(0x00C0 + random.nextInt(0x3000)));
+			else
+				buffer.append((char)('a' + random.nextInt(26)));
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * The encoding as it was done before the bulk ASCII path.
+	 */
+	static private void putPerByte (ByteBuffer buffer, String value) {
+		int charCount = value.length();
+		IntSerializer.put(buffer, charCount, true);
+		int c;
+		for (int i = 0; i < charCount; i++) {
+			c = value.charAt(i);
+			if (c <= 0x007F) {
+				buffer.put((byte)c);
+			} else if (c > 0x07FF) {
+				buffer.put((byte)(0xE0 | c >> 12 & 0x0F));
+				buffer.put((byte)(0x80 | c >> 6 & 0x3F));
+				buffer.put((byte)(0x80 | c >> 0 & 0x3F));
+			} else {
+				buffer.put((byte)(0xC0 | c >> 6 & 0x1F));
+				buffer.put((byte)(0x80 | c >> 0 & 0x3F));
+			}
+		}
+	}
+
+	static private String getPerByte (ByteBuffer buffer) {
+		int charCount = IntSerializer.get(buffer, true);
+		char[] chars = Kryo.getContext().getCharArray(charCount);
+		int c, charIndex = 0;
+		while (charIndex < charCount) {
+			c = buffer.get() & 0xff;
+			switch (c >> 4) {
+			case 12:
+			case 13:
+				chars[charIndex++] = (char)((c & 0x1F) << 6 | buffer.get() & 0x3F);
+				break;
+			case 14:
+				chars[charIndex++] = (char)((c & 0x0F) << 12 | (buffer.get() & 0x3F) << 6 | (buffer.get() & 0x3F) << 0);
+				break;
+			default:
+				chars[charIndex++] = (char)c;
+			}
+		}
+		return new String(chars, 0, charCount);
+	}
+}
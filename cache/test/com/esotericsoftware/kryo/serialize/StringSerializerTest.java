@@ -0,0 +1,172 @@
+package com.esotericsoftware.kryo.serialize;
+
+import static org.testng.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.ObjectBuffer;
+
+/**
+ * Test for {@link StringSerializer}: the bulk ASCII and the chunked paths for heap and direct buffers, multi-byte and surrogate
+ * chars, and string references.
+ */
+public class StringSerializerTest {
+	static private final String[] STRINGS = {"", "a", "foo bar", "\u00E4\u00F6\u00FC\u00DF", "caf\u00E9", "\u20AC 42",
+		"\u65E5\u672C\u8A9E", "\uD83D\uDE00 smile", "x\uD834\uDD1Ey", "\u0000\u007f\u0080\u07FF\u0800\uFFFF", "ascii then \u00E9"};
+
+	@Test
+	public void testRoundTrip () {
+		for (String s : testStrings()) {
+			assertRoundTrip(ByteBuffer.allocate(s.length() * 3 + 5), s);
+			assertRoundTrip(ByteBuffer.allocateDirect(s.length() * 3 + 5), s);
+		}
+	}
+
+	@Test
+	public void testRoundTripWithOffset () {
+		// A heap buffer that is a slice of a larger array, so the array offset is not 0.
+		ByteBuffer array = ByteBuffer.allocate(8192);
+		array.position(17);
+		ByteBuffer buffer = array.slice();
+		for (String s : testStrings()) {
+			buffer.clear();
+			buffer.put((byte)42);
+			StringSerializer.put(buffer, s);
+			buffer.flip();
+			assertEquals(buffer.get(), 42);
+			assertEquals(StringSerializer.get(buffer), s);
+			assertFalse(buffer.hasRemaining());
+		}
+	}
+
+	@Test
+	public void testChunkedEncoding () {
+		// The heap buffer is too small for 3 bytes per char, so the string is encoded in chunks of 1024 chars like for direct
+		// buffers.
+		for (String s : testStrings()) {
+			int length = encodedLength(s);
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			StringSerializer.put(buffer, s);
+			assertFalse(buffer.hasRemaining(), s);
+			buffer.flip();
+			assertEquals(StringSerializer.get(buffer), s);
+		}
+	}
+
+	@Test
+	public void testEncodedBytes () throws Exception {
+		// Chars without surrogates are written as UTF-8, surrogates are encoded separately with 3 bytes each.
+		for (String s : new String[] {"foo", "\u00E4\u00F6\u00FC", "\u20AC", longString(new Random(1), 3000, true)}) {
+			ByteBuffer buffer = ByteBuffer.allocate(s.length() * 3 + 5);
+			StringSerializer.put(buffer, s);
+			buffer.flip();
+			assertEquals(IntSerializer.get(buffer, true), s.length());
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			assertTrue(Arrays.equals(bytes, s.getBytes("UTF-8")), s);
+		}
+		assertEquals(encodedLength("\uD83D\uDE00"), 1 + 6);
+		assertEquals(encodedLength("\u0000"), 1 + 1);
+	}
+
+	@Test
+	public void testEmptyAndNull () {
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		StringSerializer.put(buffer, "");
+		assertEquals(buffer.position(), 1);
+		buffer.flip();
+		assertEquals(StringSerializer.get(buffer), "");
+
+		StringSerializer serializer = new StringSerializer();
+		buffer.clear();
+		serializer.writeObject(buffer, null);
+		serializer.writeObject(buffer, "");
+		buffer.flip();
+		assertNull(serializer.readObject(buffer, String.class));
+		assertEquals(serializer.readObject(buffer, String.class), "");
+		assertFalse(buffer.hasRemaining());
+	}
+
+	@Test
+	public void testReferences () {
+		HashMap<String, Object> attributes = new HashMap<String, Object>();
+		for (int i = 0; i < 20; i++) {
+			ArrayList<String> item = new ArrayList<String>();
+			item.add("item-" + i);
+			item.add("de.javakaffee.web.msm.example.ShoppingCartItem");
+			item.add(i % 2 == 0 ? "b\u00FCcher" : "music");
+			item.add("");
+			attributes.put("cart.item." + i, item);
+		}
+
+		byte[] plain = newObjectBuffer(false).writeObject(attributes);
+		ObjectBuffer buffer = newObjectBuffer(true);
+		byte[] references = buffer.writeObject(attributes);
+		assertTrue(references.length < plain.length, references.length + " < " + plain.length);
+
+		HashMap<String, ArrayList<String>> read = buffer.readObject(references, HashMap.class);
+		assertEquals(read, attributes);
+		// Repeated strings are read as the same instance.
+		assertSame(read.get("cart.item.0").get(1), read.get("cart.item.1").get(1));
+
+		// References are per object graph, each graph can be read on its own.
+		byte[] second = buffer.writeObject(attributes);
+		assertTrue(Arrays.equals(second, references));
+		assertEquals(newObjectBuffer(true).readObject(second, HashMap.class), attributes);
+		assertEquals(newObjectBuffer(false).readObject(plain, HashMap.class), attributes);
+	}
+
+	static private ObjectBuffer newObjectBuffer (boolean references) {
+		Kryo kryo = new Kryo();
+		kryo.setRegistrationOptional(true);
+		kryo.register(String.class, new StringSerializer(references));
+		return new ObjectBuffer(kryo, 16 * 1024, 1024 * 1024);
+	}
+
+	static private void assertRoundTrip (ByteBuffer buffer, String s) {
+		StringSerializer.put(buffer, s);
+		assertEquals(buffer.position(), encodedLength(s));
+		buffer.flip();
+		assertEquals(StringSerializer.get(buffer), s);
+		assertFalse(buffer.hasRemaining());
+	}
+
+	static private ArrayList<String> testStrings () {
+		ArrayList<String> result = new ArrayList<String>(Arrays.asList(STRINGS));
+		Random random = new Random(42);
+		for (int length : new int[] {1023, 1024, 1025, 3000, 5000}) {
+			result.add(longString(random, length, false));
+			result.add(longString(random, length, true));
+			// Non-ASCII only at the end of the ASCII prefix.
+			result.add(longString(random, length - 1, false) + "\u00E9");
+		}
+		return result;
+	}
+
+	static private String longString (Random random, int length, boolean mixed) {
+		StringBuilder buffer = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			if (mixed && random.nextInt(8) == 0)
+				buffer.append((char)(0x00C0 + random.nextInt(0x3000)));
+			else
+				buffer.append((char)('a' + random.nextInt(26)));
+		}
+		return buffer.toString();
+	}
+
+	static private int encodedLength (String s) {
+		int length = s.length() < 128 ? 1 : s.length() < 16384 ? 2 : 3;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			length += c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+		}
+		return length;
+	}
+}
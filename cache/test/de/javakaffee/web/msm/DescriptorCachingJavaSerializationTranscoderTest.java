@@ -0,0 +1,189 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link DescriptorCachingJavaSerializationTranscoder} and {@link ClassDescriptorRegistry}:
+ * sessions must be readable by another tomcat also if the class descriptors were evicted from
+ * the store or could not be stored at all.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class DescriptorCachingJavaSerializationTranscoderTest {
+
+    @Test
+    public void testDescriptorsArePublishedBeforeFirstUse() {
+        final MapStore store = new MapStore();
+        final byte[] data = newTranscoder( store ).serializeAttributes( new MemcachedBackupSession(), createAttributes() );
+
+        assertTrue( store.descriptors.size() > 0 );
+        assertEquals( newTranscoder( store ).deserializeAttributes( data ), createAttributes() );
+    }
+
+    @Test
+    public void testEvictedDescriptorsAreResolvedWithLocalClasses() {
+        final MapStore store = new MapStore();
+        final byte[] data = newTranscoder( store ).serializeAttributes( new MemcachedBackupSession(), createAttributes() );
+
+        store.descriptors.clear();
+
+        assertEquals( newTranscoder( store ).deserializeAttributes( data ), createAttributes() );
+    }
+
+    @Test
+    public void testDescriptorsAreWrittenInlineIfNotStored() {
+        final MapStore store = new MapStore();
+        store.available = false;
+        final byte[] data = newTranscoder( store ).serializeAttributes( new MemcachedBackupSession(), createAttributes() );
+        assertTrue( store.descriptors.isEmpty() );
+        final byte[] ids = newTranscoder( new MapStore() ).serializeAttributes( new MemcachedBackupSession(), createAttributes() );
+        assertTrue( ids.length < data.length, "Data with ids (" + ids.length + ") should be smaller than with inline descriptors ("
+                + data.length + ")" );
+
+        /* the reader must not need the store, not even local classes
+         */
+        final ClassDescriptorRegistry registry = new ClassDescriptorRegistry( new MapStore() );
+        final Map<String, Object> attributes = new DescriptorCachingJavaSerializationTranscoder( null, registry ).deserializeAttributes( data );
+        assertEquals( attributes, createAttributes() );
+    }
+
+    @Test
+    public void testDescriptorsEvictedFromMemcached() throws Exception {
+        final EmbeddedMemcachedServer server = EmbeddedMemcachedServer.startServers( 21311, 1 ).get( 0 );
+        final MemcachedClient memcached = new MemcachedClient( new InetSocketAddress( "localhost", server.getPort() ) );
+        try {
+            final List<String> failoverNodeIds = Collections.emptyList();
+            final NodeIdService nodeIdService = new NodeIdService( new NodeAvailabilityCache<String>( 10, 1000,
+                    new NodeAvailabilityCache.CacheLoader<String>() {
+                        public boolean isNodeAvailable( final String key ) {
+                            return true;
+                        }
+                    } ), new NodeIdList( "n1" ), failoverNodeIds );
+            final MemcachedClassDescriptorStore store = new MemcachedClassDescriptorStore( memcached, new SessionIdFormat(),
+                    nodeIdService, 1000 );
+
+            final byte[] data = new DescriptorCachingJavaSerializationTranscoder( null, new ClassDescriptorRegistry( store ) )
+                .serializeAttributes( new MemcachedBackupSession(), createAttributes() );
+            final int items = server.getNumItems();
+            assertTrue( items > 0, "The descriptors should be stored before the data is returned." );
+
+            server.flush();
+            assertEquals( server.getNumItems(), 0 );
+
+            final Map<String, Object> attributes = new DescriptorCachingJavaSerializationTranscoder( null,
+                    new ClassDescriptorRegistry( store ) ).deserializeAttributes( data );
+            assertEquals( attributes, createAttributes() );
+        } finally {
+            memcached.shutdown();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testUnknownDescriptorIsRejected() throws Exception {
+        final MapStore store = new MapStore();
+        final byte[] data = newTranscoder( store ).serializeAttributes( new MemcachedBackupSession(), createAttributes() );
+        /* change the class name written with the descriptor id, so that the local class can't be found
+         */
+        final String name = Person.class.getName();
+        final byte[] unknown = new String( data, "ISO-8859-1" ).replace( name, name.substring( 0, name.length() - 1 ) + "X" )
+            .getBytes( "ISO-8859-1" );
+        store.descriptors.clear();
+
+        try {
+            newTranscoder( store ).deserializeAttributes( unknown );
+            fail( "The data should not be readable without the descriptors." );
+        } catch ( final RuntimeException e ) {
+            assertTrue( e.getCause() instanceof InvalidClassException, String.valueOf( e.getCause() ) );
+        }
+    }
+
+    private static DescriptorCachingJavaSerializationTranscoder newTranscoder( final ClassDescriptorRegistry.Store store ) {
+        return new DescriptorCachingJavaSerializationTranscoder( null, new ClassDescriptorRegistry( store ) );
+    }
+
+    private static Map<String, Object> createAttributes() {
+        final Map<String, Object> result = new HashMap<String, Object>();
+        result.put( "person", new Person( "foo", 42 ) );
+        result.put( "map", new HashMap<String, Person>( Collections.singletonMap( "bar", new Person( "bar", 23 ) ) ) );
+        return result;
+    }
+
+    /**
+     * A store in a map, that can be made unavailable.
+     */
+    private static class MapStore implements ClassDescriptorRegistry.Store {
+
+        final Map<Long, byte[]> descriptors = new ConcurrentHashMap<Long, byte[]>();
+        volatile boolean available = true;
+
+        public boolean put( final long id, final byte[] descriptor ) {
+            if ( !available ) {
+                return false;
+            }
+            descriptors.put( id, descriptor );
+            return true;
+        }
+
+        public byte[] get( final long id ) {
+            return available ? descriptors.get( id ) : null;
+        }
+
+    }
+
+    static class Person implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String _name;
+        private final int _age;
+
+        Person( final String name, final int age ) {
+            _name = name;
+            _age = age;
+        }
+
+        @Override
+        public boolean equals( final Object obj ) {
+            return obj instanceof Person && ( (Person) obj )._name.equals( _name ) && ( (Person) obj )._age == _age;
+        }
+
+        @Override
+        public int hashCode() {
+            return _name.hashCode() * 31 + _age;
+        }
+
+    }
+
+}
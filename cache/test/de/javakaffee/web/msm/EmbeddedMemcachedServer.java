@@ -0,0 +1,1057 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * A pure java memcached server for tests, speaking the memcached text and binary
+ * protocol (as far as used by spymemcached). The protocol is detected per connection
+ * from the first byte received.
+ * <p>
+ * Besides the plain cache functionality this server allows to inject failures:
+ * <ul>
+ * <li>latency: each request is delayed by {@link #setLatency(long, long) a fixed latency plus a random jitter}</li>
+ * <li>packet loss: with the {@link #setPacketLossRate(double) configured probability} a response is delayed
+ * by the tcp retransmission timeout (doubled for each consecutive loss), like it's seen by a client
+ * on a lossy network</li>
+ * <li>eviction: the number of items can be {@link #setMaxItems(int) limited} (lru eviction), and items can be
+ * {@link #evict(double) evicted} explicitely</li>
+ * <li>node failure: the server can be {@link #kill() killed} (all connections are closed, the port is
+ * released) and {@link #restart(boolean) restarted}, or {@link #suspend() suspended} so that requests
+ * are accepted but not answered (network partition / gc pause)</li>
+ * </ul>
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class EmbeddedMemcachedServer {
+
+    private static final Log LOG = LogFactory.getLog( EmbeddedMemcachedServer.class );
+
+    private static final String VERSION = "1.4.5-embedded";
+
+    /* memcached: expirations bigger than 30 days are absolute unix timestamps
+     */
+    private static final int MAX_RELATIVE_EXPIRATION = 60 * 60 * 24 * 30;
+
+    private static final byte MAGIC_REQUEST = (byte) 0x80;
+    private static final byte MAGIC_RESPONSE = (byte) 0x81;
+
+    private static final int OP_GET = 0x00;
+    private static final int OP_SET = 0x01;
+    private static final int OP_ADD = 0x02;
+    private static final int OP_REPLACE = 0x03;
+    private static final int OP_DELETE = 0x04;
+    private static final int OP_INCR = 0x05;
+    private static final int OP_DECR = 0x06;
+    private static final int OP_QUIT = 0x07;
+    private static final int OP_FLUSH = 0x08;
+    private static final int OP_GETQ = 0x09;
+    private static final int OP_NOOP = 0x0a;
+    private static final int OP_VERSION = 0x0b;
+    private static final int OP_GETK = 0x0c;
+    private static final int OP_GETKQ = 0x0d;
+    private static final int OP_APPEND = 0x0e;
+    private static final int OP_PREPEND = 0x0f;
+    private static final int OP_STAT = 0x10;
+    private static final int OP_SETQ = 0x11;
+    private static final int OP_ADDQ = 0x12;
+    private static final int OP_REPLACEQ = 0x13;
+    private static final int OP_DELETEQ = 0x14;
+    private static final int OP_INCRQ = 0x15;
+    private static final int OP_DECRQ = 0x16;
+    private static final int OP_QUITQ = 0x17;
+    private static final int OP_FLUSHQ = 0x18;
+    private static final int OP_APPENDQ = 0x19;
+    private static final int OP_PREPENDQ = 0x1a;
+
+    private static final short STATUS_OK = 0x00;
+    private static final short STATUS_KEY_NOT_FOUND = 0x01;
+    private static final short STATUS_KEY_EXISTS = 0x02;
+    private static final short STATUS_INVALID_ARGUMENTS = 0x04;
+    private static final short STATUS_ITEM_NOT_STORED = 0x05;
+    private static final short STATUS_NON_NUMERIC = 0x06;
+    private static final short STATUS_UNKNOWN_COMMAND = 0x81;
+
+    private final int _port;
+    private final Map<String, Item> _items;
+    private final Set<Connection> _connections = Collections.newSetFromMap( new ConcurrentHashMap<Connection, Boolean>() );
+    private final Random _random = new Random();
+    private final AtomicLong _casCounter = new AtomicLong();
+
+    private final AtomicLong _gets = new AtomicLong();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _sets = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+    private final AtomicLong _lostPackets = new AtomicLong();
+
+    private volatile ServerSocket _serverSocket;
+    private volatile Thread _acceptor;
+    private volatile int _maxItems = Integer.MAX_VALUE;
+    private volatile long _latencyMillis;
+    private volatile long _latencyJitterMillis;
+    private volatile double _packetLossRate;
+    private volatile long _retransmissionTimeoutMillis = 200;
+    private volatile boolean _suspended;
+
+    /**
+     * Creates a new server listening on the given port, the server must be started via {@link #start()}.
+     *
+     * @param port the port to listen on.
+     */
+    public EmbeddedMemcachedServer( final int port ) {
+        _port = port;
+        _items = new LinkedHashMap<String, Item>( 1024, 0.75f, true ) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry( final Map.Entry<String, Item> eldest ) {
+                if ( size() > _maxItems ) {
+                    _evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Starts listening.
+     *
+     * @return this server.
+     * @throws IOException if the port could not be bound.
+     */
+    public synchronized EmbeddedMemcachedServer start() throws IOException {
+        if ( _serverSocket != null ) {
+            throw new IllegalStateException( "Already started." );
+        }
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress( true );
+        serverSocket.bind( new InetSocketAddress( "localhost", _port ) );
+        _serverSocket = serverSocket;
+        _acceptor = new Thread( new Runnable() {
+            @Override
+            public void run() {
+                accept( serverSocket );
+            }
+        }, "embedded-memcached-" + _port );
+        _acceptor.setDaemon( true );
+        _acceptor.start();
+        LOG.info( "Started embedded memcached on port " + _port );
+        return this;
+    }
+
+    /**
+     * Stops the server, the stored items are kept.
+     */
+    public void stop() {
+        kill();
+    }
+
+    /**
+     * Simulates a crash of the memcached node: the server socket and all client
+     * connections are closed immediately. Stored items are kept until the server is
+     * {@link #restart(boolean) restarted}.
+     */
+    public synchronized void kill() {
+        final ServerSocket serverSocket = _serverSocket;
+        _serverSocket = null;
+        if ( serverSocket == null ) {
+            return;
+        }
+        close( serverSocket );
+        for ( final Connection connection : _connections ) {
+            connection.close();
+        }
+        _connections.clear();
+        try {
+            /* the port is released when the acceptor returned
+             */
+            _acceptor.join( 1000 );
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        _acceptor = null;
+        LOG.info( "Killed embedded memcached on port " + _port );
+    }
+
+    /**
+     * Restarts a {@link #kill() killed} server on the same port.
+     *
+     * @param keepData specifies if the items stored before shall still be available, with
+     * <code>false</code> the restarted node is empty like a restarted memcached.
+     * @throws IOException if the port could not be bound.
+     */
+    public synchronized void restart( final boolean keepData ) throws IOException {
+        kill();
+        if ( !keepData ) {
+            flush();
+        }
+        start();
+    }
+
+    /**
+     * Suspends the server: requests are still accepted but not answered until the server is
+     * {@link #resume() resumed}.
+     */
+    public void suspend() {
+        _suspended = true;
+    }
+
+    /**
+     * Resumes a {@link #suspend() suspended} server.
+     */
+    public void resume() {
+        synchronized ( this ) {
+            _suspended = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Sets the latency that is added to each request.
+     *
+     * @param latencyMillis the fixed latency in millis.
+     * @param jitterMillis the maximum random latency in millis that's added to the fixed latency.
+     */
+    public void setLatency( final long latencyMillis, final long jitterMillis ) {
+        _latencyMillis = latencyMillis;
+        _latencyJitterMillis = jitterMillis;
+    }
+
+    /**
+     * Sets the probability (<code>0..1</code>) that a response is "lost" and therefore
+     * delayed by the {@link #setRetransmissionTimeout(long) retransmission timeout}.
+     *
+     * @param packetLossRate the packet loss probability.
+     */
+    public void setPacketLossRate( final double packetLossRate ) {
+        _packetLossRate = packetLossRate;
+    }
+
+    /**
+     * The delay of a lost response (default 200 millis, the minimal tcp rto on linux).
+     *
+     * @param retransmissionTimeoutMillis the retransmission timeout in millis.
+     */
+    public void setRetransmissionTimeout( final long retransmissionTimeoutMillis ) {
+        _retransmissionTimeoutMillis = retransmissionTimeoutMillis;
+    }
+
+    /**
+     * Limits the number of stored items, the least recently used items are evicted.
+     *
+     * @param maxItems the maximum number of items.
+     */
+    public void setMaxItems( final int maxItems ) {
+        _maxItems = maxItems;
+    }
+
+    /**
+     * Evicts the given fraction of stored items, randomly chosen.
+     *
+     * @param fraction the fraction (<code>0..1</code>) of items to evict.
+     * @return the number of evicted items.
+     */
+    public int evict( final double fraction ) {
+        int result = 0;
+        synchronized ( _items ) {
+            for ( final Iterator<Item> iter = _items.values().iterator(); iter.hasNext(); ) {
+                iter.next();
+                if ( _random.nextDouble() < fraction ) {
+                    iter.remove();
+                    result++;
+                }
+            }
+        }
+        _evictions.addAndGet( result );
+        return result;
+    }
+
+    /**
+     * Removes all items.
+     */
+    public void flush() {
+        synchronized ( _items ) {
+            _items.clear();
+        }
+    }
+
+    /**
+     * The port this server listens on.
+     */
+    public int getPort() {
+        return _port;
+    }
+
+    /**
+     * Determines if the server is running (not killed).
+     */
+    public boolean isRunning() {
+        return _serverSocket != null;
+    }
+
+    /**
+     * The number of stored items.
+     */
+    public int getNumItems() {
+        synchronized ( _items ) {
+            return _items.size();
+        }
+    }
+
+    /**
+     * The value stored for the given key.
+     *
+     * @param key the key.
+     * @return the value or <code>null</code>.
+     */
+    @CheckForNull
+    public byte[] get( @Nonnull final String key ) {
+        final Item item = getItem( key );
+        return item != null ? item.data : null;
+    }
+
+    /**
+     * The number of get operations.
+     */
+    public long getNumGets() {
+        return _gets.get();
+    }
+
+    /**
+     * The number of successful get operations.
+     */
+    public long getNumHits() {
+        return _hits.get();
+    }
+
+    /**
+     * The number of store operations.
+     */
+    public long getNumSets() {
+        return _sets.get();
+    }
+
+    /**
+     * The number of evicted items.
+     */
+    public long getNumEvictions() {
+        return _evictions.get();
+    }
+
+    /**
+     * The number of simulated lost packets.
+     */
+    public long getNumLostPackets() {
+        return _lostPackets.get();
+    }
+
+    // ----------------------- the storage ------------------
+
+    private static final class Item {
+        final byte[] data;
+        final int flags;
+        final long expiration;
+        final long cas;
+        Item( final byte[] data, final int flags, final long expiration, final long cas ) {
+            this.data = data;
+            this.flags = flags;
+            this.expiration = expiration;
+            this.cas = cas;
+        }
+        boolean isExpired( final long now ) {
+            return expiration > 0 && expiration <= now;
+        }
+    }
+
+    private static enum StoreResult {
+        STORED, NOT_STORED, EXISTS, NOT_FOUND
+    }
+
+    private static enum StoreMode {
+        SET, ADD, REPLACE, APPEND, PREPEND
+    }
+
+    private static long toExpirationMillis( final long exp ) {
+        if ( exp == 0 ) {
+            return 0;
+        }
+        if ( exp < 0 ) {
+            return 1;
+        }
+        return exp > MAX_RELATIVE_EXPIRATION ? exp * 1000 : System.currentTimeMillis() + exp * 1000;
+    }
+
+    @CheckForNull
+    private Item getItem( final String key ) {
+        _gets.incrementAndGet();
+        synchronized ( _items ) {
+            final Item item = _items.get( key );
+            if ( item == null ) {
+                return null;
+            }
+            if ( item.isExpired( System.currentTimeMillis() ) ) {
+                _items.remove( key );
+                return null;
+            }
+            _hits.incrementAndGet();
+            return item;
+        }
+    }
+
+    private StoreResult store( final StoreMode mode, final String key, final byte[] data, final int flags,
+            final long exp, final long cas ) {
+        _sets.incrementAndGet();
+        synchronized ( _items ) {
+            Item existing = _items.get( key );
+            if ( existing != null && existing.isExpired( System.currentTimeMillis() ) ) {
+                _items.remove( key );
+                existing = null;
+            }
+            if ( cas != 0 ) {
+                if ( existing == null ) {
+                    return StoreResult.NOT_FOUND;
+                }
+                if ( existing.cas != cas ) {
+                    return StoreResult.EXISTS;
+                }
+            }
+            switch ( mode ) {
+                case ADD:
+                    if ( existing != null ) {
+                        return StoreResult.NOT_STORED;
+                    }
+                    break;
+                case REPLACE:
+                case APPEND:
+                case PREPEND:
+                    if ( existing == null ) {
+                        return StoreResult.NOT_STORED;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            final Item item;
+            if ( mode == StoreMode.APPEND || mode == StoreMode.PREPEND ) {
+                final byte[] first = mode == StoreMode.APPEND ? existing.data : data;
+                final byte[] second = mode == StoreMode.APPEND ? data : existing.data;
+                final byte[] combined = new byte[first.length + second.length];
+                System.arraycopy( first, 0, combined, 0, first.length );
+                System.arraycopy( second, 0, combined, first.length, second.length );
+                item = new Item( combined, existing.flags, existing.expiration, _casCounter.incrementAndGet() );
+            }
+            else {
+                item = new Item( data, flags, toExpirationMillis( exp ), _casCounter.incrementAndGet() );
+            }
+            _items.put( key, item );
+            return StoreResult.STORED;
+        }
+    }
+
+    private boolean delete( final String key, final long cas ) {
+        synchronized ( _items ) {
+            final Item existing = _items.get( key );
+            if ( existing == null || existing.isExpired( System.currentTimeMillis() )
+                    || cas != 0 && existing.cas != cas ) {
+                return false;
+            }
+            _items.remove( key );
+            return true;
+        }
+    }
+
+    /**
+     * Returns the new value, or <code>null</code> if the item was not found, or
+     * <code>-1</code> if the item is not numeric.
+     */
+    @CheckForNull
+    private Long incr( final String key, final long delta, final boolean decr, final long initial, final long exp ) {
+        synchronized ( _items ) {
+            final Item existing = getItem( key );
+            if ( existing == null ) {
+                if ( exp == 0xffffffffL ) {
+                    return null;
+                }
+                _items.put( key, new Item( String.valueOf( initial ).getBytes(), 0, toExpirationMillis( exp ),
+                        _casCounter.incrementAndGet() ) );
+                return initial;
+            }
+            final long value;
+            try {
+                value = Long.parseLong( new String( existing.data ).trim() );
+            } catch ( final NumberFormatException e ) {
+                return -1L;
+            }
+            final long result = decr ? Math.max( 0, value - delta ) : value + delta;
+            _items.put( key, new Item( String.valueOf( result ).getBytes(), existing.flags, existing.expiration,
+                    _casCounter.incrementAndGet() ) );
+            return result;
+        }
+    }
+
+    private Map<String, String> stats() {
+        final Map<String, String> result = new LinkedHashMap<String, String>();
+        result.put( "pid", "0" );
+        result.put( "time", String.valueOf( System.currentTimeMillis() / 1000 ) );
+        result.put( "version", VERSION );
+        result.put( "curr_connections", String.valueOf( _connections.size() ) );
+        result.put( "curr_items", String.valueOf( getNumItems() ) );
+        result.put( "cmd_get", String.valueOf( _gets.get() ) );
+        result.put( "cmd_set", String.valueOf( _sets.get() ) );
+        result.put( "get_hits", String.valueOf( _hits.get() ) );
+        result.put( "get_misses", String.valueOf( _gets.get() - _hits.get() ) );
+        result.put( "evictions", String.valueOf( _evictions.get() ) );
+        return result;
+    }
+
+    // ----------------------- networking ------------------
+
+    private void accept( final ServerSocket serverSocket ) {
+        while ( !serverSocket.isClosed() ) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay( true );
+                final Connection connection = new Connection( socket );
+                _connections.add( connection );
+                final Thread thread = new Thread( connection, "embedded-memcached-" + _port + "-" + socket.getPort() );
+                thread.setDaemon( true );
+                thread.start();
+            } catch ( final IOException e ) {
+                if ( !serverSocket.isClosed() ) {
+                    LOG.warn( "Could not accept connection", e );
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the configured latency, packet loss and suspension before a response is written.
+     */
+    private void beforeResponse() throws InterruptedException {
+        if ( _suspended ) {
+            synchronized ( this ) {
+                while ( _suspended ) {
+                    wait();
+                }
+            }
+        }
+        long delay = _latencyMillis;
+        if ( _latencyJitterMillis > 0 ) {
+            delay += (long) ( _random.nextDouble() * _latencyJitterMillis );
+        }
+        long rto = _retransmissionTimeoutMillis;
+        while ( _packetLossRate > 0 && _random.nextDouble() < _packetLossRate ) {
+            _lostPackets.incrementAndGet();
+            delay += rto;
+            rto *= 2;
+        }
+        if ( delay > 0 ) {
+            Thread.sleep( delay );
+        }
+    }
+
+    private static void close( final Closeable closeable ) {
+        try {
+            closeable.close();
+        } catch ( final IOException e ) {
+            // ignore
+        }
+    }
+
+    private final class Connection implements Runnable {
+
+        private final Socket _socket;
+
+        Connection( final Socket socket ) {
+            _socket = socket;
+        }
+
+        void close() {
+            try {
+                /* reset the connection like a crashed node
+                 */
+                _socket.setSoLinger( true, 0 );
+                _socket.close();
+            } catch ( final IOException e ) {
+                // ignore
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                final DataInputStream in = new DataInputStream( new BufferedInputStream( _socket.getInputStream() ) );
+                final OutputStream out = new BufferedOutputStream( _socket.getOutputStream() );
+                in.mark( 1 );
+                final int first = in.read();
+                if ( first == -1 ) {
+                    return;
+                }
+                in.reset();
+                if ( (byte) first == MAGIC_REQUEST ) {
+                    new BinaryProtocol( in, out ).run();
+                }
+                else {
+                    new TextProtocol( in, out ).run();
+                }
+            } catch ( final EOFException e ) {
+                // client closed the connection
+            } catch ( final SocketException e ) {
+                // connection closed or killed
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            } catch ( final IOException e ) {
+                LOG.warn( "Error on connection " + _socket, e );
+            } finally {
+                _connections.remove( this );
+                EmbeddedMemcachedServer.close( _socket );
+            }
+        }
+
+    }
+
+    // ----------------------- text protocol ------------------
+
+    private final class TextProtocol {
+
+        private final InputStream _in;
+        private final OutputStream _out;
+
+        TextProtocol( final InputStream in, final OutputStream out ) {
+            _in = in;
+            _out = out;
+        }
+
+        void run() throws IOException, InterruptedException {
+            String line;
+            while ( ( line = readLine() ) != null ) {
+                final String[] parts = line.trim().split( " +" );
+                final String command = parts[0];
+                final boolean noreply = "noreply".equals( parts[parts.length - 1] );
+                byte[] data = null;
+                if ( isStorageCommand( command ) ) {
+                    if ( parts.length < 5 ) {
+                        write( "ERROR" );
+                        continue;
+                    }
+                    data = new byte[Integer.parseInt( parts[4] )];
+                    readFully( data );
+                    readLine();
+                }
+                beforeResponse();
+                if ( "quit".equals( command ) ) {
+                    return;
+                }
+                handle( command, parts, data, noreply );
+                if ( _in.available() == 0 ) {
+                    _out.flush();
+                }
+            }
+        }
+
+        private boolean isStorageCommand( final String command ) {
+            return "set".equals( command ) || "add".equals( command ) || "replace".equals( command )
+                || "append".equals( command ) || "prepend".equals( command ) || "cas".equals( command );
+        }
+
+        private void handle( final String command, final String[] parts, final byte[] data, final boolean noreply ) throws IOException {
+            if ( "get".equals( command ) || "gets".equals( command ) ) {
+                for ( int i = 1; i < parts.length; i++ ) {
+                    final Item item = getItem( parts[i] );
+                    if ( item != null ) {
+                        write( "VALUE " + parts[i] + " " + item.flags + " " + item.data.length
+                                + ( "gets".equals( command ) ? " " + item.cas : "" ) );
+                        _out.write( item.data );
+                        _out.write( '\r' );
+                        _out.write( '\n' );
+                    }
+                }
+                write( "END" );
+            }
+            else if ( data != null ) {
+                final StoreMode mode = "cas".equals( command ) ? StoreMode.SET : StoreMode.valueOf( command.toUpperCase() );
+                final long cas = "cas".equals( command ) ? Long.parseLong( parts[5] ) : 0;
+                final StoreResult result = store( mode, parts[1], data, (int) Long.parseLong( parts[2] ),
+                        Long.parseLong( parts[3] ), cas );
+                if ( !noreply ) {
+                    write( result.name() );
+                }
+            }
+            else if ( "delete".equals( command ) ) {
+                final boolean deleted = delete( parts[1], 0 );
+                if ( !noreply ) {
+                    write( deleted ? "DELETED" : "NOT_FOUND" );
+                }
+            }
+            else if ( "incr".equals( command ) || "decr".equals( command ) ) {
+                final Long result = incr( parts[1], Long.parseLong( parts[2] ), "decr".equals( command ), 0, 0xffffffffL );
+                if ( !noreply ) {
+                    write( result == null ? "NOT_FOUND" : result < 0
+                        ? "CLIENT_ERROR cannot increment or decrement non-numeric value"
+                        : String.valueOf( result ) );
+                }
+            }
+            else if ( "touch".equals( command ) ) {
+                final Item item = getItem( parts[1] );
+                if ( item != null ) {
+                    store( StoreMode.REPLACE, parts[1], item.data, item.flags, Long.parseLong( parts[2] ), 0 );
+                }
+                if ( !noreply ) {
+                    write( item != null ? "TOUCHED" : "NOT_FOUND" );
+                }
+            }
+            else if ( "flush_all".equals( command ) ) {
+                flush();
+                if ( !noreply ) {
+                    write( "OK" );
+                }
+            }
+            else if ( "version".equals( command ) ) {
+                write( "VERSION " + VERSION );
+            }
+            else if ( "verbosity".equals( command ) ) {
+                if ( !noreply ) {
+                    write( "OK" );
+                }
+            }
+            else if ( "stats".equals( command ) ) {
+                for ( final Map.Entry<String, String> entry : stats().entrySet() ) {
+                    write( "STAT " + entry.getKey() + " " + entry.getValue() );
+                }
+                write( "END" );
+            }
+            else {
+                write( "ERROR" );
+            }
+        }
+
+        private void write( final String line ) throws IOException {
+            _out.write( line.getBytes( "ISO-8859-1" ) );
+            _out.write( '\r' );
+            _out.write( '\n' );
+        }
+
+        private void readFully( final byte[] data ) throws IOException {
+            int read = 0;
+            while ( read < data.length ) {
+                final int count = _in.read( data, read, data.length - read );
+                if ( count < 0 ) {
+                    throw new EOFException();
+                }
+                read += count;
+            }
+        }
+
+        @CheckForNull
+        private String readLine() throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream( 64 );
+            int b;
+            while ( ( b = _in.read() ) != -1 ) {
+                if ( b == '\n' ) {
+                    final byte[] bytes = line.toByteArray();
+                    final int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                    return new String( bytes, 0, length, "ISO-8859-1" );
+                }
+                line.write( b );
+            }
+            return null;
+        }
+
+    }
+
+    // ----------------------- binary protocol ------------------
+
+    private final class BinaryProtocol {
+
+        private final DataInputStream _in;
+        private final OutputStream _out;
+
+        BinaryProtocol( final DataInputStream in, final OutputStream out ) {
+            _in = in;
+            _out = out;
+        }
+
+        void run() throws IOException, InterruptedException {
+            final byte[] header = new byte[24];
+            while ( true ) {
+                _in.readFully( header );
+                if ( header[0] != MAGIC_REQUEST ) {
+                    throw new IOException( "Invalid magic " + header[0] );
+                }
+                final int opcode = header[1] & 0xff;
+                final int keyLength = ( ( header[2] & 0xff ) << 8 ) | ( header[3] & 0xff );
+                final int extrasLength = header[4] & 0xff;
+                final int bodyLength = readInt( header, 8 );
+                final int opaque = readInt( header, 12 );
+                final long cas = ( (long) readInt( header, 16 ) << 32 ) | ( readInt( header, 20 ) & 0xffffffffL );
+                final byte[] extras = new byte[extrasLength];
+                _in.readFully( extras );
+                final byte[] keyBytes = new byte[keyLength];
+                _in.readFully( keyBytes );
+                final byte[] value = new byte[bodyLength - keyLength - extrasLength];
+                _in.readFully( value );
+
+                beforeResponse();
+                if ( !handle( opcode, opaque, cas, extras, new String( keyBytes, "ISO-8859-1" ), value ) ) {
+                    _out.flush();
+                    return;
+                }
+                if ( _in.available() == 0 ) {
+                    _out.flush();
+                }
+            }
+        }
+
+        /**
+         * Returns <code>false</code> if the connection shall be closed.
+         */
+        private boolean handle( final int opcode, final int opaque, final long cas, final byte[] extras,
+                final String key, final byte[] value ) throws IOException {
+            switch ( opcode ) {
+                case OP_GET:
+                case OP_GETQ:
+                case OP_GETK:
+                case OP_GETKQ: {
+                    final Item item = getItem( key );
+                    final boolean quiet = opcode == OP_GETQ || opcode == OP_GETKQ;
+                    final boolean withKey = opcode == OP_GETK || opcode == OP_GETKQ;
+                    if ( item == null ) {
+                        if ( !quiet ) {
+                            respond( opcode, STATUS_KEY_NOT_FOUND, opaque, 0, null, withKey ? key : null, null );
+                        }
+                    }
+                    else {
+                        respond( opcode, STATUS_OK, opaque, item.cas, int2bytes( item.flags ), withKey ? key : null, item.data );
+                    }
+                    return true;
+                }
+                case OP_SET:
+                case OP_SETQ:
+                case OP_ADD:
+                case OP_ADDQ:
+                case OP_REPLACE:
+                case OP_REPLACEQ:
+                case OP_APPEND:
+                case OP_APPENDQ:
+                case OP_PREPEND:
+                case OP_PREPENDQ: {
+                    final StoreMode mode = toStoreMode( opcode );
+                    final boolean withExtras = mode != StoreMode.APPEND && mode != StoreMode.PREPEND;
+                    if ( withExtras && extras.length < 8 ) {
+                        respond( opcode, STATUS_INVALID_ARGUMENTS, opaque, 0, null, null, null );
+                        return true;
+                    }
+                    final int flags = withExtras ? readInt( extras, 0 ) : 0;
+                    final long exp = withExtras ? readInt( extras, 4 ) & 0xffffffffL : 0;
+                    final StoreResult result = store( mode, key, value, flags, exp, cas );
+                    final short status = result == StoreResult.STORED ? STATUS_OK
+                        : result == StoreResult.EXISTS ? STATUS_KEY_EXISTS
+                        : result == StoreResult.NOT_FOUND ? STATUS_KEY_NOT_FOUND
+                        : mode == StoreMode.ADD ? STATUS_KEY_EXISTS
+                        : mode == StoreMode.REPLACE ? STATUS_KEY_NOT_FOUND : STATUS_ITEM_NOT_STORED;
+                    if ( status != STATUS_OK || !isQuiet( opcode ) ) {
+                        respond( opcode, status, opaque, 0, null, null, null );
+                    }
+                    return true;
+                }
+                case OP_DELETE:
+                case OP_DELETEQ: {
+                    final boolean deleted = delete( key, cas );
+                    if ( !deleted || opcode == OP_DELETE ) {
+                        respond( opcode, deleted ? STATUS_OK : STATUS_KEY_NOT_FOUND, opaque, 0, null, null, null );
+                    }
+                    return true;
+                }
+                case OP_INCR:
+                case OP_INCRQ:
+                case OP_DECR:
+                case OP_DECRQ: {
+                    final long delta = readLong( extras, 0 );
+                    final long initial = readLong( extras, 8 );
+                    final long exp = readInt( extras, 16 ) & 0xffffffffL;
+                    final Long result = incr( key, delta, opcode == OP_DECR || opcode == OP_DECRQ, initial, exp );
+                    if ( result == null ) {
+                        respond( opcode, STATUS_KEY_NOT_FOUND, opaque, 0, null, null, null );
+                    }
+                    else if ( result < 0 ) {
+                        respond( opcode, STATUS_NON_NUMERIC, opaque, 0, null, null, null );
+                    }
+                    else if ( opcode == OP_INCR || opcode == OP_DECR ) {
+                        respond( opcode, STATUS_OK, opaque, 0, null, null, long2bytes( result ) );
+                    }
+                    return true;
+                }
+                case OP_QUIT:
+                case OP_QUITQ:
+                    if ( opcode == OP_QUIT ) {
+                        respond( opcode, STATUS_OK, opaque, 0, null, null, null );
+                    }
+                    return false;
+                case OP_FLUSH:
+                case OP_FLUSHQ:
+                    flush();
+                    if ( opcode == OP_FLUSH ) {
+                        respond( opcode, STATUS_OK, opaque, 0, null, null, null );
+                    }
+                    return true;
+                case OP_NOOP:
+                    respond( opcode, STATUS_OK, opaque, 0, null, null, null );
+                    return true;
+                case OP_VERSION:
+                    respond( opcode, STATUS_OK, opaque, 0, null, null, VERSION.getBytes( "ISO-8859-1" ) );
+                    return true;
+                case OP_STAT:
+                    for ( final Map.Entry<String, String> entry : stats().entrySet() ) {
+                        respond( opcode, STATUS_OK, opaque, 0, null, entry.getKey(), entry.getValue().getBytes( "ISO-8859-1" ) );
+                    }
+                    respond( opcode, STATUS_OK, opaque, 0, null, null, null );
+                    return true;
+                default:
+                    respond( opcode, STATUS_UNKNOWN_COMMAND, opaque, 0, null, null, null );
+                    return true;
+            }
+        }
+
+        private boolean isQuiet( final int opcode ) {
+            return opcode >= OP_SETQ && opcode <= OP_PREPENDQ || opcode == OP_GETQ || opcode == OP_GETKQ;
+        }
+
+        private StoreMode toStoreMode( final int opcode ) {
+            switch ( opcode ) {
+                case OP_ADD:
+                case OP_ADDQ:
+                    return StoreMode.ADD;
+                case OP_REPLACE:
+                case OP_REPLACEQ:
+                    return StoreMode.REPLACE;
+                case OP_APPEND:
+                case OP_APPENDQ:
+                    return StoreMode.APPEND;
+                case OP_PREPEND:
+                case OP_PREPENDQ:
+                    return StoreMode.PREPEND;
+                default:
+                    return StoreMode.SET;
+            }
+        }
+
+        private void respond( final int opcode, final short status, final int opaque, final long cas,
+                final byte[] extras, final String key, final byte[] value ) throws IOException {
+            final byte[] keyBytes = key != null ? key.getBytes( "ISO-8859-1" ) : new byte[0];
+            final int extrasLength = extras != null ? extras.length : 0;
+            final int valueLength = value != null ? value.length : 0;
+            final byte[] header = new byte[24];
+            header[0] = MAGIC_RESPONSE;
+            header[1] = (byte) opcode;
+            header[2] = (byte) ( keyBytes.length >> 8 );
+            header[3] = (byte) keyBytes.length;
+            header[4] = (byte) extrasLength;
+            header[6] = (byte) ( status >> 8 );
+            header[7] = (byte) status;
+            writeInt( header, 8, extrasLength + keyBytes.length + valueLength );
+            writeInt( header, 12, opaque );
+            writeInt( header, 16, (int) ( cas >>> 32 ) );
+            writeInt( header, 20, (int) cas );
+            _out.write( header );
+            if ( extras != null ) {
+                _out.write( extras );
+            }
+            _out.write( keyBytes );
+            if ( value != null ) {
+                _out.write( value );
+            }
+        }
+
+    }
+
+    private static int readInt( final byte[] bytes, final int offset ) {
+        return ( bytes[offset] & 0xff ) << 24 | ( bytes[offset + 1] & 0xff ) << 16
+            | ( bytes[offset + 2] & 0xff ) << 8 | bytes[offset + 3] & 0xff;
+    }
+
+    private static long readLong( final byte[] bytes, final int offset ) {
+        return ( (long) readInt( bytes, offset ) << 32 ) | ( readInt( bytes, offset + 4 ) & 0xffffffffL );
+    }
+
+    private static void writeInt( final byte[] bytes, final int offset, final int value ) {
+        bytes[offset] = (byte) ( value >>> 24 );
+        bytes[offset + 1] = (byte) ( value >>> 16 );
+        bytes[offset + 2] = (byte) ( value >>> 8 );
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static byte[] int2bytes( final int value ) {
+        final byte[] result = new byte[4];
+        writeInt( result, 0, value );
+        return result;
+    }
+
+    private static byte[] long2bytes( final long value ) {
+        final byte[] result = new byte[8];
+        writeInt( result, 0, (int) ( value >>> 32 ) );
+        writeInt( result, 4, (int) value );
+        return result;
+    }
+
+    /**
+     * Starts servers on consecutive ports.
+     *
+     * @param firstPort the port of the first server.
+     * @param count the number of servers.
+     * @return the started servers.
+     * @throws IOException if a server could not be started.
+     */
+    @Nonnull
+    public static List<EmbeddedMemcachedServer> startServers( final int firstPort, final int count ) throws IOException {
+        final List<EmbeddedMemcachedServer> result = new ArrayList<EmbeddedMemcachedServer>( count );
+        for ( int i = 0; i < count; i++ ) {
+            result.add( new EmbeddedMemcachedServer( firstPort + i ).start() );
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link IndexedSessionAttributesTranscoder} and {@link LazyAttributeMap}: the indexed
+ * format is read back, only accessed attributes are deserialized, data without index is passed to
+ * the wrapped transcoder and attributes not deserialized are written back as they were read.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class IndexedSessionAttributesTranscoderTest {
+
+    @Test
+    public void testRoundTrip() {
+        final CountingTranscoder delegate = new CountingTranscoder();
+        final IndexedSessionAttributesTranscoder transcoder = new IndexedSessionAttributesTranscoder( delegate, true, null, 16 );
+        final Map<String, Object> attributes = createAttributes( 5 );
+
+        final byte[] data = transcoder.serializeAttributes( new MemcachedBackupSession(), attributes );
+        assertEquals( new String( data, 0, 4 ), "MSMI" );
+        assertEquals( transcoder.deserializeAttributes( data ), attributes );
+
+        /* with headroom and from a direct buffer
+         */
+        final ByteBuffer buffer = transcoder.serializeAttributes( new MemcachedBackupSession(), attributes, 10 );
+        assertEquals( buffer.position(), 10 );
+        assertEquals( transcoder.deserializeAttributes( buffer ), attributes );
+        final ByteBuffer direct = ByteBuffer.allocateDirect( buffer.remaining() );
+        direct.put( buffer.duplicate() ).flip();
+        assertEquals( transcoder.deserializeAttributes( direct ), attributes );
+
+        /* the same attributes give the same bytes
+         */
+        assertTrue( Arrays.equals( transcoder.serializeAttributes( new MemcachedBackupSession(), new HashMap<String, Object>( attributes ) ),
+                data ) );
+    }
+
+    @Test
+    public void testOnlyAccessedAttributesAreDeserialized() {
+        final CountingTranscoder delegate = new CountingTranscoder();
+        final IndexedSessionAttributesTranscoder transcoder = new IndexedSessionAttributesTranscoder( delegate, true, null, 16 );
+        final byte[] data = transcoder.serializeAttributes( new MemcachedBackupSession(), createAttributes( 10 ) );
+
+        final LazyAttributeMap map = (LazyAttributeMap) transcoder.deserializeAttributes( data );
+        assertEquals( map.size(), 10 );
+        assertTrue( map.containsKey( "attr3" ) );
+        assertFalse( map.containsKey( "foo" ) );
+        assertEquals( map.keySet(), createAttributes( 10 ).keySet() );
+        assertTrue( delegate.deserialized.isEmpty() );
+
+        assertEquals( map.get( "attr3" ), new Person( "name3", 3 ) );
+        assertEquals( map.get( "attr3" ), new Person( "name3", 3 ) );
+        assertEquals( map.get( "foo" ), null );
+        assertEquals( delegate.deserialized, Arrays.asList( "attr3" ) );
+        assertTrue( map.hasPendingAttributes() );
+
+        /* iteration deserializes the remaining attributes
+         */
+        assertEquals( new HashMap<String, Object>( map ), createAttributes( 10 ) );
+        assertEquals( delegate.deserialized.size(), 10 );
+        assertEquals( new HashSet<String>( delegate.deserialized ), createAttributes( 10 ).keySet() );
+        assertFalse( map.hasPendingAttributes() );
+    }
+
+    @Test
+    public void testParallelDeserialization() {
+        final ExecutorService executor = Executors.newFixedThreadPool( 3, new NamedThreadFactory( "test-deserialization" ) );
+        try {
+            final CountingTranscoder delegate = new CountingTranscoder();
+            final IndexedSessionAttributesTranscoder transcoder = new IndexedSessionAttributesTranscoder( delegate, true, executor, 2 );
+            final byte[] data = transcoder.serializeAttributes( new MemcachedBackupSession(), createAttributes( 20 ) );
+
+            final Map<String, Object> map = transcoder.deserializeAttributes( data );
+            assertEquals( map.get( "attr0" ), new Person( "name0", 0 ) );
+            assertEquals( new HashMap<String, Object>( map ), createAttributes( 20 ) );
+            assertEquals( delegate.deserialized.size(), 20 );
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDataWithoutIndexIsReadByDelegate() {
+        final CountingTranscoder delegate = new CountingTranscoder();
+        final Map<String, Object> attributes = createAttributes( 3 );
+        final byte[] data = delegate.serializeAttributes( new MemcachedBackupSession(), attributes );
+
+        final IndexedSessionAttributesTranscoder transcoder = new IndexedSessionAttributesTranscoder( delegate, true, null, 16 );
+        final Map<String, Object> read = transcoder.deserializeAttributes( data );
+        assertFalse( read instanceof LazyAttributeMap );
+        assertEquals( read, attributes );
+        assertEquals( transcoder.deserializeAttributes( ByteBuffer.wrap( data ) ), attributes );
+
+        /* with the indexed format turned off the delegate format is written
+         */
+        final IndexedSessionAttributesTranscoder plain = new IndexedSessionAttributesTranscoder( delegate, false, null, 16 );
+        final byte[] plainData = plain.serializeAttributes( new MemcachedBackupSession(), attributes );
+        assertTrue( Arrays.equals( plainData, data ) );
+        assertEquals( transcoder.deserializeAttributes( plainData ), attributes );
+    }
+
+    @Test
+    public void testLazyMapIsWrittenBack() {
+        final CountingTranscoder delegate = new CountingTranscoder();
+        final IndexedSessionAttributesTranscoder transcoder = new IndexedSessionAttributesTranscoder( delegate, true, null, 16 );
+        final byte[] data = transcoder.serializeAttributes( new MemcachedBackupSession(), createAttributes( 5 ) );
+
+        final Map<String, Object> map = transcoder.deserializeAttributes( data );
+        map.get( "attr0" );
+        map.put( "attr1", new Person( "changed", 1 ) );
+        map.remove( "attr2" );
+        map.put( "new", new Person( "new", 42 ) );
+        delegate.serialized.clear();
+
+        final byte[] written = transcoder.serializeAttributes( new MemcachedBackupSession(), map );
+        /* the attributes not deserialized are copied
+         */
+        assertEquals( new HashSet<String>( delegate.serialized ), new HashSet<String>( Arrays.asList( "attr0", "attr1", "new" ) ) );
+
+        final Map<String, Object> expected = createAttributes( 5 );
+        expected.put( "attr1", new Person( "changed", 1 ) );
+        expected.remove( "attr2" );
+        expected.put( "new", new Person( "new", 42 ) );
+        final Map<String, Object> read = transcoder.deserializeAttributes( written );
+        assertEquals( read.size(), 5 );
+        assertEquals( new HashMap<String, Object>( read ), expected );
+
+        /* a map that was not accessed at all gives the same bytes
+         */
+        delegate.serialized.clear();
+        assertTrue( Arrays.equals( transcoder.serializeAttributes( new MemcachedBackupSession(),
+                transcoder.deserializeAttributes( data ) ), data ) );
+        assertTrue( delegate.serialized.isEmpty() );
+    }
+
+    private static Map<String, Object> createAttributes( final int count ) {
+        final Map<String, Object> result = new HashMap<String, Object>();
+        for ( int i = 0; i < count; i++ ) {
+            result.put( "attr" + i, new Person( "name" + i, i ) );
+        }
+        return result;
+    }
+
+    /**
+     * Records the names of the attributes that are serialized and deserialized.
+     */
+    private static class CountingTranscoder implements ByteBufferSessionAttributesTranscoder {
+
+        private final JavaSerializationTranscoder _delegate = new JavaSerializationTranscoder();
+        final List<String> serialized = new ArrayList<String>();
+        final List<String> deserialized = new ArrayList<String>();
+
+        public synchronized byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+            serialized.addAll( attributes.keySet() );
+            return _delegate.serializeAttributes( session, attributes );
+        }
+
+        public synchronized ByteBuffer serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+                final int headroom ) {
+            serialized.addAll( attributes.keySet() );
+            return _delegate.serializeAttributes( session, attributes, headroom );
+        }
+
+        public Map<String, Object> deserializeAttributes( final byte[] data ) {
+            return record( _delegate.deserializeAttributes( data ) );
+        }
+
+        public Map<String, Object> deserializeAttributes( final ByteBuffer data ) {
+            return record( _delegate.deserializeAttributes( data ) );
+        }
+
+        private synchronized Map<String, Object> record( final Map<String, Object> attributes ) {
+            deserialized.addAll( attributes.keySet() );
+            return attributes;
+        }
+
+    }
+
+    static class Person implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String _name;
+        private final int _age;
+
+        Person( final String name, final int age ) {
+            _name = name;
+            _age = age;
+        }
+
+        @Override
+        public boolean equals( final Object obj ) {
+            return obj instanceof Person && ( (Person) obj )._name.equals( _name ) && ( (Person) obj )._age == _age;
+        }
+
+        @Override
+        public int hashCode() {
+            return _name.hashCode() * 31 + _age;
+        }
+
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link MemcachedClientPool} and {@link NamespacedMemcachedClient}: keys are
+ * prefixed with the namespace of a context, pools are shared by their config key and
+ * shut down when the last client is released.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class MemcachedClientPoolTest {
+
+    private EmbeddedMemcachedServer _server;
+    private CountingClientFactory _clientFactory;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        _server = EmbeddedMemcachedServer.startServers( 21411, 1 ).get( 0 );
+        _clientFactory = new CountingClientFactory( _server.getPort() );
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        _clientFactory.shutdownAll();
+        _server.stop();
+    }
+
+    @Test
+    public void testCreateAndStripNamespace() {
+        final SessionIdFormat format = new SessionIdFormat();
+        final String key = format.createNamespacedKey( "localhost_foo", "lock:ABCD-n1" );
+        assertEquals( key, "localhost_foo/lock:ABCD-n1" );
+        assertEquals( format.stripNamespace( key ), "lock:ABCD-n1" );
+        assertEquals( format.stripNamespace( "lock:ABCD-n1" ), "lock:ABCD-n1" );
+        /* a '/' after the dash belongs to the memcached id and is no namespace separator
+         */
+        assertEquals( format.stripNamespace( "ABCD-n/1" ), "ABCD-n/1" );
+        assertEquals( format.stripNamespace( format.createNamespacedKey( "ns", "ABCD-n/1" ) ), "ABCD-n/1" );
+    }
+
+    @Test
+    public void testKeysArePrefixedWithNamespace() throws Exception {
+        final NamespacedMemcachedClient foo = acquire( "shared", 2, "localhost_foo" );
+        final NamespacedMemcachedClient bar = acquire( "shared", 2, "localhost_bar" );
+        try {
+            assertTrue( foo.set( "ABCD-n1", 0, "foo" ).get() );
+            assertTrue( bar.set( "ABCD-n1", 0, "bar" ).get() );
+
+            assertNotNull( _server.get( "localhost_foo/ABCD-n1" ) );
+            assertNotNull( _server.get( "localhost_bar/ABCD-n1" ) );
+            assertNull( _server.get( "ABCD-n1" ) );
+
+            assertEquals( foo.get( "ABCD-n1" ), "foo" );
+            assertEquals( bar.get( "ABCD-n1" ), "bar" );
+            assertTrue( foo.delete( "ABCD-n1" ).get() );
+            assertNull( foo.get( "ABCD-n1" ) );
+            assertEquals( bar.get( "ABCD-n1" ), "bar" );
+        } finally {
+            foo.shutdown();
+            bar.shutdown();
+        }
+    }
+
+    @Test
+    public void testBulkGetStripsNamespace() throws Exception {
+        final NamespacedMemcachedClient client = acquire( null, 3, "localhost_foo" );
+        try {
+            final List<String> keys = new ArrayList<String>();
+            for ( int i = 0; i < 20; i++ ) {
+                keys.add( "ABCD" + i + "-n1" );
+                assertTrue( client.set( "ABCD" + i + "-n1", 0, Integer.valueOf( i ) ).get() );
+            }
+            final Map<String, Object> values = client.getBulk( keys );
+            assertEquals( values.size(), keys.size() );
+            for ( int i = 0; i < 20; i++ ) {
+                assertEquals( values.get( "ABCD" + i + "-n1" ), Integer.valueOf( i ) );
+            }
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testPoolIsSharedByConfigKey() throws Exception {
+        final NamespacedMemcachedClient foo = acquire( "shared", 2, "localhost_foo" );
+        final NamespacedMemcachedClient bar = acquire( "shared", 2, "localhost_bar" );
+        assertEquals( _clientFactory.created.size(), 2 );
+
+        /* without config key a pool is never shared
+         */
+        final NamespacedMemcachedClient other = acquire( null, 2, "localhost_foo" );
+        assertEquals( _clientFactory.created.size(), 4 );
+
+        /* all keys of a session are mapped to the same client of the pool
+         */
+        final MemcachedClientPool pool = _clientFactory.pools.get( 0 );
+        assertSame( pool.getClient( "localhost_foo/ABCD-n1" ), pool.getClient( "localhost_foo/validity:ABCD-n1" ) );
+        assertSame( pool.getClient( "localhost_foo/ABCD-n1" ), pool.getClient( "localhost_foo/lock:ABCD-n1" ) );
+
+        foo.shutdown();
+        bar.shutdown();
+        other.shutdown();
+    }
+
+    @Test
+    public void testPoolIsShutDownWithLastReference() throws Exception {
+        final NamespacedMemcachedClient foo = acquire( "shared", 2, "localhost_foo" );
+        final NamespacedMemcachedClient bar = acquire( "shared", 2, "localhost_bar" );
+
+        foo.shutdown();
+        assertEquals( _clientFactory.shutdowns(), 0 );
+        assertEquals( bar.get( "ABCD-n1" ), null );
+
+        bar.shutdown();
+        assertEquals( _clientFactory.shutdowns(), 2 );
+
+        /* a new pool is created for the same config key
+         */
+        final NamespacedMemcachedClient baz = acquire( "shared", 2, "localhost_baz" );
+        assertEquals( _clientFactory.created.size(), 4 );
+        baz.shutdown();
+        assertEquals( _clientFactory.shutdowns(), 4 );
+    }
+
+    @Test
+    public void testClientIsReleasedOnlyOnce() throws Exception {
+        final NamespacedMemcachedClient foo = acquire( "shared", 1, "localhost_foo" );
+        final NamespacedMemcachedClient bar = acquire( "shared", 1, "localhost_bar" );
+
+        /* shutting down the same client twice must not release the pool of bar
+         */
+        foo.shutdown();
+        foo.shutdown();
+        assertEquals( _clientFactory.shutdowns(), 0 );
+        assertTrue( bar.set( "ABCD-n1", 0, "bar" ).get() );
+
+        bar.shutdown();
+        bar.shutdown( 1, TimeUnit.SECONDS );
+        assertEquals( _clientFactory.shutdowns(), 1 );
+        for ( final CountingMemcachedClient client : _clientFactory.created ) {
+            assertEquals( client.shutdowns.get(), 1 );
+        }
+    }
+
+    private NamespacedMemcachedClient acquire( final String configKey, final int connectionsPerNode, final String namespace )
+        throws IOException {
+        final NamespacedMemcachedClient result = MemcachedClientPool.acquire( configKey, connectionsPerNode, _clientFactory,
+                namespace, createTranscoder() );
+        _clientFactory.pools.add( getPool( result ) );
+        return result;
+    }
+
+    private static MemcachedClientPool getPool( final NamespacedMemcachedClient client ) {
+        try {
+            final Field field = NamespacedMemcachedClient.class.getDeclaredField( "_pool" );
+            field.setAccessible( true );
+            return (MemcachedClientPool) field.get( client );
+        } catch ( final Exception e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    private static Transcoder<Object> createTranscoder() {
+        return new SerializingTranscoder();
+    }
+
+    /**
+     * Creates {@link CountingMemcachedClient}s connected to the embedded server.
+     */
+    private static class CountingClientFactory implements MemcachedClientPool.ClientFactory {
+
+        private final int _port;
+        final List<CountingMemcachedClient> created = new ArrayList<CountingMemcachedClient>();
+        final List<MemcachedClientPool> pools = new ArrayList<MemcachedClientPool>();
+
+        CountingClientFactory( final int port ) {
+            _port = port;
+        }
+
+        public MemcachedClient createClient() throws IOException {
+            final CountingMemcachedClient result = new CountingMemcachedClient( _port );
+            created.add( result );
+            return result;
+        }
+
+        int shutdowns() {
+            int result = 0;
+            for ( final CountingMemcachedClient client : created ) {
+                result += client.shutdowns.get();
+            }
+            return result;
+        }
+
+        void shutdownAll() {
+            for ( final CountingMemcachedClient client : created ) {
+                if ( client.shutdowns.get() == 0 ) {
+                    client.shutdown();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Counts the calls of {@link #shutdown()}.
+     */
+    private static class CountingMemcachedClient extends MemcachedClient {
+
+        final AtomicInteger shutdowns = new AtomicInteger();
+
+        CountingMemcachedClient( final int port ) throws IOException {
+            super( Arrays.asList( new InetSocketAddress( "localhost", port ) ) );
+        }
+
+        @Override
+        public void shutdown() {
+            shutdowns.incrementAndGet();
+            super.shutdown();
+        }
+
+    }
+
+}
@@ -0,0 +1,530 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nonnull;
+import javax.servlet.ServletException;
+
+import org.apache.catalina.Globals;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.loader.WebappLoader;
+import org.apache.catalina.valves.ValveBase;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * A load driver for the {@link MemcachedBackupSessionManager}: requests are sent through the
+ * {@link SessionTrackerValve} (like tomcat does it) by several threads, sessions are stored
+ * in {@link EmbeddedMemcachedServer}s. The test is run for sticky sessions and each supported
+ * non-sticky {@link LockingStrategy.LockingMode}, for each run the throughput, latency percentiles,
+ * lost sessions and lock statistics are reported. {@link LockingStrategy.LockingMode#APP} is not
+ * run as it's not supported by {@link LockingStrategy#create}.
+ * <p>
+ * The configuration is passed as <code>name=value</code> arguments, e.g.
+ * <code>threads=32 durationSeconds=60 latencyMillis=1 killNodeAfterSeconds=20 modes=sticky,all</code>,
+ * see {@link Config} for the available settings.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class MemcachedLoadTest {
+
+    private static final String NOTE_NEW_SESSION_ID = "msm.loadtest.newSessionId";
+
+    /**
+     * Reads the stored bytes as they are, only used to check if a session exists in memcached.
+     */
+    private static final Transcoder<byte[]> RAW_TRANSCODER = new Transcoder<byte[]>() {
+
+        public boolean asyncDecode( final CachedData data ) {
+            return false;
+        }
+
+        public CachedData encode( final byte[] o ) {
+            return new CachedData( 0, o, getMaxSize() );
+        }
+
+        public byte[] decode( final CachedData data ) {
+            return data.getData();
+        }
+
+        public int getMaxSize() {
+            return CachedData.MAX_SIZE;
+        }
+
+    };
+
+    /**
+     * The settings of a load test run.
+     */
+    public static class Config {
+        /** The number of memcached nodes. */
+        int nodes = 2;
+        /** The port of the first memcached node, further nodes use the following ports. */
+        int firstPort = 21211;
+        /** "text" or "binary". */
+        String protocol = "text";
+        /** The number of request threads. */
+        int threads = 16;
+        /** The number of distinct sessions, less sessions mean more concurrent requests per session. */
+        int sessions = 500;
+        /** The duration of each run. */
+        int durationSeconds = 20;
+        /** The fraction (0..1) of requests modifying the session. */
+        double writeRatio = 0.2;
+        /** The size of the session payload in bytes. */
+        int attributeSize = 1024;
+        /** Latency added by memcached for each request. */
+        long latencyMillis = 0;
+        /** Random latency added by memcached for each request. */
+        long latencyJitterMillis = 0;
+        /** The probability that a memcached response is delayed by the retransmission timeout. */
+        double packetLossRate = 0;
+        /** The maximum number of items per memcached node. */
+        int maxItems = Integer.MAX_VALUE;
+        /** The seconds after that the first memcached node is killed, negative to disable. */
+        int killNodeAfterSeconds = -1;
+        /** The seconds after the kill when the node is restarted (empty), negative to disable. */
+        int restartNodeAfterSeconds = -1;
+        /** The comma separated modes, "sticky" or a non-sticky locking mode (none, all, auto, uriPattern). */
+        String modes = "sticky,none,all,auto,uriPattern";
+
+        void set( final String name, final String value ) throws Exception {
+            final Field field = Config.class.getDeclaredField( name );
+            final Class<?> type = field.getType();
+            if ( type == int.class ) {
+                field.setInt( this, Integer.parseInt( value ) );
+            } else if ( type == long.class ) {
+                field.setLong( this, Long.parseLong( value ) );
+            } else if ( type == double.class ) {
+                field.setDouble( this, Double.parseDouble( value ) );
+            } else {
+                field.set( this, value );
+            }
+        }
+    }
+
+    public static void main( final String[] args ) throws Exception {
+        final Config config = new Config();
+        for ( final String arg : args ) {
+            final int idx = arg.indexOf( '=' );
+            if ( idx < 1 ) {
+                throw new IllegalArgumentException( "Arguments must be given as name=value, got " + arg );
+            }
+            config.set( arg.substring( 0, idx ), arg.substring( idx + 1 ) );
+        }
+
+        final List<Result> results = new ArrayList<Result>();
+        for ( final String mode : config.modes.split( "," ) ) {
+            final Result result = new MemcachedLoadTest().run( config, mode.trim() );
+            result.print();
+            results.add( result );
+        }
+
+        System.out.println();
+        System.out.println( String.format( "%-12s %10s %9s %9s %9s %9s %8s %8s %8s", "mode", "req/s", "p50 ms", "p99 ms",
+                "p99.9 ms", "max ms", "errors", "lost", "late" ) );
+        for ( final Result result : results ) {
+            System.out.println( result.summary() );
+        }
+    }
+
+    /**
+     * Runs the load test for the given mode.
+     *
+     * @param config the settings.
+     * @param mode "sticky" or the non-sticky locking mode.
+     * @return the result of this run.
+     */
+    @Nonnull
+    Result run( @Nonnull final Config config, @Nonnull final String mode ) throws IOException, LifecycleException,
+        InterruptedException {
+        final List<EmbeddedMemcachedServer> servers = EmbeddedMemcachedServer.startServers( config.firstPort, config.nodes );
+        for ( final EmbeddedMemcachedServer server : servers ) {
+            server.setLatency( config.latencyMillis, config.latencyJitterMillis );
+            server.setPacketLossRate( config.packetLossRate );
+            server.setMaxItems( config.maxItems );
+        }
+
+        final MemcachedBackupSessionManager manager = createManager( config, mode, servers );
+        final RequestHandler handler = new RequestHandler( manager, config );
+        findSessionTrackerValve( manager ).setNext( handler );
+
+        final Result result = new Result( mode );
+        final AtomicReferenceArray<String> sessionIds = new AtomicReferenceArray<String>( config.sessions );
+        final long end = System.currentTimeMillis() + config.durationSeconds * 1000L;
+        final CountDownLatch finished = new CountDownLatch( config.threads );
+        final List<LoadThread> threads = new ArrayList<LoadThread>();
+        for ( int i = 0; i < config.threads; i++ ) {
+            final LoadThread thread = new LoadThread( findSessionTrackerValve( manager ), sessionIds, config, end, finished );
+            thread.start();
+            threads.add( thread );
+        }
+
+        final AtomicReference<Throwable> faultFailure = new AtomicReference<Throwable>();
+        final Thread faults = startFaultInjection( config, servers, faultFailure );
+        final long start = System.currentTimeMillis();
+        finished.await();
+        result._durationMillis = System.currentTimeMillis() - start;
+        if ( faults != null ) {
+            faults.interrupt();
+            faults.join();
+        }
+        if ( faultFailure.get() != null ) {
+            throw new AssertionError( "Fault injection failed: " + faultFailure.get() );
+        }
+
+        for ( final LoadThread thread : threads ) {
+            result.add( thread );
+        }
+
+        /* let the backups (and secondary backups) still running finish before anything is
+         * stopped, otherwise they fail with "Shutting down"
+         */
+        awaitBackups( manager );
+
+        /* a session not found might just not have been stored yet when it was requested,
+         * it's only lost if it's still not in memcached now.
+         */
+        for ( final String sessionId : handler._lostSessionIds ) {
+            if ( manager.getMemcached().get( sessionId, RAW_TRANSCODER ) != null ) {
+                result._lateSessions++;
+            } else {
+                result._lostSessions++;
+            }
+        }
+        result.collectStatistics( manager, servers );
+
+        manager.stop();
+        for ( final EmbeddedMemcachedServer server : servers ) {
+            server.stop();
+        }
+        return result;
+    }
+
+    private MemcachedBackupSessionManager createManager( final Config config, final String mode,
+            final List<EmbeddedMemcachedServer> servers ) throws LifecycleException {
+        final boolean sticky = "sticky".equals( mode );
+
+        final StandardEngine engine = new StandardEngine();
+        engine.setName( "Catalina" );
+        if ( sticky ) {
+            engine.setJvmRoute( "tomcat1" );
+        }
+        final StandardHost host = new StandardHost();
+        host.setName( "localhost" );
+        engine.addChild( host );
+        final StandardContext context = new StandardContext();
+        context.setPath( "/loadtest-" + mode.replace( ':', '_' ) );
+        context.setName( context.getPath() );
+        context.setLoader( new WebappLoader( getClass().getClassLoader() ) );
+        host.addChild( context );
+
+        final MemcachedBackupSessionManager manager = new MemcachedBackupSessionManager();
+        context.setManager( manager );
+        final StringBuilder nodes = new StringBuilder();
+        for ( int i = 0; i < servers.size(); i++ ) {
+            nodes.append( i > 0 ? "," : "" ).append( "n" ).append( i + 1 ).append( ":localhost:" ).append( servers.get( i ).getPort() );
+        }
+        manager.setMemcachedNodes( nodes.toString() );
+        manager.setMemcachedProtocol( config.protocol );
+        manager.setSticky( sticky );
+        if ( !sticky ) {
+            manager.setLockingMode( "uripattern".equalsIgnoreCase( mode ) ? "uriPattern:/write.*" : mode );
+        }
+        manager.start();
+        return manager;
+    }
+
+    private SessionTrackerValve findSessionTrackerValve( final MemcachedBackupSessionManager manager ) {
+        for ( final Valve valve : manager.getContainer().getPipeline().getValves() ) {
+            if ( valve instanceof SessionTrackerValve ) {
+                return (SessionTrackerValve) valve;
+            }
+        }
+        throw new IllegalStateException( "No SessionTrackerValve registered." );
+    }
+
+    private void awaitBackups( final MemcachedBackupSessionManager manager ) throws InterruptedException {
+        final BackupSessionService backupSessionService = manager.getBackupSessionService();
+        backupSessionService.shutdown();
+        if ( !backupSessionService.awaitTermination( 30, TimeUnit.SECONDS ) ) {
+            throw new AssertionError( "Session backups did not finish within 30 seconds." );
+        }
+        final LockingStrategy lockingStrategy = manager.getLockingStrategy();
+        if ( lockingStrategy != null ) {
+            final ExecutorService executor = lockingStrategy.getExecutorService();
+            executor.shutdown();
+            if ( !executor.awaitTermination( 30, TimeUnit.SECONDS ) ) {
+                throw new AssertionError( "Secondary session backups did not finish within 30 seconds." );
+            }
+        }
+    }
+
+    private Thread startFaultInjection( final Config config, final List<EmbeddedMemcachedServer> servers,
+            final AtomicReference<Throwable> failure ) {
+        if ( config.killNodeAfterSeconds < 0 ) {
+            return null;
+        }
+        final Thread result = new Thread( "fault-injection" ) {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep( config.killNodeAfterSeconds * 1000L );
+                    System.out.println( "Killing memcached node n1" );
+                    servers.get( 0 ).kill();
+                    if ( config.restartNodeAfterSeconds >= 0 ) {
+                        Thread.sleep( config.restartNodeAfterSeconds * 1000L );
+                        System.out.println( "Restarting memcached node n1" );
+                        servers.get( 0 ).restart( false );
+                    }
+                } catch ( final InterruptedException e ) {
+                    // finished
+                } catch ( final IOException e ) {
+                    failure.set( e );
+                }
+            }
+        };
+        result.setDaemon( true );
+        result.start();
+        return result;
+    }
+
+    /**
+     * The application: reads and modifies the session.
+     */
+    private static class RequestHandler extends ValveBase {
+
+        private final MemcachedBackupSessionManager _manager;
+        private final Config _config;
+        private final Set<String> _lostSessionIds = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+
+        RequestHandler( final MemcachedBackupSessionManager manager, final Config config ) {
+            _manager = manager;
+            _config = config;
+        }
+
+        @Override
+        public void invoke( final Request request, final Response response ) throws IOException, ServletException {
+            final String requestedSessionId = request.getRequestedSessionId();
+            MemcachedBackupSession session = requestedSessionId != null
+                ? (MemcachedBackupSession) _manager.findSession( requestedSessionId )
+                : null;
+            if ( session == null ) {
+                if ( requestedSessionId != null ) {
+                    _lostSessionIds.add( requestedSessionId );
+                }
+                session = (MemcachedBackupSession) _manager.createSession( null );
+                response.addHeader( "Set-Cookie", Globals.SESSION_COOKIE_NAME + "=" + session.getId() + "; Path=/" );
+                request.setNote( NOTE_NEW_SESSION_ID, session.getId() );
+            }
+            session.access();
+            try {
+                final Integer count = (Integer) session.getAttribute( "count" );
+                if ( request.getRequestURI().startsWith( "/write" ) || count == null ) {
+                    session.setAttribute( "count", count != null ? count + 1 : 1 );
+                    session.setAttribute( "payload", new byte[_config.attributeSize] );
+                }
+            } finally {
+                session.endAccess();
+            }
+        }
+
+    }
+
+    /**
+     * A request thread, records the latency of each request.
+     */
+    private static class LoadThread extends Thread {
+
+        private final SessionTrackerValve _valve;
+        private final AtomicReferenceArray<String> _sessionIds;
+        private final Config _config;
+        private final long _end;
+        private final CountDownLatch _finished;
+        private final Random _random = new Random();
+
+        private long[] _latencies = new long[1024];
+        private int _count;
+        private int _errors;
+
+        LoadThread( final SessionTrackerValve valve, final AtomicReferenceArray<String> sessionIds, final Config config,
+                final long end, final CountDownLatch finished ) {
+            super( "load-thread" );
+            _valve = valve;
+            _sessionIds = sessionIds;
+            _config = config;
+            _end = end;
+            _finished = finished;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while ( System.currentTimeMillis() < _end ) {
+                    final int sessionIdx = _random.nextInt( _sessionIds.length() );
+                    final String sessionId = _sessionIds.get( sessionIdx );
+                    final boolean write = _random.nextDouble() < _config.writeRatio;
+
+                    final Request request = createRequest( write ? "/write" : "/read", sessionId );
+                    final Response response = new LoadTestResponse();
+
+                    final long start = System.nanoTime();
+                    try {
+                        _valve.invoke( request, response );
+                        final String newSessionId = (String) request.getNote( NOTE_NEW_SESSION_ID );
+                        if ( newSessionId != null ) {
+                            _sessionIds.set( sessionIdx, newSessionId );
+                        }
+                    } catch ( final Exception e ) {
+                        _errors++;
+                    }
+                    record( System.nanoTime() - start );
+                }
+            } finally {
+                _finished.countDown();
+            }
+        }
+
+        private Request createRequest( final String uri, final String sessionId ) {
+            final org.apache.coyote.Request coyoteRequest = new org.apache.coyote.Request();
+            coyoteRequest.method().setString( "GET" );
+            coyoteRequest.requestURI().setString( uri );
+            final Request result = new Request();
+            result.setCoyoteRequest( coyoteRequest );
+            if ( sessionId != null ) {
+                result.setRequestedSessionId( sessionId );
+            }
+            return result;
+        }
+
+        private void record( final long nanos ) {
+            if ( _count == _latencies.length ) {
+                _latencies = Arrays.copyOf( _latencies, _count * 2 );
+            }
+            _latencies[_count++] = nanos;
+        }
+
+    }
+
+    /**
+     * A response that only supports headers, as there's no connector.
+     */
+    private static class LoadTestResponse extends Response {
+        LoadTestResponse() {
+            coyoteResponse = new org.apache.coyote.Response();
+        }
+    }
+
+    /**
+     * The result of a run.
+     */
+    static class Result {
+
+        private final String _mode;
+        private long[] _latencies = new long[0];
+        private long _durationMillis;
+        private int _errors;
+        private long _lostSessions;
+        private long _lateSessions;
+        private final Map<String, Object> _statistics = new LinkedHashMap<String, Object>();
+
+        Result( final String mode ) {
+            _mode = mode;
+        }
+
+        void add( final LoadThread thread ) {
+            final int offset = _latencies.length;
+            _latencies = Arrays.copyOf( _latencies, offset + thread._count );
+            System.arraycopy( thread._latencies, 0, _latencies, offset, thread._count );
+            _errors += thread._errors;
+        }
+
+        void collectStatistics( final MemcachedBackupSessionManager manager, final List<EmbeddedMemcachedServer> servers ) {
+            _statistics.put( "backup failures", manager.getMsmStatNumBackupFailures() );
+            _statistics.put( "memcached failover", manager.getMsmStatNumMemcachedFailover() );
+            _statistics.put( "no attributes access", manager.getMsmStatNumNoAttributesAccess() );
+            _statistics.put( "only immutable attributes access", manager.getMsmStatNumOnlyImmutableAttributesAccess() );
+            _statistics.put( "backup", manager.getMsmStatBackupInfo() );
+            _statistics.put( "load from memcached", manager.getMsmStatSessionsLoadedFromMemcachedInfo() );
+            _statistics.put( "acquire lock", manager.getMsmStatNonStickyAcquireLockInfo() );
+            _statistics.put( "acquire lock failures", manager.getMsmStatNonStickyAcquireLockFailureInfo() );
+            _statistics.put( "release lock", manager.getMsmStatNonStickyReleaseLockInfo() );
+            _statistics.put( "readonly requests", manager.getMsmStatNumNonStickySessionsReadOnlyRequest() );
+            for ( final EmbeddedMemcachedServer server : servers ) {
+                _statistics.put( "memcached " + server.getPort(), "items=" + server.getNumItems() + ", gets="
+                        + server.getNumGets() + ", hits=" + server.getNumHits() + ", sets=" + server.getNumSets()
+                        + ", evictions=" + server.getNumEvictions() + ", lost packets=" + server.getNumLostPackets() );
+            }
+        }
+
+        double throughput() {
+            return _latencies.length * 1000d / Math.max( 1, _durationMillis );
+        }
+
+        double percentileMillis( final double percentile ) {
+            if ( _latencies.length == 0 ) {
+                return 0;
+            }
+            final int idx = (int) Math.ceil( percentile / 100 * _latencies.length ) - 1;
+            return _latencies[Math.max( 0, Math.min( idx, _latencies.length - 1 ) )] / 1000000d;
+        }
+
+        String summary() {
+            Arrays.sort( _latencies );
+            return String.format( "%-12s %10.1f %9.2f %9.2f %9.2f %9.2f %8d %8d %8d", _mode, throughput(),
+                    percentileMillis( 50 ), percentileMillis( 99 ), percentileMillis( 99.9 ), percentileMillis( 100 ),
+                    _errors, _lostSessions, _lateSessions );
+        }
+
+        void print() {
+            System.out.println( "===== " + _mode + " =====" );
+            System.out.println( summary() );
+            for ( final Map.Entry<String, Object> entry : _statistics.entrySet() ) {
+                final Object value = entry.getValue();
+                System.out.println( "  " + entry.getKey() + ": "
+                        + ( value instanceof String[] ? Arrays.toString( (String[]) value ) : value ) );
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.apache.catalina.core.StandardThreadExecutor;
+import org.apache.catalina.core.VirtualThreadExecutor;
+
+/**
+ * Compares platform thread pools with virtual threads for tasks that block like a request
+ * waiting for memcached in {@link MemcachedBackupSessionManager#findSession(String)} or a
+ * session backup waiting for the memcached set: the connector executors
+ * ({@link StandardThreadExecutor} with different <code>maxThreads</code> vs.
+ * {@link VirtualThreadExecutor}) and the {@link BackupSessionService} executors
+ * ("platform" vs. "virtual"). Each task sleeps <code>latencyMillis</code>; with
+ * <code>pinned=true</code> it sleeps while holding a monitor, which pins the carrier
+ * thread of a virtual thread before java 24.
+ * <p>
+ * The configuration is passed as <code>name=value</code> arguments, e.g.
+ * <code>tasks=20000 latencyMillis=2 maxThreads=200,1000 backupThreads=4 pinned=false</code>.
+ * Virtual threads are skipped if the jvm doesn't support them (before java 21).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ThreadTypeBenchmark {
+
+    private static final int WARMUP = 1;
+
+    private int _tasks = 20000;
+    private int _latencyMillis = 2;
+    private int[] _maxThreads = { 200, 1000 };
+    private int _backupThreads = Runtime.getRuntime().availableProcessors();
+    private boolean _pinned = false;
+
+    public static void main( final String[] args ) throws Exception {
+        final ThreadTypeBenchmark benchmark = new ThreadTypeBenchmark();
+        for ( final String arg : args ) {
+            benchmark.set( arg );
+        }
+        benchmark.run();
+    }
+
+    private void set( final String arg ) {
+        final int idx = arg.indexOf( '=' );
+        if ( idx < 0 ) {
+            throw new IllegalArgumentException( "Expected name=value: " + arg );
+        }
+        final String name = arg.substring( 0, idx );
+        final String value = arg.substring( idx + 1 );
+        if ( "tasks".equals( name ) ) {
+            _tasks = Integer.parseInt( value );
+        } else if ( "latencyMillis".equals( name ) ) {
+            _latencyMillis = Integer.parseInt( value );
+        } else if ( "maxThreads".equals( name ) ) {
+            final String[] values = value.split( "," );
+            _maxThreads = new int[values.length];
+            for ( int i = 0; i < values.length; i++ ) {
+                _maxThreads[i] = Integer.parseInt( values[i].trim() );
+            }
+        } else if ( "backupThreads".equals( name ) ) {
+            _backupThreads = Integer.parseInt( value );
+        } else if ( "pinned".equals( name ) ) {
+            _pinned = Boolean.parseBoolean( value );
+        } else {
+            throw new IllegalArgumentException( "Unknown setting " + name );
+        }
+    }
+
+    private void run() throws Exception {
+        final boolean virtual = VirtualThreadExecutor.createThreadFactory( "probe-" ) != null;
+        System.out.println( "tasks=" + _tasks + " latencyMillis=" + _latencyMillis + " maxThreads="
+                + Arrays.toString( _maxThreads ) + " backupThreads=" + _backupThreads + " pinned=" + _pinned
+                + " java=" + System.getProperty( "java.version" ) + ( virtual ? "" : " (no virtual threads)" ) );
+
+        for ( int run = 0; run <= WARMUP; run++ ) {
+            final boolean print = run == WARMUP;
+
+            for ( final int maxThreads : _maxThreads ) {
+                final StandardThreadExecutor executor = new StandardThreadExecutor();
+                executor.setName( "platform-" + maxThreads );
+                executor.setMaxThreads( maxThreads );
+                executor.start();
+                try {
+                    measure( "connector platform maxThreads=" + maxThreads, executor, print );
+                } finally {
+                    executor.stop();
+                }
+            }
+            if ( virtual ) {
+                final VirtualThreadExecutor executor = new VirtualThreadExecutor();
+                executor.setName( "virtual" );
+                executor.start();
+                try {
+                    measure( "connector virtual", executor, print );
+                } finally {
+                    executor.stop();
+                }
+            }
+
+            measureBackup( BackupSessionService.THREAD_TYPE_PLATFORM, print );
+            if ( virtual ) {
+                measureBackup( BackupSessionService.THREAD_TYPE_VIRTUAL, print );
+            }
+        }
+    }
+
+    private void measureBackup( final String threadType, final boolean print ) throws InterruptedException {
+        final ExecutorService executor = BackupSessionService.createExecutorService( true, _backupThreads, threadType );
+        try {
+            measure( "backup " + threadType + ( BackupSessionService.THREAD_TYPE_PLATFORM.equals( threadType )
+                ? " threads=" + _backupThreads
+                : "" ), executor, print );
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination( 10, TimeUnit.SECONDS );
+        }
+    }
+
+    /**
+     * Submits all tasks at once and waits for them, reports the throughput, the latency
+     * (from submission to completion) percentiles and the peak number of tasks running at once.
+     */
+    private void measure( @Nonnull final String name, @Nonnull final Executor executor, final boolean print )
+        throws InterruptedException {
+        final long[] latencies = new long[_tasks];
+        final CountDownLatch done = new CountDownLatch( _tasks );
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final long start = System.nanoTime();
+        for ( int i = 0; i < _tasks; i++ ) {
+            final int idx = i;
+            final long submitted = System.nanoTime();
+            executor.execute( new Runnable() {
+                public void run() {
+                    final int current = running.incrementAndGet();
+                    int max;
+                    while ( current > ( max = peak.get() ) && !peak.compareAndSet( max, current ) ) {
+                        // retry
+                    }
+                    try {
+                        block();
+                    } finally {
+                        running.decrementAndGet();
+                        latencies[idx] = System.nanoTime() - submitted;
+                        done.countDown();
+                    }
+                }
+            } );
+        }
+        done.await();
+        final long time = System.nanoTime() - start;
+        if ( print ) {
+            Arrays.sort( latencies );
+            System.out.println( name + ": " + ( _tasks * 1000000000L / Math.max( 1, time ) ) + " tasks/s, latency p50 "
+                    + latencies[_tasks / 2] / 1000000 + " ms, p99 " + latencies[_tasks * 99 / 100] / 1000000
+                    + " ms, max " + latencies[_tasks - 1] / 1000000 + " ms, peak concurrency " + peak.get() );
+        }
+    }
+
+    private void block() {
+        try {
+            if ( _pinned ) {
+                final Object monitor = new Object();
+                synchronized ( monitor ) {
+                    Thread.sleep( _latencyMillis );
+                }
+            } else {
+                Thread.sleep( _latencyMillis );
+            }
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.ha.session;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.membership.MemberImpl;
+import org.testng.annotations.Test;
+
+/**
+ * Test for the compact {@link DeltaRequest} format: the attribute names of
+ * an {@link AttributeNameDictionary}, the {@link CompactSessionMessageImpl}
+ * and the value codec of the {@link DeltaManager}.
+ */
+public class CompactDeltaRequestTest {
+
+    @Test
+    public void testSessionMessageKeepsSerializedForm() throws Exception {
+        assertFalse(Externalizable.class.isAssignableFrom(SessionMessageImpl.class));
+        assertEquals(ObjectStreamClass.lookup(SessionMessageImpl.class).getSerialVersionUID(),
+                -7110773160397277922L);
+    }
+
+    @Test
+    public void testCompactSessionMessage() throws Exception {
+        SessionMessage msg = new CompactSessionMessageImpl("/test",
+                SessionMessage.EVT_SESSION_DELTA, new byte[] {1, 2, 3}, "ABC", "ABC-42");
+        msg.setTimestamp(42);
+        SessionMessageImpl plain = new SessionMessageImpl("/test",
+                SessionMessage.EVT_SESSION_DELTA, new byte[] {1, 2, 3}, "ABC", "ABC-42");
+        plain.setTimestamp(42);
+
+        byte[] data = serialize(msg);
+        assertTrue(data.length < serialize(plain).length);
+
+        SessionMessage read = (SessionMessage) deserialize(data);
+        assertTrue(read instanceof CompactSessionMessageImpl);
+        assertEquals(read.getContextName(), "/test");
+        assertEquals(read.getEventType(), SessionMessage.EVT_SESSION_DELTA);
+        assertEquals(read.getSession(), new byte[] {1, 2, 3});
+        assertEquals(read.getSessionID(), "ABC");
+        assertEquals(read.getUniqueId(), "ABC-42");
+        assertEquals(read.getTimestamp(), 42);
+        // the timestamp is set only once
+        read.setTimestamp(43);
+        assertEquals(read.getTimestamp(), 42);
+    }
+
+    @Test
+    public void testNamesAreDefinedUntilAcknowledgedByAllMembers() throws Exception {
+        Member a = createMember(1);
+        Member b = createMember(2);
+        AttributeNameDictionary sender = new AttributeNameDictionary(16);
+        AttributeNameDictionary.Generation generation = sender.getGeneration(new Member[] {a, b});
+
+        int code = generation.encode("foo");
+        assertEquals(code & 1, 0);
+
+        AttributeNameDictionary receiverA = new AttributeNameDictionary(16);
+        receiverA.define("sender", generation.getId(), (code >> 1) - 1, "foo");
+        sender.acknowledged(AttributeNameDictionary.getSenderId(a),
+                receiverA.takeAcknowledgements("sender"));
+        assertEquals(receiverA.takeAcknowledgements("sender"), null);
+        assertEquals(generation.encode("foo") & 1, 0);
+
+        AttributeNameDictionary receiverB = new AttributeNameDictionary(16);
+        receiverB.define("sender", generation.getId(), (code >> 1) - 1, "foo");
+        sender.acknowledged(AttributeNameDictionary.getSenderId(b),
+                receiverB.takeAcknowledgements("sender"));
+        assertEquals(generation.encode("foo"), code | 1);
+        assertEquals(receiverB.resolve("sender", generation.getId(), (code >> 1) - 1), "foo");
+    }
+
+    @Test
+    public void testNewMemberStartsNewGeneration() throws Exception {
+        Member a = createMember(1);
+        AttributeNameDictionary sender = new AttributeNameDictionary(16);
+        AttributeNameDictionary.Generation generation = sender.getGeneration(new Member[] {a});
+        assertTrue(sender.getGeneration(new Member[] {a}) == generation);
+        assertFalse(sender.getGeneration(new Member[] {a, createMember(2)}) == generation);
+        assertFalse(sender.getGeneration(new Member[0]) == generation);
+    }
+
+    @Test
+    public void testDeltasInAnyOrder() throws Exception {
+        DeltaManager manager = createManager();
+        Member receiver = createMember(1);
+        ReplicationValueCodec codec = manager.createValueCodec();
+        AttributeNameDictionary names = new AttributeNameDictionary(16);
+        AttributeNameDictionary received = new AttributeNameDictionary(16);
+        AttributeNameDictionary.Generation generation = names.getGeneration(new Member[] {receiver});
+
+        byte[] first = createDelta("foo", "1").serialize(codec, generation);
+        byte[] second = createDelta("foo", "2").serialize(codec, generation);
+
+        // Not acknowledged yet, so the second delta defines the name as well
+        DeltaSession session = (DeltaSession) manager.createEmptySession();
+        session.setIdInternal("ABC");
+        session.setValid(true);
+        apply(session, second, codec, received);
+        assertEquals(session.getAttribute("foo"), "2");
+        apply(session, first, codec, received);
+        assertEquals(session.getAttribute("foo"), "1");
+
+        names.acknowledged(AttributeNameDictionary.getSenderId(receiver),
+                received.takeAcknowledgements("sender"));
+        byte[] third = createDelta("foo", "3").serialize(codec, generation);
+        assertTrue(third.length < second.length);
+        apply(session, third, codec, received);
+        assertEquals(session.getAttribute("foo"), "3");
+        assertEquals(received.takeAcknowledgements("sender"), null);
+    }
+
+    @Test
+    public void testUnknownValueCodecFailsStart() throws Exception {
+        DeltaManager manager = createManager();
+        manager.setValueCodecClassName("org.example.UnknownCodec");
+        try {
+            manager.createValueCodec();
+            fail("An unknown codec should fail the start.");
+        } catch (LifecycleException e) {
+            assertTrue(e.getThrowable() instanceof ClassNotFoundException);
+        }
+    }
+
+    private static DeltaManager createManager() {
+        DeltaManager manager = new DeltaManager();
+        StandardContext context = new StandardContext();
+        context.setName("/test");
+        manager.setContainer(context);
+        manager.setName("test");
+        return manager;
+    }
+
+    private static Member createMember(int id) throws Exception {
+        MemberImpl member = new MemberImpl("localhost", 4000 + id, 0);
+        byte[] uniqueId = new byte[16];
+        uniqueId[0] = (byte) id;
+        member.setUniqueId(uniqueId);
+        return member;
+    }
+
+    private static DeltaRequest createDelta(String name, Object value) {
+        DeltaRequest request = new DeltaRequest("ABC", false);
+        request.setAttribute(name, value);
+        return request;
+    }
+
+    private static void apply(DeltaSession session, byte[] data,
+            ReplicationValueCodec codec, AttributeNameDictionary names) throws Exception {
+        DeltaRequest request = new DeltaRequest("ABC", false);
+        request.readCompact(data, codec, names, "sender");
+        request.execute(session, false);
+    }
+
+    private static byte[] serialize(Object object) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(object);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data) throws Exception {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return ois.readObject();
+        } finally {
+            ois.close();
+        }
+    }
+
+}
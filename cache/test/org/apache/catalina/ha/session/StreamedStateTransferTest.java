@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.ha.session;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.Session;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.membership.MemberImpl;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link StreamedStateTransfer}: the sessions are added by the
+ * deserializing threads and the receiving thread isn't blocked when the
+ * sender completes the transfer.
+ */
+public class StreamedStateTransferTest {
+
+    @Test
+    public void testTransferCompleteDoesNotBlockReceiver() throws Exception {
+        final BlockingDeltaManager manager = new BlockingDeltaManager();
+        Session[] sessions = createSessions(manager, 100);
+        final StreamedStateTransfer transfer = new StreamedStateTransfer(manager, 2);
+        setStateTransfer(manager, transfer);
+        final Member sender = new MemberImpl("localhost", 4000, 0);
+
+        StreamedStateTransfer.writeChunks(sessions, 1024, new StreamedStateTransfer.ChunkSender() {
+            public void send(byte[] chunk) throws IOException {
+                try {
+                    manager.handleALL_SESSION_DATA(new SessionMessageImpl(manager.getName(),
+                            SessionMessage.EVT_ALL_SESSION_DATA, chunk, "SESSION-STATE", "SESSION-STATE"), sender);
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+        });
+
+        Thread receiver = new Thread() {
+            public void run() {
+                manager.handleALL_SESSION_TRANSFERCOMPLETE(new SessionMessageImpl(manager.getName(),
+                        SessionMessage.EVT_ALL_SESSION_TRANSFERCOMPLETE, null, "SESSION-STATE-TRANSFERED",
+                        "SESSION-STATE-TRANSFERED"), sender);
+            }
+        };
+        receiver.start();
+        receiver.join(5000);
+        assertFalse(receiver.isAlive(), "The receiver thread waits for the deserialization");
+        assertFalse(manager.isStateTransferComplete());
+
+        manager.latch.countDown();
+        long end = System.currentTimeMillis() + 5000;
+        while (!manager.isStateTransferComplete() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertTrue(manager.isStateTransferComplete());
+        assertEquals(manager.findSessions().length, 100);
+        assertEquals(transfer.getSessions(), 100);
+        assertEquals(transfer.getFailures(), 0);
+        transfer.shutdown();
+    }
+
+    @Test
+    public void testTransferWithoutSessions() throws Exception {
+        BlockingDeltaManager manager = new BlockingDeltaManager();
+        setStateTransfer(manager, new StreamedStateTransfer(manager, 2));
+
+        manager.handleALL_SESSION_TRANSFERCOMPLETE(new SessionMessageImpl(manager.getName(),
+                SessionMessage.EVT_ALL_SESSION_TRANSFERCOMPLETE, null, "SESSION-STATE-TRANSFERED",
+                "SESSION-STATE-TRANSFERED"), new MemberImpl("localhost", 4000, 0));
+
+        assertTrue(manager.isStateTransferComplete());
+    }
+
+    private static Session[] createSessions(DeltaManager manager, int count) {
+        Session[] result = new Session[count];
+        for (int i = 0; i < count; i++) {
+            DeltaSession session = (DeltaSession) manager.createEmptySession();
+            session.setValid(true);
+            session.setMaxInactiveInterval(600);
+            session.setCreationTime(System.currentTimeMillis());
+            session.setIdInternal("session" + i);
+            session.setAttribute("index", new Integer(i), false);
+            result[i] = session;
+        }
+        return result;
+    }
+
+    private static void setStateTransfer(DeltaManager manager, StreamedStateTransfer transfer)
+            throws Exception {
+        Field field = DeltaManager.class.getDeclaredField("stateTransfer");
+        field.setAccessible(true);
+        field.set(manager, transfer);
+    }
+
+    /**
+     * Adds the transferred sessions only when the latch is released.
+     */
+    private static class BlockingDeltaManager extends DeltaManager {
+
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        BlockingDeltaManager() {
+            StandardContext context = new StandardContext();
+            context.setName("/test");
+            setContainer(context);
+            setName("test");
+        }
+
+        protected void addTransferredSession(DeltaSession session) throws IOException {
+            try {
+                if (!latch.await(10, TimeUnit.SECONDS)) {
+                    throw new IOException("Not released");
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e.toString());
+            }
+            super.addTransferredSession(session);
+        }
+
+    }
+
+}
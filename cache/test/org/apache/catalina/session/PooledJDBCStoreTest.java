@@ -0,0 +1,361 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.session;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.catalina.core.StandardContext;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link PooledJDBCStore}: failing writes and a database that
+ * is not available, against a table in memory.
+ */
+public class PooledJDBCStoreTest {
+
+    private PersistentManager manager;
+    private Database database;
+    private PooledJDBCStore store;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        StandardContext context = new StandardContext();
+        context.setName("/test");
+        manager = new PersistentManager();
+        manager.setContainer(context);
+        database = new Database();
+        store = new TestStore(database);
+        store.setManager(manager);
+        // Only explicit flushes
+        store.setWriteDelay(Integer.MAX_VALUE);
+        store.start();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        database.available = true;
+        database.failing.clear();
+        store.stop();
+    }
+
+    @Test
+    public void testFailingSessionIsDropped() throws Exception {
+        database.failing.add("b");
+        store.save(createSession("a"));
+        store.save(createSession("b"));
+        store.save(createSession("c"));
+
+        store.flush();
+
+        assertEquals(database.table.keySet(), set("a", "c"));
+
+        // The write of b is not retried
+        database.failing.clear();
+        store.flush();
+        assertEquals(database.table.keySet(), set("a", "c"));
+    }
+
+    @Test
+    public void testFailingSessionIsDroppedAfterAttempts() throws Exception {
+        database.failing.add("b");
+        store.save(createSession("b"));
+
+        store.flush();
+        store.flush();
+        assertTrue(database.table.isEmpty());
+
+        store.flush();
+        database.failing.clear();
+        store.flush();
+        assertTrue(database.table.isEmpty());
+    }
+
+    @Test
+    public void testFailingSessionIsWrittenIfItRecovers() throws Exception {
+        database.failing.add("b");
+        store.save(createSession("b"));
+
+        store.flush();
+        database.failing.clear();
+        store.flush();
+
+        assertEquals(database.table.keySet(), set("b"));
+    }
+
+    @Test
+    public void testWritesStayQueuedWhileDatabaseIsNotAvailable() throws Exception {
+        database.available = false;
+        store.save(createSession("a"));
+        store.remove("b");
+        store.flush();
+        database.table.put("b", new byte[0]);
+
+        database.available = true;
+        store.flush();
+
+        assertEquals(database.table.keySet(), set("a"));
+    }
+
+    @Test
+    public void testQueueIsBounded() throws Exception {
+        store.setMaxPendingWrites(2);
+        database.available = false;
+        store.save(createSession("a"));
+        store.save(createSession("b"));
+        // Replacing a queued write is possible
+        store.save(createSession("a"));
+        try {
+            store.save(createSession("c"));
+            fail("The queue should be full.");
+        } catch (IOException e) {
+            // expected
+        }
+
+        database.available = true;
+        store.save(createSession("c"));
+
+        assertEquals(database.table.keySet(), set("a", "b"));
+        store.flush();
+        assertEquals(database.table.keySet(), set("a", "b", "c"));
+    }
+
+    @Test
+    public void testQueueIsWrittenOnStop() throws Exception {
+        store.save(createSession("a"));
+        store.remove("b");
+        database.table.put("b", new byte[0]);
+        assertFalse(database.table.containsKey("a"));
+
+        store.stop();
+
+        assertEquals(database.table.keySet(), set("a"));
+        store.start();
+    }
+
+    private StandardSession createSession(String id) {
+        StandardSession session = new StandardSession(manager);
+        session.setValid(true);
+        session.setMaxInactiveInterval(600);
+        session.setCreationTime(System.currentTimeMillis());
+        session.id = id;
+        session.setAttribute("id", id, false);
+        return session;
+    }
+
+    private static Set<String> set(String... values) {
+        Set<String> result = new HashSet<String>();
+        for (int i = 0; i < values.length; i++) {
+            result.add(values[i]);
+        }
+        return result;
+    }
+
+    /**
+     * A store that takes its connections from the given database.
+     */
+    private static class TestStore extends PooledJDBCStore {
+
+        private final Database database;
+
+        TestStore(Database database) {
+            this.database = database;
+        }
+
+        protected Connection open() throws SQLException {
+            return (database.connect());
+        }
+
+    }
+
+    /**
+     * A session table in memory that understands the statements of the
+     * store that write Sessions.  Statements for the session identifiers
+     * in <code>failing</code> fail.
+     */
+    private static class Database {
+
+        final Map<String, byte[]> table = new HashMap<String, byte[]>();
+        final Set<String> failing = new HashSet<String>();
+        volatile boolean available = true;
+
+        Connection connect() throws SQLException {
+            if (!available) {
+                throw new SQLException("Not available");
+            }
+            return ((Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { Connection.class }, new ConnectionHandler()));
+        }
+
+        private class ConnectionHandler implements InvocationHandler {
+
+            private boolean autoCommit = true;
+            private Map<String, byte[]> changes = new HashMap<String, byte[]>();
+
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                String name = method.getName();
+                if (name.equals("setAutoCommit")) {
+                    autoCommit = ((Boolean) args[0]).booleanValue();
+                } else if (name.equals("commit")) {
+                    commit();
+                } else if (name.equals("rollback")) {
+                    changes.clear();
+                } else if (name.equals("prepareStatement")) {
+                    return (Proxy.newProxyInstance(getClass().getClassLoader(),
+                            new Class<?>[] { PreparedStatement.class },
+                            new StatementHandler(this, (String) args[0])));
+                } else if (name.equals("getAutoCommit")) {
+                    return (Boolean.valueOf(autoCommit));
+                } else if (name.equals("isClosed")) {
+                    return (Boolean.FALSE);
+                }
+                return (null);
+            }
+
+            /**
+             * Execute the given statement, return the update count.
+             */
+            int execute(String sql, Object[] parameters) throws SQLException {
+                if (!available) {
+                    throw new SQLException("Not available");
+                }
+                String id = (String) parameters[sql.startsWith("UPDATE") ? 5 : 1];
+                synchronized (table) {
+                    if (failing.contains(id)) {
+                        throw new SQLException("Failing " + id);
+                    }
+                    boolean exists = changes.containsKey(id)
+                            ? changes.get(id) != null : table.containsKey(id);
+                    byte[] data;
+                    if (sql.startsWith("DELETE")) {
+                        data = null;
+                    } else if (sql.startsWith("UPDATE")) {
+                        if (!exists) {
+                            return (0);
+                        }
+                        data = (byte[]) parameters[1];
+                    } else {
+                        if (exists) {
+                            throw new SQLException("Duplicate " + id);
+                        }
+                        data = (byte[]) parameters[3];
+                    }
+                    changes.put(id, data);
+                    if (autoCommit) {
+                        commit();
+                    }
+                    return (exists || data != null ? 1 : 0);
+                }
+            }
+
+            private void commit() {
+                synchronized (table) {
+                    for (Map.Entry<String, byte[]> entry : changes.entrySet()) {
+                        if (entry.getValue() == null) {
+                            table.remove(entry.getKey());
+                        } else {
+                            table.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                changes.clear();
+            }
+
+        }
+
+        private class StatementHandler implements InvocationHandler {
+
+            private final ConnectionHandler connection;
+            private final String sql;
+            private Object[] parameters = new Object[7];
+            private final List<Object[]> batch = new ArrayList<Object[]>();
+
+            StatementHandler(ConnectionHandler connection, String sql) {
+                this.connection = connection;
+                this.sql = sql;
+            }
+
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                String name = method.getName();
+                if (name.equals("setString") || name.equals("setInt")
+                        || name.equals("setLong")) {
+                    parameters[((Integer) args[0]).intValue()] = args[1];
+                } else if (name.equals("setBinaryStream")) {
+                    parameters[((Integer) args[0]).intValue()] = read((InputStream) args[1]);
+                } else if (name.equals("clearParameters")) {
+                    parameters = new Object[7];
+                } else if (name.equals("addBatch")) {
+                    batch.add(parameters);
+                    parameters = new Object[7];
+                } else if (name.equals("executeBatch")) {
+                    int[] counts = new int[batch.size()];
+                    for (int i = 0; i < counts.length; i++) {
+                        try {
+                            counts[i] = connection.execute(sql, batch.get(i));
+                        } catch (SQLException e) {
+                            throw new BatchUpdateException(e.getMessage(), new int[0]);
+                        }
+                    }
+                    batch.clear();
+                    return (counts);
+                } else if (name.equals("executeUpdate")) {
+                    return (new Integer(connection.execute(sql, parameters)));
+                } else if (name.equals("execute")) {
+                    connection.execute(sql, parameters);
+                    return (Boolean.FALSE);
+                }
+                return (null);
+            }
+
+        }
+
+        private static byte[] read(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return (out.toByteArray());
+        }
+
+    }
+
+}
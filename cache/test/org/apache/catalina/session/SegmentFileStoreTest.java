@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.session;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.apache.catalina.core.StandardContext;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link SegmentFileStore}: recovery of the index from the
+ * segments, with corrupt or partly written records, and compaction.
+ */
+public class SegmentFileStoreTest {
+
+    private File directory;
+    private PersistentManager manager;
+    private SegmentFileStore store;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        directory = File.createTempFile("segments", "");
+        directory.delete();
+        directory.mkdirs();
+        StandardContext context = new StandardContext();
+        context.setName("/segments");
+        manager = new PersistentManager();
+        manager.setContainer(context);
+        store = newStore(4096);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        store.stop();
+        File[] files = directory.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testRecoverSavedAndRemovedSessions() throws Exception {
+        store.save(createSession("a", "1"));
+        store.save(createSession("b", "2"));
+        store.save(createSession("a", "3"));
+        store.remove("b");
+
+        restart();
+
+        assertEquals(store.getSize(), 1);
+        assertEquals(store.load("a").getSession().getAttribute("value"), "3");
+        assertNull(store.load("b"));
+    }
+
+    @Test
+    public void testCorruptRecordEndsSegment() throws Exception {
+        store.save(createSession("a", "1"));
+        store.save(createSession("b", "2"));
+        store.stop();
+
+        // Flip a bit in the body of the last record
+        File file = singleSegment();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long end = endOfData(raf);
+            raf.seek(end - 1);
+            int b = raf.read();
+            raf.seek(end - 1);
+            raf.write(b ^ 1);
+        } finally {
+            raf.close();
+        }
+
+        store = newStore(4096);
+        assertEquals(store.getSize(), 1);
+        assertNotNull(store.load("a"));
+        assertNull(store.load("b"));
+    }
+
+    @Test
+    public void testTornRecordEndsSegment() throws Exception {
+        store.save(createSession("a", "1"));
+        store.save(createSession("b", "2"));
+        store.stop();
+
+        // The second half of the last record was not written
+        File file = singleSegment();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long end = endOfData(raf);
+            raf.seek(end - 40);
+            raf.write(new byte[40]);
+        } finally {
+            raf.close();
+        }
+
+        store = newStore(4096);
+        assertEquals(store.getSize(), 1);
+        assertEquals(store.load("a").getSession().getAttribute("value"), "1");
+        assertNull(store.load("b"));
+
+        // Appends go to a new segment, the torn record is not overwritten
+        store.save(createSession("c", "3"));
+        restart();
+        assertEquals(store.getSize(), 2);
+        assertNotNull(store.load("c"));
+    }
+
+    @Test
+    public void testCompactionKeepsRemovalRecords() throws Exception {
+        // Only segments without live records are compacted
+        store.setCompactionThreshold(1);
+        char[] large = new char[8192];
+        Arrays.fill(large, 'x');
+
+        // segment 1: a and b
+        store.save(createSession("a", "1"));
+        store.save(createSession("b", "2"));
+        // segment 2: c, larger than a segment
+        store.save(createSession("c", new String(large)));
+        // segment 3: the removal of a
+        store.remove("a");
+        // segment 4: d, so that segment 3 is full
+        store.save(createSession("d", new String(large)));
+        assertEquals(directory.list().length, 4);
+
+        store.processExpires();
+
+        // Segment 3 is gone, the removal record was copied to a new segment
+        // as segment 1 still contains the saved record of a
+        assertEquals(directory.list().length, 4);
+        assertFalse(Arrays.asList(directory.list()).contains("00000000000000000003.segment"));
+        assertNull(store.load("a"));
+
+        restart();
+
+        assertNull(store.load("a"));
+        assertEquals(store.getSize(), 3);
+        assertEquals(store.load("b").getSession().getAttribute("value"), "2");
+        assertEquals(store.load("c").getSession().getAttribute("value"), new String(large));
+    }
+
+    @Test
+    public void testCompactionCopiesLiveRecords() throws Exception {
+        store.setCompactionThreshold(100);
+
+        store.save(createSession("a", "1"));
+        store.save(createSession("b", "2"));
+        store.save(createSession("a", "3"));
+        // a new segment, so that the first one can be compacted
+        char[] large = new char[8192];
+        Arrays.fill(large, 'x');
+        store.save(createSession("c", new String(large)));
+
+        store.processExpires();
+        assertFalse(Arrays.asList(directory.list()).contains("00000000000000000001.segment"));
+        assertEquals(store.load("a").getSession().getAttribute("value"), "3");
+
+        restart();
+
+        assertEquals(store.getSize(), 3);
+        assertEquals(store.load("a").getSession().getAttribute("value"), "3");
+        assertEquals(store.load("b").getSession().getAttribute("value"), "2");
+    }
+
+    private SegmentFileStore newStore(int segmentSize) throws Exception {
+        SegmentFileStore result = new SegmentFileStore();
+        result.setManager(manager);
+        result.setDirectory(directory.getAbsolutePath());
+        result.setSegmentSize(segmentSize);
+        result.start();
+        return result;
+    }
+
+    private void restart() throws Exception {
+        store.stop();
+        store = newStore(4096);
+    }
+
+    private StandardSession createSession(String id, String value) {
+        StandardSession session = new StandardSession(manager);
+        session.setValid(true);
+        session.setMaxInactiveInterval(600);
+        session.setCreationTime(System.currentTimeMillis());
+        session.id = id;
+        session.setAttribute("value", value, false);
+        return session;
+    }
+
+    private File singleSegment() {
+        File[] files = directory.listFiles();
+        assertEquals(files.length, 1);
+        return files[0];
+    }
+
+    /**
+     * The position after the last non-zero byte.
+     */
+    private static long endOfData(RandomAccessFile raf) throws IOException {
+        byte[] bytes = new byte[(int) raf.length()];
+        raf.seek(0);
+        raf.readFully(bytes);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == 0) {
+            end--;
+        }
+        return end;
+    }
+
+}
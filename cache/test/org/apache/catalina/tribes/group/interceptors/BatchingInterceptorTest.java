@@ -0,0 +1,325 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.tribes.group.interceptors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.catalina.tribes.Channel;
+import org.apache.catalina.tribes.ChannelException;
+import org.apache.catalina.tribes.ChannelMessage;
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.group.ChannelInterceptorBase;
+import org.apache.catalina.tribes.group.InterceptorPayload;
+import org.apache.catalina.tribes.io.ChannelData;
+import org.apache.catalina.tribes.io.XByteBuffer;
+import org.apache.catalina.tribes.membership.MemberImpl;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link BatchingInterceptor}: the frames are split into the
+ * original messages, they are sent when they are full, after the flush
+ * delay and at flush points, and the messages to a member keep their order.
+ */
+public class BatchingInterceptorTest {
+
+    private static final int ASYNC = Channel.SEND_OPTIONS_ASYNCHRONOUS;
+
+    private BatchingInterceptor batching;
+    private Sender sender;
+    private Member a;
+    private Member b;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        a = new MemberImpl("localhost", 4001, 0);
+        b = new MemberImpl("localhost", 4002, 0);
+        batching = new BatchingInterceptor();
+        batching.setMaxMessageSize(200);
+        batching.setMaxBatchSize(1000);
+        //only flushed on purpose, unless a test sets a shorter delay
+        batching.setFlushDelay(60 * 1000 * 1000);
+        sender = new Sender();
+        batching.setNext(sender);
+        sender.setPrevious(batching);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        batching.stop(Channel.DEFAULT);
+    }
+
+    @Test
+    public void testFrameRoundTrip() throws Exception {
+        batching.start(Channel.DEFAULT);
+        ChannelData[] messages = new ChannelData[] {message(10, ASYNC), message(0, ASYNC), message(150, ASYNC)};
+        for (int i = 0; i < messages.length; i++) batching.sendMessage(new Member[] {a}, messages[i], null);
+        assertEquals(sender.sent.size(), 0);
+        batching.flush();
+        assertEquals(sender.sent.size(), 1);
+        assertEquals(batching.getFramesSent(), 1);
+        assertEquals(batching.getMessagesBatched(), 3);
+
+        //[uniqueId length][uniqueId][timestamp][message length][message] per message and the batched flag
+        Sent frame = (Sent)sender.sent.get(0);
+        assertTrue(Arrays.equals(frame.destination, new Member[] {a}));
+        assertEquals(frame.options, ASYNC);
+        byte[] bytes = frame.message.getBytes();
+        int offset = 0;
+        for (int i = 0; i < messages.length; i++) {
+            int length = XByteBuffer.toInt(bytes, offset);
+            offset += 4;
+            assertTrue(Arrays.equals(copy(bytes, offset, length), messages[i].getUniqueId()));
+            offset += length;
+            assertEquals(XByteBuffer.toLong(bytes, offset), messages[i].getTimestamp());
+            offset += 8;
+            length = XByteBuffer.toInt(bytes, offset);
+            offset += 4;
+            assertTrue(Arrays.equals(copy(bytes, offset, length), messages[i].getMessage().getBytes()));
+            offset += length;
+        }
+        assertEquals(offset, bytes.length - 1);
+        assertTrue(XByteBuffer.toBoolean(bytes, offset));
+
+        Receiver receiver = receive(sender.sent);
+        assertEquals(receiver.received.size(), 3);
+        for (int i = 0; i < messages.length; i++) {
+            ChannelMessage received = (ChannelMessage)receiver.received.get(i);
+            assertTrue(Arrays.equals(received.getUniqueId(), messages[i].getUniqueId()));
+            assertEquals(received.getTimestamp(), messages[i].getTimestamp());
+            assertEquals(received.getOptions(), ASYNC);
+            assertEquals(received.getAddress(), a);
+            assertTrue(Arrays.equals(received.getMessage().getBytes(), messages[i].getMessage().getBytes()));
+        }
+    }
+
+    @Test
+    public void testMessageNotBatchedIsNotChanged() throws Exception {
+        batching.start(Channel.DEFAULT);
+        ChannelData message = message(300, ASYNC);
+        byte[] bytes = message.getMessage().getBytes();
+        batching.sendMessage(new Member[] {a}, message, null);
+
+        assertEquals(sender.sent.size(), 1);
+        Sent sent = (Sent)sender.sent.get(0);
+        assertNotSame(sent.original.getMessage(), message.getMessage());
+        assertTrue(Arrays.equals(sent.original.getUniqueId(), message.getUniqueId()));
+        assertEquals(sent.message.getLength(), 301);
+        assertFalse(XByteBuffer.toBoolean(sent.message.getBytesDirect(), 300));
+        //the message of the sender is the one it sent, even after the copy was sent
+        assertTrue(Arrays.equals(message.getMessage().getBytes(), bytes));
+        assertTrue(Arrays.equals(sent.original.getMessage().getBytes(), sent.message.getBytes()));
+
+        Receiver receiver = receive(sender.sent);
+        assertEquals(receiver.received.size(), 1);
+        assertTrue(Arrays.equals(((ChannelMessage)receiver.received.get(0)).getMessage().getBytes(), bytes));
+    }
+
+    @Test
+    public void testSizeTriggeredFlush() throws Exception {
+        batching.start(Channel.DEFAULT);
+        //4 + 16 + 8 + 4 + 100 bytes per message, the 8th reaches the batch size of 1000 bytes
+        for (int i = 0; i < 7; i++) batching.sendMessage(new Member[] {a}, message(100, ASYNC), null);
+        assertEquals(sender.sent.size(), 0);
+        batching.sendMessage(new Member[] {a}, message(100, ASYNC), null);
+        assertEquals(sender.sent.size(), 1);
+        assertEquals(((Sent)sender.sent.get(0)).message.getLength(), 8 * 132 + 1);
+
+        batching.sendMessage(new Member[] {a}, message(100, ASYNC), null);
+        assertEquals(sender.sent.size(), 1);
+        batching.flush();
+        assertEquals(sender.sent.size(), 2);
+        assertEquals(receive(sender.sent).received.size(), 9);
+    }
+
+    @Test
+    public void testDelayTriggeredFlush() throws Exception {
+        batching.setFlushDelay(100 * 1000);
+        batching.start(Channel.DEFAULT);
+        long start = System.currentTimeMillis();
+        batching.sendMessage(new Member[] {a}, message(10, ASYNC), null);
+        batching.sendMessage(new Member[] {a}, message(10, ASYNC), null);
+        sender.await(1, 10000);
+        assertTrue(System.currentTimeMillis() - start >= 90, "flushed before the delay");
+        assertEquals(sender.sent.size(), 1);
+        assertEquals(receive(sender.sent).received.size(), 2);
+    }
+
+    @Test
+    public void testSynchronousMessageWaitsForFlush() throws Exception {
+        batching.setFlushDelay(100 * 1000);
+        batching.start(Channel.DEFAULT);
+        batching.sendMessage(new Member[] {a}, message(10, Channel.SEND_OPTIONS_DEFAULT), null);
+        //the message was sent when the send returns
+        assertEquals(sender.sent.size(), 1);
+        assertEquals(receive(sender.sent).received.size(), 1);
+    }
+
+    @Test
+    public void testOrderAcrossFlushPoints() throws Exception {
+        batching.start(Channel.DEFAULT);
+        List expectedA = new ArrayList();
+        List expectedB = new ArrayList();
+        //a frame to a, a frame to b, a frame to both, as no message overtakes one to the same member
+        send(new Member[] {a}, message(10, ASYNC), expectedA, expectedB);
+        send(new Member[] {b}, message(10, ASYNC), expectedA, expectedB);
+        send(new Member[] {a, b}, message(10, ASYNC), expectedA, expectedB);
+        //a message that is not batched flushes the frames before it
+        send(new Member[] {a}, message(300, ASYNC), expectedA, expectedB);
+        assertEquals(sender.sent.size(), 4);
+        //a message to a joins the open frame to a, a frame to b is not in the way
+        send(new Member[] {a}, message(10, ASYNC), expectedA, expectedB);
+        send(new Member[] {b}, message(10, ASYNC), expectedA, expectedB);
+        send(new Member[] {a}, message(10, ASYNC), expectedA, expectedB);
+        batching.heartbeat();
+        assertEquals(sender.sent.size(), 6);
+        //other options start a new frame
+        send(new Member[] {a}, message(10, ASYNC | Channel.SEND_OPTIONS_USE_ACK), expectedA, expectedB);
+        send(new Member[] {a}, message(10, ASYNC), expectedA, expectedB);
+        batching.flush();
+        assertEquals(sender.sent.size(), 8);
+
+        Receiver receiver = receive(sender.sent);
+        assertEquals(uniqueIds(receiver.receivedBy(a)), uniqueIds(expectedA));
+        assertEquals(uniqueIds(receiver.receivedBy(b)), uniqueIds(expectedB));
+    }
+
+    @Test
+    public void testStopFlushes() throws Exception {
+        batching.start(Channel.DEFAULT);
+        batching.sendMessage(new Member[] {a}, message(10, ASYNC), null);
+        batching.stop(Channel.DEFAULT);
+        assertEquals(sender.sent.size(), 1);
+        //stopped, the messages are not batched
+        batching.sendMessage(new Member[] {a}, message(10, ASYNC), null);
+        assertEquals(sender.sent.size(), 2);
+        assertEquals(receive(sender.sent).received.size(), 2);
+    }
+
+    private void send(Member[] destination, ChannelData message, List expectedA, List expectedB) throws ChannelException {
+        batching.sendMessage(destination, message, null);
+        if (Arrays.asList(destination).contains(a)) expectedA.add(message);
+        if (Arrays.asList(destination).contains(b)) expectedB.add(message);
+    }
+
+    private ChannelData message(int size, int options) {
+        ChannelData result = new ChannelData(true);
+        result.setTimestamp(System.currentTimeMillis() + size);
+        result.setOptions(options);
+        result.setAddress(a);
+        XByteBuffer message = new XByteBuffer(size, false);
+        for (int i = 0; i < size; i++) message.append((byte)i);
+        result.setMessage(message);
+        return result;
+    }
+
+    /**
+     * Passes the sent messages to a second interceptor, which splits the frames.
+     */
+    private static Receiver receive(List sent) {
+        BatchingInterceptor batching = new BatchingInterceptor();
+        Receiver result = new Receiver();
+        batching.setPrevious(result);
+        for (int i = 0; i < sent.size(); i++) {
+            Sent message = (Sent)sent.get(i);
+            for (int j = 0; j < message.destination.length; j++) {
+                ChannelData data = new ChannelData(message.original.getUniqueId(), new XByteBuffer(message.message.getBytes(), false),
+                    message.original.getTimestamp());
+                data.setOptions(message.options);
+                data.setAddress(message.original.getAddress());
+                result.destination = message.destination[j];
+                batching.messageReceived(data);
+            }
+        }
+        return result;
+    }
+
+    private static List uniqueIds(List messages) {
+        List result = new ArrayList();
+        for (int i = 0; i < messages.size(); i++) {
+            result.add(Arrays.toString(((ChannelMessage)messages.get(i)).getUniqueId()));
+        }
+        return result;
+    }
+
+    private static byte[] copy(byte[] bytes, int offset, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(bytes, offset, result, 0, length);
+        return result;
+    }
+
+    private static class Sent {
+        Member[] destination;
+        ChannelMessage original;
+        //the bytes when the message was sent, the buffer of a frame is reused
+        XByteBuffer message;
+        int options;
+    }
+
+    /**
+     * Records the sent messages, the last interceptor of the stack.
+     */
+    private static class Sender extends ChannelInterceptorBase {
+        final List sent = new ArrayList();
+
+        public synchronized void sendMessage(Member[] destination, ChannelMessage msg, InterceptorPayload payload) {
+            Sent result = new Sent();
+            result.destination = destination;
+            result.original = msg;
+            result.message = new XByteBuffer(msg.getMessage().getBytes(), false);
+            result.options = msg.getOptions();
+            sent.add(result);
+            notifyAll();
+        }
+
+        public synchronized void await(int count, long timeout) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeout;
+            while (sent.size() < count && System.currentTimeMillis() < end) wait(10);
+            assertEquals(sent.size(), count);
+        }
+    }
+
+    /**
+     * Records the received messages and the member they were sent to.
+     */
+    private static class Receiver extends ChannelInterceptorBase {
+        final List received = new ArrayList();
+        final List destinations = new ArrayList();
+        Member destination;
+
+        public void messageReceived(ChannelMessage msg) {
+            received.add(msg);
+            destinations.add(destination);
+        }
+
+        List receivedBy(Member member) {
+            List result = new ArrayList();
+            for (int i = 0; i < received.size(); i++) {
+                if (member.equals(destinations.get(i))) result.add(received.get(i));
+            }
+            return result;
+        }
+    }
+}
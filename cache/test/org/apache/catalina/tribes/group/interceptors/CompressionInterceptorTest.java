@@ -0,0 +1,361 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.tribes.group.interceptors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.catalina.tribes.Channel;
+import org.apache.catalina.tribes.ChannelMessage;
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.group.ChannelInterceptorBase;
+import org.apache.catalina.tribes.group.InterceptorPayload;
+import org.apache.catalina.tribes.io.ChannelData;
+import org.apache.catalina.tribes.io.XByteBuffer;
+import org.apache.catalina.tribes.membership.MemberImpl;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link CompressionInterceptor}: messages are sent compressed or
+ * stored and read back, with and without a dictionary, compressed data is not
+ * compressed again, and the codecs can be ended while other threads send.
+ */
+public class CompressionInterceptorTest {
+
+    private CompressionInterceptor compression;
+    private Sender sender;
+    private Member member;
+    private File file;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        member = new MemberImpl("localhost", 4001, 0);
+        compression = new CompressionInterceptor();
+        sender = new Sender();
+        compression.setNext(sender);
+        sender.setPrevious(compression);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        compression.stop(Channel.DEFAULT);
+        if (file != null) file.delete();
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws Exception {
+        compression.start(Channel.DEFAULT);
+        ChannelData message = message(text(2000));
+        byte[] bytes = message.getMessage().getBytes();
+        compression.sendMessage(new Member[] {member}, message, null);
+
+        XByteBuffer sent = sender.last();
+        byte[] b = sent.getBytes();
+        assertEquals(b[b.length - 1], CompressionInterceptor.DEFLATED);
+        assertEquals(XByteBuffer.toInt(b, b.length - 5), bytes.length);
+        assertTrue(b.length < bytes.length / 2, "compressed to " + b.length + " bytes");
+        //the message of the sender is not modified
+        assertTrue(Arrays.equals(message.getMessage().getBytes(), bytes));
+
+        ChannelMessage received = receive(new CompressionInterceptor(), sender.lastMessage());
+        assertTrue(Arrays.equals(received.getMessage().getBytes(), bytes));
+        assertTrue(Arrays.equals(received.getUniqueId(), message.getUniqueId()));
+        assertEquals(received.getTimestamp(), message.getTimestamp());
+    }
+
+    @Test
+    public void testStoredRoundTrip() throws Exception {
+        compression.start(Channel.DEFAULT);
+        //smaller than minSize, and random data that doesn't get smaller
+        byte[][] messages = new byte[][] {text(100), random(2000), new byte[0]};
+        for (int i = 0; i < messages.length; i++) {
+            ChannelData message = message(messages[i]);
+            compression.sendMessage(new Member[] {member}, message, null);
+
+            XByteBuffer sent = sender.last();
+            assertNotSame(sender.original.getMessage(), message.getMessage());
+            assertEquals(sent.getLength(), messages[i].length + 1);
+            assertEquals(sent.getBytesDirect()[messages[i].length], CompressionInterceptor.STORED);
+            assertTrue(Arrays.equals(message.getMessage().getBytes(), messages[i]));
+
+            ChannelMessage received = receive(new CompressionInterceptor(), sender.lastMessage());
+            assertTrue(Arrays.equals(received.getMessage().getBytes(), messages[i]));
+        }
+        CompressionInterceptor.Statistics stats = (CompressionInterceptor.Statistics)compression.getStatistics().get("other");
+        assertEquals(stats.getMessages(), 3);
+        assertEquals(stats.getCompressedMessages(), 0);
+    }
+
+    @Test
+    public void testCompressedDataIsNotCompressedAgain() throws Exception {
+        byte[] gzip = gzip(text(2000));
+        byte[] zlib = zlib(text(2000));
+        assertTrue(CompressionInterceptor.isCompressed(gzip, gzip.length));
+        assertTrue(CompressionInterceptor.isCompressed(zlib, zlib.length));
+        assertTrue(CompressionInterceptor.isCompressed(new byte[] {0x50, 0x4b, 3, 4}, 4));
+        assertTrue(CompressionInterceptor.isCompressed(new byte[] {(byte)0xff, (byte)0xd8, (byte)0xff, (byte)0xe0}, 4));
+        assertTrue(CompressionInterceptor.isCompressed(new byte[] {(byte)0x89, 0x50, 0x4e, 0x47}, 4));
+        assertFalse(CompressionInterceptor.isCompressed(text(2000), 2000));
+        byte[] serialized = serialize(new Attribute(new String(text(500))));
+        assertFalse(CompressionInterceptor.isCompressed(serialized, serialized.length));
+        assertFalse(CompressionInterceptor.isCompressed(new byte[] {0x1f, (byte)0x8b, 8}, 3));
+
+        compression.start(Channel.DEFAULT);
+        //gzip data that repeats compresses well, it is stored without trying
+        byte[] repeated = new byte[4000];
+        for (int i = 0; i < repeated.length; i += gzip.length) System.arraycopy(gzip, 0, repeated, i, Math.min(gzip.length, repeated.length - i));
+        compression.sendMessage(new Member[] {member}, message(repeated), null);
+        assertEquals(sender.last().getLength(), repeated.length + 1);
+        CompressionInterceptor.Statistics stats = (CompressionInterceptor.Statistics)compression.getStatistics().get("other");
+        assertEquals(stats.getCompressedMessages(), 0);
+        assertEquals(stats.getCompressNanos(), 0);
+    }
+
+    @Test
+    public void testMessageType() throws Exception {
+        byte[] serialized = serialize(new Attribute(new String(text(500))));
+        assertEquals(CompressionInterceptor.getType(serialized, serialized.length, 0), Attribute.class.getName());
+        assertEquals(CompressionInterceptor.getType(serialized, serialized.length, Channel.SEND_OPTIONS_BYTE_MESSAGE), "bytes");
+        assertEquals(CompressionInterceptor.getType(text(100), 100, 0), "other");
+
+        compression.start(Channel.DEFAULT);
+        compression.sendMessage(new Member[] {member}, message(serialized), null);
+        CompressionInterceptor.Statistics stats = (CompressionInterceptor.Statistics)compression.getStatistics().get(Attribute.class.getName());
+        assertEquals(stats.getCompressedMessages(), 1);
+        assertTrue(stats.getRatio() < 0.5);
+    }
+
+    @Test
+    public void testDictionary() throws Exception {
+        //train a dictionary from the messages sent
+        compression.setSampleCount(20);
+        compression.start(Channel.DEFAULT);
+        for (int i = 0; i < 20; i++) compression.sendMessage(new Member[] {member}, message(serialize(new Attribute("value " + i))), null);
+        file = File.createTempFile("compression", ".dict");
+        compression.trainDictionary(file.getPath(), 4096);
+        CompressionDictionary dict = CompressionDictionary.load(file.getPath());
+
+        CompressionInterceptor plain = compression;
+        sender = new Sender();
+        compression = new CompressionInterceptor();
+        compression.setNext(sender);
+        compression.setDictionary(file.getPath());
+        compression.setMinSize(64);
+        compression.start(Channel.DEFAULT);
+        byte[] bytes = serialize(new Attribute("value 42"));
+        ChannelData message = message(bytes);
+        compression.sendMessage(new Member[] {member}, message, null);
+
+        byte[] b = sender.last().getBytes();
+        assertEquals(b[b.length - 1], CompressionInterceptor.DEFLATED_DICTIONARY);
+        assertEquals(XByteBuffer.toInt(b, b.length - 5), dict.getId());
+        assertEquals(XByteBuffer.toInt(b, b.length - 9), bytes.length);
+        assertTrue(b.length < bytes.length / 2, "compressed " + bytes.length + " to " + b.length + " bytes");
+
+        CompressionInterceptor receiver = new CompressionInterceptor();
+        receiver.setDictionary(file.getPath());
+        receiver.start(Channel.DEFAULT);
+        assertTrue(Arrays.equals(receive(receiver, sender.lastMessage()).getMessage().getBytes(), bytes));
+
+        //a member without the dictionary drops the message
+        assertEquals(receive(plain, sender.lastMessage()), null);
+        plain.stop(Channel.DEFAULT);
+        receiver.stop(Channel.DEFAULT);
+    }
+
+    @Test
+    public void testCodecEndedWhileInUse() throws Exception {
+        CompressionInterceptor.Codec codec = compression.getCodec();
+        byte[] bytes = text(2000);
+        compression.stop(Channel.DEFAULT);
+        assertTrue(codec.ended);
+        //still usable until it is released
+        assertTrue(codec.deflate(bytes, 0, bytes.length, null, bytes.length) > 0);
+        codec.release();
+        assertFalse(codec.acquire());
+
+        CompressionInterceptor.Codec next = compression.getCodec();
+        assertNotSame(next, codec);
+        next.release();
+        assertSame(compression.getCodec(), next);
+        next.release();
+    }
+
+    @Test
+    public void testStopWhileSending() throws Exception {
+        compression.start(Channel.DEFAULT);
+        final List errors = Collections.synchronizedList(new ArrayList());
+        final byte[] bytes = text(2000);
+        final long end = System.currentTimeMillis() + 500;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    CompressionInterceptor receiver = new CompressionInterceptor();
+                    try {
+                        while (System.currentTimeMillis() < end) {
+                            compression.sendMessage(new Member[] {member}, message(bytes), null);
+                            ChannelMessage received = receive(receiver, (ChannelMessage)sender.lastOfThread.get());
+                            if (received == null || !Arrays.equals(received.getMessage().getBytes(), bytes)) {
+                                throw new AssertionError("The message was not received.");
+                            }
+                        }
+                    } catch (Throwable x) {
+                        errors.add(x);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        while (System.currentTimeMillis() < end) {
+            compression.stop(Channel.DEFAULT);
+            compression.start(Channel.DEFAULT);
+            Thread.sleep(1);
+        }
+        for (int i = 0; i < threads.length; i++) threads[i].join();
+        assertEquals(errors, Collections.EMPTY_LIST);
+    }
+
+    private ChannelData message(byte[] bytes) {
+        ChannelData result = new ChannelData(true);
+        result.setTimestamp(System.currentTimeMillis());
+        result.setAddress(member);
+        result.setMessage(new XByteBuffer(bytes, false));
+        return result;
+    }
+
+    /**
+     * @return the message passed up by the interceptor, or <code>null</code>
+     */
+    private static ChannelMessage receive(CompressionInterceptor compression, ChannelMessage sent) {
+        ChannelData data = new ChannelData(sent.getUniqueId(), new XByteBuffer(sent.getMessage().getBytes(), false), sent.getTimestamp());
+        data.setOptions(sent.getOptions());
+        data.setAddress(sent.getAddress());
+        Receiver receiver = new Receiver();
+        compression.setPrevious(receiver);
+        compression.messageReceived(data);
+        return receiver.received;
+    }
+
+    private static byte[] text(int length) {
+        StringBuffer buf = new StringBuffer();
+        Random random = new Random(length);
+        while (buf.length() < length) {
+            buf.append("org.apache.catalina.ha.session.DeltaRequest attribute-").append(random.nextInt(100)).append(' ');
+        }
+        return buf.substring(0, length).getBytes();
+    }
+
+    private static byte[] random(int length) {
+        byte[] result = new byte[length];
+        new Random(length).nextBytes(result);
+        //not the start of compressed data
+        result[0] = 'x';
+        return result;
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] zlib(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream zlib = new DeflaterOutputStream(out);
+        zlib.write(bytes);
+        zlib.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] serialize(Serializable object) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(object);
+        oos.close();
+        return out.toByteArray();
+    }
+
+    private static class Attribute implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String sessionId = "A7E9F3C1D2B4E6F8A0C2E4F6A8B0C2D4";
+        private final String name = "org.apache.catalina.ha.session.DeltaRequest";
+        private final String value;
+
+        Attribute(String value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Records the last sent message, the last interceptor of the stack.
+     */
+    private static class Sender extends ChannelInterceptorBase {
+        volatile ChannelMessage original;
+        volatile ChannelMessage sent;
+        final ThreadLocal lastOfThread = new ThreadLocal();
+
+        public void sendMessage(Member[] destination, ChannelMessage msg, InterceptorPayload payload) {
+            //a copy, the buffer of a compressed message is returned to the pool
+            ChannelData copy = new ChannelData(msg.getUniqueId(), new XByteBuffer(msg.getMessage().getBytes(), false), msg.getTimestamp());
+            copy.setOptions(msg.getOptions());
+            copy.setAddress(msg.getAddress());
+            original = msg;
+            sent = copy;
+            lastOfThread.set(copy);
+        }
+
+        ChannelMessage lastMessage() {
+            return sent;
+        }
+
+        XByteBuffer last() {
+            return sent.getMessage();
+        }
+    }
+
+    /**
+     * Records the last received message.
+     */
+    private static class Receiver extends ChannelInterceptorBase {
+        ChannelMessage received;
+
+        public void messageReceived(ChannelMessage msg) {
+            received = msg;
+        }
+    }
+}
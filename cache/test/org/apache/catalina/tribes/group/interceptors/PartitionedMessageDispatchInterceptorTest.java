@@ -0,0 +1,309 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.tribes.group.interceptors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.catalina.ha.session.SessionMessage;
+import org.apache.catalina.ha.session.SessionMessageImpl;
+import org.apache.catalina.tribes.Channel;
+import org.apache.catalina.tribes.ChannelException;
+import org.apache.catalina.tribes.ChannelMessage;
+import org.apache.catalina.tribes.ErrorHandler;
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.UniqueId;
+import org.apache.catalina.tribes.group.ChannelInterceptorBase;
+import org.apache.catalina.tribes.group.GroupChannel;
+import org.apache.catalina.tribes.group.InterceptorPayload;
+import org.apache.catalina.tribes.io.ChannelData;
+import org.apache.catalina.tribes.io.XByteBuffer;
+import org.apache.catalina.tribes.membership.MemberImpl;
+import org.apache.catalina.tribes.tipis.AbstractReplicatedMap.MapMessage;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link PartitionedMessageDispatchInterceptor}: the size of a
+ * partition is limited, messages that don't fit are sent by the caller, the
+ * queued bytes are counted down when they are sent or discarded, and the
+ * messages with the same key are sent in order by one of several threads.
+ */
+public class PartitionedMessageDispatchInterceptorTest {
+
+    private static final int ASYNC = Channel.SEND_OPTIONS_ASYNCHRONOUS;
+
+    private PartitionedMessageDispatchInterceptor dispatcher;
+    private Sender sender;
+    private Member member;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        member = new MemberImpl("localhost", 4001, 0);
+        dispatcher = new PartitionedMessageDispatchInterceptor();
+        dispatcher.setPartitions(4);
+        sender = new Sender();
+        dispatcher.setNext(sender);
+        sender.setPrevious(dispatcher);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        sender.open();
+        dispatcher.stop(Channel.DEFAULT);
+    }
+
+    @Test
+    public void testPartitionSizeIsLimited() throws Exception {
+        dispatcher.setMaxPartitionQueueSize(100);
+        dispatcher.start(Channel.DEFAULT);
+        sender.close();
+        for (int i = 0; i < 5; i++) dispatcher.sendMessage(new Member[] {member}, message(80, i), payload("session", null));
+
+        //the first is queued, the others are sent by the caller
+        assertEquals(dispatcher.getOverflowCount(), 4);
+        assertEquals(sender.callerSent.get(), 4);
+        assertEquals(dispatcher.getCurrentSize(), 80);
+        long[] sizes = dispatcher.getPartitionSizes();
+        long total = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            assertTrue(sizes[i] <= 80, "partition " + i + " holds " + sizes[i] + " bytes");
+            total += sizes[i];
+        }
+        assertEquals(total, 80);
+
+        sender.open();
+        sender.await(5);
+        awaitCurrentSize(0);
+        sizes = dispatcher.getPartitionSizes();
+        for (int i = 0; i < sizes.length; i++) assertEquals(sizes[i], 0);
+    }
+
+    @Test
+    public void testQueueSizeIsLimited() throws Exception {
+        dispatcher.setMaxQueueSize(200);
+        dispatcher.setOverflowPolicy(PartitionedMessageDispatchInterceptor.OVERFLOW_REJECT);
+        dispatcher.start(Channel.DEFAULT);
+        sender.close();
+        dispatcher.sendMessage(new Member[] {member}, message(80, 0), payload("a", null));
+        dispatcher.sendMessage(new Member[] {member}, message(80, 1), payload("b", null));
+        try {
+            dispatcher.sendMessage(new Member[] {member}, message(80, 2), payload("c", null));
+            fail("The queue is full.");
+        } catch (ChannelException expected) {
+        }
+        assertEquals(dispatcher.getCurrentSize(), 160);
+        assertEquals(sender.callerSent.get(), 0);
+
+        sender.open();
+        sender.await(2);
+        awaitCurrentSize(0);
+    }
+
+    @Test
+    public void testOrderByKey() throws Exception {
+        dispatcher.start(Channel.DEFAULT);
+        for (int i = 0; i < 2000; i++) {
+            dispatcher.sendMessage(new Member[] {member}, message(10, i), payload("session" + (i % 20), null));
+        }
+        sender.await(2000);
+        awaitCurrentSize(0);
+
+        //the payload is not passed on by the dispatch threads, the number tells the key
+        Map bySession = new HashMap();
+        for (int i = 0; i < sender.sent.size(); i++) {
+            Sent sent = (Sent)sender.sent.get(i);
+            Integer session = Integer.valueOf(sent.number % 20);
+            List messages = (List)bySession.get(session);
+            if (messages == null) bySession.put(session, messages = new ArrayList());
+            messages.add(sent);
+        }
+        assertEquals(bySession.size(), 20);
+        Set threads = new HashSet();
+        for (Iterator i = bySession.values().iterator(); i.hasNext();) {
+            List messages = (List)i.next();
+            assertEquals(messages.size(), 100);
+            Sent first = (Sent)messages.get(0);
+            for (int j = 1; j < messages.size(); j++) {
+                Sent sent = (Sent)messages.get(j);
+                assertTrue(sent.number > ((Sent)messages.get(j - 1)).number, "sent out of order");
+                //one thread for a key
+                assertEquals(sent.thread, first.thread);
+            }
+            threads.add(first.thread);
+        }
+        assertTrue(threads.size() > 1, "sent by " + threads.size() + " threads");
+    }
+
+    @Test
+    public void testMessagesWithoutKeyGoByDestination() throws Exception {
+        Member other = new MemberImpl("localhost", 4002, 0);
+        assertEquals(dispatcher.getPartitionKey(new Member[] {member, other}, message(10, 0), null),
+            dispatcher.getPartitionKey(new Member[] {other, member}, message(10, 1), payload(null, null)));
+        assertEquals(dispatcher.getPartitionKey(new Member[] {member}, message(10, 0), payload("session", null)), "session".hashCode());
+    }
+
+    @Test
+    public void testChannelPassesMessageKey() throws Exception {
+        GroupChannel channel = new GroupChannel();
+        Sender first = new Sender();
+        channel.addInterceptor(first);
+        SessionMessage session = new SessionMessageImpl("context", SessionMessage.EVT_SESSION_DELTA, new byte[0], "ABCD", "ABCD-1");
+        channel.send(new Member[] {member}, session, ASYNC);
+        MapMessage entry = new MapMessage(new byte[] {1}, MapMessage.MSG_BACKUP, false, "key", "value", null, member, new Member[] {member});
+        channel.send(new Member[] {member}, entry, ASYNC);
+        channel.send(new Member[] {member}, "no key", ASYNC);
+
+        assertEquals(((Sent)first.sent.get(0)).key, "ABCD");
+        assertEquals(((Sent)first.sent.get(1)).key, "key");
+        assertNull(((Sent)first.sent.get(2)).key);
+    }
+
+    @Test
+    public void testStopDrainsQueues() throws Exception {
+        dispatcher.start(Channel.DEFAULT);
+        sender.close();
+        Handler handler = new Handler();
+        for (int i = 0; i < 20; i++) dispatcher.sendMessage(new Member[] {member}, message(50, i), payload("session" + (i % 4), handler));
+        assertEquals(dispatcher.getCurrentSize(), 1000);
+
+        //the messages being sent fail, the queued ones are discarded
+        dispatcher.stop(Channel.DEFAULT);
+        long end = System.currentTimeMillis() + 5000;
+        while (handler.completed.get() + handler.failed.get() < 20 && System.currentTimeMillis() < end) Thread.sleep(10);
+        assertEquals(handler.failed.get(), 20);
+        awaitCurrentSize(0);
+        assertEquals(dispatcher.getPartitionSizes().length, 0);
+
+        //stopped, the messages are sent by the caller
+        sender.open();
+        dispatcher.sendMessage(new Member[] {member}, message(50, 20), payload("session", handler));
+        assertEquals(sender.callerSent.get(), 1);
+        assertEquals(dispatcher.getCurrentSize(), 0);
+
+        //and queued again after a restart
+        dispatcher.start(Channel.DEFAULT);
+        for (int i = 0; i < 20; i++) dispatcher.sendMessage(new Member[] {member}, message(50, i), payload("session" + (i % 4), handler));
+        sender.await(21);
+        awaitCurrentSize(0);
+        end = System.currentTimeMillis() + 5000;
+        while (handler.completed.get() < 20 && System.currentTimeMillis() < end) Thread.sleep(10);
+        assertEquals(handler.completed.get(), 20);
+    }
+
+    private void awaitCurrentSize(long size) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (dispatcher.getCurrentSize() != size && System.currentTimeMillis() < end) Thread.sleep(10);
+        assertEquals(dispatcher.getCurrentSize(), size);
+    }
+
+    private ChannelData message(int size, int number) {
+        ChannelData result = new ChannelData(true);
+        result.setAddress(member);
+        result.setOptions(ASYNC);
+        result.setTimestamp(System.currentTimeMillis());
+        XByteBuffer message = new XByteBuffer(size, false);
+        message.append(number);
+        while (message.getLength() < size) message.append((byte)0);
+        result.setMessage(message);
+        return result;
+    }
+
+    private static InterceptorPayload payload(Object key, ErrorHandler handler) {
+        InterceptorPayload result = new InterceptorPayload();
+        result.setKey(key);
+        result.setErrorHandler(handler);
+        return result;
+    }
+
+    private static class Sent {
+        Object key;
+        int number;
+        Thread thread;
+    }
+
+    /**
+     * Records the sent messages. While closed, the dispatch threads wait
+     * before they send.
+     */
+    private static class Sender extends ChannelInterceptorBase {
+        final List sent = new ArrayList();
+        final AtomicInteger callerSent = new AtomicInteger();
+        volatile CountDownLatch gate = new CountDownLatch(0);
+
+        public void sendMessage(Member[] destination, ChannelMessage msg, InterceptorPayload payload) throws ChannelException {
+            boolean dispatched = Thread.currentThread().getName().startsWith("PartitionedMessageDispatchInterceptor");
+            if (dispatched) {
+                try {
+                    gate.await();
+                } catch (InterruptedException x) {
+                    throw new ChannelException("Interrupted while sending.");
+                }
+            } else {
+                callerSent.incrementAndGet();
+            }
+            Sent result = new Sent();
+            result.key = payload != null ? payload.getKey() : null;
+            result.number = XByteBuffer.toInt(msg.getMessage().getBytesDirect(), 0);
+            result.thread = Thread.currentThread();
+            synchronized (this) {
+                sent.add(result);
+                notifyAll();
+            }
+        }
+
+        void close() {
+            gate = new CountDownLatch(1);
+        }
+
+        void open() {
+            gate.countDown();
+        }
+
+        synchronized void await(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (sent.size() < count && System.currentTimeMillis() < end) wait(10);
+            assertEquals(sent.size(), count);
+        }
+    }
+
+    private static class Handler implements ErrorHandler {
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        public void handleCompletion(UniqueId id) {
+            completed.incrementAndGet();
+        }
+
+        public void handleError(ChannelException x, UniqueId id) {
+            failed.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.tribes.io;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link SizeClassBufferPool}: the size limit and
+ * <code>clear()</code> apply to the thread caches as well.
+ */
+public class SizeClassBufferPoolTest {
+
+    @Test
+    public void testThreadCacheCountsTowardsMaxSize() {
+        SizeClassBufferPool pool = createPool(2 * 1024);
+        ByteBuffer a = pool.getByteBuffer(1024, false);
+        ByteBuffer b = pool.getByteBuffer(1024, false);
+        ByteBuffer c = pool.getByteBuffer(1024, false);
+
+        pool.returnByteBuffer(a);
+        pool.returnByteBuffer(b);
+        assertEquals(pool.getPooledBytes(), 2 * 1024);
+        pool.returnByteBuffer(c);
+        assertEquals(pool.getPooledBytes(), 2 * 1024);
+        assertEquals(pool.getDiscarded(), 1);
+
+        // served from the thread cache
+        assertTrue(pool.getByteBuffer(1024, false) == a);
+        assertEquals(pool.getThreadCacheHits(), 1);
+        assertEquals(pool.getPooledBytes(), 1024);
+    }
+
+    @Test
+    public void testLargerClassesUseSharedQueues() {
+        SizeClassBufferPool pool = createPool(1024 * 1024);
+        XByteBuffer buffer = pool.getBuffer(64 * 1024, false);
+        pool.returnBuffer(buffer);
+        assertEquals(pool.getPooledBytes(), 64 * 1024);
+
+        assertTrue(pool.getBuffer(40 * 1024, false) == buffer);
+        assertEquals(pool.getReused(), 1);
+        assertEquals(pool.getThreadCacheHits(), 0);
+        assertEquals(pool.getPooledBytes(), 0);
+    }
+
+    @Test
+    public void testClearDropsThreadCaches() throws Exception {
+        final SizeClassBufferPool pool = createPool(1024 * 1024);
+        pool.returnByteBuffer(pool.getByteBuffer(1024, false));
+        Thread other = new Thread() {
+            public void run() {
+                pool.returnByteBuffer(pool.getByteBuffer(1024, false));
+            }
+        };
+        other.start();
+        other.join();
+        assertEquals(pool.getPooledBytes(), 2 * 1024);
+
+        pool.clear();
+        assertEquals(pool.getPooledBytes(), 0);
+
+        long allocated = pool.getAllocated();
+        pool.getByteBuffer(1024, false);
+        assertEquals(pool.getAllocated(), allocated + 1);
+        assertEquals(pool.getThreadCacheHits(), 0);
+        assertEquals(pool.getPooledBytes(), 0);
+    }
+
+    private static SizeClassBufferPool createPool(int maxSize) {
+        SizeClassBufferPool pool = new SizeClassBufferPool();
+        pool.setMaxSize(maxSize);
+        pool.setThreadCacheSize(2);
+        pool.setLeakDetectionThreshold(0);
+        return pool;
+    }
+
+}
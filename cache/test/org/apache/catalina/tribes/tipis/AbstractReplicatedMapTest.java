@@ -0,0 +1,332 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.tribes.tipis;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.catalina.tribes.Channel;
+import org.apache.catalina.tribes.ChannelException;
+import org.apache.catalina.tribes.ChannelInterceptor;
+import org.apache.catalina.tribes.ChannelListener;
+import org.apache.catalina.tribes.ErrorHandler;
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.MembershipListener;
+import org.apache.catalina.tribes.UniqueId;
+import org.apache.catalina.tribes.membership.MemberImpl;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for the member bookkeeping and the streamed state transfer of
+ * {@link AbstractReplicatedMap}, with maps connected by channels in memory.
+ */
+public class AbstractReplicatedMapTest {
+
+    private static final String CHUNK_SIZE = "org.apache.catalina.tribes.tipis.AbstractReplicatedMap.stateTransferChunkSize";
+
+    private List<LocalChannel> network;
+    private List<AbstractReplicatedMap> maps;
+
+    @BeforeMethod
+    public void setUp() {
+        network = new CopyOnWriteArrayList<LocalChannel>();
+        maps = new ArrayList<AbstractReplicatedMap>();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        for (int i = 0; i < maps.size(); i++) {
+            maps.get(i).breakdown();
+        }
+        for (int i = 0; i < network.size(); i++) {
+            network.get(i).executor.shutdown();
+        }
+        System.getProperties().remove(CHUNK_SIZE);
+    }
+
+    @Test
+    public void testMemberSnapshot() throws Exception {
+        Member a = createMember(1);
+        Member b = createMember(2);
+        Member c = createMember(3);
+        AbstractReplicatedMap.MemberSnapshot snapshot =
+            new AbstractReplicatedMap.MemberSnapshot(new Member[] {a, b, c});
+
+        assertEquals(snapshot.indexOf(b), 1);
+        assertEquals(snapshot.indexOf(createMember(4)), -1);
+        assertEquals(snapshot.wrap(1), new Member[] {b});
+        assertEquals(snapshot.excluding(0), new Member[] {b, c});
+        assertEquals(snapshot.excluding(1), new Member[] {a, c});
+        assertEquals(snapshot.excluding(2), new Member[] {a, b});
+        // the arrays are shared
+        assertTrue(snapshot.wrap(1) == snapshot.wrap(1));
+        assertEquals(AbstractReplicatedMap.MemberSnapshot.EMPTY.getMembers().length, 0);
+    }
+
+    @Test
+    public void testMembersAreAddedAndRemoved() throws Exception {
+        LocalChannel channelA = createChannel(1);
+        LocalChannel channelB = createChannel(2);
+        AbstractReplicatedMap mapA = createMap(channelA, null);
+        AbstractReplicatedMap mapB = createMap(channelB, null);
+
+        assertEquals(mapA.getMapMembers(), new Member[] {channelB.member});
+        assertEquals(mapB.getMapMembers(), new Member[] {channelA.member});
+        assertEquals(mapA.getMapMembersExcl(new Member[] {channelB.member}).length, 0);
+        assertTrue(mapA.getNextBackupNode().equals(channelB.member));
+
+        mapA.memberDisappeared(channelB.member);
+        assertEquals(mapA.getMapMembers().length, 0);
+        assertEquals(mapA.getNextBackupNode(), null);
+    }
+
+    @Test
+    public void testStreamedStateTransfer() throws Exception {
+        System.setProperty(CHUNK_SIZE, "100");
+        LocalChannel channelA = createChannel(1);
+        AbstractReplicatedMap mapA = createMap(channelA, null);
+        for (int i = 0; i < 1050; i++) {
+            mapA.put("key" + i, "value" + i);
+        }
+
+        LocalChannel channelB = createChannel(2);
+        AbstractReplicatedMap mapB = createMap(channelB, null);
+
+        // 11 messages of entries
+        assertEquals(channelB.stateMessages, 11);
+        assertEquals(mapB.sizeFull(), 1050);
+        assertTrue(mapB.isStateTransferred());
+        for (int i = 0; i < 1050; i++) {
+            assertTrue(mapB.containsKey("key" + i), "key" + i);
+        }
+    }
+
+    @Test
+    public void testExpiredMemberIsRelocated() throws Exception {
+        final List<Object> madePrimary = Collections.synchronizedList(new ArrayList<Object>());
+        AbstractReplicatedMap.MapOwner owner = new AbstractReplicatedMap.MapOwner() {
+            public void objectMadePrimay(Object key, Object value) {
+                madePrimary.add(key);
+            }
+        };
+        LocalChannel channelA = createChannel(1);
+        LocalChannel channelB = createChannel(2);
+        AbstractReplicatedMap mapA = createMap(channelA, owner);
+        AbstractReplicatedMap mapB = createMap(channelB, null);
+        // B is the primary, A the backup
+        mapB.put("key", "value");
+        long end = System.currentTimeMillis() + 3000;
+        while (mapA.getInternal("key") == null && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        AbstractReplicatedMap.MapEntry entry = mapA.getInternal("key");
+        assertTrue(entry.isBackup());
+
+        // B doesn't reply to pings anymore
+        channelB.silent = true;
+        mapA.setAccessTimeout(100);
+        Thread.sleep(200);
+        mapA.heartbeat();
+
+        assertEquals(mapA.getMapMembers().length, 0);
+        assertEquals(madePrimary, Collections.singletonList("key"));
+        assertTrue(entry.isPrimary());
+    }
+
+    private LocalChannel createChannel(int id) throws Exception {
+        LocalChannel channel = new LocalChannel(createMember(id), network);
+        network.add(channel);
+        return channel;
+    }
+
+    private AbstractReplicatedMap createMap(Channel channel, AbstractReplicatedMap.MapOwner owner) {
+        AbstractReplicatedMap map = new LazyReplicatedMap(owner, channel, 3000, "test",
+                new ClassLoader[] {getClass().getClassLoader()});
+        maps.add(map);
+        return map;
+    }
+
+    private static Member createMember(int id) throws Exception {
+        MemberImpl member = new MemberImpl("localhost", 4000 + id, 0);
+        byte[] uniqueId = new byte[16];
+        uniqueId[0] = (byte) id;
+        member.setUniqueId(uniqueId);
+        return member;
+    }
+
+    /**
+     * A channel that serializes the messages and delivers them in order on
+     * one thread to the channel of the destination.
+     */
+    private static class LocalChannel implements Channel {
+
+        final Member member;
+        final List<LocalChannel> network;
+        final List<ChannelListener> channelListeners = new CopyOnWriteArrayList<ChannelListener>();
+        final List<MembershipListener> membershipListeners = new CopyOnWriteArrayList<MembershipListener>();
+        final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        volatile boolean silent = false;
+        volatile int stateMessages = 0;
+
+        LocalChannel(Member member, List<LocalChannel> network) {
+            this.member = member;
+            this.network = network;
+        }
+
+        public UniqueId send(Member[] destination, Serializable msg, int options) throws ChannelException {
+            byte[] data = serialize(msg);
+            for (int i = 0; i < destination.length; i++) {
+                LocalChannel channel = find(destination[i]);
+                if (channel == null) {
+                    ChannelException cx = new ChannelException("Unknown member.");
+                    cx.addFaultyMember(destination[i], new IOException("Unknown member."));
+                    throw cx;
+                }
+                channel.deliver(data, member);
+            }
+            return new UniqueId(new byte[16]);
+        }
+
+        public UniqueId send(Member[] destination, Serializable msg, int options, ErrorHandler handler)
+                throws ChannelException {
+            return send(destination, msg, options);
+        }
+
+        private LocalChannel find(Member destination) {
+            for (Iterator<LocalChannel> i = network.iterator(); i.hasNext();) {
+                LocalChannel channel = i.next();
+                if (channel.member.equals(destination)) return channel;
+            }
+            return null;
+        }
+
+        void deliver(final byte[] data, final Member sender) {
+            if (silent) return;
+            executor.execute(new Runnable() {
+                public void run() {
+                    Serializable msg = deserialize(data);
+                    if (msg instanceof AbstractReplicatedMap.MapMessage) {
+                        int type = ((AbstractReplicatedMap.MapMessage) msg).getMsgType();
+                        if (type == AbstractReplicatedMap.MapMessage.MSG_STATE || type == AbstractReplicatedMap.MapMessage.MSG_STATE_COPY) stateMessages++;
+                    }
+                    for (Iterator<ChannelListener> i = channelListeners.iterator(); i.hasNext();) {
+                        ChannelListener listener = i.next();
+                        if (listener.accept(msg, sender)) listener.messageReceived(msg, sender);
+                    }
+                }
+            });
+        }
+
+        public Member[] getMembers() {
+            List<Member> result = new ArrayList<Member>();
+            for (Iterator<LocalChannel> i = network.iterator(); i.hasNext();) {
+                LocalChannel channel = i.next();
+                if (channel != this) result.add(channel.member);
+            }
+            return result.toArray(new Member[result.size()]);
+        }
+
+        public boolean hasMembers() {
+            return getMembers().length > 0;
+        }
+
+        public Member getLocalMember(boolean incAlive) {
+            return member;
+        }
+
+        public Member getMember(Member mbr) {
+            LocalChannel channel = find(mbr);
+            return channel != null ? channel.member : null;
+        }
+
+        public void addChannelListener(ChannelListener listener) {
+            channelListeners.add(listener);
+        }
+
+        public void removeChannelListener(ChannelListener listener) {
+            channelListeners.remove(listener);
+        }
+
+        public void addMembershipListener(MembershipListener listener) {
+            membershipListeners.add(listener);
+        }
+
+        public void removeMembershipListener(MembershipListener listener) {
+            membershipListeners.remove(listener);
+        }
+
+        public void addInterceptor(ChannelInterceptor interceptor) {
+        }
+
+        public void start(int svc) {
+        }
+
+        public void stop(int svc) {
+        }
+
+        public void heartbeat() {
+        }
+
+        public void setHeartbeat(boolean enable) {
+        }
+
+        private static byte[] serialize(Serializable msg) throws ChannelException {
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(bos);
+                oos.writeObject(msg);
+                oos.close();
+                return bos.toByteArray();
+            } catch (IOException x) {
+                throw new ChannelException(x);
+            }
+        }
+
+        private static Serializable deserialize(byte[] data) {
+            try {
+                return (Serializable) new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+            } catch (Exception x) {
+                throw new IllegalStateException(x.toString());
+            }
+        }
+
+    }
+
+}
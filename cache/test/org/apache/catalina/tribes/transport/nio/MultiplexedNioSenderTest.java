@@ -0,0 +1,265 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.catalina.tribes.transport.nio;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.catalina.tribes.Channel;
+import org.apache.catalina.tribes.ChannelException;
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.io.ChannelData;
+import org.apache.catalina.tribes.io.XByteBuffer;
+import org.apache.catalina.tribes.membership.MemberImpl;
+import org.apache.catalina.tribes.transport.Constants;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link MultiplexedNioSender} against a blocking receiver that
+ * acknowledges every message, or fails the connection.
+ */
+public class MultiplexedNioSenderTest {
+
+    private MultiplexedNioSender sender;
+    private Receiver receiver;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        sender = new MultiplexedNioSender();
+        sender.setTimeout(3000);
+        sender.connect();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        sender.disconnect();
+        if (receiver != null) {
+            receiver.close();
+            receiver = null;
+        }
+    }
+
+    @Test
+    public void testConcurrentSendsAreAcknowledged() throws Exception {
+        receiver = new Receiver(0);
+        final Member member = receiver.getMember();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 50; j++) {
+                            sender.sendMessage(new Member[] {member},
+                                    createMessage(member, thread + "-" + j));
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join(10000);
+        }
+
+        assertEquals(errors, new ArrayList<Throwable>());
+        assertEquals(receiver.getMessages().size(), 400);
+        assertEquals(sender.getMessagesSent(), 400);
+        assertEquals(sender.getMessagesFailed(), 0);
+        assertTrue(sender.getWrites() <= 400);
+        assertEquals(sender.getPendingAcks(member), 0);
+        assertEquals(sender.getQueueDepth(member), 0);
+    }
+
+    @Test
+    public void testMessageIsSentAgainAfterConnectionFailure() throws Exception {
+        // the first connection is closed after a message was read, without ack
+        receiver = new Receiver(1);
+        Member member = receiver.getMember();
+
+        sender.sendMessage(new Member[] {member}, createMessage(member, "a"));
+
+        assertEquals(receiver.getMessages(), set("a"));
+        assertEquals(receiver.getConnections(), 2);
+        assertEquals(sender.getMessagesFailed(), 0);
+    }
+
+    @Test
+    public void testUnreachableMemberFails() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        Member member = new MemberImpl("localhost", port, 0);
+
+        try {
+            sender.sendMessage(new Member[] {member}, createMessage(member, "a"));
+            fail("Nothing listens on port " + port);
+        } catch (ChannelException e) {
+            assertEquals(e.getFaultyMembers().length, 1);
+            assertEquals(e.getFaultyMembers()[0].getMember(), member);
+        }
+        assertEquals(sender.getMessagesFailed(), 1);
+    }
+
+    @Test
+    public void testMissingAckTimesOut() throws Exception {
+        receiver = new Receiver(-1);
+        Member member = receiver.getMember();
+        sender.setTimeout(500);
+
+        long start = System.currentTimeMillis();
+        try {
+            sender.sendMessage(new Member[] {member}, createMessage(member, "a"));
+            fail("The message was not acknowledged.");
+        } catch (ChannelException e) {
+            assertEquals(e.getFaultyMembers().length, 1);
+        }
+        assertTrue(System.currentTimeMillis() - start < 3000);
+    }
+
+    private static ChannelData createMessage(Member member, String text) {
+        ChannelData data = new ChannelData(true);
+        data.setAddress(member);
+        data.setTimestamp(System.currentTimeMillis());
+        data.setOptions(Channel.SEND_OPTIONS_USE_ACK);
+        byte[] bytes = text.getBytes();
+        data.setMessage(new XByteBuffer(bytes, bytes.length, false));
+        return (data);
+    }
+
+    private static Set<String> set(String... values) {
+        Set<String> result = new HashSet<String>();
+        for (int i = 0; i < values.length; i++) {
+            result.add(values[i]);
+        }
+        return (result);
+    }
+
+    /**
+     * Reads the packages sent on each connection and writes an ack for
+     * each of them.
+     */
+    private static class Receiver extends Thread {
+
+        private final ServerSocket server;
+        private final int failFirstConnectionAfter;
+        private final Set<String> messages = Collections.synchronizedSet(new HashSet<String>());
+        private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+        /**
+         * @param failFirstConnectionAfter the number of messages after which
+         *  the first connection is closed without ack, <code>-1</code> to
+         *  never acknowledge, <code>0</code> to acknowledge all messages
+         */
+        Receiver(int failFirstConnectionAfter) throws IOException {
+            this.failFirstConnectionAfter = failFirstConnectionAfter;
+            server = new ServerSocket(0);
+            setDaemon(true);
+            start();
+        }
+
+        Member getMember() throws IOException {
+            return (new MemberImpl("localhost", server.getLocalPort(), 0));
+        }
+
+        Set<String> getMessages() {
+            synchronized (messages) {
+                return (new HashSet<String>(messages));
+            }
+        }
+
+        int getConnections() {
+            return (sockets.size());
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = server.accept();
+                    sockets.add(socket);
+                    final boolean fail = sockets.size() == 1 && failFirstConnectionAfter > 0;
+                    Thread reader = new Thread() {
+                        public void run() {
+                            try {
+                                read(socket, fail);
+                            } catch (IOException e) {
+                                // closed
+                            }
+                        }
+                    };
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private void read(Socket socket, boolean fail) throws IOException {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            XByteBuffer buffer = new XByteBuffer(1024, true);
+            byte[] bytes = new byte[1024];
+            int count = 0;
+            int n;
+            while ((n = in.read(bytes)) > 0) {
+                buffer.append(bytes, 0, n);
+                while (buffer.doesPackageExist()) {
+                    ChannelData data = buffer.extractPackage(true);
+                    messages.add(new String(data.getMessage().getBytes()));
+                    count++;
+                    if (fail && count >= failFirstConnectionAfter) {
+                        socket.close();
+                        return;
+                    }
+                    if (failFirstConnectionAfter >= 0) {
+                        out.write(Constants.ACK_COMMAND);
+                        out.flush();
+                    }
+                }
+            }
+        }
+
+        void close() throws IOException {
+            server.close();
+            synchronized (sockets) {
+                for (int i = 0; i < sockets.size(); i++) {
+                    sockets.get(i).close();
+                }
+            }
+        }
+
+    }
+
+}
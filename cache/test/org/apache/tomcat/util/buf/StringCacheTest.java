@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tomcat.util.buf;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Iterator;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test for the training of {@link StringCache}: names become cached, and a
+ * cache that doesn't change is built less and less often, by one thread.
+ */
+public class StringCacheTest {
+
+    private static final String[] NAMES = {
+        "Host", "Accept", "Cookie", "Referer", "User-Agent", "Connection", "GET", "POST"
+    };
+
+    private StringCache cache;
+    private int trainThreshold;
+
+    @BeforeMethod
+    public void setUp() {
+        cache = new StringCache();
+        trainThreshold = cache.getTrainThreshold();
+        cache.setTrainThreshold(100);
+        cache.reset();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        cache.setTrainThreshold(trainThreshold);
+        cache.reset();
+    }
+
+    @Test
+    public void testNamesAreCached() throws Exception {
+        ByteChunk bc = new ByteChunk();
+        bc.setEncoding("ISO-8859-1");
+        while (StringCache.bcCache == null) {
+            convert(bc, 10);
+            awaitBuild();
+        }
+
+        int hits = cache.getHitCount();
+        for (int i = 0; i < NAMES.length; i++) {
+            byte[] b = NAMES[i].getBytes("ISO-8859-1");
+            bc.setBytes(b, 0, b.length);
+            assertEquals(StringCache.toString(bc), NAMES[i]);
+        }
+        assertEquals(cache.getHitCount(), hits + NAMES.length);
+    }
+
+    @Test
+    public void testStableCacheIsBuiltLessOften() throws Exception {
+        cache.setTrainThreshold(10);
+        ByteChunk bc = new ByteChunk();
+        bc.setEncoding("ISO-8859-1");
+        // Misses of strings seen only once don't change the cache
+        int misses = 0;
+        for (int build = 0; build < 8; build++) {
+            int interval = StringCache.bcInterval;
+            for (int i = 0; i <= interval; i++) {
+                byte[] b = ("X-Unique-" + misses++).getBytes("ISO-8859-1");
+                bc.setBytes(b, 0, b.length);
+                StringCache.toString(bc);
+            }
+            awaitBuild();
+        }
+        assertEquals(StringCache.bcInterval, StringCache.MAX_TRAIN_BACKOFF * 10);
+
+        // A new frequent name resets the interval
+        while (StringCache.bcInterval != 10) {
+            convert(bc, 10);
+            awaitBuild();
+        }
+
+        int trainers = 0;
+        for (Iterator i = Thread.getAllStackTraces().keySet().iterator(); i.hasNext();) {
+            if ("StringCache".equals(((Thread) i.next()).getName())) {
+                trainers++;
+            }
+        }
+        assertEquals(trainers, 1);
+    }
+
+    private static void convert(ByteChunk bc, int times) throws Exception {
+        for (int i = 0; i < times; i++) {
+            for (int j = 0; j < NAMES.length; j++) {
+                byte[] b = NAMES[j].getBytes("ISO-8859-1");
+                bc.setBytes(b, 0, b.length);
+                StringCache.toString(bc);
+            }
+        }
+    }
+
+    private static void awaitBuild() throws Exception {
+        long end = System.currentTimeMillis() + 5000;
+        while (StringCache.bcBuilding.get()) {
+            assertTrue(System.currentTimeMillis() < end, "The cache is not built");
+            Thread.sleep(1);
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tomcat.util.http;
+
+import static org.testng.Assert.assertEquals;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.testng.annotations.Test;
+
+/**
+ * Differential test of {@link FastHttpDateFormat} against the
+ * <code>SimpleDateFormat</code> formats it replaces.
+ */
+public class FastHttpDateFormatTest {
+
+    private static final String[] ZONES = {
+        "GMT", "gmt", "UTC", "UT", "Z", "EST", "PST", "CET", "+0100", "-0530",
+        "+01", "+2400", "GMT+01:00", "XYZ", ""
+    };
+
+    private static final String[] DAYS = {
+        "Sun", "Monday", "tue", "WED", "Thursday", "fri", "Sat", "Xyz", "Mo",
+        "Sund", "Funday"
+    };
+
+    private static final String[] MONTHS = {
+        "Jan", "February", "mar", "APR", "Mai", "June", "Sept", "Dec", "De"
+    };
+
+    private final SimpleDateFormat[] formats = {
+        new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US),
+        new SimpleDateFormat("EEEEEE, dd-MMM-yy HH:mm:ss zzz", Locale.US),
+        new SimpleDateFormat("EEE MMMM d HH:mm:ss yyyy", Locale.US)
+    };
+
+    public FastHttpDateFormatTest() {
+        for (int i = 0; i < formats.length; i++) {
+            formats[i].setTimeZone(TimeZone.getTimeZone("GMT"));
+        }
+    }
+
+    @Test
+    public void testFormat() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            long value = randomDate(random);
+            String expected = formats[0].format(new Date(value));
+            assertEquals(FastHttpDateFormat.formatDate(value, null), expected);
+            ByteChunk bc = new ByteChunk(64);
+            FastHttpDateFormat.appendDate(value, bc);
+            assertEquals(bc.toString(), expected);
+        }
+        assertEquals(FastHttpDateFormat.getCurrentDate().length(), FastHttpDateFormat.DATE_LENGTH);
+    }
+
+    @Test
+    public void testParseFormattedDates() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            Date date = new Date(randomDate(random) / 1000 * 1000);
+            for (int j = 0; j < formats.length; j++) {
+                assertParse(formats[j].format(date));
+            }
+            // asctime with an abbreviated month and a padded day
+            String asctime = formats[2].format(date);
+            int month = asctime.indexOf(' ') + 1;
+            int day = asctime.indexOf(' ', month) + 1;
+            assertParse(asctime.substring(0, month + 3) + (asctime.charAt(day + 1) == ' ' ? "  " : " ")
+                    + asctime.substring(day));
+        }
+    }
+
+    @Test
+    public void testParseVariants() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            StringBuffer buf = new StringBuffer();
+            if (random.nextInt(10) == 0) {
+                buf.append(' ');
+            }
+            buf.append(DAYS[random.nextInt(DAYS.length)]);
+            String month = MONTHS[random.nextInt(MONTHS.length)];
+            String day = Integer.toString(random.nextInt(33));
+            String time = twoDigits(random.nextInt(26)) + ":" + twoDigits(random.nextInt(61)) + ":"
+                + twoDigits(random.nextInt(61));
+            int year = random.nextBoolean() ? 1900 + random.nextInt(200) : random.nextInt(100);
+            String zone = ZONES[random.nextInt(ZONES.length)];
+            switch (random.nextInt(3)) {
+            case 0:
+                buf.append(", ").append(twoDigits(Integer.parseInt(day))).append(' ').append(month);
+                buf.append(' ').append(year).append(' ').append(time).append(' ').append(zone);
+                break;
+            case 1:
+                buf.append(", ").append(twoDigits(Integer.parseInt(day))).append('-').append(month);
+                buf.append('-').append(twoDigits(year % 100)).append(' ').append(time).append(' ').append(zone);
+                break;
+            default:
+                buf.append(' ').append(month).append(' ').append(day).append(' ').append(time);
+                buf.append(' ').append(year);
+            }
+            if (random.nextInt(10) == 0) {
+                buf.append(" trailing");
+            }
+            String value = buf.toString();
+            if (random.nextInt(10) == 0) {
+                value = value.substring(0, random.nextInt(value.length()));
+            }
+            assertParse(value);
+        }
+    }
+
+    @Test
+    public void testRejectedDates() throws Exception {
+        // any letters as the name of the day
+        assertEquals(FastHttpDateFormat.parseDate("Xyz, 06 Nov 1994 08:49:37 GMT", null), -1L);
+        // no time zone
+        assertEquals(FastHttpDateFormat.parseDate("Sun, 06 Nov 1994 08:49:37", null), -1L);
+        assertEquals(FastHttpDateFormat.parseDate("Sunday, 06-Nov-94 08:49:37", null), -1L);
+        assertEquals(FastHttpDateFormat.parseDate("Sun, 06 Nov 1994 08:49:37 GMT", null), 784111777000L);
+        assertEquals(FastHttpDateFormat.parseDate("Sunday, 06-Nov-94 08:49:37 GMT", null), 784111777000L);
+        assertEquals(FastHttpDateFormat.parseDate("Sun Nov  6 08:49:37 1994", null), 784111777000L);
+    }
+
+    private void assertParse(String value) {
+        assertEquals(FastHttpDateFormat.parseDate(value, null), parse(value), value);
+    }
+
+    private long parse(String value) {
+        for (int i = 0; i < formats.length; i++) {
+            try {
+                return formats[i].parse(value).getTime();
+            } catch (ParseException e) {
+                // next format
+            }
+        }
+        return -1L;
+    }
+
+    private static long randomDate(Random random) {
+        // from 1583 to 9999
+        return -12212553600000L + (long) (random.nextDouble() * (253402300800000L + 12212553600000L));
+    }
+
+    private static String twoDigits(int value) {
+        return (value < 10) ? "0" + value : Integer.toString(value);
+    }
+
+}
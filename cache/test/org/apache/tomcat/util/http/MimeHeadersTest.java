@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.tomcat.util.http;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test for the hashed index of {@link MimeHeaders}: lookups give the same
+ * results as the linear scan.
+ */
+public class MimeHeadersTest {
+
+    private static final String[] NAMES = {
+        "Host", "Accept", "Accept-Language", "Accept-Encoding", "Accept-Charset",
+        "Cookie", "Content-Type", "Content-Length", "User-Agent", "Referer",
+        "Connection", "Cache-Control", "Pragma", "If-Modified-Since", "If-None-Match",
+        "Authorization", "X-Forwarded-For", "X-Forwarded-Proto", "Via", "Origin",
+        "X-Custom-1", "X-Custom-2", "X-Custom-3", "Range", "Expect",
+        // the Kelvin sign equals "K" ignoring case, but hashes differently
+        "Kelvin", "\u212Aelvin"
+    };
+
+    @Test
+    public void testIndexMatchesLinearScan() {
+        Random random = new Random(42);
+        MimeHeaders indexed = new MimeHeaders();
+        MimeHeaders linear = new MimeHeaders();
+        linear.setUseIndex(false);
+
+        for (int request = 0; request < 500; request++) {
+            int headers = MimeHeaders.INDEX_THRESHOLD + random.nextInt(30);
+            for (int i = 0; i < headers; i++) {
+                String name = randomCase(random, NAMES[random.nextInt(NAMES.length)]);
+                String value = "v" + i;
+                int op = random.nextInt(10);
+                if (op < 5) {
+                    indexed.addValue(name).setString(value);
+                    linear.addValue(name).setString(value);
+                } else if (op < 7) {
+                    byte[] b = ("xx" + name).getBytes();
+                    if (b.length - 2 == name.length()) {
+                        indexed.addValue(b, 2, name.length()).setString(value);
+                        linear.addValue(b, 2, name.length()).setString(value);
+                    }
+                } else if (op < 8) {
+                    char[] c = name.toCharArray();
+                    indexed.addValue(c, 0, c.length).setString(value);
+                    linear.addValue(c, 0, c.length).setString(value);
+                } else if (op < 9) {
+                    indexed.setValue(name).setString(value);
+                    linear.setValue(name).setString(value);
+                } else {
+                    indexed.removeHeader(name);
+                    linear.removeHeader(name);
+                }
+                if (random.nextInt(4) == 0) {
+                    assertSameLookups(random, indexed, linear);
+                }
+            }
+            assertSameLookups(random, indexed, linear);
+            indexed.recycle();
+            linear.recycle();
+        }
+    }
+
+    @Test
+    public void testLookupAfterRecycle() {
+        MimeHeaders headers = new MimeHeaders();
+        for (int i = 0; i < MimeHeaders.INDEX_THRESHOLD * 2; i++) {
+            headers.addValue("X-Header-" + i).setString("first" + i);
+        }
+        assertEquals(headers.getHeader("x-header-3"), "first3");
+        headers.recycle();
+
+        assertNull(headers.getHeader("x-header-3"));
+        for (int i = 0; i < MimeHeaders.INDEX_THRESHOLD * 2; i++) {
+            headers.addValue("X-Header-" + (i + 1)).setString("second" + i);
+        }
+        assertEquals(headers.getHeader("X-HEADER-3"), "second2");
+        assertNull(headers.getHeader("X-Header-0"));
+    }
+
+    @Test
+    public void testHeadersAddedAfterLookup() {
+        MimeHeaders headers = new MimeHeaders();
+        for (int i = 0; i < MimeHeaders.INDEX_THRESHOLD; i++) {
+            headers.addValue("X-Header-" + i).setString("v" + i);
+        }
+        assertNull(headers.getHeader("Accept"));
+        headers.addValue("accept").setString("a");
+        headers.addValue("ACCEPT").setString("b");
+
+        assertEquals(values(headers, "Accept"), list("a", "b"));
+        // the last header takes the place of the removed one
+        headers.removeHeader("X-Header-0");
+        assertEquals(values(headers, "Accept"), list("b", "a"));
+        headers.setValue("Accept").setString("c");
+        assertEquals(values(headers, "Accept"), list("c"));
+    }
+
+    private static void assertSameLookups(Random random, MimeHeaders indexed, MimeHeaders linear) {
+        assertEquals(indexed.size(), linear.size());
+        for (int i = 0; i < indexed.size(); i++) {
+            assertEquals(indexed.getName(i).toString(), linear.getName(i).toString());
+            assertEquals(indexed.getValue(i).toString(), linear.getValue(i).toString());
+        }
+        for (int i = 0; i < NAMES.length; i++) {
+            String name = randomCase(random, NAMES[i]);
+            assertEquals(indexed.getHeader(name), linear.getHeader(name), name);
+            assertEquals(values(indexed, name), values(linear, name), name);
+            for (int j = indexed.findHeader(name, 0); j >= 0; j = indexed.findHeader(name, j + 1)) {
+                assertEquals(j, linear.findHeader(name, j), name);
+            }
+        }
+    }
+
+    private static String randomCase(Random random, String name) {
+        char[] c = name.toCharArray();
+        for (int i = 0; i < c.length; i++) {
+            if (c[i] < 0x80 && random.nextBoolean()) {
+                c[i] = Character.isUpperCase(c[i]) ? Character.toLowerCase(c[i]) : Character.toUpperCase(c[i]);
+            }
+        }
+        return new String(c);
+    }
+
+    private static List<String> values(MimeHeaders headers, String name) {
+        List<String> result = new ArrayList<String>();
+        for (Enumeration e = headers.values(name); e.hasMoreElements();) {
+            result.add((String) e.nextElement());
+        }
+        return result;
+    }
+
+    private static List<String> list(String... values) {
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < values.length; i++) {
+            result.add(values[i]);
+        }
+        return result;
+    }
+
+}